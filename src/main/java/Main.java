@@ -51,6 +51,20 @@ public class Main {
             // Set idp.webflows to "classpath*:/flows" so user flows in multiple locations can be found.
             System.setProperty("idp.webflows", "classpath*:/flows");
 
+            // Set testbed.storage.log to the log file of the persistent storage service, unless already set.
+            if (System.getProperty("testbed.storage.log") == null) {
+                System.setProperty("testbed.storage.log",
+                        Paths.get("target", "testbed-storage.log").toAbsolutePath().toString());
+            }
+
+            // Set testbed.storage.socket.secret to the file of the shared secret of the storage socket server, unless
+            // already set. The server is disabled unless testbed.storage.socket.port is set, it then listens on the
+            // loopback interface only and generates the secret into the file, readable by its owner only.
+            if (System.getProperty("testbed.storage.socket.secret") == null) {
+                System.setProperty("testbed.storage.socket.secret",
+                        Paths.get("target", "testbed-storage-socket.secret").toAbsolutePath().toString());
+            }
+
             // Determine path to jetty-base in the idp-distribution module.
             final Path pathToJettyBase =
                     Paths.get(Paths.get("").toAbsolutePath().getParent().toAbsolutePath().toString(),
@@ -138,6 +152,9 @@ public class Main {
             // handlers.addHandler(requestLogHandler);
 
             server.setHandler(handlers);
+
+            // Stop the webapps on shutdown, so storage services are destroyed and flushed to disk.
+            server.setStopAtShutdown(true);
             
             server.start();
             server.join();
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package common;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A bounded pool of {@link Deflater} instances.
+ * 
+ * A deflater holds native memory until it is ended, so creating one per use is expensive and leaving them to the
+ * garbage collector lets native memory pile up. Deflaters are reset when released; at most a fixed number are kept
+ * idle and any others are ended.
+ */
+@ThreadSafe
+public class DeflaterPool {
+
+    /** Compression level of the deflaters. */
+    private final int level;
+
+    /** Whether the deflaters write raw DEFLATE data, without the ZLIB header and checksum. */
+    private final boolean nowrap;
+
+    /** Idle deflaters. */
+    @Nonnull private final BlockingQueue<Deflater> idle;
+
+    /**
+     * Constructor.
+     * 
+     * @param compressionLevel compression level of the deflaters, see {@link Deflater#setLevel(int)}
+     * @param maxIdle largest number of idle deflaters kept
+     */
+    public DeflaterPool(final int compressionLevel, final int maxIdle) {
+        this(compressionLevel, false, maxIdle);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param compressionLevel compression level of the deflaters, see {@link Deflater#setLevel(int)}
+     * @param raw whether the deflaters write raw DEFLATE data, as required by the SAML HTTP-Redirect binding
+     * @param maxIdle largest number of idle deflaters kept
+     */
+    public DeflaterPool(final int compressionLevel, final boolean raw, final int maxIdle) {
+        level = compressionLevel;
+        nowrap = raw;
+        idle = new ArrayBlockingQueue<>(maxIdle);
+    }
+
+    /**
+     * Borrow a deflater, which must be released after use.
+     * 
+     * @return a deflater ready for new input
+     */
+    @Nonnull public Deflater borrow() {
+        final Deflater deflater = idle.poll();
+        return deflater != null ? deflater : new Deflater(level, nowrap);
+    }
+
+    /**
+     * Release a borrowed deflater.
+     * 
+     * @param deflater the deflater
+     */
+    public void release(@Nonnull final Deflater deflater) {
+        deflater.reset();
+        if (!idle.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    /** End the idle deflaters. */
+    public void clear() {
+        Deflater deflater;
+        while ((deflater = idle.poll()) != null) {
+            deflater.end();
+        }
+    }
+}
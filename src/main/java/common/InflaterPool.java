@@ -0,0 +1,139 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package common;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A bounded pool of {@link Inflater} instances.
+ * 
+ * Inflaters are reset when released; at most a fixed number are kept idle and any others are ended.
+ * 
+ * @see DeflaterPool
+ */
+@ThreadSafe
+public class InflaterPool {
+
+    /** Whether the inflaters read raw DEFLATE data, without the ZLIB header and checksum. */
+    private final boolean nowrap;
+
+    /** Idle inflaters. */
+    @Nonnull private final BlockingQueue<Inflater> idle;
+
+    /**
+     * Constructor.
+     * 
+     * @param maxIdle largest number of idle inflaters kept
+     */
+    public InflaterPool(final int maxIdle) {
+        this(false, maxIdle);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param raw whether the inflaters read raw DEFLATE data, as sent with the SAML HTTP-Redirect binding
+     * @param maxIdle largest number of idle inflaters kept
+     */
+    public InflaterPool(final boolean raw, final int maxIdle) {
+        nowrap = raw;
+        idle = new ArrayBlockingQueue<>(maxIdle);
+    }
+
+    /**
+     * Borrow an inflater, which must be released after use.
+     * 
+     * @return an inflater ready for new input
+     */
+    @Nonnull public Inflater borrow() {
+        final Inflater inflater = idle.poll();
+        return inflater != null ? inflater : new Inflater(nowrap);
+    }
+
+    /**
+     * Release a borrowed inflater.
+     * 
+     * @param inflater the inflater
+     */
+    public void release(@Nonnull final Inflater inflater) {
+        inflater.reset();
+        if (!idle.offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Inflate data with a pooled inflater, giving up once it inflates to more than a number of bytes.
+     * 
+     * @param data the deflated data
+     * @param maxSize largest number of inflated bytes accepted
+     * @param buffer a heap buffer to inflate into, or <code>null</code> to allocate one
+     * @return a heap buffer holding the inflated data from position 0 to its limit, which is the given buffer unless it
+     *         was too small, or <code>null</code> if the data inflates to more than the given number of bytes
+     * @throws DataFormatException if the data is not valid or is truncated
+     */
+    @Nullable public ByteBuffer inflate(@Nonnull final byte[] data, final int maxSize,
+            @Nullable final ByteBuffer buffer) throws DataFormatException {
+        final Inflater inflater = borrow();
+        try {
+            inflater.setInput(data);
+            byte[] inflated =
+                    buffer != null ? buffer.array() : new byte[(int) Math.min(maxSize + 1L, 4L * data.length + 64)];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == inflated.length) {
+                    if (length > maxSize) {
+                        return null;
+                    }
+                    inflated = Arrays.copyOf(inflated, (int) Math.min(maxSize + 1L, Math.max(2L * length, 64)));
+                }
+                final int count = inflater.inflate(inflated, length, inflated.length - length);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Deflated data is truncated");
+                }
+                length += count;
+            }
+            if (length > maxSize) {
+                return null;
+            }
+            final ByteBuffer result = buffer != null && buffer.array() == inflated ? buffer : ByteBuffer.wrap(inflated);
+            result.clear();
+            result.limit(length);
+            return result;
+        } finally {
+            release(inflater);
+        }
+    }
+
+    /** End the idle inflaters. */
+    public void clear() {
+        Inflater inflater;
+        while ((inflater = idle.poll()) != null) {
+            inflater.end();
+        }
+    }
+}
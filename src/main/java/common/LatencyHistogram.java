@@ -0,0 +1,241 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.json.stream.JsonGenerator;
+
+/**
+ * A lock-free histogram of durations in nanoseconds.
+ * 
+ * Values are counted in log-linear buckets: below 16 each value has its own bucket, above that every power of two is
+ * split into 16 buckets, so percentiles are exact to within about 6%. Recording is a few atomic increments and never
+ * allocates.
+ * 
+ * Sizes may be recorded as well, and written with {@link #writeBytes(JsonGenerator, String)}.
+ */
+@ThreadSafe
+public class LatencyHistogram {
+
+    /** Number of bits of sub-bucket resolution per power of two. */
+    private static final int SUB_BUCKET_BITS = 4;
+
+    /** Number of sub-buckets per power of two. */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /** Number of buckets needed for any positive long. */
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    /** Counts per bucket. */
+    @Nonnull private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    /** Number of recorded values. */
+    @Nonnull private final AtomicLong count = new AtomicLong();
+
+    /** Sum of recorded values. */
+    @Nonnull private final AtomicLong sum = new AtomicLong();
+
+    /** Largest recorded value. */
+    @Nonnull private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration.
+     * 
+     * @param nanos the duration in nanoseconds, negative values count as zero
+     */
+    public void record(final long nanos) {
+        final long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Add the values recorded by another histogram.
+     * 
+     * @param other the histogram to add
+     */
+    public void add(@Nonnull final LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            final long bucketCount = other.counts.get(i);
+            if (bucketCount != 0) {
+                counts.addAndGet(i, bucketCount);
+            }
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        final long otherMax = other.max.get();
+        long currentMax = max.get();
+        while (otherMax > currentMax && !max.compareAndSet(currentMax, otherMax)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Record the time elapsed since a start time.
+     * 
+     * @param startNanos the start time as returned by {@link System#nanoTime()}
+     */
+    public void recordSince(final long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Get the number of recorded values.
+     * 
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the mean of the recorded values.
+     * 
+     * @return the mean in nanoseconds, or 0 if nothing has been recorded
+     */
+    public long getMean() {
+        final long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /**
+     * Get the largest recorded value.
+     * 
+     * @return the largest value in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the value below which the given percentage of recorded values fall.
+     * 
+     * @param percentile the percentile, between 0 and 100
+     * @return the highest value of the bucket containing the percentile, in nanoseconds
+     */
+    public long getValueAtPercentile(final double percentile) {
+        final long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Write the count and a latency summary in microseconds as a named JSON object.
+     * 
+     * @param gen the JSON generator, positioned inside an object
+     * @param name the name of the summary object
+     */
+    public void write(@Nonnull final JsonGenerator gen, @Nonnull final String name) {
+        gen.writeStartObject(name);
+        gen.write("count", getCount());
+        gen.write("meanMicros", toMicros(getMean()));
+        gen.write("p50Micros", toMicros(getValueAtPercentile(50)));
+        gen.write("p90Micros", toMicros(getValueAtPercentile(90)));
+        gen.write("p99Micros", toMicros(getValueAtPercentile(99)));
+        gen.write("p999Micros", toMicros(getValueAtPercentile(99.9)));
+        gen.write("maxMicros", toMicros(getMax()));
+        gen.writeEnd();
+    }
+
+    /**
+     * Write the count and a summary of values recorded as sizes in bytes rather than durations, as a named JSON
+     * object.
+     * 
+     * @param gen the JSON generator, positioned inside an object
+     * @param name the name of the summary object
+     */
+    public void writeBytes(@Nonnull final JsonGenerator gen, @Nonnull final String name) {
+        gen.writeStartObject(name);
+        gen.write("count", getCount());
+        gen.write("meanBytes", getMean());
+        gen.write("p50Bytes", getValueAtPercentile(50));
+        gen.write("p90Bytes", getValueAtPercentile(90));
+        gen.write("p99Bytes", getValueAtPercentile(99));
+        gen.write("maxBytes", getMax());
+        gen.writeEnd();
+    }
+
+    /**
+     * Convert nanoseconds to microseconds.
+     * 
+     * @param nanos the duration in nanoseconds
+     * @return the duration in microseconds
+     */
+    private static long toMicros(final long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * Get the index of the bucket counting a value.
+     * 
+     * @param value the non-negative value
+     * @return the bucket index
+     */
+    private static int bucketIndex(final long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * Get the highest value counted by a bucket.
+     * 
+     * @param index the bucket index
+     * @return the highest value of the bucket
+     */
+    private static long bucketUpperBound(final int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKET_COUNT - 1;
+        final long subBucket = index % SUB_BUCKET_COUNT;
+        final long upper = (SUB_BUCKET_COUNT + subBucket + 1) << shift;
+        return upper <= 0 ? Long.MAX_VALUE : upper - 1;
+    }
+
+}
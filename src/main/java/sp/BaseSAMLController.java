@@ -17,12 +17,21 @@
 
 package sp;
 
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
 import javax.servlet.http.HttpServletRequest;
 
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.security.IdentifierGenerationStrategy;
 import net.shibboleth.utilities.java.support.security.Type4UUIDIdentifierGenerationStrategy;
 import net.shibboleth.utilities.java.support.xml.ParserPool;
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
 
 import org.apache.velocity.app.VelocityEngine;
 import org.opensaml.core.xml.XMLObjectBuilderFactory;
@@ -37,6 +46,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 
 public abstract class BaseSAMLController {
 
@@ -54,8 +68,37 @@ public abstract class BaseSAMLController {
 
     @Autowired @Qualifier("test.sp.Credential") protected Credential spCredential;
 
+    /** Decoder of inbound messages reused across requests, see sp-servlet.xml. */
+    @Autowired(required = false) protected InboundMessageDecoder inboundMessageDecoder;
+
+    /** Whether to decode with {@link #inboundMessageDecoder} rather than with a new OpenSAML decoder per message. */
+    @Value("#{systemProperties['testbed.sp.decoder.pipeline'] ?: true}") protected boolean decoderPipeline;
+
+    /** Request parameter selecting how an inbound response is rendered, {@link #VIEW_SUMMARY} or {@link #VIEW_XML}. */
+    public static final String VIEW_PARAM = "view";
+
+    /** View rendering a compact JSON summary of an inbound response. */
+    public static final String VIEW_SUMMARY = "summary";
+
+    /** View rendering an inbound response as pretty-printed XML. */
+    public static final String VIEW_XML = "xml";
+
+    /** The view of inbound responses when the request does not select one. */
+    @Value("#{systemProperties['testbed.sp.response.view'] ?: 'summary'}") protected String defaultResponseView;
+
+    /** JSON generator factory of the summary view. */
+    private final JsonGeneratorFactory generatorFactory =
+            Json.createGeneratorFactory(Collections.<String, Object> emptyMap());
+
     protected MessageContext<SAMLObject> decodeInboundMessageContextPost(HttpServletRequest servletRequest)
             throws Exception {
+        final InboundMessagePrescreener prescreener = getPrescreener();
+        final byte[] screenedMessage = prescreener != null ? prescreener.prescreen(servletRequest, false) : null;
+
+        if (decoderPipeline && inboundMessageDecoder != null) {
+            return decodeWithPipeline(servletRequest, false, screenedMessage);
+        }
+
         HTTPPostDecoder decoder = new HTTPPostDecoder();
         try {
             decoder.setHttpServletRequest(servletRequest);
@@ -75,6 +118,13 @@ public abstract class BaseSAMLController {
 
     protected MessageContext<SAMLObject> decodeInboundMessageContextRedirect(HttpServletRequest servletRequest)
             throws Exception {
+        final InboundMessagePrescreener prescreener = getPrescreener();
+        final byte[] screenedMessage = prescreener != null ? prescreener.prescreen(servletRequest, true) : null;
+
+        if (decoderPipeline && inboundMessageDecoder != null) {
+            return decodeWithPipeline(servletRequest, true, screenedMessage);
+        }
+
         HTTPRedirectDeflateDecoder decoder = new HTTPRedirectDeflateDecoder();
         try {
             decoder.setHttpServletRequest(servletRequest);
@@ -92,4 +142,90 @@ public abstract class BaseSAMLController {
         }
     }
 
+    /**
+     * Decode an inbound message with the {@link #inboundMessageDecoder}.
+     * 
+     * @param servletRequest the servlet request
+     * @param redirect whether the message is sent with the HTTP-Redirect binding
+     * @param screenedMessage the message as decoded by the prescreener, or <code>null</code>
+     * @return the message context
+     * @throws MessageDecodingException if the message can not be decoded
+     */
+    private MessageContext<SAMLObject> decodeWithPipeline(HttpServletRequest servletRequest, boolean redirect,
+            byte[] screenedMessage) throws MessageDecodingException {
+        try {
+            return inboundMessageDecoder.decode(servletRequest, redirect, screenedMessage);
+        } catch (MessageDecodingException e) {
+            log.error("Error decoding inbound message context", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Get the screener of the inbound messages of this controller.
+     * 
+     * @return the screener, or <code>null</code> to decode inbound messages unscreened, the default
+     */
+    @Nullable protected InboundMessagePrescreener getPrescreener() {
+        return null;
+    }
+
+    /**
+     * Answer a rejected inbound message with a '400 Bad Request'.
+     * 
+     * @param e the rejection
+     * @return the response
+     */
+    @ExceptionHandler(MessageRejectedException.class)
+    public ResponseEntity<String> handleMessageRejected(MessageRejectedException e) {
+        return new ResponseEntity<>("Inbound message rejected: " + e.getMessage(), HttpStatus.BAD_REQUEST);
+    }
+
+    /**
+     * Render an inbound response in the view selected by the {@link #VIEW_PARAM} parameter.
+     * 
+     * The response is only pretty-printed for the {@link #VIEW_XML} view, or when trace logging is enabled.
+     * 
+     * @param servletRequest the servlet request
+     * @param logger the logger to trace the response to
+     * @param message the inbound response
+     * @param decodeNanos the time spent decoding the response, in nanoseconds
+     * @return the rendered response, or a '400 Bad Request' if the view is unknown
+     */
+    protected ResponseEntity<String> renderInboundResponse(HttpServletRequest servletRequest, Logger logger,
+            SAMLObject message, long decodeNanos) {
+        final String view = servletRequest.getParameter(VIEW_PARAM) != null
+                ? servletRequest.getParameter(VIEW_PARAM) : defaultResponseView;
+        final boolean xml = VIEW_XML.equals(view);
+        if (!xml && !VIEW_SUMMARY.equals(view)) {
+            return new ResponseEntity<>("Unknown view '" + view + "'", HttpStatus.BAD_REQUEST);
+        }
+
+        String formattedMessage = null;
+        if (xml || logger.isTraceEnabled()) {
+            formattedMessage = SerializeSupport.prettyPrintXML(message.getDOM());
+            logger.trace("Returning response{}{}", System.lineSeparator(), formattedMessage);
+        }
+
+        final HttpHeaders headers = new HttpHeaders();
+        if (xml) {
+            headers.add("Content-Type", "text/plain");
+            return new ResponseEntity<>(formattedMessage, headers, HttpStatus.OK);
+        }
+
+        final long start = System.nanoTime();
+        final StringWriter summary = new StringWriter();
+        final JsonGenerator gen = generatorFactory.createGenerator(summary);
+        gen.writeStartObject();
+        ResponseSummary.write(gen, message);
+        gen.writeStartObject("timings");
+        gen.write("decodeMicros", TimeUnit.NANOSECONDS.toMicros(decodeNanos));
+        gen.write("summaryMicros", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        gen.writeEnd();
+        gen.writeEnd().close();
+
+        headers.add("Content-Type", "application/json");
+        return new ResponseEntity<>(summary.toString(), headers, HttpStatus.OK);
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,239 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletResponse;
+
+import net.shibboleth.utilities.java.support.codec.HTMLEncoder;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.net.HttpServletSupport;
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
+
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.messaging.encoder.MessageEncodingException;
+import org.opensaml.saml.common.SAMLObject;
+import org.opensaml.saml.common.binding.SAMLBindingSupport;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.binding.encoding.impl.BaseSAML2MessageEncoder;
+import org.opensaml.saml.saml2.binding.encoding.impl.HTTPPostEncoder;
+import org.opensaml.saml.saml2.core.RequestAbstractType;
+import org.opensaml.saml.saml2.core.StatusResponseType;
+import org.w3c.dom.Element;
+
+/**
+ * A SAML 2 HTTP-POST binding encoder rendering the auto-submitting form from a {@link PostFormTemplate} instead of
+ * merging a Velocity template.
+ * 
+ * Like {@link HTTPPostEncoder}, the form posts the message as the 'SAMLRequest' or 'SAMLResponse' field, along with
+ * the relay state if any, to the endpoint URL of the message context. Unlike it, the marshalled message is serialized
+ * straight through a Base64 encoder into the response writer, so neither the serialized message nor its encoding is
+ * ever held as a whole.
+ */
+public class CompiledHTTPPostEncoder extends BaseSAML2MessageEncoder {
+
+    /** Number of Base64 characters buffered before they are written. */
+    private static final int BASE64_BUFFER_SIZE = 1024;
+
+    /** The Base64 alphabet. */
+    @Nonnull private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /** The form template, with the {@link PostFormTemplate#ACTION} and {@link PostFormTemplate#FIELDS} slots. */
+    @Nonnull private PostFormTemplate formTemplate = PostFormTemplate.DEFAULT;
+
+    /**
+     * Set the form template, {@link PostFormTemplate#DEFAULT} by default.
+     * 
+     * @param template the form template, with the {@link PostFormTemplate#ACTION} and {@link PostFormTemplate#FIELDS}
+     *            slots
+     */
+    public void setFormTemplate(@Nonnull final PostFormTemplate template) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        formTemplate = Constraint.isNotNull(template, "Form template cannot be null");
+    }
+
+    /** {@inheritDoc} */
+    @Override public String getBindingURI() {
+        return SAMLConstants.SAML2_POST_BINDING_URI;
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doEncode() throws MessageEncodingException {
+        final MessageContext<SAMLObject> messageContext = getMessageContext();
+        final SAMLObject message = messageContext.getMessage();
+        if (message == null) {
+            throw new MessageEncodingException("No outbound SAML message contained in message context");
+        }
+
+        final String messageField;
+        if (message instanceof RequestAbstractType) {
+            messageField = "SAMLRequest";
+        } else if (message instanceof StatusResponseType) {
+            messageField = "SAMLResponse";
+        } else {
+            throw new MessageEncodingException(
+                    "SAML message is neither a SAML RequestAbstractType or StatusResponseType");
+        }
+
+        final String action = HTMLEncoder.encodeForHTMLAttribute(getEndpointURL(messageContext).toString());
+        final String relayState = SAMLBindingSupport.getRelayState(messageContext);
+        final String encodedRelayState =
+                SAMLBindingSupport.checkRelayState(relayState) ? HTMLEncoder.encodeForHTMLAttribute(relayState) : null;
+
+        final Element dom;
+        try {
+            dom = XMLObjectSupport.marshall(message);
+        } catch (final MarshallingException e) {
+            throw new MessageEncodingException("Unable to marshall SAML message", e);
+        }
+
+        final HttpServletResponse response = getHttpServletResponse();
+        HttpServletSupport.addNoCacheHeaders(response);
+        HttpServletSupport.setUTF8Encoding(response);
+        HttpServletSupport.setContentType(response, "text/html");
+
+        try {
+            final Writer out = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+            formTemplate.render(out, new PostFormTemplate.SlotRenderer() {
+                public void renderSlot(@Nonnull final String slot, @Nonnull final Writer writer) throws IOException {
+                    if (slot == PostFormTemplate.ACTION) {
+                        writer.write(action);
+                    } else if (slot == PostFormTemplate.FIELDS) {
+                        writeFields(writer, encodedRelayState, messageField, dom);
+                    }
+                }
+            });
+            out.flush();
+        } catch (final IOException e) {
+            throw new MessageEncodingException("Problem writing the HTML form", e);
+        }
+    }
+
+    /**
+     * Write the hidden form fields: the relay state if any, then the Base64-encoded message.
+     * 
+     * @param out the writer
+     * @param encodedRelayState the HTML-encoded relay state, or <code>null</code>
+     * @param messageField the name of the message field
+     * @param dom the marshalled message
+     * @throws IOException if writing fails
+     */
+    private static void writeFields(@Nonnull final Writer out, @Nullable final String encodedRelayState,
+            @Nonnull final String messageField, @Nonnull final Element dom) throws IOException {
+        if (encodedRelayState != null) {
+            out.write("                <input type=\"hidden\" name=\"RelayState\" value=\"");
+            out.write(encodedRelayState);
+            out.write("\"/>\n");
+        }
+        out.write("                <input type=\"hidden\" name=\"");
+        out.write(messageField);
+        out.write("\" value=\"");
+        final Base64WriterOutputStream base64 = new Base64WriterOutputStream(out);
+        SerializeSupport.writeNode(dom, base64);
+        base64.finish();
+        out.write("\"/>\n");
+    }
+
+    /**
+     * An {@link OutputStream} Base64-encoding what is written to it, unchunked and padded, into a {@link Writer}.
+     */
+    private static final class Base64WriterOutputStream extends OutputStream {
+
+        /** The writer. */
+        @Nonnull private final Writer writer;
+
+        /** The encoded characters not written yet. */
+        @Nonnull private final char[] chars = new char[BASE64_BUFFER_SIZE];
+
+        /** Number of characters in {@link #chars}. */
+        private int charCount;
+
+        /** The bytes of the current group of three. */
+        private int group;
+
+        /** Number of bytes in {@link #group}. */
+        private int groupLength;
+
+        /**
+         * Constructor.
+         * 
+         * @param out the writer to write the encoded characters to
+         */
+        Base64WriterOutputStream(@Nonnull final Writer out) {
+            writer = out;
+        }
+
+        /** {@inheritDoc} */
+        @Override public void write(final int b) throws IOException {
+            group = group << 8 | b & 0xFF;
+            if (++groupLength == 3) {
+                if (charCount == chars.length) {
+                    writer.write(chars, 0, charCount);
+                    charCount = 0;
+                }
+                chars[charCount++] = BASE64[group >>> 18 & 0x3F];
+                chars[charCount++] = BASE64[group >>> 12 & 0x3F];
+                chars[charCount++] = BASE64[group >>> 6 & 0x3F];
+                chars[charCount++] = BASE64[group & 0x3F];
+                group = 0;
+                groupLength = 0;
+            }
+        }
+
+        /** {@inheritDoc} */
+        @Override public void write(@Nonnull final byte[] b, final int off, final int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        /**
+         * Pad and write the last group, and write the buffered characters, without closing the writer.
+         * 
+         * @throws IOException if writing fails
+         */
+        void finish() throws IOException {
+            if (groupLength > 0) {
+                if (charCount == chars.length) {
+                    writer.write(chars, 0, charCount);
+                    charCount = 0;
+                }
+                final int bits = group << (3 - groupLength) * 8;
+                chars[charCount++] = BASE64[bits >>> 18 & 0x3F];
+                chars[charCount++] = BASE64[bits >>> 12 & 0x3F];
+                chars[charCount++] = groupLength == 2 ? BASE64[bits >>> 6 & 0x3F] : '=';
+                chars[charCount++] = '=';
+                group = 0;
+                groupLength = 0;
+            }
+            writer.write(chars, 0, charCount);
+            charCount = 0;
+        }
+    }
+
+}
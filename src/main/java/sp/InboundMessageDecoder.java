@@ -0,0 +1,393 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sp;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.json.stream.JsonGenerator;
+import javax.servlet.http.HttpServletRequest;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.codec.Base64Support;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.xml.ParserPool;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.Unmarshaller;
+import org.opensaml.core.xml.io.UnmarshallerFactory;
+import org.opensaml.core.xml.io.UnmarshallingException;
+import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.messaging.decoder.MessageDecodingException;
+import org.opensaml.saml.common.SAMLObject;
+import org.opensaml.saml.common.binding.SAMLBindingSupport;
+import org.opensaml.saml.common.messaging.context.SAMLBindingContext;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.binding.decoding.impl.HTTPPostDecoder;
+import org.opensaml.saml.saml2.binding.decoding.impl.HTTPRedirectDeflateDecoder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import common.InflaterPool;
+import common.LatencyHistogram;
+
+/**
+ * Decodes inbound SAML 2 HTTP-POST and HTTP-Redirect messages, like {@link HTTPPostDecoder} and
+ * {@link HTTPRedirectDeflateDecoder}, without building a decoder per message.
+ * 
+ * The configuration is set once and shared by all messages. Messages are Base64-decoded with {@link Base64Support}
+ * and, for HTTP-Redirect, inflated with a pooled raw inflater into a buffer borrowed from a pool owned by the decoder,
+ * to which it is returned unless a large message made it grow past {@link #MAX_RETAINED_BUFFER_SIZE}. The message is
+ * then parsed from the buffer with the parser pool and unmarshalled.
+ * 
+ * A message already decoded by {@link InboundMessagePrescreener} is parsed as it is, so it is not decoded twice.
+ * 
+ * The time spent in each of these stages and the encoded and decoded sizes of the messages are recorded, see
+ * {@link #writeStatistics(JsonGenerator, String)}. The parse stage includes any wait for a parser of the pool, and
+ * the Base64 and inflate stages only cover the messages decoded here rather than by the prescreener.
+ */
+@ThreadSafe
+public class InboundMessageDecoder extends AbstractInitializableComponent {
+
+    /** Largest buffer returned to the pool once a message has been inflated into it, in bytes. */
+    public static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+
+    /** Largest number of idle buffers kept in the pool. */
+    private static final int MAX_IDLE_BUFFERS = 64;
+
+    /** Raw inflaters of HTTP-Redirect messages. */
+    @Nonnull private final InflaterPool inflaterPool = new InflaterPool(true, 64);
+
+    /** Idle buffers to inflate HTTP-Redirect messages into. */
+    @Nonnull private final BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(MAX_IDLE_BUFFERS);
+
+    /** The parser pool. */
+    @Nullable private ParserPool parserPool;
+
+    /** The unmarshaller factory. */
+    @Nullable private UnmarshallerFactory unmarshallerFactory;
+
+    /** Largest decoded message accepted, in bytes. */
+    @Positive private int maxMessageSize = 1024 * 1024;
+
+    /** Time spent Base64-decoding. */
+    @Nonnull private final LatencyHistogram base64Latency = new LatencyHistogram();
+
+    /** Time spent inflating HTTP-Redirect messages. */
+    @Nonnull private final LatencyHistogram inflateLatency = new LatencyHistogram();
+
+    /** Time spent parsing, including any wait for a parser. */
+    @Nonnull private final LatencyHistogram parseLatency = new LatencyHistogram();
+
+    /** Time spent unmarshalling. */
+    @Nonnull private final LatencyHistogram unmarshallLatency = new LatencyHistogram();
+
+    /** Time spent decoding messages, from the request to the message context. */
+    @Nonnull private final LatencyHistogram totalLatency = new LatencyHistogram();
+
+    /** Lengths of the encoded message parameters. */
+    @Nonnull private final LatencyHistogram encodedSizes = new LatencyHistogram();
+
+    /** Sizes of the decoded messages. */
+    @Nonnull private final LatencyHistogram messageSizes = new LatencyHistogram();
+
+    /** Number of messages decoded by the prescreener. */
+    @Nonnull private final AtomicLong prescreened = new AtomicLong();
+
+    /** Number of messages which could not be decoded. */
+    @Nonnull private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Set the parser pool.
+     * 
+     * @param pool the parser pool
+     */
+    public void setParserPool(@Nonnull final ParserPool pool) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        parserPool = Constraint.isNotNull(pool, "Parser pool cannot be null");
+    }
+
+    /**
+     * Set the unmarshaller factory.
+     * 
+     * @param factory the unmarshaller factory, the one of the OpenSAML configuration by default
+     */
+    public void setUnmarshallerFactory(@Nullable final UnmarshallerFactory factory) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        unmarshallerFactory = factory;
+    }
+
+    /**
+     * Set the largest decoded message accepted.
+     * 
+     * @param size the size in bytes, 1 MB by default
+     */
+    public void setMaxMessageSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxMessageSize = (int) Constraint.isGreaterThan(0, size, "Max message size must be greater than 0");
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (parserPool == null) {
+            throw new ComponentInitializationException("Parser pool cannot be null");
+        }
+        if (unmarshallerFactory == null) {
+            unmarshallerFactory = XMLObjectProviderRegistrySupport.getUnmarshallerFactory();
+            if (unmarshallerFactory == null) {
+                throw new ComponentInitializationException("No unmarshaller factory is configured");
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doDestroy() {
+        inflaterPool.clear();
+        buffers.clear();
+        super.doDestroy();
+    }
+
+    /**
+     * Decode the message of a request.
+     * 
+     * @param servletRequest the servlet request
+     * @param redirect whether the message is sent with the HTTP-Redirect binding rather than the HTTP-POST binding
+     * @return the message context, with its SAML binding context populated
+     * @throws MessageDecodingException if the message can not be decoded
+     */
+    @Nonnull public MessageContext<SAMLObject> decode(@Nonnull final HttpServletRequest servletRequest,
+            final boolean redirect) throws MessageDecodingException {
+        return decode(servletRequest, redirect, null);
+    }
+
+    /**
+     * Decode the message of a request, unless it has already been decoded.
+     * 
+     * @param servletRequest the servlet request
+     * @param redirect whether the message is sent with the HTTP-Redirect binding rather than the HTTP-POST binding
+     * @param screenedMessage the message as decoded and, for HTTP-Redirect, inflated by
+     *            {@link InboundMessagePrescreener#prescreen(HttpServletRequest, boolean)}, or <code>null</code> to
+     *            decode it from the request
+     * @return the message context, with its SAML binding context populated
+     * @throws MessageDecodingException if the message can not be decoded
+     */
+    @Nonnull public MessageContext<SAMLObject> decode(@Nonnull final HttpServletRequest servletRequest,
+            final boolean redirect, @Nullable final byte[] screenedMessage) throws MessageDecodingException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        final long start = System.nanoTime();
+        ByteBuffer buffer = null;
+        try {
+            if (!(redirect ? "GET" : "POST").equalsIgnoreCase(servletRequest.getMethod())) {
+                throw new MessageDecodingException("This message decoder only supports the HTTP "
+                        + (redirect ? "GET" : "POST") + " method");
+            }
+
+            String encoded = servletRequest.getParameter("SAMLRequest");
+            if (encoded == null || encoded.isEmpty()) {
+                encoded = servletRequest.getParameter("SAMLResponse");
+            }
+            if (encoded == null || encoded.isEmpty()) {
+                throw new MessageDecodingException("No SAML message present in the request");
+            }
+            encodedSizes.record(encoded.length());
+
+            long stageStart;
+            byte[] message;
+            int messageLength;
+            if (screenedMessage != null) {
+                if (screenedMessage.length > maxMessageSize) {
+                    throw new MessageDecodingException("Message is larger than " + maxMessageSize + " bytes");
+                }
+                prescreened.incrementAndGet();
+                message = screenedMessage;
+                messageLength = screenedMessage.length;
+            } else {
+                stageStart = System.nanoTime();
+                final byte[] decoded = decodeBase64(encoded);
+                base64Latency.recordSince(stageStart);
+
+                message = decoded;
+                messageLength = decoded.length;
+                if (redirect) {
+                    stageStart = System.nanoTime();
+                    buffer = inflate(decoded);
+                    message = buffer.array();
+                    messageLength = buffer.limit();
+                    inflateLatency.recordSince(stageStart);
+                }
+            }
+            messageSizes.record(messageLength);
+
+            stageStart = System.nanoTime();
+            final Document document;
+            try {
+                document = parserPool.parse(new ByteArrayInputStream(message, 0, messageLength));
+            } catch (final XMLParserException e) {
+                throw new MessageDecodingException("Unable to parse the inbound message", e);
+            }
+            parseLatency.recordSince(stageStart);
+
+            stageStart = System.nanoTime();
+            final SAMLObject samlMessage = unmarshall(document.getDocumentElement());
+            unmarshallLatency.recordSince(stageStart);
+
+            final MessageContext<SAMLObject> messageContext = new MessageContext<>();
+            messageContext.setMessage(samlMessage);
+            final SAMLBindingContext bindingContext = messageContext.getSubcontext(SAMLBindingContext.class, true);
+            bindingContext.setRelayState(servletRequest.getParameter("RelayState"));
+            if (redirect) {
+                final String signature = servletRequest.getParameter("Signature");
+                bindingContext.setBindingUri(SAMLConstants.SAML2_REDIRECT_BINDING_URI);
+                bindingContext.setHasBindingSignature(signature != null && !signature.isEmpty());
+            } else {
+                bindingContext.setBindingUri(SAMLConstants.SAML2_POST_BINDING_URI);
+                bindingContext.setHasBindingSignature(false);
+            }
+            bindingContext.setIntendedDestinationEndpointURIRequired(
+                    SAMLBindingSupport.isMessageSigned(messageContext));
+
+            totalLatency.recordSince(start);
+            return messageContext;
+        } catch (final MessageDecodingException e) {
+            failed.incrementAndGet();
+            throw e;
+        } finally {
+            if (buffer != null) {
+                releaseBuffer(buffer);
+            }
+        }
+    }
+
+    /**
+     * Base64-decode a message parameter.
+     * 
+     * @param encoded the encoded message
+     * @return the decoded message
+     * @throws MessageDecodingException if the parameter is not Base64 or decodes to too large a message
+     */
+    @Nonnull private byte[] decodeBase64(@Nonnull final String encoded) throws MessageDecodingException {
+        // Base64 takes 4 characters per 3 bytes, so this leaves room for line breaks.
+        if (encoded.length() > 2L * maxMessageSize) {
+            throw new MessageDecodingException("Message is larger than " + maxMessageSize + " bytes");
+        }
+        final byte[] decoded = Base64Support.decode(encoded);
+        if (decoded == null || decoded.length == 0) {
+            throw new MessageDecodingException("Message is not Base64-encoded");
+        } else if (decoded.length > maxMessageSize) {
+            throw new MessageDecodingException("Message is larger than " + maxMessageSize + " bytes");
+        }
+        return decoded;
+    }
+
+    /**
+     * Inflate a message into a buffer borrowed from the pool, which must be released after use.
+     * 
+     * @param deflated the raw DEFLATE data
+     * @return a buffer holding the inflated message from position 0 to its limit
+     * @throws MessageDecodingException if the data is not valid or inflates to too large a message
+     */
+    @Nonnull private ByteBuffer inflate(@Nonnull final byte[] deflated) throws MessageDecodingException {
+        final ByteBuffer buffer = buffers.poll();
+        final ByteBuffer inflated;
+        try {
+            inflated = inflaterPool.inflate(deflated, maxMessageSize, buffer);
+        } catch (final DataFormatException e) {
+            if (buffer != null) {
+                releaseBuffer(buffer);
+            }
+            throw new MessageDecodingException("Message is truncated or not deflated", e);
+        }
+        if (inflated == null) {
+            if (buffer != null) {
+                releaseBuffer(buffer);
+            }
+            throw new MessageDecodingException("Message inflates to more than " + maxMessageSize + " bytes");
+        }
+        return inflated;
+    }
+
+    /**
+     * Return a buffer to the pool, unless it grew past {@link #MAX_RETAINED_BUFFER_SIZE} or the pool is full.
+     * 
+     * @param buffer the buffer
+     */
+    private void releaseBuffer(@Nonnull final ByteBuffer buffer) {
+        if (buffer.capacity() <= MAX_RETAINED_BUFFER_SIZE) {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Unmarshall the root element of a message.
+     * 
+     * @param element the root element
+     * @return the message
+     * @throws MessageDecodingException if the element can not be unmarshalled to a SAML message
+     */
+    @Nonnull private SAMLObject unmarshall(@Nonnull final Element element) throws MessageDecodingException {
+        final Unmarshaller unmarshaller = unmarshallerFactory.getUnmarshaller(element);
+        if (unmarshaller == null) {
+            throw new MessageDecodingException("No unmarshaller for element " + element.getNamespaceURI() + ":"
+                    + element.getLocalName());
+        }
+        final XMLObject message;
+        try {
+            message = unmarshaller.unmarshall(element);
+        } catch (final UnmarshallingException e) {
+            throw new MessageDecodingException("Unable to unmarshall the inbound message", e);
+        }
+        if (!(message instanceof SAMLObject)) {
+            throw new MessageDecodingException("Inbound message is not a SAML message");
+        }
+        return (SAMLObject) message;
+    }
+
+    /**
+     * Write the stage timings and message sizes as a JSON object.
+     * 
+     * @param gen the JSON generator, positioned inside an object
+     * @param name the name of the object
+     */
+    public void writeStatistics(@Nonnull final JsonGenerator gen, @Nonnull final String name) {
+        gen.writeStartObject(name);
+        gen.write("decoded", totalLatency.getCount());
+        gen.write("prescreened", prescreened.get());
+        gen.write("failed", failed.get());
+        base64Latency.write(gen, "base64Latency");
+        inflateLatency.write(gen, "inflateLatency");
+        parseLatency.write(gen, "parseLatency");
+        unmarshallLatency.write(gen, "unmarshallLatency");
+        totalLatency.write(gen, "totalLatency");
+        encodedSizes.writeBytes(gen, "encodedSize");
+        messageSizes.writeBytes(gen, "messageSize");
+        gen.writeEnd();
+    }
+
+}
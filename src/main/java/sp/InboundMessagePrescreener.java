@@ -0,0 +1,477 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sp;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.json.stream.JsonGenerator;
+import javax.servlet.http.HttpServletRequest;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.codec.Base64Support;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import common.InflaterPool;
+import common.LatencyHistogram;
+
+/**
+ * Screens inbound SAML messages with a streaming parser before they are decoded, so that malformed, oversized or
+ * unexpected messages are rejected without building a DOM.
+ * 
+ * The 'SAMLRequest' parameter or, if there is none, the 'SAMLResponse' parameter, the same message the decoders read,
+ * is Base64-decoded and, for the HTTP-Redirect binding, inflated up to {@link #setMaxMessageSize(int)} bytes. The
+ * message is then read with a StAX reader, which must reach its end without error, DTD or element nested deeper than
+ * {@link #setMaxDepth(int)}. The root element must be one of {@link #setAllowedRootElements(Collection)}, its
+ * 'Destination' or, for SAML 1, 'Recipient' attribute must be the request URL, compared with case-insensitive scheme
+ * and host and without default ports, and its 'InResponseTo' attribute must be an XML identifier.
+ * 
+ * The decoded message of an accepted request is returned, so that {@link InboundMessageDecoder} parses it without
+ * decoding it again. Screening then only adds a streaming parse to each accepted message, and saves a DOM build of
+ * each rejected one; the OpenSAML decoders still decode screened messages from scratch. Counts and the time spent in
+ * each stage are written by {@link #writeStatistics(JsonGenerator, String)}.
+ */
+@ThreadSafe
+public class InboundMessagePrescreener extends AbstractInitializableComponent {
+
+    /** Why a message is rejected. */
+    public enum Reason {
+        /** Neither a 'SAMLResponse' nor a 'SAMLRequest' parameter. */
+        MISSING,
+        /** Encoded or decoded message too large. */
+        TOO_LARGE,
+        /** Not Base64, not deflated, or not well-formed XML. */
+        MALFORMED,
+        /** Elements nested too deeply. */
+        TOO_DEEP,
+        /** Root element not allowed. */
+        UNEXPECTED_ROOT,
+        /** Destination or recipient other than the request URL. */
+        DESTINATION,
+        /** InResponseTo not an XML identifier. */
+        IN_RESPONSE_TO,
+    }
+
+    /** Longest InResponseTo value accepted. */
+    public static final int MAX_ID_LENGTH = 256;
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(InboundMessagePrescreener.class);
+
+    /** Raw inflaters of HTTP-Redirect messages. */
+    @Nonnull private final InflaterPool inflaterPool = new InflaterPool(true, 64);
+
+    /** Whether messages are screened at all. */
+    private boolean enabled = true;
+
+    /** Longest encoded message parameter accepted, in characters. */
+    @Positive private int maxEncodedLength = 1024 * 1024;
+
+    /** Largest decoded message accepted, in bytes. */
+    @Positive private int maxMessageSize = 512 * 1024;
+
+    /** Deepest nesting of elements accepted. */
+    @Positive private int maxDepth = 64;
+
+    /** Root elements accepted, any if empty. */
+    @Nonnull @NonnullElements private Set<QName> allowedRootElements = Collections.emptySet();
+
+    /** Whether to check the destination or recipient against the request URL. */
+    private boolean checkDestination = true;
+
+    /** The StAX factory, configured once and then only used to create readers. */
+    @Nullable private XMLInputFactory inputFactory;
+
+    /** Time spent Base64-decoding. */
+    @Nonnull private final LatencyHistogram base64Latency = new LatencyHistogram();
+
+    /** Time spent inflating HTTP-Redirect messages. */
+    @Nonnull private final LatencyHistogram inflateLatency = new LatencyHistogram();
+
+    /** Time spent reading messages with the streaming parser. */
+    @Nonnull private final LatencyHistogram scanLatency = new LatencyHistogram();
+
+    /** Number of messages screened. */
+    @Nonnull private final AtomicLong screened = new AtomicLong();
+
+    /** Number of messages rejected by reason. */
+    @Nonnull private final Map<Reason, AtomicLong> rejected = new EnumMap<>(Reason.class);
+
+    /** Constructor. */
+    public InboundMessagePrescreener() {
+        for (final Reason reason : Reason.values()) {
+            rejected.put(reason, new AtomicLong());
+        }
+    }
+
+    /**
+     * Set whether messages are screened at all.
+     * 
+     * @param flag whether to screen messages, true by default
+     */
+    public void setEnabled(final boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        enabled = flag;
+    }
+
+    /**
+     * Set the longest encoded message parameter accepted.
+     * 
+     * @param length the length in characters, 1 MB by default
+     */
+    public void setMaxEncodedLength(@Positive final int length) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxEncodedLength = (int) Constraint.isGreaterThan(0, length, "Max encoded length must be greater than 0");
+    }
+
+    /**
+     * Set the largest decoded message accepted.
+     * 
+     * @param size the size in bytes, 512 KB by default
+     */
+    public void setMaxMessageSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxMessageSize = (int) Constraint.isGreaterThan(0, size, "Max message size must be greater than 0");
+    }
+
+    /**
+     * Set the deepest nesting of elements accepted.
+     * 
+     * @param depth the depth, the root element being at depth 1, 64 by default
+     */
+    public void setMaxDepth(@Positive final int depth) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxDepth = (int) Constraint.isGreaterThan(0, depth, "Max depth must be greater than 0");
+    }
+
+    /**
+     * Set the root elements accepted.
+     * 
+     * @param names the element names as '{namespace}localPart', any root element if empty, the default
+     */
+    public void setAllowedRootElements(@Nullable final Collection<String> names) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        final Set<QName> elements = new HashSet<>();
+        if (names != null) {
+            for (final String name : names) {
+                if (name != null && !name.trim().isEmpty()) {
+                    elements.add(QName.valueOf(name.trim()));
+                }
+            }
+        }
+        allowedRootElements = Collections.unmodifiableSet(elements);
+    }
+
+    /**
+     * Set whether to check the 'Destination' or 'Recipient' attribute of the root element, if any, against the
+     * request URL.
+     * 
+     * @param flag whether to check the destination, true by default
+     */
+    public void setCheckDestination(final boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        checkDestination = flag;
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, false);
+        inputFactory = factory;
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doDestroy() {
+        inflaterPool.clear();
+        super.doDestroy();
+    }
+
+    /**
+     * Screen the message of a request.
+     * 
+     * @param servletRequest the servlet request
+     * @param deflated whether the message is deflated, as with the HTTP-Redirect binding
+     * @return the decoded and, if deflated, inflated message, or <code>null</code> if screening is disabled
+     * @throws MessageRejectedException if the message is rejected
+     */
+    @Nullable public byte[] prescreen(@Nonnull final HttpServletRequest servletRequest, final boolean deflated)
+            throws MessageRejectedException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        if (!enabled) {
+            return null;
+        }
+        screened.incrementAndGet();
+        try {
+            String encoded = servletRequest.getParameter("SAMLRequest");
+            if (encoded == null || encoded.isEmpty()) {
+                encoded = servletRequest.getParameter("SAMLResponse");
+            }
+            if (encoded == null || encoded.isEmpty()) {
+                throw new MessageRejectedException(Reason.MISSING, "No SAMLResponse or SAMLRequest parameter");
+            } else if (encoded.length() > maxEncodedLength) {
+                throw new MessageRejectedException(Reason.TOO_LARGE,
+                        "Encoded message of " + encoded.length() + " characters is too large");
+            }
+
+            long stageStart = System.nanoTime();
+            final byte[] decoded = Base64Support.decode(encoded);
+            base64Latency.recordSince(stageStart);
+            if (decoded == null || decoded.length == 0) {
+                throw new MessageRejectedException(Reason.MALFORMED, "Message is not Base64-encoded");
+            }
+            byte[] message = decoded;
+            if (deflated) {
+                stageStart = System.nanoTime();
+                message = inflate(decoded);
+                inflateLatency.recordSince(stageStart);
+            } else if (decoded.length > maxMessageSize) {
+                throw new MessageRejectedException(Reason.TOO_LARGE,
+                        "Message of " + decoded.length + " bytes is too large");
+            }
+            stageStart = System.nanoTime();
+            scan(message, message.length, servletRequest);
+            scanLatency.recordSince(stageStart);
+            return message;
+        } catch (final MessageRejectedException e) {
+            rejected.get(e.getReason()).incrementAndGet();
+            log.debug("Rejected inbound message: {}", e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * Inflate a message, up to {@link #maxMessageSize} bytes.
+     * 
+     * @param deflated the raw DEFLATE data
+     * @return the inflated message, exactly sized
+     * @throws MessageRejectedException if the data is not valid or inflates to too large a message
+     */
+    @Nonnull private byte[] inflate(@Nonnull final byte[] deflated) throws MessageRejectedException {
+        final ByteBuffer inflated;
+        try {
+            inflated = inflaterPool.inflate(deflated, maxMessageSize, null);
+        } catch (final DataFormatException e) {
+            throw new MessageRejectedException(Reason.MALFORMED, "Message is truncated or not deflated", e);
+        }
+        if (inflated == null) {
+            throw new MessageRejectedException(Reason.TOO_LARGE,
+                    "Message inflates to more than " + maxMessageSize + " bytes");
+        }
+        return Arrays.copyOf(inflated.array(), inflated.limit());
+    }
+
+    /**
+     * Read a message to its end, checking its root element and nesting depth.
+     * 
+     * @param message the message
+     * @param length the length of the message
+     * @param servletRequest the servlet request
+     * @throws MessageRejectedException if the message is rejected
+     */
+    private void scan(@Nonnull final byte[] message, final int length,
+            @Nonnull final HttpServletRequest servletRequest) throws MessageRejectedException {
+        XMLStreamReader reader = null;
+        try {
+            reader = inputFactory.createXMLStreamReader(new ByteArrayInputStream(message, 0, length));
+            int depth = 0;
+            boolean root = true;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        if (++depth > maxDepth) {
+                            throw new MessageRejectedException(Reason.TOO_DEEP,
+                                    "Elements are nested deeper than " + maxDepth);
+                        }
+                        if (root) {
+                            checkRoot(reader, servletRequest);
+                            root = false;
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        depth--;
+                        break;
+                    case XMLStreamConstants.DTD:
+                    case XMLStreamConstants.ENTITY_REFERENCE:
+                        throw new MessageRejectedException(Reason.MALFORMED, "Message has a DTD or entity reference");
+                    default:
+                        break;
+                }
+            }
+            if (root) {
+                throw new MessageRejectedException(Reason.MALFORMED, "Message has no root element");
+            }
+        } catch (final XMLStreamException e) {
+            throw new MessageRejectedException(Reason.MALFORMED, "Message is not well-formed XML", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (final XMLStreamException e) {
+                    // Nothing to release, the input is in memory.
+                }
+            }
+        }
+    }
+
+    /**
+     * Check the root element of a message and its attributes.
+     * 
+     * @param reader the reader, positioned on the root element
+     * @param servletRequest the servlet request
+     * @throws MessageRejectedException if the message is rejected
+     */
+    private void checkRoot(@Nonnull final XMLStreamReader reader, @Nonnull final HttpServletRequest servletRequest)
+            throws MessageRejectedException {
+        final QName name = reader.getName();
+        if (!allowedRootElements.isEmpty() && !allowedRootElements.contains(name)) {
+            throw new MessageRejectedException(Reason.UNEXPECTED_ROOT, "Root element " + name + " is not allowed");
+        }
+
+        if (checkDestination) {
+            String destination = reader.getAttributeValue(XMLConstants.NULL_NS_URI, "Destination");
+            if (destination == null) {
+                destination = reader.getAttributeValue(XMLConstants.NULL_NS_URI, "Recipient");
+            }
+            if (destination != null && !normalizeURL(destination).equals(
+                    normalizeURL(servletRequest.getRequestURL().toString()))) {
+                throw new MessageRejectedException(Reason.DESTINATION,
+                        "Destination '" + destination + "' is not the request URL");
+            }
+        }
+
+        final String inResponseTo = reader.getAttributeValue(XMLConstants.NULL_NS_URI, "InResponseTo");
+        if (inResponseTo != null && !isIdentifier(inResponseTo)) {
+            throw new MessageRejectedException(Reason.IN_RESPONSE_TO, "InResponseTo is not an XML identifier");
+        }
+    }
+
+    /**
+     * Normalize a URL for comparison: lowercase scheme and host, no default port, and '/' for an empty path.
+     * 
+     * @param url the URL
+     * @return the normalized URL, or the URL itself if it can not be parsed
+     */
+    @Nonnull private static String normalizeURL(@Nonnull final String url) {
+        try {
+            final URI uri = new URI(url.trim());
+            if (uri.getScheme() == null || uri.getRawAuthority() == null || uri.getHost() == null) {
+                return url;
+            }
+            final String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+            int port = uri.getPort();
+            if ("http".equals(scheme) && port == 80 || "https".equals(scheme) && port == 443) {
+                port = -1;
+            }
+            final StringBuilder normalized = new StringBuilder(url.length());
+            normalized.append(scheme).append("://");
+            if (uri.getRawUserInfo() != null) {
+                normalized.append(uri.getRawUserInfo()).append('@');
+            }
+            normalized.append(uri.getHost().toLowerCase(Locale.ROOT));
+            if (port != -1) {
+                normalized.append(':').append(port);
+            }
+            final String path = uri.getRawPath();
+            normalized.append(path == null || path.isEmpty() ? "/" : path);
+            if (uri.getRawQuery() != null) {
+                normalized.append('?').append(uri.getRawQuery());
+            }
+            return normalized.toString();
+        } catch (final URISyntaxException e) {
+            return url;
+        }
+    }
+
+    /**
+     * Whether a value is an XML identifier of at most {@link #MAX_ID_LENGTH} characters. Only ASCII name characters
+     * are accepted, which covers the identifiers generated by SAML implementations.
+     * 
+     * @param value the value
+     * @return whether the value is an identifier
+     */
+    private static boolean isIdentifier(@Nonnull final String value) {
+        if (value.isEmpty() || value.length() > MAX_ID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            final boolean letter = c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c == '_';
+            if (!letter && (i == 0 || !(c >= '0' && c <= '9' || c == '-' || c == '.'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the number of messages screened and rejected as a JSON object.
+     * 
+     * @param gen the JSON generator, positioned inside an object
+     * @param name the name of the object
+     */
+    public void writeStatistics(@Nonnull final JsonGenerator gen, @Nonnull final String name) {
+        gen.writeStartObject(name);
+        gen.write("enabled", enabled);
+        gen.write("screened", screened.get());
+        long total = 0;
+        gen.writeStartObject("rejected");
+        for (final Map.Entry<Reason, AtomicLong> entry : rejected.entrySet()) {
+            final long count = entry.getValue().get();
+            total += count;
+            gen.write(entry.getKey().name().toLowerCase(Locale.ROOT), count);
+        }
+        gen.writeEnd();
+        gen.write("rejectedTotal", total);
+        base64Latency.write(gen, "base64Latency");
+        inflateLatency.write(gen, "inflateLatency");
+        scanLatency.write(gen, "scanLatency");
+        gen.writeEnd();
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sp;
+
+import javax.annotation.Nonnull;
+
+import org.opensaml.messaging.decoder.MessageDecodingException;
+
+/**
+ * Thrown when an inbound message is rejected by an {@link InboundMessagePrescreener} before it is decoded.
+ */
+public class MessageRejectedException extends MessageDecodingException {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = -2911529163585730548L;
+
+    /** Why the message was rejected. */
+    @Nonnull private final InboundMessagePrescreener.Reason reason;
+
+    /**
+     * Constructor.
+     * 
+     * @param why why the message was rejected
+     * @param message the exception message
+     */
+    public MessageRejectedException(@Nonnull final InboundMessagePrescreener.Reason why,
+            @Nonnull final String message) {
+        super(message);
+        reason = why;
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param why why the message was rejected
+     * @param message the exception message
+     * @param cause the cause
+     */
+    public MessageRejectedException(@Nonnull final InboundMessagePrescreener.Reason why,
+            @Nonnull final String message, @Nonnull final Exception cause) {
+        super(message, cause);
+        reason = why;
+    }
+
+    /**
+     * Get why the message was rejected.
+     * 
+     * @return the reason
+     */
+    @Nonnull public InboundMessagePrescreener.Reason getReason() {
+        return reason;
+    }
+
+}
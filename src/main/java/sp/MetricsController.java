@@ -0,0 +1,79 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+ * Reports the statistics of the SP components as JSON:
+ * <p>
+ * curl 'http://localhost:8080/idp/sp/metrics'
+ * <p>
+ */
+@Controller
+public class MetricsController {
+
+    /** JSON generator factory. */
+    @Nonnull private final JsonGeneratorFactory generatorFactory =
+            Json.createGeneratorFactory(Collections.singletonMap(JsonGenerator.PRETTY_PRINTING, "true"));
+
+    /** The signing service. */
+    @Autowired private SAML2SigningService signingService;
+
+    /** The decoder of inbound messages. */
+    @Autowired(required = false) private InboundMessageDecoder inboundMessageDecoder;
+
+    /** Screeners of inbound messages by bean name. */
+    @Autowired(required = false) private Map<String, InboundMessagePrescreener> prescreeners;
+
+    @RequestMapping(value = "/metrics", method = RequestMethod.GET, produces = {"application/json"})
+    public void metrics(@Nonnull final HttpServletResponse servletResponse) throws IOException {
+        servletResponse.setStatus(HttpStatus.OK.value());
+        servletResponse.setContentType("application/json");
+        final JsonGenerator gen =
+                generatorFactory.createGenerator(servletResponse.getOutputStream(), StandardCharsets.UTF_8);
+        gen.writeStartObject();
+        signingService.writeStatistics(gen, "signing");
+        if (inboundMessageDecoder != null) {
+            inboundMessageDecoder.writeStatistics(gen, "decoding");
+        }
+        gen.writeStartObject("prescreening");
+        if (prescreeners != null) {
+            for (final Map.Entry<String, InboundMessagePrescreener> entry : prescreeners.entrySet()) {
+                entry.getValue().writeStatistics(gen, entry.getKey());
+            }
+        }
+        gen.writeEnd();
+        gen.writeEnd().close();
+    }
+
+}
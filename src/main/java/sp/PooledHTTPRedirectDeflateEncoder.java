@@ -0,0 +1,204 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sp;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
+
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.messaging.encoder.MessageEncodingException;
+import org.opensaml.saml.common.SAMLObject;
+import org.opensaml.saml.saml2.binding.encoding.impl.HTTPRedirectDeflateEncoder;
+import org.w3c.dom.Element;
+
+import common.DeflaterPool;
+
+/**
+ * An {@link HTTPRedirectDeflateEncoder} deflating with pooled deflaters into per-thread buffers.
+ * 
+ * The stock encoder serializes the marshalled message to a {@link String}, encodes it to bytes, deflates them with a
+ * new deflater through a stream into a growing array, copies that array and Base64-encodes the copy. This encoder
+ * serializes the message straight into a byte buffer, deflates the buffer with a deflater borrowed from a pool into a
+ * second buffer, and Base64-encodes that into a char buffer, which is copied once into the resulting {@link String}.
+ * The buffers belong to the thread and are reused by its next message, unless a large message made them grow past
+ * {@link #MAX_RETAINED_BUFFER_SIZE}.
+ * 
+ * The output is the same as that of the stock encoder, which deflates at level {@link Deflater#DEFLATED}.
+ */
+public class PooledHTTPRedirectDeflateEncoder extends HTTPRedirectDeflateEncoder {
+
+    /** Compression level of the deflaters, the one the stock encoder uses. */
+    public static final int COMPRESSION_LEVEL = Deflater.DEFLATED;
+
+    /** Largest buffer kept by a thread once it has encoded a message, in bytes or chars. */
+    public static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    /** Initial size of the buffers of a thread. */
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    /** The Base64 alphabet. */
+    @Nonnull private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /** The buffers of each thread. */
+    @Nonnull private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+        @Override protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    /** The pool of raw deflaters at {@link #COMPRESSION_LEVEL}. */
+    @Nonnull private final DeflaterPool deflaterPool;
+
+    /**
+     * Constructor.
+     * 
+     * @param pool the pool of raw deflaters at {@link #COMPRESSION_LEVEL} to borrow from
+     */
+    public PooledHTTPRedirectDeflateEncoder(@Nonnull final DeflaterPool pool) {
+        deflaterPool = Constraint.isNotNull(pool, "Deflater pool cannot be null");
+    }
+
+    /** {@inheritDoc} */
+    @Override protected String deflateAndBase64Encode(@Nonnull final SAMLObject message)
+            throws MessageEncodingException {
+        final Element dom;
+        try {
+            dom = XMLObjectSupport.marshall(message);
+        } catch (final MarshallingException e) {
+            throw new MessageEncodingException("Unable to marshall SAML message", e);
+        }
+
+        final Buffers buffers = BUFFERS.get();
+        final Deflater deflater = deflaterPool.borrow();
+        try {
+            buffers.xml.reset();
+            SerializeSupport.writeNode(dom, buffers.xml);
+            deflater.setInput(buffers.xml.getBuffer(), 0, buffers.xml.size());
+            deflater.finish();
+            byte[] deflated = buffers.deflated;
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == deflated.length) {
+                    deflated = Arrays.copyOf(deflated, 2 * deflated.length);
+                }
+                length += deflater.deflate(deflated, length, deflated.length - length);
+            }
+            buffers.deflated = deflated;
+            return encodeBase64(deflated, length, buffers);
+        } finally {
+            deflaterPool.release(deflater);
+            buffers.trim();
+        }
+    }
+
+    /**
+     * Base64-encode bytes, unchunked and padded, through the char buffer of a thread.
+     * 
+     * @param bytes the bytes
+     * @param length the number of bytes to encode
+     * @param buffers the buffers of the current thread
+     * @return the encoded bytes
+     */
+    @Nonnull private static String encodeBase64(@Nonnull final byte[] bytes, final int length,
+            @Nonnull final Buffers buffers) {
+        final int encodedLength = (length + 2) / 3 * 4;
+        if (buffers.base64.length < encodedLength) {
+            buffers.base64 = new char[Math.max(encodedLength, 2 * buffers.base64.length)];
+        }
+        final char[] out = buffers.base64;
+        int in = 0;
+        int pos = 0;
+        while (length - in >= 3) {
+            final int bits = (bytes[in++] & 0xFF) << 16 | (bytes[in++] & 0xFF) << 8 | bytes[in++] & 0xFF;
+            out[pos++] = BASE64[bits >>> 18];
+            out[pos++] = BASE64[bits >>> 12 & 0x3F];
+            out[pos++] = BASE64[bits >>> 6 & 0x3F];
+            out[pos++] = BASE64[bits & 0x3F];
+        }
+        if (length - in == 1) {
+            final int bits = (bytes[in] & 0xFF) << 16;
+            out[pos++] = BASE64[bits >>> 18];
+            out[pos++] = BASE64[bits >>> 12 & 0x3F];
+            out[pos++] = '=';
+            out[pos++] = '=';
+        } else if (length - in == 2) {
+            final int bits = (bytes[in] & 0xFF) << 16 | (bytes[in + 1] & 0xFF) << 8;
+            out[pos++] = BASE64[bits >>> 18];
+            out[pos++] = BASE64[bits >>> 12 & 0x3F];
+            out[pos++] = BASE64[bits >>> 6 & 0x3F];
+            out[pos++] = '=';
+        }
+        return new String(out, 0, pos);
+    }
+
+    /**
+     * The buffers of a thread.
+     */
+    private static final class Buffers {
+
+        /** The serialized message. */
+        @Nonnull private ExposedByteArrayOutputStream xml = new ExposedByteArrayOutputStream();
+
+        /** The deflated message. */
+        @Nonnull private byte[] deflated = new byte[INITIAL_BUFFER_SIZE];
+
+        /** The Base64-encoded message. */
+        @Nonnull private char[] base64 = new char[INITIAL_BUFFER_SIZE];
+
+        /** Drop the buffers which grew past {@link #MAX_RETAINED_BUFFER_SIZE}. */
+        void trim() {
+            if (xml.getBuffer().length > MAX_RETAINED_BUFFER_SIZE) {
+                xml = new ExposedByteArrayOutputStream();
+            }
+            if (deflated.length > MAX_RETAINED_BUFFER_SIZE) {
+                deflated = new byte[INITIAL_BUFFER_SIZE];
+            }
+            if (base64.length > MAX_RETAINED_BUFFER_SIZE) {
+                base64 = new char[INITIAL_BUFFER_SIZE];
+            }
+        }
+    }
+
+    /**
+     * A {@link ByteArrayOutputStream} whose buffer can be read without being copied.
+     */
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+        /** Constructor. */
+        ExposedByteArrayOutputStream() {
+            super(INITIAL_BUFFER_SIZE);
+        }
+
+        /**
+         * Get the buffer, of which the first {@link #size()} bytes have been written.
+         * 
+         * @return the buffer
+         */
+        @Nonnull byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+}
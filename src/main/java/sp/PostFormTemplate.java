@@ -0,0 +1,153 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sp;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * A page template compiled once into literal text and named slots, written as <code>${name}</code>.
+ * 
+ * Rendering writes the literal text as is and asks a {@link SlotRenderer} to write each slot, so nothing is parsed,
+ * looked up or merged per page. There is no escaping of any kind: slot renderers write what they are given verbatim.
+ */
+@Immutable
+public final class PostFormTemplate {
+
+    /** Slot of the form action. */
+    @Nonnull @NotEmpty public static final String ACTION = "action";
+
+    /** Slot of the hidden form fields. */
+    @Nonnull @NotEmpty public static final String FIELDS = "fields";
+
+    /** The auto-submitting form of the SAML 2 HTTP-POST binding, as rendered by the stock Velocity template. */
+    @Nonnull public static final PostFormTemplate DEFAULT = new PostFormTemplate(
+            "<!DOCTYPE html>\n"
+            + "<html>\n"
+            + "    <head>\n"
+            + "        <meta charset=\"utf-8\" />\n"
+            + "    </head>\n"
+            + "    <body onload=\"document.forms[0].submit()\">\n"
+            + "        <noscript>\n"
+            + "            <p>\n"
+            + "                <strong>Note:</strong> Since your browser does not support JavaScript,\n"
+            + "                you must press the Continue button once to proceed.\n"
+            + "            </p>\n"
+            + "        </noscript>\n"
+            + "        \n"
+            + "        <form action=\"${action}\" method=\"post\">\n"
+            + "            <div>\n"
+            + "${fields}"
+            + "            </div>\n"
+            + "            <noscript>\n"
+            + "                <div>\n"
+            + "                    <input type=\"submit\" value=\"Continue\"/>\n"
+            + "                </div>\n"
+            + "            </noscript>\n"
+            + "        </form>\n"
+            + "        \n"
+            + "    </body>\n"
+            + "</html>");
+
+    /** The literal text before each slot, and after the last one. */
+    @Nonnull private final String[] literals;
+
+    /** The slot names, in order. */
+    @Nonnull private final String[] slots;
+
+    /**
+     * Constructor.
+     * 
+     * @param text the template text
+     * @throws IllegalArgumentException if a slot is not closed or has no name
+     */
+    public PostFormTemplate(@Nonnull final String text) {
+        Constraint.isNotNull(text, "Template text cannot be null");
+        final List<String> literalList = new ArrayList<>();
+        final List<String> slotList = new ArrayList<>();
+        int pos = 0;
+        int start;
+        while ((start = text.indexOf("${", pos)) >= 0) {
+            final int end = text.indexOf('}', start + 2);
+            if (end < 0) {
+                throw new IllegalArgumentException("Slot at offset " + start + " is not closed");
+            }
+            final String slot = text.substring(start + 2, end).trim();
+            if (slot.isEmpty()) {
+                throw new IllegalArgumentException("Slot at offset " + start + " has no name");
+            }
+            literalList.add(text.substring(pos, start));
+            slotList.add(slot.intern());
+            pos = end + 1;
+        }
+        literalList.add(text.substring(pos));
+        literals = literalList.toArray(new String[literalList.size()]);
+        slots = slotList.toArray(new String[slotList.size()]);
+    }
+
+    /**
+     * Get the slot names, in order of appearance.
+     * 
+     * @return the slot names
+     */
+    @Nonnull @NonnullElements @Unmodifiable public List<String> getSlots() {
+        return Collections.unmodifiableList(Arrays.asList(slots));
+    }
+
+    /**
+     * Render the template.
+     * 
+     * @param out the writer to render to
+     * @param renderer the renderer of the slots
+     * @throws IOException if writing fails
+     */
+    public void render(@Nonnull final Writer out, @Nonnull final SlotRenderer renderer) throws IOException {
+        for (int i = 0; i < slots.length; i++) {
+            out.write(literals[i]);
+            renderer.renderSlot(slots[i], out);
+        }
+        out.write(literals[slots.length]);
+    }
+
+    /**
+     * Writes the content of the slots of a template.
+     */
+    public interface SlotRenderer {
+
+        /**
+         * Write the content of a slot.
+         * 
+         * @param slot the slot name, interned
+         * @param out the writer to write to
+         * @throws IOException if writing fails
+         */
+        void renderSlot(@Nonnull @NotEmpty String slot, @Nonnull Writer out) throws IOException;
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sp;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+
+import org.opensaml.core.config.InitializationException;
+import org.opensaml.core.config.InitializationService;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.messaging.encoder.MessageEncodingException;
+import org.opensaml.saml.common.SAMLObject;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.binding.encoding.impl.HTTPRedirectDeflateEncoder;
+
+import common.DeflaterPool;
+
+/**
+ * Compares the deflating and Base64 encoding of Redirect-bound AuthnRequests by
+ * {@link PooledHTTPRedirectDeflateEncoder} with that of the stock {@link HTTPRedirectDeflateEncoder}, after checking
+ * that both produce the same output.
+ * 
+ * Messages are built ahead of each batch, so only marshalling and encoding are measured. Reports the time and, where
+ * the JVM can tell, the bytes allocated per message, after a warm-up round:
+ * <p>
+ * java -cp ... sp.RedirectEncoderBenchmark [messages]
+ * <p>
+ * which defaults to 100000 messages.
+ */
+public final class RedirectEncoderBenchmark {
+
+    /** Number of messages built ahead of each batch. */
+    public static final int BATCH = 1000;
+
+    /** Sink for encoded messages, so they are not optimized away. */
+    private static int sink;
+
+    /** Constructor. */
+    private RedirectEncoderBenchmark() {
+    }
+
+    /**
+     * Run the comparison.
+     * 
+     * @param args the number of messages, optional
+     * @throws InitializationException if OpenSAML can not be initialized
+     * @throws MessageEncodingException if a message can not be encoded
+     */
+    public static void main(final String[] args) throws InitializationException, MessageEncodingException {
+        final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+        InitializationService.initialize();
+        final SAML2MessageTemplates templates =
+                new SAML2MessageTemplates(XMLObjectProviderRegistrySupport.getBuilderFactory());
+        final SAML2MessageTemplates.Template template = templates.new Template(null, "https://localhost:8443");
+        final StockEncoder stock = new StockEncoder();
+        final PooledEncoder pooled = new PooledEncoder(
+                new DeflaterPool(PooledHTTPRedirectDeflateEncoder.COMPRESSION_LEVEL, true, 64));
+
+        final SAMLObject sample = template.buildAuthnRequest(SAMLConstants.SAML2_REDIRECT_BINDING_URI, null);
+        if (!stock.encode(sample).equals(pooled.encode(sample))) {
+            throw new IllegalStateException("The pooled encoder does not produce the output of the stock encoder");
+        }
+
+        final SAMLObject[] batch = new SAMLObject[BATCH];
+        for (int round = 0; round < 2; round++) {
+            final boolean report = round > 0;
+            final int count = report ? messages : Math.max(BATCH, messages / 10);
+            for (final boolean usePooled : new boolean[] {false, true}) {
+                long elapsed = 0;
+                long allocated = 0;
+                for (int done = 0; done < count; done += BATCH) {
+                    for (int i = 0; i < BATCH; i++) {
+                        batch[i] = template.buildAuthnRequest(SAMLConstants.SAML2_REDIRECT_BINDING_URI, null);
+                    }
+                    final long startAllocated = allocatedBytes();
+                    final long start = System.nanoTime();
+                    for (int i = 0; i < BATCH; i++) {
+                        final String encoded = usePooled ? pooled.encode(batch[i]) : stock.encode(batch[i]);
+                        sink += encoded.length();
+                    }
+                    elapsed += System.nanoTime() - start;
+                    allocated += allocatedBytes() - startAllocated;
+                }
+                if (report) {
+                    final int encoded = (count + BATCH - 1) / BATCH * BATCH;
+                    System.out.println(String.format(Locale.ROOT,
+                            "%-8s %8d messages %10.0f ns/message %10s bytes/message", usePooled ? "pooled" : "stock",
+                            encoded, (double) elapsed / encoded,
+                            allocatedBytes() < 0 ? "n/a" : Long.toString(allocated / encoded)));
+                }
+            }
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * Get the number of bytes allocated by the current thread so far.
+     * 
+     * @return the number of bytes, or -1 if the JVM does not tell
+     */
+    private static long allocatedBytes() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * The stock encoder, exposing its encoding step.
+     */
+    private static final class StockEncoder extends HTTPRedirectDeflateEncoder {
+
+        /**
+         * Marshall, deflate and Base64-encode a message.
+         * 
+         * @param message the message
+         * @return the encoded message
+         * @throws MessageEncodingException if the message can not be encoded
+         */
+        @Nonnull String encode(@Nonnull final SAMLObject message) throws MessageEncodingException {
+            return deflateAndBase64Encode(message);
+        }
+    }
+
+    /**
+     * The pooled encoder, exposing its encoding step.
+     */
+    private static final class PooledEncoder extends PooledHTTPRedirectDeflateEncoder {
+
+        /**
+         * Constructor.
+         * 
+         * @param pool the deflater pool
+         */
+        PooledEncoder(@Nonnull final DeflaterPool pool) {
+            super(pool);
+        }
+
+        /**
+         * Marshall, deflate and Base64-encode a message.
+         * 
+         * @param message the message
+         * @return the encoded message
+         * @throws MessageEncodingException if the message can not be encoded
+         */
+        @Nonnull String encode(@Nonnull final SAMLObject message) throws MessageEncodingException {
+            return deflateAndBase64Encode(message);
+        }
+    }
+}
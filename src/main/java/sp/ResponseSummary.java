@@ -0,0 +1,319 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sp;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.json.stream.JsonGenerator;
+
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.schema.XSAny;
+import org.opensaml.core.xml.schema.XSString;
+import org.opensaml.core.xml.schema.XSURI;
+import org.opensaml.saml.common.SAMLObject;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Attribute;
+import org.opensaml.saml.saml2.core.AttributeStatement;
+import org.opensaml.saml.saml2.core.AuthnStatement;
+import org.opensaml.saml.saml2.core.NameID;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.core.Status;
+import org.opensaml.saml.saml2.core.StatusCode;
+import org.opensaml.saml.saml2.core.StatusResponseType;
+import org.w3c.dom.Element;
+
+/**
+ * Writes a compact JSON summary of an inbound SAML response: identifiers, issuer, status, and for each assertion
+ * the NameID, authentication context and attribute values.
+ * 
+ * The summary is built by walking the {@link XMLObject} tree, without serializing the DOM. Encrypted assertions and
+ * attributes are only counted. The values of the attributes of an assertion sharing a name are merged, so that every
+ * attribute name appears once.
+ */
+public final class ResponseSummary {
+
+    /** Constructor. */
+    private ResponseSummary() {
+    }
+
+    /**
+     * Write the summary of a SAML 2 status response or SAML 1 response as the fields of the current JSON object.
+     * 
+     * @param gen the JSON generator, positioned inside an object
+     * @param message the message
+     */
+    public static void write(@Nonnull final JsonGenerator gen, @Nonnull final SAMLObject message) {
+        if (message instanceof StatusResponseType) {
+            writeSAML2(gen, (StatusResponseType) message);
+        } else if (message instanceof org.opensaml.saml.saml1.core.Response) {
+            writeSAML1(gen, (org.opensaml.saml.saml1.core.Response) message);
+        } else {
+            writeString(gen, "type", message.getElementQName().getLocalPart());
+        }
+    }
+
+    /**
+     * Write the summary of a SAML 2 status response.
+     * 
+     * @param gen the JSON generator, positioned inside an object
+     * @param response the response
+     */
+    private static void writeSAML2(@Nonnull final JsonGenerator gen, @Nonnull final StatusResponseType response) {
+        gen.write("type", response instanceof Response ? "Response" : response.getElementQName().getLocalPart());
+        writeString(gen, "id", response.getID());
+        writeString(gen, "inResponseTo", response.getInResponseTo());
+        writeString(gen, "issueInstant", response.getIssueInstant() != null ? response.getIssueInstant().toString()
+                : null);
+        writeString(gen, "issuer", response.getIssuer() != null ? response.getIssuer().getValue() : null);
+
+        final Status status = response.getStatus();
+        if (status != null) {
+            gen.writeStartObject("status");
+            StatusCode code = status.getStatusCode();
+            if (code != null) {
+                writeString(gen, "code", code.getValue());
+                code = code.getStatusCode();
+                if (code != null) {
+                    writeString(gen, "subcode", code.getValue());
+                }
+            }
+            writeString(gen, "message", status.getStatusMessage() != null ? status.getStatusMessage().getMessage()
+                    : null);
+            gen.writeEnd();
+        }
+
+        if (response instanceof Response) {
+            final Response ssoResponse = (Response) response;
+            gen.write("encryptedAssertions", ssoResponse.getEncryptedAssertions().size());
+            gen.writeStartArray("assertions");
+            for (final Assertion assertion : ssoResponse.getAssertions()) {
+                writeAssertion(gen, assertion);
+            }
+            gen.writeEnd();
+        }
+    }
+
+    /**
+     * Write the summary of a SAML 2 assertion as an object of the current array.
+     * 
+     * @param gen the JSON generator, positioned inside an array
+     * @param assertion the assertion
+     */
+    private static void writeAssertion(@Nonnull final JsonGenerator gen, @Nonnull final Assertion assertion) {
+        gen.writeStartObject();
+        writeString(gen, "id", assertion.getID());
+        writeString(gen, "issuer", assertion.getIssuer() != null ? assertion.getIssuer().getValue() : null);
+
+        final NameID nameID = assertion.getSubject() != null ? assertion.getSubject().getNameID() : null;
+        if (nameID != null) {
+            gen.writeStartObject("nameID");
+            writeString(gen, "value", nameID.getValue());
+            writeString(gen, "format", nameID.getFormat());
+            gen.writeEnd();
+        }
+
+        gen.writeStartArray("authnStatements");
+        for (final AuthnStatement statement : assertion.getAuthnStatements()) {
+            gen.writeStartObject();
+            writeString(gen, "sessionIndex", statement.getSessionIndex());
+            if (statement.getAuthnContext() != null && statement.getAuthnContext().getAuthnContextClassRef() != null) {
+                writeString(gen, "authnContextClassRef",
+                        statement.getAuthnContext().getAuthnContextClassRef().getAuthnContextClassRef());
+            }
+            gen.writeEnd();
+        }
+        gen.writeEnd();
+
+        int encryptedAttributes = 0;
+        final Map<String, List<XMLObject>> attributes = new LinkedHashMap<>();
+        for (final AttributeStatement statement : assertion.getAttributeStatements()) {
+            encryptedAttributes += statement.getEncryptedAttributes().size();
+            for (final Attribute attribute : statement.getAttributes()) {
+                final String name = attribute.getFriendlyName() != null ? attribute.getFriendlyName()
+                        : attribute.getName();
+                addValues(attributes, name, attribute.getAttributeValues());
+            }
+        }
+        writeAttributes(gen, attributes);
+        gen.write("encryptedAttributes", encryptedAttributes);
+        gen.writeEnd();
+    }
+
+    /**
+     * Write the summary of a SAML 1 response.
+     * 
+     * @param gen the JSON generator, positioned inside an object
+     * @param response the response
+     */
+    private static void writeSAML1(@Nonnull final JsonGenerator gen,
+            @Nonnull final org.opensaml.saml.saml1.core.Response response) {
+        gen.write("type", "Response");
+        writeString(gen, "id", response.getID());
+        writeString(gen, "inResponseTo", response.getInResponseTo());
+        writeString(gen, "issueInstant", response.getIssueInstant() != null ? response.getIssueInstant().toString()
+                : null);
+
+        final org.opensaml.saml.saml1.core.Status status = response.getStatus();
+        if (status != null) {
+            gen.writeStartObject("status");
+            org.opensaml.saml.saml1.core.StatusCode code = status.getStatusCode();
+            if (code != null) {
+                writeString(gen, "code", code.getValue() != null ? code.getValue().getLocalPart() : null);
+                code = code.getStatusCode();
+                if (code != null) {
+                    writeString(gen, "subcode", code.getValue() != null ? code.getValue().getLocalPart() : null);
+                }
+            }
+            writeString(gen, "message", status.getStatusMessage() != null ? status.getStatusMessage().getMessage()
+                    : null);
+            gen.writeEnd();
+        }
+
+        gen.writeStartArray("assertions");
+        for (final org.opensaml.saml.saml1.core.Assertion assertion : response.getAssertions()) {
+            gen.writeStartObject();
+            writeString(gen, "id", assertion.getID());
+            writeString(gen, "issuer", assertion.getIssuer());
+
+            org.opensaml.saml.saml1.core.NameIdentifier nameIdentifier = null;
+            gen.writeStartArray("authenticationStatements");
+            for (final org.opensaml.saml.saml1.core.AuthenticationStatement statement : assertion
+                    .getAuthenticationStatements()) {
+                if (nameIdentifier == null && statement.getSubject() != null) {
+                    nameIdentifier = statement.getSubject().getNameIdentifier();
+                }
+                gen.writeStartObject();
+                writeString(gen, "authenticationMethod", statement.getAuthenticationMethod());
+                gen.writeEnd();
+            }
+            gen.writeEnd();
+
+            final Map<String, List<XMLObject>> attributes = new LinkedHashMap<>();
+            for (final org.opensaml.saml.saml1.core.AttributeStatement statement : assertion
+                    .getAttributeStatements()) {
+                if (nameIdentifier == null && statement.getSubject() != null) {
+                    nameIdentifier = statement.getSubject().getNameIdentifier();
+                }
+                for (final org.opensaml.saml.saml1.core.Attribute attribute : statement.getAttributes()) {
+                    addValues(attributes, attribute.getAttributeName(), attribute.getAttributeValues());
+                }
+            }
+            writeAttributes(gen, attributes);
+
+            if (nameIdentifier != null) {
+                gen.writeStartObject("nameIdentifier");
+                writeString(gen, "value", nameIdentifier.getValue());
+                writeString(gen, "format", nameIdentifier.getFormat());
+                gen.writeEnd();
+            }
+            gen.writeEnd();
+        }
+        gen.writeEnd();
+    }
+
+    /**
+     * Add the values of an attribute to those of the attributes of the same name.
+     * 
+     * @param attributes the attribute values by name
+     * @param name the attribute name or <code>null</code>
+     * @param values the attribute values
+     */
+    private static void addValues(@Nonnull final Map<String, List<XMLObject>> attributes,
+            @Nullable final String name, @Nonnull final List<XMLObject> values) {
+        final String key = name != null ? name : "";
+        List<XMLObject> merged = attributes.get(key);
+        if (merged == null) {
+            merged = new ArrayList<>(values.size());
+            attributes.put(key, merged);
+        }
+        merged.addAll(values);
+    }
+
+    /**
+     * Write the values of the attributes as an object of arrays of strings.
+     * 
+     * @param gen the JSON generator, positioned inside an object
+     * @param attributes the attribute values by name
+     */
+    private static void writeAttributes(@Nonnull final JsonGenerator gen,
+            @Nonnull final Map<String, List<XMLObject>> attributes) {
+        gen.writeStartObject("attributes");
+        for (final Map.Entry<String, List<XMLObject>> entry : attributes.entrySet()) {
+            writeValues(gen, entry.getKey(), entry.getValue());
+        }
+        gen.writeEnd();
+    }
+
+    /**
+     * Write the values of an attribute as an array of strings.
+     * 
+     * @param gen the JSON generator, positioned inside an object
+     * @param name the name of the array
+     * @param values the attribute values
+     */
+    private static void writeValues(@Nonnull final JsonGenerator gen, @Nonnull final String name,
+            @Nonnull final List<XMLObject> values) {
+        gen.writeStartArray(name);
+        for (final XMLObject value : values) {
+            final String text = getText(value);
+            if (text != null) {
+                gen.write(text);
+            } else {
+                gen.writeNull();
+            }
+        }
+        gen.writeEnd();
+    }
+
+    /**
+     * Get the text of an attribute value, from its typed content if it has any, else from its DOM.
+     * 
+     * @param value the attribute value
+     * @return the text or <code>null</code>
+     */
+    @Nullable private static String getText(@Nonnull final XMLObject value) {
+        if (value instanceof XSString) {
+            return ((XSString) value).getValue();
+        } else if (value instanceof XSURI) {
+            return ((XSURI) value).getValue();
+        } else if (value instanceof XSAny && ((XSAny) value).getTextContent() != null) {
+            return ((XSAny) value).getTextContent();
+        }
+        final Element dom = value.getDOM();
+        return dom != null ? dom.getTextContent().trim() : null;
+    }
+
+    /**
+     * Write a string field, or nothing if the value is <code>null</code>.
+     * 
+     * @param gen the JSON generator, positioned inside an object
+     * @param name the field name
+     * @param value the value or <code>null</code>
+     */
+    private static void writeString(@Nonnull final JsonGenerator gen, @Nonnull final String name,
+            @Nullable final String value) {
+        if (value != null) {
+            gen.write(name, value);
+        }
+    }
+
+}
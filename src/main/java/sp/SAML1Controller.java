@@ -20,48 +20,49 @@ package sp;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import net.shibboleth.utilities.java.support.xml.SerializeSupport;
-
 import org.opensaml.messaging.context.MessageContext;
 import org.opensaml.saml.common.SAMLObject;
 import org.opensaml.saml.saml1.core.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.http.HttpHeaders;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
-import org.w3c.dom.Element;
 
 @Controller
 @RequestMapping("/SAML1")
 public class SAML1Controller extends BaseSAMLController {
     
     private final Logger log = LoggerFactory.getLogger(SAML1Controller.class);
+
+    /** Screener of inbound messages, see sp-servlet.xml. */
+    @Autowired(required = false) @Qualifier("sp.SAML1Prescreener") private InboundMessagePrescreener prescreener;
     
     @RequestMapping(value="/POST/ACS", method=RequestMethod.POST)
     public ResponseEntity<String> handleSSOResponsePOST(HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws Exception {
         
+        long start = System.nanoTime();
         MessageContext<SAMLObject> messageContext = decodeInboundMessageContextPost(servletRequest);
+        long decodeNanos = System.nanoTime() - start;
         
         if (!(messageContext.getMessage() instanceof Response)) {
             log.error("Inbound message was not a SAML 1 Response");
             return new ResponseEntity<>("Inbound message was not a SAML 1 Response", HttpStatus.BAD_REQUEST);
         }
         
-        Response response = (Response) messageContext.getMessage();
-        Element responseElement = response.getDOM();
-        String formattedMessage = SerializeSupport.prettyPrintXML(responseElement);
-        log.trace("Returning response" + System.lineSeparator() + "{}", formattedMessage);
-        
         //TODO instead of returning plain text via a ResponseEntity, add a JSP view that looks good
         
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("Content-Type", "text/plain");
-        
-        return new ResponseEntity<>(formattedMessage, headers, HttpStatus.OK);
+        return renderInboundResponse(servletRequest, log, messageContext.getMessage(), decodeNanos);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected InboundMessagePrescreener getPrescreener() {
+        return prescreener;
     }
 
 }
@@ -1,47 +1,36 @@
 package sp;
 
-import java.net.MalformedURLException;
 import java.util.Map;
 
 import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
-import net.shibboleth.utilities.java.support.net.URLBuilder;
-import net.shibboleth.utilities.java.support.xml.SerializeSupport;
 
-import org.joda.time.DateTime;
 import org.opensaml.messaging.context.MessageContext;
 import org.opensaml.messaging.encoder.MessageEncodingException;
+import org.opensaml.messaging.encoder.servlet.HttpServletResponseMessageEncoder;
 import org.opensaml.saml.common.SAMLObject;
-import org.opensaml.saml.common.messaging.SAMLMessageSecuritySupport;
 import org.opensaml.saml.common.messaging.context.SAMLEndpointContext;
 import org.opensaml.saml.common.messaging.context.SAMLPeerEntityContext;
 import org.opensaml.saml.common.xml.SAMLConstants;
-import org.opensaml.saml.ext.saml2aslo.Asynchronous;
 import org.opensaml.saml.saml2.binding.encoding.impl.HTTPPostEncoder;
 import org.opensaml.saml.saml2.binding.encoding.impl.HTTPRedirectDeflateEncoder;
-import org.opensaml.saml.saml2.core.AuthnContextClassRef;
 import org.opensaml.saml.saml2.core.AuthnRequest;
-import org.opensaml.saml.saml2.core.Extensions;
-import org.opensaml.saml.saml2.core.Issuer;
 import org.opensaml.saml.saml2.core.LogoutRequest;
 import org.opensaml.saml.saml2.core.LogoutResponse;
-import org.opensaml.saml.saml2.core.NameID;
-import org.opensaml.saml.saml2.core.NameIDPolicy;
-import org.opensaml.saml.saml2.core.RequestedAuthnContext;
 import org.opensaml.saml.saml2.core.Response;
-import org.opensaml.saml.saml2.core.Status;
-import org.opensaml.saml.saml2.core.StatusCode;
 import org.opensaml.saml.saml2.metadata.Endpoint;
-import org.opensaml.saml.saml2.metadata.SingleLogoutService;
-import org.opensaml.saml.saml2.metadata.SingleSignOnService;
 import org.opensaml.xmlsec.SignatureSigningParameters;
 import org.opensaml.xmlsec.context.SecurityParametersContext;
 import org.opensaml.xmlsec.signature.support.SignatureConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -49,7 +38,8 @@ import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.servlet.HandlerMapping;
-import org.w3c.dom.Element;
+
+import common.DeflaterPool;
 
 @Controller
 @RequestMapping({"/SAML2", "/{spId}/SAML2"})
@@ -57,159 +47,163 @@ public class SAML2Controller extends BaseSAMLController {
 	
 	private final Logger log = LoggerFactory.getLogger(SAML2Controller.class);
 
+	@Autowired private SAML2MessageTemplates messageTemplates;
+
+	@Autowired private SAML2SigningService signingService;
+
+	/** Whether to encode Redirect-bound messages with pooled deflaters and per-thread buffers. */
+	@Value("#{systemProperties['testbed.sp.redirect.pooled'] ?: true}") private boolean pooledRedirectEncoder;
+
+	/** Whether to render POST-bound messages from the compiled form template rather than through Velocity. */
+	@Value("#{systemProperties['testbed.sp.post.compiled'] ?: true}") private boolean compiledPostEncoder;
+
+	/** Screener of inbound messages, see sp-servlet.xml. */
+	@Autowired(required = false) @Qualifier("sp.SAML2Prescreener") private InboundMessagePrescreener prescreener;
+
+	/** Raw deflaters of the Redirect encoder. */
+	private final DeflaterPool deflaterPool =
+	        new DeflaterPool(PooledHTTPRedirectDeflateEncoder.COMPRESSION_LEVEL, true, 64);
+
 	@RequestMapping(value="/InitSSO/Redirect", method=RequestMethod.GET)
 	public void initSSORequestRedirect(HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws Exception {
-		final AuthnRequest authnRequest = buildAuthnRequest(servletRequest);
-		authnRequest.setDestination(getDestinationRedirect(servletRequest, "SSO"));
-		final Endpoint endpoint = buildIdpSsoEndpoint(SAMLConstants.SAML2_REDIRECT_BINDING_URI, authnRequest.getDestination());
-		final String idpEntityID = getIdpEntityId(servletRequest);
-		final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(authnRequest, endpoint, idpEntityID);
+		final SAML2MessageTemplates.Template template = getTemplate(servletRequest);
+		final AuthnRequest authnRequest =
+		        template.buildAuthnRequest(SAMLConstants.SAML2_REDIRECT_BINDING_URI, servletRequest.getParameter("classRef"));
+		final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(authnRequest,
+		        template.getSsoEndpoint(SAMLConstants.SAML2_REDIRECT_BINDING_URI), template.getIdpEntityId());
 		encodeOutboundMessageContextRedirect(messageContext, servletResponse);
 	}
 
 	@RequestMapping(value="/InitSSO/POST", method=RequestMethod.GET)
 	public void initSSORequestPost(HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws Exception {
-	    final AuthnRequest authnRequest = buildAuthnRequest(servletRequest);
-		authnRequest.setDestination(getDestinationPost(servletRequest, "SSO"));
-		final Endpoint endpoint = buildIdpSsoEndpoint(SAMLConstants.SAML2_POST_BINDING_URI, authnRequest.getDestination());
-		final String idpEntityID = getIdpEntityId(servletRequest);
-		final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(authnRequest, endpoint, idpEntityID);
-		SAMLMessageSecuritySupport.signMessage(messageContext);
+	    final SAML2MessageTemplates.Template template = getTemplate(servletRequest);
+	    final AuthnRequest authnRequest =
+	            template.buildAuthnRequest(SAMLConstants.SAML2_POST_BINDING_URI, servletRequest.getParameter("classRef"));
+	    final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(authnRequest,
+	            template.getSsoEndpoint(SAMLConstants.SAML2_POST_BINDING_URI), template.getIdpEntityId());
+		signingService.sign(messageContext);
 		encodeOutboundMessageContextPost(messageContext, servletResponse);
 	}
 	
     @RequestMapping(value="/InitSSO/Passive", method=RequestMethod.GET)
     public void initSSORequestPassive(HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws Exception {
-        final AuthnRequest authnRequest = buildAuthnRequest(servletRequest);
-        authnRequest.setDestination(getDestinationRedirect(servletRequest, "SSO"));
+        final SAML2MessageTemplates.Template template = getTemplate(servletRequest);
+        final AuthnRequest authnRequest =
+                template.buildAuthnRequest(SAMLConstants.SAML2_REDIRECT_BINDING_URI, servletRequest.getParameter("classRef"));
         authnRequest.setIsPassive(true);
-        final Endpoint endpoint = buildIdpSsoEndpoint(SAMLConstants.SAML2_REDIRECT_BINDING_URI, authnRequest.getDestination());
-        final String idpEntityID = getIdpEntityId(servletRequest);
-        final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(authnRequest, endpoint, idpEntityID);
+        final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(authnRequest,
+                template.getSsoEndpoint(SAMLConstants.SAML2_REDIRECT_BINDING_URI), template.getIdpEntityId());
         encodeOutboundMessageContextRedirect(messageContext, servletResponse);
     }
 
     @RequestMapping(value="/InitSSO/ForceAuthn", method=RequestMethod.GET)
     public void initSSORequestForceAuthn(HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws Exception {
-        final AuthnRequest authnRequest = buildAuthnRequest(servletRequest);
-        authnRequest.setDestination(getDestinationRedirect(servletRequest, "SSO"));
+        final SAML2MessageTemplates.Template template = getTemplate(servletRequest);
+        final AuthnRequest authnRequest =
+                template.buildAuthnRequest(SAMLConstants.SAML2_REDIRECT_BINDING_URI, servletRequest.getParameter("classRef"));
         authnRequest.setForceAuthn(true);
-        final Endpoint endpoint = buildIdpSsoEndpoint(SAMLConstants.SAML2_REDIRECT_BINDING_URI, authnRequest.getDestination());
-        final String idpEntityID = getIdpEntityId(servletRequest);
-        final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(authnRequest, endpoint, idpEntityID);
+        final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(authnRequest,
+                template.getSsoEndpoint(SAMLConstants.SAML2_REDIRECT_BINDING_URI), template.getIdpEntityId());
         encodeOutboundMessageContextRedirect(messageContext, servletResponse);
     }
     
     @RequestMapping(value = "/InitSSO/POST/Passive", method = RequestMethod.GET) public void initSSORequestPostPassive(
             HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws Exception {
-        final AuthnRequest authnRequest = buildAuthnRequest(servletRequest);
-        authnRequest.setDestination(getDestinationPost(servletRequest, "SSO"));
+        final SAML2MessageTemplates.Template template = getTemplate(servletRequest);
+        final AuthnRequest authnRequest =
+                template.buildAuthnRequest(SAMLConstants.SAML2_POST_BINDING_URI, servletRequest.getParameter("classRef"));
         authnRequest.setIsPassive(true);
-        final Endpoint endpoint = buildIdpSsoEndpoint(SAMLConstants.SAML2_POST_BINDING_URI, authnRequest.getDestination());
-        final String idpEntityID = getIdpEntityId(servletRequest);
-        final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(authnRequest, endpoint, idpEntityID);
-        SAMLMessageSecuritySupport.signMessage(messageContext);
+        final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(authnRequest,
+                template.getSsoEndpoint(SAMLConstants.SAML2_POST_BINDING_URI), template.getIdpEntityId());
+        signingService.sign(messageContext);
         encodeOutboundMessageContextPost(messageContext, servletResponse);
     }
     
     @RequestMapping(value = "/InitSSO/POST/ForceAuthn", method = RequestMethod.GET) public void
             initSSORequestPostForceAuthn(HttpServletRequest servletRequest, HttpServletResponse servletResponse)
                     throws Exception {
-        final AuthnRequest authnRequest = buildAuthnRequest(servletRequest);
-        authnRequest.setDestination(getDestinationPost(servletRequest, "SSO"));
+        final SAML2MessageTemplates.Template template = getTemplate(servletRequest);
+        final AuthnRequest authnRequest =
+                template.buildAuthnRequest(SAMLConstants.SAML2_POST_BINDING_URI, servletRequest.getParameter("classRef"));
         authnRequest.setForceAuthn(true);
-        final Endpoint endpoint = buildIdpSsoEndpoint(SAMLConstants.SAML2_POST_BINDING_URI, authnRequest.getDestination());
-        final String idpEntityID = getIdpEntityId(servletRequest);
-        final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(authnRequest, endpoint, idpEntityID);
+        final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(authnRequest,
+                template.getSsoEndpoint(SAMLConstants.SAML2_POST_BINDING_URI), template.getIdpEntityId());
 
-        SAMLMessageSecuritySupport.signMessage(messageContext);
+        signingService.sign(messageContext);
         encodeOutboundMessageContextPost(messageContext, servletResponse);
     }
     
     @RequestMapping(value="/InitSLO/Redirect", method=RequestMethod.GET)
     public void initSLORequestRedirect(HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws Exception {
-        final LogoutRequest logoutRequest = buildLogoutRequest(servletRequest);
-        logoutRequest.setDestination(getDestinationRedirect(servletRequest, "SLO"));
-        final Endpoint endpoint = buildIdpSsoEndpoint(SAMLConstants.SAML2_REDIRECT_BINDING_URI, logoutRequest.getDestination());
-        final String idpEntityID = getIdpEntityId(servletRequest);
-        final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(logoutRequest, endpoint, idpEntityID);
+        final SAML2MessageTemplates.Template template = getTemplate(servletRequest);
+        final LogoutRequest logoutRequest =
+                template.buildLogoutRequest(SAMLConstants.SAML2_REDIRECT_BINDING_URI, servletRequest.getParameter("transientID"), false);
+        final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(logoutRequest,
+                template.getSloEndpoint(SAMLConstants.SAML2_REDIRECT_BINDING_URI), template.getIdpEntityId());
         encodeOutboundMessageContextRedirect(messageContext, servletResponse);
     }
 
     @RequestMapping(value="/InitSLO/Async", method=RequestMethod.GET)
     public void initSLORequestAsync(HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws Exception {
-        final LogoutRequest logoutRequest = buildLogoutRequest(servletRequest);
-        logoutRequest.setDestination(getDestinationRedirect(servletRequest, "SLO"));
-        
-        final Extensions exts = (Extensions) builderFactory.getBuilder(Extensions.DEFAULT_ELEMENT_NAME)
-                .buildObject(Extensions.DEFAULT_ELEMENT_NAME);
-        logoutRequest.setExtensions(exts);
-        exts.getUnknownXMLObjects().add(
-                builderFactory.getBuilder(Asynchronous.DEFAULT_ELEMENT_NAME).buildObject(Asynchronous.DEFAULT_ELEMENT_NAME));
-        
-        final Endpoint endpoint = buildIdpSloEndpoint(SAMLConstants.SAML2_REDIRECT_BINDING_URI, logoutRequest.getDestination());
-        final String idpEntityID = getIdpEntityId(servletRequest);
-        final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(logoutRequest, endpoint, idpEntityID);
+        final SAML2MessageTemplates.Template template = getTemplate(servletRequest);
+        final LogoutRequest logoutRequest =
+                template.buildLogoutRequest(SAMLConstants.SAML2_REDIRECT_BINDING_URI, servletRequest.getParameter("transientID"), true);
+        final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(logoutRequest,
+                template.getSloEndpoint(SAMLConstants.SAML2_REDIRECT_BINDING_URI), template.getIdpEntityId());
         encodeOutboundMessageContextRedirect(messageContext, servletResponse);
     }
     
     @RequestMapping(value="/InitSLO/POST", method=RequestMethod.GET)
     public void initSLORequestPost(HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws Exception {
-        final LogoutRequest logoutRequest = buildLogoutRequest(servletRequest);
-        logoutRequest.setDestination(getDestinationPost(servletRequest, "SLO"));
-        final Endpoint endpoint = buildIdpSloEndpoint(SAMLConstants.SAML2_POST_BINDING_URI, logoutRequest.getDestination());
-        final String idpEntityID = getIdpEntityId(servletRequest);
-        final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(logoutRequest, endpoint, idpEntityID);
-        SAMLMessageSecuritySupport.signMessage(messageContext);
+        final SAML2MessageTemplates.Template template = getTemplate(servletRequest);
+        final LogoutRequest logoutRequest =
+                template.buildLogoutRequest(SAMLConstants.SAML2_POST_BINDING_URI, servletRequest.getParameter("transientID"), false);
+        final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(logoutRequest,
+                template.getSloEndpoint(SAMLConstants.SAML2_POST_BINDING_URI), template.getIdpEntityId());
+        signingService.sign(messageContext);
         encodeOutboundMessageContextPost(messageContext, servletResponse);
     }
 
     @RequestMapping(value="/FinishSLO/Redirect", method=RequestMethod.GET)
     public void finishSLOResponseRedirect(HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws Exception {
-        final LogoutResponse logoutResponse = buildLogoutResponse(servletRequest);
-        logoutResponse.setDestination(getDestinationRedirect(servletRequest, "SLO"));
-        final Endpoint endpoint = buildIdpSloEndpoint(SAMLConstants.SAML2_REDIRECT_BINDING_URI, logoutResponse.getDestination());
-        final String idpEntityID = getIdpEntityId(servletRequest);
-        final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(logoutResponse, endpoint, idpEntityID);
+        final SAML2MessageTemplates.Template template = getTemplate(servletRequest);
+        final LogoutResponse logoutResponse = template.buildLogoutResponse(SAMLConstants.SAML2_REDIRECT_BINDING_URI, isSuccess(servletRequest));
+        final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(logoutResponse,
+                template.getSloEndpoint(SAMLConstants.SAML2_REDIRECT_BINDING_URI), template.getIdpEntityId());
         encodeOutboundMessageContextRedirect(messageContext, servletResponse);
     }
 
     @RequestMapping(value="/FinishSLO/POST", method=RequestMethod.GET)
     public void finishSLOResponsePost(HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws Exception {
-        final LogoutResponse logoutResponse = buildLogoutResponse(servletRequest);
-        logoutResponse.setDestination(getDestinationPost(servletRequest, "SLO"));
-        final Endpoint endpoint = buildIdpSloEndpoint(SAMLConstants.SAML2_POST_BINDING_URI, logoutResponse.getDestination());
-        final String idpEntityID = getIdpEntityId(servletRequest);
-        final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(logoutResponse, endpoint, idpEntityID);
-        SAMLMessageSecuritySupport.signMessage(messageContext);
+        final SAML2MessageTemplates.Template template = getTemplate(servletRequest);
+        final LogoutResponse logoutResponse = template.buildLogoutResponse(SAMLConstants.SAML2_POST_BINDING_URI, isSuccess(servletRequest));
+        final MessageContext<SAMLObject> messageContext = buildOutboundMessageContext(logoutResponse,
+                template.getSloEndpoint(SAMLConstants.SAML2_POST_BINDING_URI), template.getIdpEntityId());
+        signingService.sign(messageContext);
         encodeOutboundMessageContextPost(messageContext, servletResponse);
     }
     
 	@RequestMapping(value="/POST/ACS", method=RequestMethod.POST)
 	public ResponseEntity<String> handleSSOResponsePOST(HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws Exception {
+		final long start = System.nanoTime();
 		final MessageContext<SAMLObject> messageContext = decodeInboundMessageContextPost(servletRequest);
+		final long decodeNanos = System.nanoTime() - start;
 		
 		if (!(messageContext.getMessage() instanceof Response)) {
 			log.error("Inbound message was not a SAML 2 Response");
 			return new ResponseEntity<>("Inbound message was not a SAML 2 Response", HttpStatus.BAD_REQUEST);
 		}
 		
-		final Response response = (Response) messageContext.getMessage();
-		final Element responseElement = response.getDOM();
-		final String formattedMessage = SerializeSupport.prettyPrintXML(responseElement);
-        log.trace("Returning response" + System.lineSeparator() + "{}", formattedMessage);
-		
 		//TODO instead of returning plain text via a ResponseEntity, add a JSP view that looks good
 		
-		final HttpHeaders headers = new HttpHeaders();
-		headers.add("Content-Type", "text/plain");
-		
-		return new ResponseEntity<>(formattedMessage, headers, HttpStatus.OK);
+		return renderInboundResponse(servletRequest, log, messageContext.getMessage(), decodeNanos);
 	}
 
     @RequestMapping(value="/Redirect/SLO", method=RequestMethod.GET)
     public ResponseEntity<String> handleSLOResponseRedirect(HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws Exception {
+        final long start = System.nanoTime();
         final MessageContext<SAMLObject> messageContext = decodeInboundMessageContextRedirect(servletRequest);
+        final long decodeNanos = System.nanoTime() - start;
         
         if (messageContext.getMessage() instanceof LogoutRequest) {
             servletRequest.setAttribute("success", "1");
@@ -218,20 +212,17 @@ public class SAML2Controller extends BaseSAMLController {
         }
         
         final LogoutResponse response = (LogoutResponse) messageContext.getMessage();
-        final Element responseElement = response.getDOM();
-        final String formattedMessage = SerializeSupport.prettyPrintXML(responseElement);
         
         //TODO instead of returning plain text via a ResponseEntity, add a JSP view that looks good
         
-        final HttpHeaders headers = new HttpHeaders();
-        headers.add("Content-Type", "text/plain");
-        
-        return new ResponseEntity<>(formattedMessage, headers, HttpStatus.OK);
+        return renderInboundResponse(servletRequest, log, response, decodeNanos);
     }
 	
     @RequestMapping(value="/POST/SLO", method=RequestMethod.POST)
     public ResponseEntity<String> handleSLOResponsePOST(HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws Exception {
+        final long start = System.nanoTime();
         final MessageContext<SAMLObject> messageContext = decodeInboundMessageContextPost(servletRequest);
+        final long decodeNanos = System.nanoTime() - start;
         
         if (messageContext.getMessage() instanceof LogoutRequest) {
             servletRequest.setAttribute("success", "1");
@@ -240,15 +231,10 @@ public class SAML2Controller extends BaseSAMLController {
         }
         
         final LogoutResponse response = (LogoutResponse) messageContext.getMessage();
-        final Element responseElement = response.getDOM();
-        final String formattedMessage = SerializeSupport.prettyPrintXML(responseElement);
         
         //TODO instead of returning plain text via a ResponseEntity, add a JSP view that looks good
         
-        final HttpHeaders headers = new HttpHeaders();
-        headers.add("Content-Type", "text/plain");
-        
-        return new ResponseEntity<>(formattedMessage, headers, HttpStatus.OK);
+        return renderInboundResponse(servletRequest, log, response, decodeNanos);
     }
     
 	private MessageContext<SAMLObject> buildOutboundMessageContext(SAMLObject message, Endpoint endpoint, String idpEntityId) {
@@ -261,11 +247,8 @@ public class SAML2Controller extends BaseSAMLController {
 		SAMLEndpointContext endpointContext = peerContext.getSubcontext(SAMLEndpointContext.class, true);
 		endpointContext.setEndpoint(endpoint);
 		
-		SignatureSigningParameters signingParameters = new SignatureSigningParameters();
-		signingParameters.setSigningCredential(spCredential);
-		signingParameters.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256);
-		//signingParameters.setSignatureReferenceDigestMethod(SignatureConstants.ALGO_ID_DIGEST_SHA256);
-		signingParameters.setSignatureCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+		SignatureSigningParameters signingParameters =
+		        signingService.getSigningParameters(spCredential, SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256);
 		SecurityParametersContext secParamsContext = messageContext.getSubcontext(SecurityParametersContext.class, true);
 		secParamsContext.setSignatureSigningParameters(signingParameters);
 		
@@ -273,7 +256,8 @@ public class SAML2Controller extends BaseSAMLController {
 	}
 	
 	private void encodeOutboundMessageContextRedirect(MessageContext<SAMLObject> messageContext, HttpServletResponse servletResponse) throws Exception {
-		HTTPRedirectDeflateEncoder encoder = new HTTPRedirectDeflateEncoder();
+		HTTPRedirectDeflateEncoder encoder = pooledRedirectEncoder
+		        ? new PooledHTTPRedirectDeflateEncoder(deflaterPool) : new HTTPRedirectDeflateEncoder();
 		try {
 			encoder.setHttpServletResponse(servletResponse);
 			encoder.setMessageContext(messageContext);
@@ -290,11 +274,17 @@ public class SAML2Controller extends BaseSAMLController {
 	}
 	
 	private void encodeOutboundMessageContextPost(MessageContext<SAMLObject> messageContext, HttpServletResponse servletResponse) throws Exception {
-		HTTPPostEncoder encoder = new HTTPPostEncoder();
+		final HttpServletResponseMessageEncoder<SAMLObject> encoder;
+		if (compiledPostEncoder) {
+			encoder = new CompiledHTTPPostEncoder();
+		} else {
+			final HTTPPostEncoder velocityEncoder = new HTTPPostEncoder();
+			velocityEncoder.setVelocityEngine(velocityEngine);
+			encoder = velocityEncoder;
+		}
 		try {
 			encoder.setHttpServletResponse(servletResponse);
 			encoder.setMessageContext(messageContext);
-			encoder.setVelocityEngine(velocityEngine);
 			encoder.initialize();
 			
 			encoder.prepareContext();
@@ -307,92 +297,35 @@ public class SAML2Controller extends BaseSAMLController {
 		}
 	}
 	
-	private SingleSignOnService buildIdpSsoEndpoint(String binding, String destination) {
-		final SingleSignOnService ssoEndpoint = (SingleSignOnService) builderFactory.getBuilder(
-		        SingleSignOnService.DEFAULT_ELEMENT_NAME).buildObject(SingleSignOnService.DEFAULT_ELEMENT_NAME);
-		ssoEndpoint.setBinding(binding);
-		ssoEndpoint.setLocation(destination);
-		return ssoEndpoint;
-	}
+    /** End the pooled deflaters when the application context is closed. */
+    @PreDestroy
+    public void destroy() {
+        deflaterPool.clear();
+    }
 
-    private SingleLogoutService buildIdpSloEndpoint(String binding, String destination) {
-        final SingleLogoutService sloEndpoint = (SingleLogoutService) builderFactory.getBuilder(
-                SingleLogoutService.DEFAULT_ELEMENT_NAME).buildObject(SingleLogoutService.DEFAULT_ELEMENT_NAME);
-        sloEndpoint.setBinding(binding);
-        sloEndpoint.setLocation(destination);
-        return sloEndpoint;
+    /** {@inheritDoc} */
+    @Override
+    protected InboundMessagePrescreener getPrescreener() {
+        return prescreener;
     }
-	
-	private AuthnRequest buildAuthnRequest(HttpServletRequest servletRequest) {
-		final AuthnRequest authnRequest = (AuthnRequest) builderFactory.getBuilder(
-		        AuthnRequest.DEFAULT_ELEMENT_NAME).buildObject(AuthnRequest.DEFAULT_ELEMENT_NAME);
-		
-		authnRequest.setID(idGenerator.generateIdentifier());
-		authnRequest.setIssueInstant(new DateTime());
-		authnRequest.setAssertionConsumerServiceURL(getAcsUrl(servletRequest));
-		authnRequest.setProtocolBinding(SAMLConstants.SAML2_POST_BINDING_URI);
-		
-		final Issuer issuer = (Issuer) builderFactory.getBuilder(
-		        Issuer.DEFAULT_ELEMENT_NAME).buildObject(Issuer.DEFAULT_ELEMENT_NAME);
-		issuer.setValue(getSpEntityId(servletRequest));
-		authnRequest.setIssuer(issuer);
-		
-		final NameIDPolicy nameIDPolicy = (NameIDPolicy) builderFactory.getBuilder(
-		        NameIDPolicy.DEFAULT_ELEMENT_NAME).buildObject(NameIDPolicy.DEFAULT_ELEMENT_NAME);
-		nameIDPolicy.setAllowCreate(true);
-		authnRequest.setNameIDPolicy(nameIDPolicy);
-		
-		if (servletRequest.getParameter("classRef") != null) {
-            final AuthnContextClassRef ref = (AuthnContextClassRef) builderFactory.getBuilder(
-                    AuthnContextClassRef.DEFAULT_ELEMENT_NAME).buildObject(AuthnContextClassRef.DEFAULT_ELEMENT_NAME);
-            ref.setAuthnContextClassRef(servletRequest.getParameter("classRef"));
-	        final RequestedAuthnContext rac = (RequestedAuthnContext) builderFactory.getBuilder(
-	                RequestedAuthnContext.DEFAULT_ELEMENT_NAME).buildObject(RequestedAuthnContext.DEFAULT_ELEMENT_NAME);
-	        rac.getAuthnContextClassRefs().add(ref);
-	        authnRequest.setRequestedAuthnContext(rac);
-		}
-		
-		return authnRequest;
-	}
 
-    private LogoutRequest buildLogoutRequest(HttpServletRequest servletRequest) {
-        final LogoutRequest logoutRequest = (LogoutRequest) builderFactory.getBuilder(
-                LogoutRequest.DEFAULT_ELEMENT_NAME).buildObject(LogoutRequest.DEFAULT_ELEMENT_NAME);
-        
-        logoutRequest.setID(idGenerator.generateIdentifier());
-        logoutRequest.setIssueInstant(new DateTime());
-        
-        final Issuer issuer = (Issuer) builderFactory.getBuilder(
-                Issuer.DEFAULT_ELEMENT_NAME).buildObject(Issuer.DEFAULT_ELEMENT_NAME);
-        issuer.setValue(getSpEntityId(servletRequest));
-        logoutRequest.setIssuer(issuer);
-        
-        final NameID nameID = (NameID) builderFactory.getBuilder(NameID.DEFAULT_ELEMENT_NAME).buildObject(NameID.DEFAULT_ELEMENT_NAME);
-        nameID.setValue(servletRequest.getParameter("transientID"));
-        nameID.setFormat(NameID.TRANSIENT);
-        nameID.setSPNameQualifier(getSpEntityId(servletRequest));
-        nameID.setNameQualifier(getIdpEntityId(servletRequest));
-        logoutRequest.setNameID(nameID);
-        
-        return logoutRequest;
+    /**
+     * Get the message template of the SP a request is addressed to.
+     * 
+     * @param servletRequest the servlet request
+     * @return the template
+     */
+    private SAML2MessageTemplates.Template getTemplate(HttpServletRequest servletRequest) {
+        return messageTemplates.getTemplate(servletRequest, getSpId(servletRequest));
     }
 
-    private LogoutResponse buildLogoutResponse(HttpServletRequest servletRequest) {
-        final LogoutResponse logoutResponse = (LogoutResponse) builderFactory.getBuilder(
-                LogoutResponse.DEFAULT_ELEMENT_NAME).buildObject(LogoutResponse.DEFAULT_ELEMENT_NAME);
-        
-        logoutResponse.setID(idGenerator.generateIdentifier());
-        logoutResponse.setIssueInstant(new DateTime());
-        
-        final Issuer issuer = (Issuer) builderFactory.getBuilder(Issuer.DEFAULT_ELEMENT_NAME).buildObject(Issuer.DEFAULT_ELEMENT_NAME);
-        issuer.setValue(getSpEntityId(servletRequest));
-        logoutResponse.setIssuer(issuer);
-        
-        final Status status = (Status) builderFactory.getBuilder(Status.DEFAULT_ELEMENT_NAME).buildObject(Status.DEFAULT_ELEMENT_NAME);
-        logoutResponse.setStatus(status);
-        
-        final StatusCode code = (StatusCode) builderFactory.getBuilder(StatusCode.DEFAULT_ELEMENT_NAME).buildObject(StatusCode.DEFAULT_ELEMENT_NAME);
-        status.setStatusCode(code);
+    /**
+     * Whether a logout response should report success, as asked by the 'success' parameter or request attribute.
+     * 
+     * @param servletRequest the servlet request
+     * @return whether logout succeeded
+     */
+    private boolean isSuccess(HttpServletRequest servletRequest) {
         String param = servletRequest.getParameter("success");
         if (param == null) {
             final Object attr = servletRequest.getAttribute("success");
@@ -400,89 +333,7 @@ public class SAML2Controller extends BaseSAMLController {
                 param = (String) attr;
             }
         }
-        
-        if (param != null && "1".equals(param)) {
-            code.setValue(StatusCode.SUCCESS);
-        } else {
-            code.setValue(StatusCode.RESPONDER);
-        }
-        
-        return logoutResponse;
-    }
-    
-	private String getDestinationRedirect(HttpServletRequest servletRequest, String profile) {
-		//TODO servlet context
-		String destinationPath = "/idp/profile/SAML2/Redirect/" + profile;
-		String baseUrl = getBaseUrl(servletRequest);
-		try {
-			URLBuilder urlBuilder = new URLBuilder(baseUrl);
-			urlBuilder.setPath(destinationPath);
-			return urlBuilder.buildURL();
-		} catch (MalformedURLException e) {
-			log.error("Couldn't parse base URL, reverting to internal default destination: {}", baseUrl);
-			return "http://localhost:8080" + destinationPath;
-		}
-	}
-	
-	private String getDestinationPost(HttpServletRequest servletRequest, String profile) {
-		//TODO servlet context
-		String destinationPath = "/idp/profile/SAML2/POST/" + profile;
-		String baseUrl = getBaseUrl(servletRequest);
-		try {
-			URLBuilder urlBuilder = new URLBuilder(baseUrl);
-			urlBuilder.setPath(destinationPath);
-			return urlBuilder.buildURL();
-		} catch (MalformedURLException e) {
-			log.error("Couldn't parse base URL, reverting to internal default destination: {}", baseUrl);
-			return "http://localhost:8080" + destinationPath;
-		}
-	}
-
-	private String getAcsUrl(HttpServletRequest servletRequest) {
-		//TODO servlet context
-	    String spId = getSpId(servletRequest);
-        String acsPath = (spId == null) ? "/sp/SAML2/POST/ACS" : "/sp/" + spId + "/SAML2/POST/ACS";
-		String baseUrl = getBaseUrl(servletRequest);
-		try {
-			URLBuilder urlBuilder = new URLBuilder(baseUrl);
-			urlBuilder.setPath(acsPath);
-			return urlBuilder.buildURL();
-		} catch (MalformedURLException e) {
-			log.error("Couldn't parse base URL, reverting to internal default ACS: {}", baseUrl);
-			return "http://localhost:8080" + acsPath;
-		}
-	}
-	
-	private String getBaseUrl(HttpServletRequest servletRequest) {
-		//TODO servlet context
-		String requestUrl = servletRequest.getRequestURL().toString();
-		try {
-			URLBuilder urlBuilder = new URLBuilder(requestUrl);
-			urlBuilder.setUsername(null);
-			urlBuilder.setPassword(null);
-			urlBuilder.setPath(null);
-			urlBuilder.getQueryParams().clear();
-			urlBuilder.setFragment(null);
-			return urlBuilder.buildURL();
-		} catch (MalformedURLException e) {
-			log.error("Couldn't parse request URL, reverting to internal default base URL: {}", requestUrl);
-			return "http://localhost:8080";
-		}
-		
-	}
-
-    private String getSpEntityId(HttpServletRequest servletRequest) {
-        // TODO get from config somewhere
-        final String spId = getSpId(servletRequest);
-        return (spId == null) ? "https://sp.example.org" : "https://" + spId + ".example.org";
-    }
-
-    private String getIdpEntityId(HttpServletRequest servletRequest) {
-        // TODO get from config somewhere
-        // Sometimes it's useful to return an IdP entityID per SP.
-        // final String spId = getSpId(servletRequest);
-        // return (spId == null) ? "https://idp.example.org" : "https://idp." + spId + ".example.org";
-        return "https://idp.example.org";
+        return param != null && "1".equals(param);
     }
 
     /**
@@ -508,9 +359,10 @@ public class SAML2Controller extends BaseSAMLController {
             defaultPage(HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws Exception {
         final StringBuilder builder = new StringBuilder();
         builder.append("SP id = " + getSpId(servletRequest) + "\n");
-        builder.append("SP entityID = " + getSpEntityId(servletRequest) + "\n");
+        final SAML2MessageTemplates.Template template = getTemplate(servletRequest);
+        builder.append("SP entityID = " + template.getSpEntityId() + "\n");
         builder.append("SP credential entityID = " + spCredential.getEntityId() + "\n");
-        builder.append("IdP entityID = " + getIdpEntityId(servletRequest) + "\n");
+        builder.append("IdP entityID = " + template.getIdpEntityId() + "\n");
         final String formattedMessage = builder.toString();
         final HttpHeaders headers = new HttpHeaders();
         headers.add("Content-Type", "text/plain");
@@ -0,0 +1,453 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sp;
+
+import java.net.MalformedURLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.servlet.http.HttpServletRequest;
+import javax.xml.namespace.QName;
+
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.net.URLBuilder;
+import net.shibboleth.utilities.java.support.security.IdentifierGenerationStrategy;
+import net.shibboleth.utilities.java.support.security.Type4UUIDIdentifierGenerationStrategy;
+
+import org.joda.time.DateTime;
+import org.opensaml.core.xml.XMLObjectBuilderFactory;
+import org.opensaml.saml.common.SAMLObject;
+import org.opensaml.saml.common.SAMLObjectBuilder;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.ext.saml2aslo.Asynchronous;
+import org.opensaml.saml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.saml.saml2.core.Extensions;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.LogoutRequest;
+import org.opensaml.saml.saml2.core.LogoutResponse;
+import org.opensaml.saml.saml2.core.NameID;
+import org.opensaml.saml.saml2.core.NameIDPolicy;
+import org.opensaml.saml.saml2.core.RequestedAuthnContext;
+import org.opensaml.saml.saml2.core.Status;
+import org.opensaml.saml.saml2.core.StatusCode;
+import org.opensaml.saml.saml2.metadata.Endpoint;
+import org.opensaml.saml.saml2.metadata.SingleLogoutService;
+import org.opensaml.saml.saml2.metadata.SingleSignOnService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Builds the SAML 2 messages sent by {@link SAML2Controller}.
+ * 
+ * Builders are looked up once, when the templates are created. Entity IDs, endpoint URLs and the IdP endpoints are
+ * worked out once per SP id and base URL and kept in a {@link Template}. Building a message then only creates its
+ * elements with the cached builders and fills in its ID, IssueInstant and Destination.
+ * 
+ * An XML object belongs to a single parent, so the elements of a message are created anew for each message. The IdP
+ * endpoints are never attached to a message and are shared by all of them, so they must not be modified.
+ */
+@Component
+@ThreadSafe
+public class SAML2MessageTemplates {
+
+    /** Largest number of templates kept, one per SP id and base URL. */
+    public static final int MAX_TEMPLATES = 256;
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(SAML2MessageTemplates.class);
+
+    /** Generator of message IDs. */
+    @Nonnull private final IdentifierGenerationStrategy idGenerator = new Type4UUIDIdentifierGenerationStrategy();
+
+    /** Templates by base URL and SP id. */
+    @Nonnull private final ConcurrentMap<String, Template> templates = new ConcurrentHashMap<>();
+
+    /** AuthnRequest builder. */
+    @Nonnull private final SAMLObjectBuilder<AuthnRequest> authnRequestBuilder;
+
+    /** LogoutRequest builder. */
+    @Nonnull private final SAMLObjectBuilder<LogoutRequest> logoutRequestBuilder;
+
+    /** LogoutResponse builder. */
+    @Nonnull private final SAMLObjectBuilder<LogoutResponse> logoutResponseBuilder;
+
+    /** Issuer builder. */
+    @Nonnull private final SAMLObjectBuilder<Issuer> issuerBuilder;
+
+    /** NameIDPolicy builder. */
+    @Nonnull private final SAMLObjectBuilder<NameIDPolicy> nameIDPolicyBuilder;
+
+    /** NameID builder. */
+    @Nonnull private final SAMLObjectBuilder<NameID> nameIDBuilder;
+
+    /** RequestedAuthnContext builder. */
+    @Nonnull private final SAMLObjectBuilder<RequestedAuthnContext> requestedAuthnContextBuilder;
+
+    /** AuthnContextClassRef builder. */
+    @Nonnull private final SAMLObjectBuilder<AuthnContextClassRef> authnContextClassRefBuilder;
+
+    /** Status builder. */
+    @Nonnull private final SAMLObjectBuilder<Status> statusBuilder;
+
+    /** StatusCode builder. */
+    @Nonnull private final SAMLObjectBuilder<StatusCode> statusCodeBuilder;
+
+    /** Extensions builder. */
+    @Nonnull private final SAMLObjectBuilder<Extensions> extensionsBuilder;
+
+    /** Asynchronous builder. */
+    @Nonnull private final SAMLObjectBuilder<Asynchronous> asynchronousBuilder;
+
+    /** SingleSignOnService builder. */
+    @Nonnull private final SAMLObjectBuilder<SingleSignOnService> singleSignOnServiceBuilder;
+
+    /** SingleLogoutService builder. */
+    @Nonnull private final SAMLObjectBuilder<SingleLogoutService> singleLogoutServiceBuilder;
+
+    /**
+     * Constructor.
+     * 
+     * @param builderFactory the factory to look builders up in
+     */
+    @Autowired
+    public SAML2MessageTemplates(@Nonnull final XMLObjectBuilderFactory builderFactory) {
+        Constraint.isNotNull(builderFactory, "Builder factory cannot be null");
+        authnRequestBuilder = getBuilder(builderFactory, AuthnRequest.DEFAULT_ELEMENT_NAME);
+        logoutRequestBuilder = getBuilder(builderFactory, LogoutRequest.DEFAULT_ELEMENT_NAME);
+        logoutResponseBuilder = getBuilder(builderFactory, LogoutResponse.DEFAULT_ELEMENT_NAME);
+        issuerBuilder = getBuilder(builderFactory, Issuer.DEFAULT_ELEMENT_NAME);
+        nameIDPolicyBuilder = getBuilder(builderFactory, NameIDPolicy.DEFAULT_ELEMENT_NAME);
+        nameIDBuilder = getBuilder(builderFactory, NameID.DEFAULT_ELEMENT_NAME);
+        requestedAuthnContextBuilder = getBuilder(builderFactory, RequestedAuthnContext.DEFAULT_ELEMENT_NAME);
+        authnContextClassRefBuilder = getBuilder(builderFactory, AuthnContextClassRef.DEFAULT_ELEMENT_NAME);
+        statusBuilder = getBuilder(builderFactory, Status.DEFAULT_ELEMENT_NAME);
+        statusCodeBuilder = getBuilder(builderFactory, StatusCode.DEFAULT_ELEMENT_NAME);
+        extensionsBuilder = getBuilder(builderFactory, Extensions.DEFAULT_ELEMENT_NAME);
+        asynchronousBuilder = getBuilder(builderFactory, Asynchronous.DEFAULT_ELEMENT_NAME);
+        singleSignOnServiceBuilder = getBuilder(builderFactory, SingleSignOnService.DEFAULT_ELEMENT_NAME);
+        singleLogoutServiceBuilder = getBuilder(builderFactory, SingleLogoutService.DEFAULT_ELEMENT_NAME);
+    }
+
+    /**
+     * Get the template of the SP a request is addressed to, creating it on first use.
+     * 
+     * @param servletRequest the servlet request
+     * @param spId the SP id, or <code>null</code> for the default SP
+     * @return the template
+     */
+    @Nonnull public Template getTemplate(@Nonnull final HttpServletRequest servletRequest,
+            @Nullable final String spId) {
+        final String key = servletRequest.getScheme() + "://" + servletRequest.getServerName() + ":"
+                + servletRequest.getServerPort() + (spId == null ? "" : "/" + spId);
+        Template template = templates.get(key);
+        if (template == null) {
+            if (templates.size() >= MAX_TEMPLATES) {
+                // Host headers are chosen by clients, do not let them grow the cache without bounds.
+                templates.clear();
+            }
+            template = new Template(spId, getBaseUrl(servletRequest));
+            final Template existing = templates.putIfAbsent(key, template);
+            if (existing != null) {
+                template = existing;
+            }
+            log.debug("Created template for SP '{}' at '{}'", spId, template.getBaseUrl());
+        }
+        return template;
+    }
+
+    /**
+     * Look up the builder of an element.
+     * 
+     * @param <T> the type of the element
+     * @param builderFactory the factory to look the builder up in
+     * @param name the element name
+     * @return the builder
+     */
+    @Nonnull private static <T extends SAMLObject> SAMLObjectBuilder<T> getBuilder(
+            @Nonnull final XMLObjectBuilderFactory builderFactory, @Nonnull final QName name) {
+        return (SAMLObjectBuilder<T>) Constraint.isNotNull(builderFactory.<T>getBuilder(name),
+                "No builder for " + name);
+    }
+
+    /**
+     * Get the URL of the server a request is addressed to, without path.
+     * 
+     * @param servletRequest the servlet request
+     * @return the base URL
+     */
+    @Nonnull private String getBaseUrl(@Nonnull final HttpServletRequest servletRequest) {
+        //TODO servlet context
+        final String requestUrl = servletRequest.getRequestURL().toString();
+        try {
+            final URLBuilder urlBuilder = new URLBuilder(requestUrl);
+            urlBuilder.setUsername(null);
+            urlBuilder.setPassword(null);
+            urlBuilder.setPath(null);
+            urlBuilder.getQueryParams().clear();
+            urlBuilder.setFragment(null);
+            return urlBuilder.buildURL();
+        } catch (final MalformedURLException e) {
+            log.error("Couldn't parse request URL, reverting to internal default base URL: {}", requestUrl);
+            return "http://localhost:8080";
+        }
+    }
+
+    /**
+     * Build a URL on a base URL.
+     * 
+     * @param baseUrl the base URL
+     * @param path the path
+     * @return the URL
+     */
+    @Nonnull private String buildUrl(@Nonnull final String baseUrl, @Nonnull final String path) {
+        try {
+            final URLBuilder urlBuilder = new URLBuilder(baseUrl);
+            urlBuilder.setPath(path);
+            return urlBuilder.buildURL();
+        } catch (final MalformedURLException e) {
+            log.error("Couldn't parse base URL, reverting to internal default: {}", baseUrl);
+            return "http://localhost:8080" + path;
+        }
+    }
+
+    /**
+     * The parts of the messages sent on behalf of an SP which do not change from one message to the next.
+     */
+    @ThreadSafe
+    public class Template {
+
+        /** The SP id, or <code>null</code> for the default SP. */
+        @Nullable private final String spId;
+
+        /** The base URL. */
+        @Nonnull private final String baseUrl;
+
+        /** The SP entityID. */
+        @Nonnull private final String spEntityId;
+
+        /** The IdP entityID. */
+        @Nonnull private final String idpEntityId;
+
+        /** The assertion consumer service URL of the SP. */
+        @Nonnull private final String acsUrl;
+
+        /** The IdP SSO endpoints by binding. */
+        @Nonnull private final Map<String, SingleSignOnService> ssoEndpoints;
+
+        /** The IdP SLO endpoints by binding. */
+        @Nonnull private final Map<String, SingleLogoutService> sloEndpoints;
+
+        /**
+         * Constructor.
+         * 
+         * @param id the SP id, or <code>null</code> for the default SP
+         * @param url the base URL
+         */
+        protected Template(@Nullable final String id, @Nonnull final String url) {
+            spId = id;
+            baseUrl = url;
+            // TODO get from config somewhere
+            spEntityId = (spId == null) ? "https://sp.example.org" : "https://" + spId + ".example.org";
+            // Sometimes it's useful to return an IdP entityID per SP.
+            // idpEntityId = (spId == null) ? "https://idp.example.org" : "https://idp." + spId + ".example.org";
+            idpEntityId = "https://idp.example.org";
+            //TODO servlet context
+            acsUrl = buildUrl(baseUrl, (spId == null) ? "/sp/SAML2/POST/ACS" : "/sp/" + spId + "/SAML2/POST/ACS");
+
+            final Map<String, SingleSignOnService> sso = new HashMap<>();
+            final Map<String, SingleLogoutService> slo = new HashMap<>();
+            for (final String binding : new String[] {SAMLConstants.SAML2_REDIRECT_BINDING_URI,
+                    SAMLConstants.SAML2_POST_BINDING_URI}) {
+                final String bindingPath = SAMLConstants.SAML2_POST_BINDING_URI.equals(binding)
+                        ? "/idp/profile/SAML2/POST/" : "/idp/profile/SAML2/Redirect/";
+                final SingleSignOnService ssoEndpoint = singleSignOnServiceBuilder.buildObject();
+                ssoEndpoint.setBinding(binding);
+                ssoEndpoint.setLocation(buildUrl(baseUrl, bindingPath + "SSO"));
+                sso.put(binding, ssoEndpoint);
+                final SingleLogoutService sloEndpoint = singleLogoutServiceBuilder.buildObject();
+                sloEndpoint.setBinding(binding);
+                sloEndpoint.setLocation(buildUrl(baseUrl, bindingPath + "SLO"));
+                slo.put(binding, sloEndpoint);
+            }
+            ssoEndpoints = Collections.unmodifiableMap(sso);
+            sloEndpoints = Collections.unmodifiableMap(slo);
+        }
+
+        /**
+         * Get the SP id.
+         * 
+         * @return the SP id, or <code>null</code> for the default SP
+         */
+        @Nullable public String getSpId() {
+            return spId;
+        }
+
+        /**
+         * Get the base URL.
+         * 
+         * @return the base URL
+         */
+        @Nonnull public String getBaseUrl() {
+            return baseUrl;
+        }
+
+        /**
+         * Get the SP entityID.
+         * 
+         * @return the SP entityID
+         */
+        @Nonnull public String getSpEntityId() {
+            return spEntityId;
+        }
+
+        /**
+         * Get the IdP entityID.
+         * 
+         * @return the IdP entityID
+         */
+        @Nonnull public String getIdpEntityId() {
+            return idpEntityId;
+        }
+
+        /**
+         * Get the IdP SSO endpoint of a binding, shared by all messages.
+         * 
+         * @param binding the binding
+         * @return the endpoint, which must not be modified
+         */
+        @Nonnull public Endpoint getSsoEndpoint(@Nonnull final String binding) {
+            return Constraint.isNotNull(ssoEndpoints.get(binding), "Unsupported binding " + binding);
+        }
+
+        /**
+         * Get the IdP SLO endpoint of a binding, shared by all messages.
+         * 
+         * @param binding the binding
+         * @return the endpoint, which must not be modified
+         */
+        @Nonnull public Endpoint getSloEndpoint(@Nonnull final String binding) {
+            return Constraint.isNotNull(sloEndpoints.get(binding), "Unsupported binding " + binding);
+        }
+
+        /**
+         * Build an AuthnRequest to the SSO endpoint of a binding, asking for the response to be posted.
+         * 
+         * @param binding the binding the request is sent with
+         * @param classRef the requested authentication context class, or <code>null</code>
+         * @return the request
+         */
+        @Nonnull public AuthnRequest buildAuthnRequest(@Nonnull final String binding, @Nullable final String classRef) {
+            final AuthnRequest authnRequest = authnRequestBuilder.buildObject();
+            authnRequest.setID(idGenerator.generateIdentifier());
+            authnRequest.setIssueInstant(new DateTime());
+            authnRequest.setDestination(getSsoEndpoint(binding).getLocation());
+            authnRequest.setAssertionConsumerServiceURL(acsUrl);
+            authnRequest.setProtocolBinding(SAMLConstants.SAML2_POST_BINDING_URI);
+            authnRequest.setIssuer(buildIssuer());
+
+            final NameIDPolicy nameIDPolicy = nameIDPolicyBuilder.buildObject();
+            nameIDPolicy.setAllowCreate(true);
+            authnRequest.setNameIDPolicy(nameIDPolicy);
+
+            if (classRef != null) {
+                final AuthnContextClassRef ref = authnContextClassRefBuilder.buildObject();
+                ref.setAuthnContextClassRef(classRef);
+                final RequestedAuthnContext rac = requestedAuthnContextBuilder.buildObject();
+                rac.getAuthnContextClassRefs().add(ref);
+                authnRequest.setRequestedAuthnContext(rac);
+            }
+
+            return authnRequest;
+        }
+
+        /**
+         * Build a LogoutRequest to the SLO endpoint of a binding, for a transient NameID.
+         * 
+         * @param binding the binding the request is sent with
+         * @param transientId the transient NameID, or <code>null</code>
+         * @param asynchronous whether to ask for no response
+         * @return the request
+         */
+        @Nonnull public LogoutRequest buildLogoutRequest(@Nonnull final String binding,
+                @Nullable final String transientId, final boolean asynchronous) {
+            final LogoutRequest logoutRequest = logoutRequestBuilder.buildObject();
+            logoutRequest.setID(idGenerator.generateIdentifier());
+            logoutRequest.setIssueInstant(new DateTime());
+            logoutRequest.setDestination(getSloEndpoint(binding).getLocation());
+            logoutRequest.setIssuer(buildIssuer());
+
+            final NameID nameID = nameIDBuilder.buildObject();
+            nameID.setValue(transientId);
+            nameID.setFormat(NameID.TRANSIENT);
+            nameID.setSPNameQualifier(spEntityId);
+            nameID.setNameQualifier(idpEntityId);
+            logoutRequest.setNameID(nameID);
+
+            if (asynchronous) {
+                final Extensions exts = extensionsBuilder.buildObject();
+                exts.getUnknownXMLObjects().add(asynchronousBuilder.buildObject());
+                logoutRequest.setExtensions(exts);
+            }
+
+            return logoutRequest;
+        }
+
+        /**
+         * Build a LogoutResponse to the SLO endpoint of a binding.
+         * 
+         * @param binding the binding the response is sent with
+         * @param success whether logout succeeded
+         * @return the response
+         */
+        @Nonnull public LogoutResponse buildLogoutResponse(@Nonnull final String binding, final boolean success) {
+            final LogoutResponse logoutResponse = logoutResponseBuilder.buildObject();
+            logoutResponse.setID(idGenerator.generateIdentifier());
+            logoutResponse.setIssueInstant(new DateTime());
+            logoutResponse.setDestination(getSloEndpoint(binding).getLocation());
+            logoutResponse.setIssuer(buildIssuer());
+
+            final StatusCode code = statusCodeBuilder.buildObject();
+            code.setValue(success ? StatusCode.SUCCESS : StatusCode.RESPONDER);
+            final Status status = statusBuilder.buildObject();
+            status.setStatusCode(code);
+            logoutResponse.setStatus(status);
+
+            return logoutResponse;
+        }
+
+        /**
+         * Build the Issuer of a message.
+         * 
+         * @return the Issuer
+         */
+        @Nonnull private Issuer buildIssuer() {
+            final Issuer issuer = issuerBuilder.buildObject();
+            issuer.setValue(spEntityId);
+            return issuer;
+        }
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sp;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.MalformedURLException;
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.utilities.java.support.net.URLBuilder;
+import net.shibboleth.utilities.java.support.security.IdentifierGenerationStrategy;
+import net.shibboleth.utilities.java.support.security.Type4UUIDIdentifierGenerationStrategy;
+
+import org.joda.time.DateTime;
+import org.opensaml.core.config.InitializationException;
+import org.opensaml.core.config.InitializationService;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.XMLObjectBuilderFactory;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.LogoutResponse;
+import org.opensaml.saml.saml2.core.NameIDPolicy;
+import org.opensaml.saml.saml2.core.Status;
+import org.opensaml.saml.saml2.core.StatusCode;
+import org.opensaml.saml.saml2.metadata.Endpoint;
+import org.opensaml.saml.saml2.metadata.SingleLogoutService;
+import org.opensaml.saml.saml2.metadata.SingleSignOnService;
+
+/**
+ * Compares building the messages of {@link SAML2Controller} from a {@link SAML2MessageTemplates.Template} with
+ * building them from scratch as the controller used to, looking up builders and parsing URLs for every message.
+ * 
+ * Reports the time and, where the JVM can tell, the bytes allocated per message, after a warm-up round:
+ * <p>
+ * java -cp ... sp.SAML2MessageTemplatesBenchmark [messages]
+ * <p>
+ * which defaults to 100000 messages of each kind.
+ */
+public final class SAML2MessageTemplatesBenchmark {
+
+    /** Base URL of the messages. */
+    @Nonnull private static final String BASE_URL = "https://localhost:8443";
+
+    /** Sink for built messages, so they are not optimized away. */
+    private static int sink;
+
+    /** Constructor. */
+    private SAML2MessageTemplatesBenchmark() {
+    }
+
+    /**
+     * Run the comparison.
+     * 
+     * @param args the number of messages of each kind, optional
+     * @throws InitializationException if OpenSAML can not be initialized
+     */
+    public static void main(final String[] args) throws InitializationException {
+        final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+        InitializationService.initialize();
+        final XMLObjectBuilderFactory builderFactory = XMLObjectProviderRegistrySupport.getBuilderFactory();
+        final SAML2MessageTemplates templates = new SAML2MessageTemplates(builderFactory);
+        final SAML2MessageTemplates.Template template = templates.new Template(null, BASE_URL);
+        final IdentifierGenerationStrategy idGenerator = new Type4UUIDIdentifierGenerationStrategy();
+
+        for (int round = 0; round < 2; round++) {
+            final boolean report = round > 0;
+            final int count = report ? messages : Math.max(1, messages / 10);
+
+            long start = System.nanoTime();
+            long allocated = allocatedBytes();
+            for (int i = 0; i < count; i++) {
+                final AuthnRequest authnRequest = buildAuthnRequest(builderFactory, idGenerator);
+                consume(authnRequest, buildSsoEndpoint(builderFactory, authnRequest.getDestination()));
+            }
+            report(report, "authn per message", count, start, allocated);
+            start = System.nanoTime();
+            allocated = allocatedBytes();
+            for (int i = 0; i < count; i++) {
+                consume(template.buildAuthnRequest(SAMLConstants.SAML2_REDIRECT_BINDING_URI, null),
+                        template.getSsoEndpoint(SAMLConstants.SAML2_REDIRECT_BINDING_URI));
+            }
+            report(report, "authn template", count, start, allocated);
+
+            start = System.nanoTime();
+            allocated = allocatedBytes();
+            for (int i = 0; i < count; i++) {
+                final LogoutResponse logoutResponse = buildLogoutResponse(builderFactory, idGenerator);
+                consume(logoutResponse, buildSloEndpoint(builderFactory, logoutResponse.getDestination()));
+            }
+            report(report, "logout per message", count, start, allocated);
+            start = System.nanoTime();
+            allocated = allocatedBytes();
+            for (int i = 0; i < count; i++) {
+                consume(template.buildLogoutResponse(SAMLConstants.SAML2_REDIRECT_BINDING_URI, true),
+                        template.getSloEndpoint(SAMLConstants.SAML2_REDIRECT_BINDING_URI));
+            }
+            report(report, "logout template", count, start, allocated);
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * Build an AuthnRequest as the controller did before templates.
+     * 
+     * @param builderFactory the builder factory
+     * @param idGenerator the ID generator
+     * @return the request
+     */
+    @Nonnull private static AuthnRequest buildAuthnRequest(@Nonnull final XMLObjectBuilderFactory builderFactory,
+            @Nonnull final IdentifierGenerationStrategy idGenerator) {
+        final AuthnRequest authnRequest = (AuthnRequest) builderFactory.getBuilder(
+                AuthnRequest.DEFAULT_ELEMENT_NAME).buildObject(AuthnRequest.DEFAULT_ELEMENT_NAME);
+        authnRequest.setID(idGenerator.generateIdentifier());
+        authnRequest.setIssueInstant(new DateTime());
+        authnRequest.setAssertionConsumerServiceURL(buildUrl("/sp/SAML2/POST/ACS"));
+        authnRequest.setProtocolBinding(SAMLConstants.SAML2_POST_BINDING_URI);
+
+        final Issuer issuer = (Issuer) builderFactory.getBuilder(
+                Issuer.DEFAULT_ELEMENT_NAME).buildObject(Issuer.DEFAULT_ELEMENT_NAME);
+        issuer.setValue("https://sp.example.org");
+        authnRequest.setIssuer(issuer);
+
+        final NameIDPolicy nameIDPolicy = (NameIDPolicy) builderFactory.getBuilder(
+                NameIDPolicy.DEFAULT_ELEMENT_NAME).buildObject(NameIDPolicy.DEFAULT_ELEMENT_NAME);
+        nameIDPolicy.setAllowCreate(true);
+        authnRequest.setNameIDPolicy(nameIDPolicy);
+
+        authnRequest.setDestination(buildUrl("/idp/profile/SAML2/Redirect/SSO"));
+        return authnRequest;
+    }
+
+    /**
+     * Build a LogoutResponse as the controller did before templates.
+     * 
+     * @param builderFactory the builder factory
+     * @param idGenerator the ID generator
+     * @return the response
+     */
+    @Nonnull private static LogoutResponse buildLogoutResponse(@Nonnull final XMLObjectBuilderFactory builderFactory,
+            @Nonnull final IdentifierGenerationStrategy idGenerator) {
+        final LogoutResponse logoutResponse = (LogoutResponse) builderFactory.getBuilder(
+                LogoutResponse.DEFAULT_ELEMENT_NAME).buildObject(LogoutResponse.DEFAULT_ELEMENT_NAME);
+        logoutResponse.setID(idGenerator.generateIdentifier());
+        logoutResponse.setIssueInstant(new DateTime());
+
+        final Issuer issuer = (Issuer) builderFactory.getBuilder(
+                Issuer.DEFAULT_ELEMENT_NAME).buildObject(Issuer.DEFAULT_ELEMENT_NAME);
+        issuer.setValue("https://sp.example.org");
+        logoutResponse.setIssuer(issuer);
+
+        final Status status = (Status) builderFactory.getBuilder(
+                Status.DEFAULT_ELEMENT_NAME).buildObject(Status.DEFAULT_ELEMENT_NAME);
+        logoutResponse.setStatus(status);
+        final StatusCode code = (StatusCode) builderFactory.getBuilder(
+                StatusCode.DEFAULT_ELEMENT_NAME).buildObject(StatusCode.DEFAULT_ELEMENT_NAME);
+        status.setStatusCode(code);
+        code.setValue(StatusCode.SUCCESS);
+
+        logoutResponse.setDestination(buildUrl("/idp/profile/SAML2/Redirect/SLO"));
+        return logoutResponse;
+    }
+
+    /**
+     * Build an SSO endpoint as the controller did before templates.
+     * 
+     * @param builderFactory the builder factory
+     * @param destination the endpoint location
+     * @return the endpoint
+     */
+    @Nonnull private static Endpoint buildSsoEndpoint(@Nonnull final XMLObjectBuilderFactory builderFactory,
+            @Nonnull final String destination) {
+        final SingleSignOnService endpoint = (SingleSignOnService) builderFactory.getBuilder(
+                SingleSignOnService.DEFAULT_ELEMENT_NAME).buildObject(SingleSignOnService.DEFAULT_ELEMENT_NAME);
+        endpoint.setBinding(SAMLConstants.SAML2_REDIRECT_BINDING_URI);
+        endpoint.setLocation(destination);
+        return endpoint;
+    }
+
+    /**
+     * Build an SLO endpoint as the controller did before templates.
+     * 
+     * @param builderFactory the builder factory
+     * @param destination the endpoint location
+     * @return the endpoint
+     */
+    @Nonnull private static Endpoint buildSloEndpoint(@Nonnull final XMLObjectBuilderFactory builderFactory,
+            @Nonnull final String destination) {
+        final SingleLogoutService endpoint = (SingleLogoutService) builderFactory.getBuilder(
+                SingleLogoutService.DEFAULT_ELEMENT_NAME).buildObject(SingleLogoutService.DEFAULT_ELEMENT_NAME);
+        endpoint.setBinding(SAMLConstants.SAML2_REDIRECT_BINDING_URI);
+        endpoint.setLocation(destination);
+        return endpoint;
+    }
+
+    /**
+     * Build a URL on the base URL, parsing it as the controller did before templates.
+     * 
+     * @param path the path
+     * @return the URL
+     */
+    @Nonnull private static String buildUrl(@Nonnull final String path) {
+        try {
+            final URLBuilder urlBuilder = new URLBuilder(BASE_URL);
+            urlBuilder.setPath(path);
+            return urlBuilder.buildURL();
+        } catch (final MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Keep a message and its endpoint alive.
+     * 
+     * @param message the message
+     * @param endpoint the endpoint
+     */
+    private static void consume(@Nonnull final XMLObject message, @Nonnull final Endpoint endpoint) {
+        sink += System.identityHashCode(message) ^ endpoint.getLocation().length();
+    }
+
+    /**
+     * Get the number of bytes allocated by the current thread so far.
+     * 
+     * @return the number of bytes, or -1 if the JVM does not tell
+     */
+    private static long allocatedBytes() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Print the time and allocation per message of a phase.
+     * 
+     * @param report whether to print, false during warm-up
+     * @param phase the phase
+     * @param count the number of messages
+     * @param start the start time as returned by {@link System#nanoTime()}
+     * @param allocated the bytes allocated at the start as returned by {@link #allocatedBytes()}
+     */
+    private static void report(final boolean report, @Nonnull final String phase, final int count, final long start,
+            final long allocated) {
+        final long elapsed = System.nanoTime() - start;
+        final long bytes = allocated < 0 ? -1 : allocatedBytes() - allocated;
+        if (report) {
+            System.out.println(String.format(Locale.ROOT, "%-20s %8d messages %10.0f ns/message %10s bytes/message",
+                    phase, count, (double) elapsed / count, bytes < 0 ? "n/a" : Long.toString(bytes / count)));
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.json.stream.JsonGenerator;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.saml.common.SAMLObject;
+import org.opensaml.saml.common.messaging.SAMLMessageSecuritySupport;
+import org.opensaml.security.SecurityException;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.xmlsec.SignatureSigningParameters;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+import org.opensaml.xmlsec.signature.support.SignatureException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import common.LatencyHistogram;
+
+/**
+ * Signs the SAML messages sent by the SP.
+ * 
+ * Signing parameters are built once per credential and signature algorithm and shared by all messages, which only
+ * read them. Messages are signed on the calling thread, or, if parallel signing is enabled, on a pool of threads
+ * sized to the number of processors by default. The pool keeps the number of RSA operations in flight down to the
+ * number of cores however many container threads ask for signatures, rather than having them all contend for CPU.
+ * The caller still waits for its signature, and signs on its own thread if the pool's queue is full or the pool
+ * has been shut down before getting to the message.
+ * 
+ * The time spent waiting for a signing thread and the time spent signing are recorded, see
+ * {@link #writeStatistics(JsonGenerator, String)}.
+ */
+@ThreadSafe
+public class SAML2SigningService extends AbstractInitializableComponent {
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(SAML2SigningService.class);
+
+    /** Signing parameters by credential and signature algorithm. */
+    @Nonnull private final ConcurrentMap<ParametersKey, SignatureSigningParameters> parameters =
+            new ConcurrentHashMap<>();
+
+    /** Canonicalization algorithm of the signatures. */
+    @Nonnull @NotEmpty private String canonicalizationAlgorithm =
+            SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS;
+
+    /** Whether to sign on the signing threads rather than on the calling thread. */
+    private boolean parallel;
+
+    /** Number of signing threads. */
+    @Positive private int threads = Runtime.getRuntime().availableProcessors();
+
+    /** Largest number of messages waiting for a signing thread. */
+    @Positive private int queueCapacity = 1024;
+
+    /** The signing threads, if parallel signing is enabled. */
+    @Nullable private ThreadPoolExecutor executor;
+
+    /** Time spent waiting for a signing thread. */
+    @Nonnull private final LatencyHistogram queueLatency = new LatencyHistogram();
+
+    /** Time spent signing. */
+    @Nonnull private final LatencyHistogram signLatency = new LatencyHistogram();
+
+    /** Number of messages signed. */
+    @Nonnull private final AtomicLong signed = new AtomicLong();
+
+    /** Number of messages signed on the calling thread although parallel signing is enabled. */
+    @Nonnull private final AtomicLong callerSigned = new AtomicLong();
+
+    /** Number of messages which could not be signed. */
+    @Nonnull private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Set the canonicalization algorithm of the signatures.
+     * 
+     * @param algorithm the algorithm URI, exclusive canonicalization without comments by default
+     */
+    public void setCanonicalizationAlgorithm(@Nonnull @NotEmpty final String algorithm) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        canonicalizationAlgorithm =
+                Constraint.isNotEmpty(algorithm, "Canonicalization algorithm cannot be null or empty");
+    }
+
+    /**
+     * Set whether to sign on the signing threads rather than on the calling thread.
+     * 
+     * @param flag whether to sign in parallel, false by default
+     */
+    public void setParallel(final boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        parallel = flag;
+    }
+
+    /**
+     * Set the number of signing threads.
+     * 
+     * @param count the number of threads, the number of processors by default
+     */
+    public void setThreads(@Positive final int count) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        threads = (int) Constraint.isGreaterThan(0, count, "Number of threads must be greater than 0");
+    }
+
+    /**
+     * Set the largest number of messages waiting for a signing thread.
+     * 
+     * @param capacity the queue capacity, 1024 by default
+     */
+    public void setQueueCapacity(@Positive final int capacity) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        queueCapacity = (int) Constraint.isGreaterThan(0, capacity, "Queue capacity must be greater than 0");
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (parallel) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+                        public Thread newThread(final Runnable runnable) {
+                            final Thread thread = new Thread(runnable, "sp-signing-" + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new RejectedExecutionHandler() {
+                        public void rejectedExecution(final Runnable runnable, final ThreadPoolExecutor pool) {
+                            if (pool.isShutdown()) {
+                                throw new RejectedExecutionException("Signing threads have been shut down");
+                            }
+                            runnable.run();
+                        }
+                    });
+            executor.prestartAllCoreThreads();
+            log.debug("Signing on {} threads", threads);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doDestroy() {
+        if (executor != null) {
+            final ThreadPoolExecutor signingThreads = executor;
+            executor = null;
+            for (final Runnable queued : signingThreads.shutdownNow()) {
+                if (queued instanceof Future) {
+                    ((Future<?>) queued).cancel(false);
+                }
+            }
+        }
+        super.doDestroy();
+    }
+
+    /**
+     * Get the signing parameters of a credential and signature algorithm.
+     * 
+     * @param credential the signing credential
+     * @param signatureAlgorithm the signature algorithm URI
+     * @return the signing parameters, shared and not to be modified
+     */
+    @Nonnull public SignatureSigningParameters getSigningParameters(@Nonnull final Credential credential,
+            @Nonnull @NotEmpty final String signatureAlgorithm) {
+        final ParametersKey key = new ParametersKey(credential, signatureAlgorithm);
+        SignatureSigningParameters signingParameters = parameters.get(key);
+        if (signingParameters == null) {
+            signingParameters = new SignatureSigningParameters();
+            signingParameters.setSigningCredential(credential);
+            signingParameters.setSignatureAlgorithm(signatureAlgorithm);
+            signingParameters.setSignatureCanonicalizationAlgorithm(canonicalizationAlgorithm);
+            final SignatureSigningParameters existing = parameters.putIfAbsent(key, signingParameters);
+            if (existing != null) {
+                signingParameters = existing;
+            }
+        }
+        return signingParameters;
+    }
+
+    /**
+     * Sign the message of a message context with the signing parameters of its security parameters context, see
+     * {@link SAMLMessageSecuritySupport#signMessage(MessageContext)}.
+     * 
+     * @param messageContext the message context
+     * @throws SecurityException if the signing credential can not be used or signing is interrupted
+     * @throws MarshallingException if the message can not be marshalled
+     * @throws SignatureException if the message can not be signed
+     */
+    public void sign(@Nonnull final MessageContext<SAMLObject> messageContext)
+            throws SecurityException, MarshallingException, SignatureException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        final ThreadPoolExecutor signingThreads = executor;
+        if (signingThreads == null) {
+            signNow(messageContext, System.nanoTime());
+            return;
+        }
+
+        final Thread caller = Thread.currentThread();
+        final long submitted = System.nanoTime();
+        final Future<Void> future;
+        try {
+            future = signingThreads.submit(new Callable<Void>() {
+                public Void call() throws SecurityException, MarshallingException, SignatureException {
+                    if (Thread.currentThread() == caller) {
+                        callerSigned.incrementAndGet();
+                    }
+                    signNow(messageContext, submitted);
+                    return null;
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            signOnCaller(messageContext, submitted);
+            return;
+        }
+        try {
+            future.get();
+        } catch (final CancellationException e) {
+            // Dropped from the queue by a shut down before a signing thread got to it.
+            signOnCaller(messageContext, submitted);
+        } catch (final InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new SecurityException("Interrupted while waiting for a signature", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof SignatureException) {
+                throw (SignatureException) cause;
+            } else if (cause instanceof SecurityException) {
+                throw (SecurityException) cause;
+            } else if (cause instanceof MarshallingException) {
+                throw (MarshallingException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new SecurityException("Unable to sign message", e);
+        }
+    }
+
+    /**
+     * Sign a message on the calling thread because the signing threads did not take it.
+     * 
+     * @param messageContext the message context
+     * @param submitted when signing was asked for, as returned by {@link System#nanoTime()}
+     * @throws SecurityException if the signing credential can not be used
+     * @throws MarshallingException if the message can not be marshalled
+     * @throws SignatureException if the message can not be signed
+     */
+    private void signOnCaller(@Nonnull final MessageContext<SAMLObject> messageContext, final long submitted)
+            throws SecurityException, MarshallingException, SignatureException {
+        log.debug("Signing threads are shut down, signing on the calling thread");
+        callerSigned.incrementAndGet();
+        signNow(messageContext, submitted);
+    }
+
+    /**
+     * Sign a message on the current thread and record how long it took.
+     * 
+     * @param messageContext the message context
+     * @param submitted when signing was asked for, as returned by {@link System#nanoTime()}
+     * @throws SecurityException if the signing credential can not be used
+     * @throws MarshallingException if the message can not be marshalled
+     * @throws SignatureException if the message can not be signed
+     */
+    private void signNow(@Nonnull final MessageContext<SAMLObject> messageContext, final long submitted)
+            throws SecurityException, MarshallingException, SignatureException {
+        final long start = System.nanoTime();
+        queueLatency.record(start - submitted);
+        boolean success = false;
+        try {
+            SAMLMessageSecuritySupport.signMessage(messageContext);
+            success = true;
+        } finally {
+            signLatency.recordSince(start);
+            if (success) {
+                signed.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Write the signing statistics as a named JSON object.
+     * 
+     * @param gen the JSON generator, positioned inside an object
+     * @param name the name of the statistics object
+     */
+    public void writeStatistics(@Nonnull final JsonGenerator gen, @Nonnull final String name) {
+        final ThreadPoolExecutor signingThreads = executor;
+        gen.writeStartObject(name);
+        gen.write("parallel", signingThreads != null);
+        gen.write("threads", signingThreads != null ? signingThreads.getPoolSize() : 0);
+        gen.write("queued", signingThreads != null ? signingThreads.getQueue().size() : 0);
+        gen.write("signed", signed.get());
+        gen.write("callerSigned", callerSigned.get());
+        gen.write("failed", failed.get());
+        gen.write("signingParameters", parameters.size());
+        queueLatency.write(gen, "queueLatency");
+        signLatency.write(gen, "signLatency");
+        gen.writeEnd();
+    }
+
+    /**
+     * Key of the signing parameters of a credential, by identity, and a signature algorithm.
+     */
+    private static final class ParametersKey {
+
+        /** The credential. */
+        @Nonnull private final Credential credential;
+
+        /** The signature algorithm. */
+        @Nonnull private final String algorithm;
+
+        /**
+         * Constructor.
+         * 
+         * @param signingCredential the credential
+         * @param signatureAlgorithm the signature algorithm
+         */
+        ParametersKey(@Nonnull final Credential signingCredential, @Nonnull final String signatureAlgorithm) {
+            credential = Constraint.isNotNull(signingCredential, "Credential cannot be null");
+            algorithm = Constraint.isNotNull(signatureAlgorithm, "Signature algorithm cannot be null");
+        }
+
+        /** {@inheritDoc} */
+        @Override public boolean equals(final Object obj) {
+            if (!(obj instanceof ParametersKey)) {
+                return false;
+            }
+            final ParametersKey other = (ParametersKey) obj;
+            return credential == other.credential && algorithm.equals(other.algorithm);
+        }
+
+        /** {@inheritDoc} */
+        @Override public int hashCode() {
+            return 31 * System.identityHashCode(credential) + algorithm.hashCode();
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.storage.StorageCapabilities;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageSerializer;
+import org.opensaml.storage.StorageService;
+import org.opensaml.storage.VersionMismatchException;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.collection.Pair;
+import net.shibboleth.utilities.java.support.component.AbstractIdentifiableInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Base class for {@link StorageService} decorators, forwarding every operation to a wrapped storage service.
+ * 
+ * Operations on objects with a serializer are converted to their string forms, so subclasses only need to override
+ * the string forms to intercept them. Operations on annotated objects are forwarded as is.
+ */
+public abstract class AbstractDelegatingStorageService extends AbstractIdentifiableInitializableComponent
+        implements StorageService {
+
+    /** The wrapped storage service. */
+    @Nullable private StorageService storageService;
+
+    /**
+     * Get the wrapped storage service.
+     * 
+     * @return the wrapped storage service
+     */
+    @Nonnull public StorageService getStorageService() {
+        return storageService;
+    }
+
+    /**
+     * Set the wrapped storage service.
+     * 
+     * @param service the wrapped storage service
+     */
+    public void setStorageService(@Nonnull final StorageService service) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        storageService = Constraint.isNotNull(service, "StorageService cannot be null");
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (storageService == null) {
+            throw new ComponentInitializationException("StorageService cannot be null");
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull public StorageCapabilities getCapabilities() {
+        return storageService.getCapabilities();
+    }
+
+    /** {@inheritDoc} */
+    public boolean create(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        return storageService.create(context, key, value, expiration);
+    }
+
+    /** {@inheritDoc} */
+    public <T> boolean create(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull final T value, @Nonnull final StorageSerializer<T> serializer,
+            @Nullable @Positive final Long expiration) throws IOException {
+        return create(context, key, serializer.serialize(value), expiration);
+    }
+
+    /** {@inheritDoc} */
+    public boolean create(@Nonnull final Object value) throws IOException {
+        return storageService.create(value);
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public StorageRecord read(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        return storageService.read(context, key);
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public Object read(@Nonnull final Object value) throws IOException {
+        return storageService.read(value);
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull public Pair<Long, StorageRecord> read(@Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Positive final long version) throws IOException {
+        return storageService.read(context, key, version);
+    }
+
+    /** {@inheritDoc} */
+    public boolean update(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        return storageService.update(context, key, value, expiration);
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public Long updateWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nonnull @NotEmpty final String value,
+            @Nullable @Positive final Long expiration) throws IOException, VersionMismatchException {
+        return storageService.updateWithVersion(version, context, key, value, expiration);
+    }
+
+    /** {@inheritDoc} */
+    public <T> boolean update(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull final T value, @Nonnull final StorageSerializer<T> serializer,
+            @Nullable @Positive final Long expiration) throws IOException {
+        return update(context, key, serializer.serialize(value), expiration);
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public <T> Long updateWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nonnull final T value,
+            @Nonnull final StorageSerializer<T> serializer, @Nullable @Positive final Long expiration)
+                    throws IOException, VersionMismatchException {
+        return updateWithVersion(version, context, key, serializer.serialize(value), expiration);
+    }
+
+    /** {@inheritDoc} */
+    public boolean update(@Nonnull final Object value) throws IOException {
+        return storageService.update(value);
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public Long updateWithVersion(@Positive final long version, @Nonnull final Object value)
+            throws IOException, VersionMismatchException {
+        return storageService.updateWithVersion(version, value);
+    }
+
+    /** {@inheritDoc} */
+    public boolean updateExpiration(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nullable @Positive final Long expiration) throws IOException {
+        return storageService.updateExpiration(context, key, expiration);
+    }
+
+    /** {@inheritDoc} */
+    public boolean updateExpiration(@Nonnull final Object value) throws IOException {
+        return storageService.updateExpiration(value);
+    }
+
+    /** {@inheritDoc} */
+    public boolean delete(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        return storageService.delete(context, key);
+    }
+
+    /** {@inheritDoc} */
+    public boolean deleteWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key) throws IOException, VersionMismatchException {
+        return storageService.deleteWithVersion(version, context, key);
+    }
+
+    /** {@inheritDoc} */
+    public boolean delete(@Nonnull final Object value) throws IOException {
+        return storageService.delete(value);
+    }
+
+    /** {@inheritDoc} */
+    public boolean deleteWithVersion(@Positive final long version, @Nonnull final Object value)
+            throws IOException, VersionMismatchException {
+        return storageService.deleteWithVersion(version, value);
+    }
+
+    /** {@inheritDoc} */
+    public void reap(@Nonnull @NotEmpty final String context) throws IOException {
+        storageService.reap(context);
+    }
+
+    /** {@inheritDoc} */
+    public void updateContextExpiration(@Nonnull @NotEmpty final String context,
+            @Nullable @Positive final Long expiration) throws IOException {
+        storageService.updateContextExpiration(context, expiration);
+    }
+
+    /** {@inheritDoc} */
+    public void deleteContext(@Nonnull @NotEmpty final String context) throws IOException {
+        storageService.deleteContext(context);
+    }
+
+}
@@ -0,0 +1,504 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.json.stream.JsonGenerator;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * Interact with storage services via HTTP without holding a container thread for the duration of a storage operation.
+ * 
+ * The single record operations of {@link StorageServiceWrapperController} are available under '/async'. Each request
+ * is put into asynchronous mode and the storage operation runs on the bounded 'testbed.AsyncStorageExecutor'. Its
+ * response is captured in memory and then written with non-blocking I/O. A request is answered with
+ * '503 Service Unavailable' if the executor is saturated, and with '504 Gateway Timeout' if the storage operation does
+ * not complete within the timeout, 10 seconds by default or the 'testbed.storage.async.timeout' system property in
+ * milliseconds.
+ * 
+ * The storage servlet and the IdP filters in front of it are declared asynchronous in 'web-override.xml'. Requests
+ * which can still not be put into asynchronous mode, because another filter does not support it, run on the container
+ * thread as they would through {@link StorageServiceWrapperController}. They are logged once as a warning and counted
+ * as 'fallbacks' in the statistics of the storage service listing.
+ * 
+ * Examples follow.
+ * 
+ * <p>
+ * curl -X POST -dvalue=value 'http://localhost:8080/idp/storage/async/create/shibboleth.StorageService/context/key'
+ * <p>
+ * curl 'http://localhost:8080/idp/storage/async/read/shibboleth.StorageService/context/key'
+ * <p>
+ * curl -X PUT -H 'If-Match: "1"' 'http://localhost:8080/idp/storage/async/update/shibboleth.StorageService/context/key?value=value2'
+ * <p>
+ * curl -X PATCH 'http://localhost:8080/idp/storage/async/update/shibboleth.StorageService/context/key?expiration=1500000000000'
+ * <p>
+ * curl -X DELETE 'http://localhost:8080/idp/storage/async/delete/shibboleth.StorageService/context/key'
+ * <p>
+ */
+@Controller
+public class AsyncStorageServiceWrapperController implements StatisticsReporter {
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(AsyncStorageServiceWrapperController.class);
+
+    /** Size of the chunks the response body is written in. */
+    private static final int CHUNK_SIZE = 8192;
+
+    /** Performs the storage operations. */
+    @Autowired private StorageServiceWrapperController storageServiceWrapperController;
+
+    /** Runs the storage operations off the container threads. */
+    @Autowired @Qualifier("testbed.AsyncStorageExecutor") private ExecutorService executor;
+
+    /** Time in milliseconds after which a request is answered with '504 Gateway Timeout'. */
+    @Value("#{systemProperties['testbed.storage.async.timeout'] ?: 10000}") private long timeout;
+
+    /** Number of requests put into asynchronous mode. */
+    @Nonnull private final AtomicLong asynchronous = new AtomicLong();
+
+    /** Number of requests run on the container thread because they do not support asynchronous mode. */
+    @Nonnull private final AtomicLong fallbacks = new AtomicLong();
+
+    /** Number of requests answered with '503 Service Unavailable'. */
+    @Nonnull private final AtomicLong rejected = new AtomicLong();
+
+    /** Number of requests answered with '504 Gateway Timeout'. */
+    @Nonnull private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * A storage operation writing its outcome to a response.
+     */
+    private interface StorageTask {
+
+        /**
+         * Perform the storage operation.
+         * 
+         * @param servletResponse the response to write to
+         * @throws IOException if the response can not be written
+         */
+        void run(@Nonnull final HttpServletResponse servletResponse) throws IOException;
+    }
+
+    /** {@inheritDoc} */
+    public void writeStatistics(@Nonnull final JsonGenerator gen, @Nonnull final String name) {
+        gen.writeStartObject(name);
+        gen.write("asynchronous", asynchronous.get());
+        gen.write("fallbacks", fallbacks.get());
+        gen.write("rejected", rejected.get());
+        gen.write("timeouts", timeouts.get());
+        gen.writeEnd();
+    }
+
+    /**
+     * Write a response entity to a response.
+     * 
+     * @param responseEntity the response entity
+     * @param servletResponse the response to write to
+     * @throws IOException if the response can not be written
+     */
+    private static void writeResponseEntity(@Nonnull final ResponseEntity<String> responseEntity,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        servletResponse.setStatus(responseEntity.getStatusCode().value());
+        for (final Map.Entry<String, List<String>> header : responseEntity.getHeaders().entrySet()) {
+            for (final String value : header.getValue()) {
+                servletResponse.addHeader(header.getKey(), value);
+            }
+        }
+        if (responseEntity.getBody() != null) {
+            servletResponse.setContentType(MediaType.TEXT_PLAIN_VALUE);
+            servletResponse.getWriter().write(responseEntity.getBody());
+        }
+    }
+
+    /**
+     * Run a storage operation on the executor and write its response asynchronously, or run it on the calling thread
+     * if the request does not support asynchronous mode.
+     * 
+     * @param servletRequest the servlet request
+     * @param servletResponse the servlet response
+     * @param task the storage operation
+     * @throws IOException if the response can not be written
+     */
+    private void execute(@Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse, @Nonnull final StorageTask task) throws IOException {
+        if (!servletRequest.isAsyncSupported()) {
+            if (fallbacks.getAndIncrement() == 0) {
+                log.warn("Request does not support asynchronous mode, a filter in front of the storage servlet is not "
+                        + "declared async-supported, running on the container thread");
+            } else {
+                log.debug("Request does not support asynchronous mode, running on the container thread");
+            }
+            task.run(servletResponse);
+            return;
+        }
+
+        asynchronous.incrementAndGet();
+        final AsyncContext asyncContext = servletRequest.startAsync();
+        asyncContext.setTimeout(timeout);
+
+        // Whoever sets this first, the storage operation or the container timing out, writes the response.
+        final AtomicBoolean responded = new AtomicBoolean();
+
+        asyncContext.addListener(new AsyncListener() {
+            public void onTimeout(final AsyncEvent event) throws IOException {
+                if (responded.compareAndSet(false, true)) {
+                    timeouts.incrementAndGet();
+                    log.debug("Storage operation did not complete within {} ms", timeout);
+                    respond(asyncContext, HttpStatus.GATEWAY_TIMEOUT);
+                }
+            }
+
+            public void onError(final AsyncEvent event) {
+                if (responded.compareAndSet(false, true)) {
+                    log.debug("An error occurred", event.getThrowable());
+                    asyncContext.complete();
+                }
+            }
+
+            public void onComplete(final AsyncEvent event) {
+            }
+
+            public void onStartAsync(final AsyncEvent event) {
+            }
+        });
+
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    final BufferedHttpServletResponse bufferedResponse =
+                            new BufferedHttpServletResponse(servletResponse);
+                    boolean success = false;
+                    try {
+                        task.run(bufferedResponse);
+                        success = true;
+                    } catch (IOException | RuntimeException e) {
+                        log.debug("An error occurred", e);
+                    }
+                    if (!responded.compareAndSet(false, true)) {
+                        log.debug("Discarding the response of a storage operation which timed out");
+                    } else if (success) {
+                        write(asyncContext, bufferedResponse);
+                    } else {
+                        respond(asyncContext, HttpStatus.INTERNAL_SERVER_ERROR);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (responded.compareAndSet(false, true)) {
+                rejected.incrementAndGet();
+                log.debug("Storage executor is saturated");
+                respond(asyncContext, HttpStatus.SERVICE_UNAVAILABLE);
+            }
+        }
+    }
+
+    /**
+     * Asynchronously write a response without a serialized record.
+     * 
+     * @param asyncContext the asynchronous context of the request
+     * @param status the response status
+     */
+    private void respond(@Nonnull final AsyncContext asyncContext, @Nonnull final HttpStatus status) {
+        final BufferedHttpServletResponse bufferedResponse =
+                new BufferedHttpServletResponse((HttpServletResponse) asyncContext.getResponse());
+        try {
+            StorageServiceWrapperController.writeSeleniumFriendlyResponse(bufferedResponse, status);
+        } catch (IOException e) {
+            // Not thrown by a buffered response.
+            throw new IllegalStateException(e);
+        }
+        write(asyncContext, bufferedResponse);
+    }
+
+    /**
+     * Asynchronously write a captured response with non-blocking I/O, then complete the request.
+     * 
+     * @param asyncContext the asynchronous context of the request
+     * @param bufferedResponse the captured response
+     */
+    private void write(@Nonnull final AsyncContext asyncContext,
+            @Nonnull final BufferedHttpServletResponse bufferedResponse) {
+        final HttpServletResponse servletResponse = (HttpServletResponse) asyncContext.getResponse();
+        final byte[] body = bufferedResponse.replay(servletResponse);
+        if (body.length == 0) {
+            asyncContext.complete();
+            return;
+        }
+
+        try {
+            final ServletOutputStream outputStream = servletResponse.getOutputStream();
+            outputStream.setWriteListener(new WriteListener() {
+
+                /** Number of bytes of the body written so far. */
+                private int written;
+
+                public void onWritePossible() throws IOException {
+                    // The container calls back once the stream is ready again.
+                    while (outputStream.isReady()) {
+                        if (written == body.length) {
+                            asyncContext.complete();
+                            return;
+                        }
+                        final int length = Math.min(CHUNK_SIZE, body.length - written);
+                        outputStream.write(body, written, length);
+                        written += length;
+                    }
+                }
+
+                public void onError(final Throwable t) {
+                    log.debug("Unable to write response", t);
+                    asyncContext.complete();
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            log.debug("Unable to write response", e);
+            asyncContext.complete();
+        }
+    }
+
+    @RequestMapping(
+            value = "/async/create/{storageServiceId}/{context}/{key}",
+            method = RequestMethod.POST)
+    public void createFromPathVariables(
+            @PathVariable @Nonnull final String storageServiceId,
+            @PathVariable @Nonnull final String context,
+            @PathVariable @Nonnull final String key,
+            @RequestParam @Nonnull final String value,
+            @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        create(storageServiceId, context, key, value, servletRequest, servletResponse);
+    }
+
+    @RequestMapping(
+            value = "/async/create",
+            method = RequestMethod.POST)
+    public void createFromRequestParams(
+            @RequestParam @Nonnull final String storageServiceId,
+            @RequestParam @Nonnull final String context,
+            @RequestParam @Nonnull final String key,
+            @RequestParam @Nonnull final String value,
+            @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        create(storageServiceId, context, key, value, servletRequest, servletResponse);
+    }
+
+    private void create(@Nonnull final String storageServiceId, @Nonnull final String context,
+            @Nonnull final String key, @Nonnull final String value, @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        execute(servletRequest, servletResponse, new StorageTask() {
+            public void run(final HttpServletResponse response) throws IOException {
+                writeResponseEntity(storageServiceWrapperController.create(storageServiceId, context, key, value),
+                        response);
+            }
+        });
+    }
+
+    @RequestMapping(
+            value = "/async/read/{storageServiceId}/{context}/{key}",
+            method = RequestMethod.GET,
+            produces = {"application/json", "application/octet-stream"})
+    public void readFromPathVariables(
+            @PathVariable @Nonnull final String storageServiceId,
+            @PathVariable @Nonnull final String context,
+            @PathVariable @Nonnull final String key,
+            @RequestParam(required = false, defaultValue = "true") final boolean pretty,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) @Nullable final String ifNoneMatch,
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) @Nullable final String accept,
+            @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        read(storageServiceId, context, key, ifNoneMatch, accept, pretty, servletRequest, servletResponse);
+    }
+
+    @RequestMapping(
+            value = "/async/read",
+            method = RequestMethod.GET,
+            produces = {"application/json", "application/octet-stream"})
+    public void readFromRequestParams(
+            @RequestParam @Nonnull final String storageServiceId,
+            @RequestParam @Nonnull final String context,
+            @RequestParam @Nonnull final String key,
+            @RequestParam(required = false, defaultValue = "true") final boolean pretty,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) @Nullable final String ifNoneMatch,
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) @Nullable final String accept,
+            @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        read(storageServiceId, context, key, ifNoneMatch, accept, pretty, servletRequest, servletResponse);
+    }
+
+    private void read(@Nonnull final String storageServiceId, @Nonnull final String context,
+            @Nonnull final String key, @Nullable final String ifNoneMatch, @Nullable final String accept,
+            final boolean pretty, @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        execute(servletRequest, servletResponse, new StorageTask() {
+            public void run(final HttpServletResponse response) throws IOException {
+                storageServiceWrapperController.read(storageServiceId, context, key, ifNoneMatch, accept, pretty,
+                        response);
+            }
+        });
+    }
+
+    @RequestMapping(
+            value = "/async/update/{storageServiceId}/{context}/{key}",
+            method = {RequestMethod.PUT, RequestMethod.POST})
+    public void updateFromPathVariables(
+            @PathVariable @Nonnull final String storageServiceId,
+            @PathVariable @Nonnull final String context,
+            @PathVariable @Nonnull final String key,
+            @RequestParam @Nonnull final String value,
+            @RequestParam(required = false) @Nullable final Long expiration,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) @Nullable final String ifMatch,
+            @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        update(storageServiceId, context, key, value, expiration, ifMatch, servletRequest, servletResponse);
+    }
+
+    @RequestMapping(
+            value = "/async/update",
+            method = {RequestMethod.PUT, RequestMethod.POST})
+    public void updateFromRequestParams(
+            @RequestParam @Nonnull final String storageServiceId,
+            @RequestParam @Nonnull final String context,
+            @RequestParam @Nonnull final String key,
+            @RequestParam @Nonnull final String value,
+            @RequestParam(required = false) @Nullable final Long expiration,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) @Nullable final String ifMatch,
+            @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        update(storageServiceId, context, key, value, expiration, ifMatch, servletRequest, servletResponse);
+    }
+
+    private void update(@Nonnull final String storageServiceId, @Nonnull final String context,
+            @Nonnull final String key, @Nonnull final String value, @Nullable final Long expiration,
+            @Nullable final String ifMatch, @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        execute(servletRequest, servletResponse, new StorageTask() {
+            public void run(final HttpServletResponse response) throws IOException {
+                writeResponseEntity(storageServiceWrapperController.update(storageServiceId, context, key, value,
+                        expiration, ifMatch), response);
+            }
+        });
+    }
+
+    @RequestMapping(
+            value = "/async/update/{storageServiceId}/{context}/{key}",
+            method = RequestMethod.PATCH)
+    public void updateExpirationFromPathVariables(
+            @PathVariable @Nonnull final String storageServiceId,
+            @PathVariable @Nonnull final String context,
+            @PathVariable @Nonnull final String key,
+            @RequestParam(required = false) @Nullable final Long expiration,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) @Nullable final String ifMatch,
+            @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        updateExpiration(storageServiceId, context, key, expiration, ifMatch, servletRequest, servletResponse);
+    }
+
+    @RequestMapping(
+            value = "/async/update",
+            method = RequestMethod.PATCH)
+    public void updateExpirationFromRequestParams(
+            @RequestParam @Nonnull final String storageServiceId,
+            @RequestParam @Nonnull final String context,
+            @RequestParam @Nonnull final String key,
+            @RequestParam(required = false) @Nullable final Long expiration,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) @Nullable final String ifMatch,
+            @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        updateExpiration(storageServiceId, context, key, expiration, ifMatch, servletRequest, servletResponse);
+    }
+
+    private void updateExpiration(@Nonnull final String storageServiceId, @Nonnull final String context,
+            @Nonnull final String key, @Nullable final Long expiration, @Nullable final String ifMatch,
+            @Nonnull final HttpServletRequest servletRequest, @Nonnull final HttpServletResponse servletResponse)
+                    throws IOException {
+        execute(servletRequest, servletResponse, new StorageTask() {
+            public void run(final HttpServletResponse response) throws IOException {
+                writeResponseEntity(storageServiceWrapperController.updateExpiration(storageServiceId, context, key,
+                        expiration, ifMatch), response);
+            }
+        });
+    }
+
+    @RequestMapping(
+            value = "/async/delete/{storageServiceId}/{context}/{key}",
+            method = RequestMethod.DELETE)
+    public void deleteFromPathVariables(
+            @PathVariable @Nonnull final String storageServiceId,
+            @PathVariable @Nonnull final String context,
+            @PathVariable @Nonnull final String key,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) @Nullable final String ifMatch,
+            @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        delete(storageServiceId, context, key, ifMatch, servletRequest, servletResponse);
+    }
+
+    @RequestMapping(
+            value = "/async/delete",
+            method = RequestMethod.DELETE)
+    public void deleteFromRequestParams(
+            @RequestParam @Nonnull final String storageServiceId,
+            @RequestParam @Nonnull final String context,
+            @RequestParam @Nonnull final String key,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) @Nullable final String ifMatch,
+            @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        delete(storageServiceId, context, key, ifMatch, servletRequest, servletResponse);
+    }
+
+    private void delete(@Nonnull final String storageServiceId, @Nonnull final String context,
+            @Nonnull final String key, @Nullable final String ifMatch, @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        execute(servletRequest, servletResponse, new StorageTask() {
+            public void run(final HttpServletResponse response) throws IOException {
+                writeResponseEntity(storageServiceWrapperController.delete(storageServiceId, context, key, ifMatch),
+                        response);
+            }
+        });
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.storage.StorageService;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+
+/**
+ * A {@link StorageService} able to change a record based on its current value in a single operation.
+ * 
+ * Storage services which do not implement this interface can be used through {@link AtomicStorageSupport}, which
+ * falls back to a loop of reads and versioned writes.
+ */
+public interface AtomicStorageService extends StorageService {
+
+    /**
+     * Add to a counter, a record whose value is a decimal number.
+     * 
+     * If the counter does not exist or has expired, it is created with the delta as value and the given expiration.
+     * Otherwise its expiration is left unchanged, so that a counter covers a fixed window from its first increment.
+     * 
+     * @param context record context
+     * @param key record key
+     * @param delta the number to add, which may be negative
+     * @param expiration expiration of a new counter, or null if it should not expire
+     * @return the value of the counter after the increment
+     * @throws IOException if the counter can not be changed
+     * @throws NumberFormatException if the record exists and its value is not a decimal number
+     * @throws ArithmeticException if the increment would overflow the counter
+     */
+    long increment(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key, final long delta,
+            @Nullable @Positive final Long expiration) throws IOException;
+
+    /**
+     * Replace the value and expiration of a record if its value is the expected one, or create the record if it is
+     * expected not to exist.
+     * 
+     * @param context record context
+     * @param key record key
+     * @param expectedValue the expected value, or null if the record is expected not to exist
+     * @param value the new value
+     * @param expiration the new expiration, or null if the record should not expire
+     * @return the new version of the record, or null if its value was not the expected one
+     * @throws IOException if the record can not be changed
+     */
+    @Nullable Long compareAndSet(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nullable final String expectedValue, @Nonnull @NotEmpty final String value,
+            @Nullable @Positive final Long expiration) throws IOException;
+
+}
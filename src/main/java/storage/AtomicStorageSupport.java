@@ -0,0 +1,177 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
+import org.opensaml.storage.VersionMismatchException;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+
+import storage.StorageServiceMetrics.Operation;
+
+/**
+ * Performs the operations of {@link AtomicStorageService} on any storage service.
+ * 
+ * A storage service implementing {@link AtomicStorageService} performs them itself. Any other storage service is
+ * driven through a loop reading the record and writing it back with a versioned update, which is retried whenever
+ * another writer changed the record in between, up to {@link #MAX_ATTEMPTS} times.
+ */
+public final class AtomicStorageSupport {
+
+    /** Largest number of attempts of an operation on a storage service which is not atomic. */
+    public static final int MAX_ATTEMPTS = 32;
+
+    /** Constructor. */
+    private AtomicStorageSupport() {
+    }
+
+    /**
+     * Add to a counter.
+     * 
+     * @param storageService the storage service
+     * @param context record context
+     * @param key record key
+     * @param delta the number to add, which may be negative
+     * @param expiration expiration of a new counter, or null if it should not expire
+     * @param metrics the metrics to record retries to, or null
+     * @return the value of the counter after the increment
+     * @throws IOException if the counter can not be changed, including after too many retries
+     * @throws NumberFormatException if the record exists and its value is not a decimal number
+     * @throws ArithmeticException if the increment would overflow the counter
+     * @see AtomicStorageService#increment(String, String, long, Long)
+     */
+    public static long increment(@Nonnull final StorageService storageService, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, final long delta, @Nullable @Positive final Long expiration,
+            @Nullable final StorageServiceMetrics metrics) throws IOException {
+        if (storageService instanceof AtomicStorageService) {
+            return ((AtomicStorageService) storageService).increment(context, key, delta, expiration);
+        }
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            final StorageRecord record = storageService.read(context, key);
+            if (record == null) {
+                if (storageService.create(context, key, Long.toString(delta), expiration)) {
+                    recordRetries(metrics, Operation.INCREMENT, attempt);
+                    return delta;
+                }
+                continue;
+            }
+
+            final long value = add(Long.parseLong(record.getValue()), delta);
+            try {
+                if (storageService.updateWithVersion(record.getVersion(), context, key, Long.toString(value),
+                        record.getExpiration()) != null) {
+                    recordRetries(metrics, Operation.INCREMENT, attempt);
+                    return value;
+                }
+                // Deleted or expired since it was read, so it will be created.
+            } catch (final VersionMismatchException e) {
+                // Changed since it was read.
+            }
+        }
+        recordRetries(metrics, Operation.INCREMENT, MAX_ATTEMPTS);
+        throw new IOException("Unable to increment '" + key + "' in context '" + context + "' after "
+                + MAX_ATTEMPTS + " attempts");
+    }
+
+    /**
+     * Replace the value and expiration of a record if its value is the expected one, or create the record if it is
+     * expected not to exist.
+     * 
+     * @param storageService the storage service
+     * @param context record context
+     * @param key record key
+     * @param expectedValue the expected value, or null if the record is expected not to exist
+     * @param value the new value
+     * @param expiration the new expiration, or null if the record should not expire
+     * @param metrics the metrics to record retries to, or null
+     * @return the new version of the record, or null if its value was not the expected one
+     * @throws IOException if the record can not be changed, including after too many retries
+     * @see AtomicStorageService#compareAndSet(String, String, String, String, Long)
+     */
+    @Nullable public static Long compareAndSet(@Nonnull final StorageService storageService,
+            @Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nullable final String expectedValue, @Nonnull @NotEmpty final String value,
+            @Nullable @Positive final Long expiration, @Nullable final StorageServiceMetrics metrics)
+                    throws IOException {
+        if (storageService instanceof AtomicStorageService) {
+            return ((AtomicStorageService) storageService).compareAndSet(context, key, expectedValue, value,
+                    expiration);
+        } else if (expectedValue == null) {
+            return storageService.create(context, key, value, expiration) ? Long.valueOf(1) : null;
+        }
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            final StorageRecord record = storageService.read(context, key);
+            if (record == null || !expectedValue.equals(record.getValue())) {
+                recordRetries(metrics, Operation.COMPARE_AND_SET, attempt);
+                return null;
+            }
+
+            try {
+                final Long version =
+                        storageService.updateWithVersion(record.getVersion(), context, key, value, expiration);
+                recordRetries(metrics, Operation.COMPARE_AND_SET, attempt);
+                return version;
+            } catch (final VersionMismatchException e) {
+                // Changed since it was read, possibly back to the expected value.
+            }
+        }
+        recordRetries(metrics, Operation.COMPARE_AND_SET, MAX_ATTEMPTS);
+        throw new IOException("Unable to compare and set '" + key + "' in context '" + context + "' after "
+                + MAX_ATTEMPTS + " attempts");
+    }
+
+    /**
+     * Add a delta to the value of a counter, failing rather than wrapping around on overflow.
+     * 
+     * @param value the value of the counter
+     * @param delta the number to add, which may be negative
+     * @return the sum
+     * @throws ArithmeticException if the sum overflows a long
+     */
+    public static long add(final long value, final long delta) {
+        final long sum = value + delta;
+        // Overflow if both operands have the sign opposite to the sum, as in Math.addExact of Java 8.
+        if (((value ^ sum) & (delta ^ sum)) < 0) {
+            throw new ArithmeticException("Counter overflow adding " + delta + " to " + value);
+        }
+        return sum;
+    }
+
+    /**
+     * Record the retries of an operation.
+     * 
+     * @param metrics the metrics to record to, or null
+     * @param operation the operation
+     * @param retries the number of retries
+     */
+    private static void recordRetries(@Nullable final StorageServiceMetrics metrics,
+            @Nonnull final Operation operation, final int retries) {
+        if (metrics != null && retries > 0) {
+            metrics.recordRetries(operation, retries);
+        }
+    }
+}
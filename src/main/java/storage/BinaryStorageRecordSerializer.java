@@ -0,0 +1,197 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.storage.StorageRecord;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.codec.Base64Support;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+
+/**
+ * A compact binary {@link StorageRecord} serializer.
+ * 
+ * A record is written as the unsigned variable length encoding of its version, of its expiration plus one (zero
+ * meaning no expiration) and of the length of its UTF-8 encoded value, followed by the value bytes.
+ * 
+ * The {@link String} form required by {@link org.opensaml.storage.StorageSerializer} is the base64 encoding of the
+ * binary form.
+ */
+public class BinaryStorageRecordSerializer extends AbstractInitializableComponent
+        implements StreamingStorageRecordSerializer {
+
+    /** Media type of the serialized form. */
+    @Nonnull @NotEmpty public static final String CONTENT_TYPE = "application/octet-stream";
+
+    /** The maximum number of bytes of an unsigned variable length long. */
+    public static final int MAX_VARLONG_LENGTH = 10;
+
+    /** {@inheritDoc} */
+    @Nonnull @NotEmpty public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull public String serialize(@Nonnull final StorageRecord instance) throws IOException {
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream(16 + instance.getValue().length());
+        serialize(instance, sink);
+        return Base64Support.encode(sink.toByteArray(), Base64Support.UNCHUNKED);
+    }
+
+    /** {@inheritDoc} */
+    public void serialize(@Nonnull final StorageRecord instance, @Nonnull final OutputStream out)
+            throws IOException {
+        final byte[] value = instance.getValue().getBytes(StandardCharsets.UTF_8);
+        final Long expiration = instance.getExpiration();
+
+        final byte[] header = new byte[3 * MAX_VARLONG_LENGTH];
+        int pos = writeVarLong(instance.getVersion(), header, 0);
+        pos = writeVarLong(expiration != null ? expiration + 1 : 0, header, pos);
+        pos = writeVarLong(value.length, header, pos);
+
+        out.write(header, 0, pos);
+        out.write(value);
+        out.flush();
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull public StorageRecord deserialize(final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nonnull @NotEmpty final String value,
+            @Nullable final Long expiration) throws IOException {
+        return new VersionableStorageRecord(value, expiration, version);
+    }
+
+    /**
+     * Returns an object recovered from the context, key, and string produced through the
+     * {@link #serialize(StorageRecord)} method.
+     * 
+     * @param context storage record context
+     * @param key storage record key
+     * @param serialized serialized storage record
+     * @return a deserialized object
+     * @throws IOException if an error occurs
+     */
+    @Nonnull public StorageRecord deserialize(@Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nonnull final String serialized) throws IOException {
+        final byte[] decoded = Base64Support.decode(serialized);
+        if (decoded == null) {
+            throw new IOException("Found invalid base64 data");
+        }
+        return deserialize(context, key, new ByteArrayInputStream(decoded));
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull public StorageRecord deserialize(@Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nonnull final InputStream in) throws IOException {
+        final long version = readVarLong(in);
+        final long encodedExpiration = readVarLong(in);
+        final long length = readVarLong(in);
+        if (version <= 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Found invalid record header");
+        }
+
+        final byte[] value = new byte[(int) length];
+        int read = 0;
+        while (read < value.length) {
+            final int n = in.read(value, read, value.length - read);
+            if (n < 0) {
+                throw new EOFException("Truncated record value");
+            }
+            read += n;
+        }
+
+        final Long expiration = encodedExpiration == 0 ? null : Long.valueOf(encodedExpiration - 1);
+        return deserialize(version, context, key, new String(value, StandardCharsets.UTF_8), expiration);
+    }
+
+    /**
+     * Write the unsigned variable length encoding of a long, seven bits per byte, least significant group first.
+     * 
+     * @param value the value
+     * @param buffer the destination
+     * @param offset the position to write at
+     * @return the position after the last byte written
+     */
+    public static int writeVarLong(final long value, @Nonnull final byte[] buffer, final int offset) {
+        long remaining = value;
+        int pos = offset;
+        while ((remaining & ~0x7FL) != 0) {
+            buffer[pos++] = (byte) ((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        buffer[pos++] = (byte) remaining;
+        return pos;
+    }
+
+    /**
+     * Read an unsigned variable length long written by {@link #writeVarLong(long, byte[], int)}.
+     * 
+     * @param in the stream
+     * @return the value
+     * @throws IOException if the stream ends or the encoding is too long
+     */
+    public static long readVarLong(@Nonnull final InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated variable length value");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Variable length value is too long");
+    }
+
+    /**
+     * Read an unsigned variable length long written by {@link #writeVarLong(long, byte[], int)} from a buffer.
+     * 
+     * @param buffer the buffer
+     * @return the value
+     * @throws IOException if the buffer ends or the encoding is too long
+     */
+    public static long readVarLong(@Nonnull final ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new EOFException("Truncated variable length value");
+            }
+            final int b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Variable length value is too long");
+    }
+
+}
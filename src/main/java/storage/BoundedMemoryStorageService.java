@@ -0,0 +1,1026 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.json.stream.JsonGenerator;
+
+import org.opensaml.storage.AbstractStorageService;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.VersionMismatchException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.collection.Pair;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * In-memory {@link org.opensaml.storage.StorageService} holding at most a fixed number of bytes, with optional
+ * per-context quotas.
+ * 
+ * The size of each record is estimated from the characters of its key and value plus {@link #RECORD_OVERHEAD}. When
+ * a write would exceed the quota of its context, the least recently used records of that context are evicted; when it
+ * would exceed the total budget, the least recently used records of any context are evicted. A runaway context can
+ * therefore only displace records, never exhaust the heap. A record larger than its quota is refused with an
+ * {@link IOException}.
+ * 
+ * Records are held in parallel primitive arrays indexed by slot, chained into a least recently used list of every
+ * record and one of each context, and sizes are accounted in primitive arrays indexed by context rather than in an
+ * object per record. A single lock guards all state, since reads also reorder the lists, and makes counter increments
+ * and compare-and-set of values native. The cleanup task sweeps the slots for expired records in chunks, releasing the
+ * lock in between, so storage operations wait for at most one chunk rather than a sweep of every record.
+ * 
+ * Evictions, in total, to honor context quotas and for each of the largest contexts, are reported as statistics.
+ */
+public class BoundedMemoryStorageService extends AbstractStorageService
+        implements EnumerableStorageService, AtomicStorageService, StatisticsReporter {
+
+    /** Estimated size in bytes of a record besides the characters of its key and value. */
+    public static final int RECORD_OVERHEAD = 192;
+
+    /** No slot, the end of a list. */
+    private static final int NONE = -1;
+
+    /** Initial number of record slots. */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Number of keys fetched at a time while enumerating a context. */
+    private static final int KEY_CHUNK_SIZE = 256;
+
+    /** Number of slots swept for expired records at a time by the cleanup task, which releases the lock in between. */
+    private static final int CLEANUP_CHUNK_SIZE = 4096;
+
+    /** Number of contexts listed in the statistics. */
+    private static final int LARGEST_CONTEXTS = 10;
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(BoundedMemoryStorageService.class);
+
+    /** Guards all state. */
+    @Nonnull private final ReentrantLock lock = new ReentrantLock();
+
+    /** Total budget in bytes. */
+    @Positive private long maxBytes;
+
+    /** Quota in bytes of contexts without an explicit quota, 0 for the total budget. */
+    @NonNegative private long defaultContextQuota;
+
+    /** Explicit quotas in bytes by context. */
+    @Nonnull private Map<String, Long> contextQuotas;
+
+    /** Contexts by name. */
+    @Nullable private Map<String, Context> contexts;
+
+    /** Key of each record slot, null if the slot is free. */
+    @Nullable private String[] slotKeys;
+
+    /** Value of each record slot. */
+    @Nullable private String[] slotValues;
+
+    /** Version of each record slot. */
+    @Nullable private long[] slotVersions;
+
+    /** Expiration of each record slot, 0 if none. */
+    @Nullable private long[] slotExpirations;
+
+    /** Estimated size of each record slot. */
+    @Nullable private int[] slotSizes;
+
+    /** Context index of each record slot. */
+    @Nullable private int[] slotContexts;
+
+    /** Previous (more recently used) slot in the list of every record. */
+    @Nullable private int[] previous;
+
+    /** Next (less recently used) slot in the list of every record, or next free slot. */
+    @Nullable private int[] next;
+
+    /** Previous (more recently used) slot in the list of the records of the same context. */
+    @Nullable private int[] contextPrevious;
+
+    /** Next (less recently used) slot in the list of the records of the same context. */
+    @Nullable private int[] contextNext;
+
+    /** Number of slots ever used. */
+    private int slotCount;
+
+    /** Head of the list of free slots. */
+    private int freeSlot;
+
+    /** Most recently used slot. */
+    private int head;
+
+    /** Least recently used slot. */
+    private int tail;
+
+    /** Context of each context index, null if the index is free. */
+    @Nullable private Context[] contextTable;
+
+    /** Estimated size of the records of each context. */
+    @Nullable private long[] contextBytes;
+
+    /** Quota of each context. */
+    @Nullable private long[] contextQuotaBytes;
+
+    /** Number of records of each context. */
+    @Nullable private int[] contextRecords;
+
+    /** Number of records evicted from each context. */
+    @Nullable private long[] contextEvictions;
+
+    /** Most recently used slot of each context. */
+    @Nullable private int[] contextHeads;
+
+    /** Least recently used slot of each context, or next free context index. */
+    @Nullable private int[] contextTails;
+
+    /** Number of context indexes ever used. */
+    private int contextCount;
+
+    /** Head of the list of free context indexes. */
+    private int freeContext;
+
+    /** Estimated size of all records. */
+    private long bytes;
+
+    /** Number of records. */
+    private int records;
+
+    /** Number of records evicted. */
+    private long evictions;
+
+    /** Number of records evicted to honor a context quota. */
+    private long quotaEvictions;
+
+    /** Number of expired records removed. */
+    private long expirations;
+
+    /** Constructor. */
+    public BoundedMemoryStorageService() {
+        maxBytes = 64 * 1024 * 1024;
+        contextQuotas = Collections.emptyMap();
+    }
+
+    /**
+     * Get the total budget in bytes.
+     * 
+     * @return the total budget
+     */
+    @Positive public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Set the total budget in bytes.
+     * 
+     * @param max the total budget
+     */
+    public void setMaxBytes(@Positive final long max) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxBytes = Constraint.isGreaterThan(RECORD_OVERHEAD, max, "Budget must be greater than " + RECORD_OVERHEAD);
+    }
+
+    /**
+     * Get the quota in bytes of contexts without an explicit quota.
+     * 
+     * @return the default quota, 0 for the total budget
+     */
+    @NonNegative public long getDefaultContextQuota() {
+        return defaultContextQuota;
+    }
+
+    /**
+     * Set the quota in bytes of contexts without an explicit quota.
+     * 
+     * @param quota the default quota, 0 for the total budget
+     */
+    public void setDefaultContextQuota(@NonNegative final long quota) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        defaultContextQuota = Constraint.isGreaterThanOrEqual(0, quota, "Quota must be greater than or equal to 0");
+    }
+
+    /**
+     * Get the explicit quotas in bytes by context.
+     * 
+     * @return the explicit quotas
+     */
+    @Nonnull public Map<String, Long> getContextQuotas() {
+        return contextQuotas;
+    }
+
+    /**
+     * Set explicit quotas in bytes by context.
+     * 
+     * @param quotas the explicit quotas
+     */
+    public void setContextQuotas(@Nonnull final Map<String, Long> quotas) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        Constraint.isNotNull(quotas, "Context quotas cannot be null");
+        for (final Map.Entry<String, Long> quota : quotas.entrySet()) {
+            Constraint.isGreaterThan(0, quota.getValue(), "Quota of context '" + quota.getKey()
+                    + "' must be greater than 0");
+        }
+        contextQuotas = new HashMap<>(quotas);
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        contexts = new HashMap<>();
+        slotKeys = new String[INITIAL_CAPACITY];
+        slotValues = new String[INITIAL_CAPACITY];
+        slotVersions = new long[INITIAL_CAPACITY];
+        slotExpirations = new long[INITIAL_CAPACITY];
+        slotSizes = new int[INITIAL_CAPACITY];
+        slotContexts = new int[INITIAL_CAPACITY];
+        previous = new int[INITIAL_CAPACITY];
+        next = new int[INITIAL_CAPACITY];
+        contextPrevious = new int[INITIAL_CAPACITY];
+        contextNext = new int[INITIAL_CAPACITY];
+        contextTable = new Context[16];
+        contextBytes = new long[16];
+        contextQuotaBytes = new long[16];
+        contextRecords = new int[16];
+        contextEvictions = new long[16];
+        contextHeads = new int[16];
+        contextTails = new int[16];
+        head = NONE;
+        tail = NONE;
+        freeSlot = NONE;
+        freeContext = NONE;
+        super.doInitialize();
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doDestroy() {
+        super.doDestroy();
+        lock.lock();
+        try {
+            contexts = null;
+            slotKeys = null;
+            slotValues = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override @Nullable protected TimerTask getCleanupTask() {
+        return new TimerTask() {
+            @Override public void run() {
+                final long now = System.currentTimeMillis();
+                int removed = 0;
+                int from = 0;
+                while (true) {
+                    lock.lock();
+                    try {
+                        if (slotKeys == null || from >= slotCount) {
+                            break;
+                        }
+                        final int to = Math.min(from + CLEANUP_CHUNK_SIZE, slotCount);
+                        removed += removeExpired(from, to, now);
+                        from = to;
+                    } finally {
+                        lock.unlock();
+                    }
+                    // Let the storage operations waiting for the lock through before the next chunk.
+                    Thread.yield();
+                }
+                if (removed > 0) {
+                    log.debug("Storage service '{}' removed {} expired records", getId(), removed);
+                }
+            }
+        };
+    }
+
+    /** {@inheritDoc} */
+    public boolean create(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        final int size = estimateSize(key, value);
+        lock.lock();
+        try {
+            final long now = System.currentTimeMillis();
+            if (find(context, key, now) != NONE) {
+                return false;
+            }
+
+            final long quota = getQuota(context);
+            if (size > quota) {
+                throw new IOException("Record of " + size + " bytes exceeds the " + quota
+                        + " byte quota of context '" + context + "'");
+            }
+
+            // Making room may release the context, so look it up again afterwards.
+            Context ctx = contexts.get(context);
+            if (ctx != null) {
+                evictFromContext(ctx.index, contextBytes[ctx.index] + size - quota, NONE);
+            }
+            evict(bytes + size - maxBytes, NONE);
+            ctx = contexts.get(context);
+            if (ctx == null) {
+                ctx = createContext(context, quota);
+            }
+
+            final int slot = allocateSlot();
+            slotKeys[slot] = key;
+            slotValues[slot] = value;
+            slotVersions[slot] = 1;
+            slotExpirations[slot] = expiration != null ? expiration : 0;
+            slotSizes[slot] = size;
+            slotContexts[slot] = ctx.index;
+            ctx.slots.put(key, slot);
+            link(slot);
+            bytes += size;
+            records++;
+            contextBytes[ctx.index] += size;
+            contextRecords[ctx.index]++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public StorageRecord read(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        lock.lock();
+        try {
+            final int slot = find(context, key, System.currentTimeMillis());
+            if (slot == NONE) {
+                return null;
+            }
+            touch(slot);
+            return toRecord(slot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull public Pair<Long, StorageRecord> read(@Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Positive final long version) throws IOException {
+        lock.lock();
+        try {
+            final int slot = find(context, key, System.currentTimeMillis());
+            if (slot == NONE) {
+                return new Pair<>();
+            }
+            touch(slot);
+            if (slotVersions[slot] == version) {
+                return new Pair<>(version, null);
+            }
+            return new Pair<>(slotVersions[slot], toRecord(slot));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean update(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        try {
+            return doUpdate(null, context, key, value, expiration) != null;
+        } catch (final VersionMismatchException e) {
+            throw new IllegalStateException("Unversioned update reported a version mismatch", e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public Long updateWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nonnull @NotEmpty final String value,
+            @Nullable @Positive final Long expiration) throws IOException, VersionMismatchException {
+        return doUpdate(version, context, key, value, expiration);
+    }
+
+    /** {@inheritDoc} */
+    public boolean updateExpiration(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nullable @Positive final Long expiration) throws IOException {
+        try {
+            return doUpdate(null, context, key, null, expiration) != null;
+        } catch (final VersionMismatchException e) {
+            throw new IllegalStateException("Unversioned update reported a version mismatch", e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean delete(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        try {
+            return doDelete(null, context, key);
+        } catch (final VersionMismatchException e) {
+            throw new IllegalStateException("Unversioned delete reported a version mismatch", e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean deleteWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key) throws IOException, VersionMismatchException {
+        return doDelete(version, context, key);
+    }
+
+    /** {@inheritDoc} */
+    public void reap(@Nonnull @NotEmpty final String context) throws IOException {
+        lock.lock();
+        try {
+            final Context ctx = contexts.get(context);
+            if (ctx == null) {
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            for (final Integer slot : new ArrayList<>(ctx.slots.values())) {
+                if (isExpired(slot, now)) {
+                    removeSlot(slot);
+                    expirations++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void updateContextExpiration(@Nonnull @NotEmpty final String context,
+            @Nullable @Positive final Long expiration) throws IOException {
+        lock.lock();
+        try {
+            final Context ctx = contexts.get(context);
+            if (ctx == null) {
+                return;
+            }
+            for (final Integer slot : ctx.slots.values()) {
+                slotExpirations[slot] = expiration != null ? expiration : 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void deleteContext(@Nonnull @NotEmpty final String context) throws IOException {
+        lock.lock();
+        try {
+            final Context ctx = contexts.get(context);
+            if (ctx == null) {
+                return;
+            }
+            for (final Integer slot : new ArrayList<>(ctx.slots.values())) {
+                removeSlot(slot);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public long increment(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            final long delta, @Nullable @Positive final Long expiration) throws IOException {
+        lock.lock();
+        try {
+            final int slot = find(context, key, System.currentTimeMillis());
+            if (slot == NONE) {
+                create(context, key, Long.toString(delta), expiration);
+                return delta;
+            }
+            final long value = AtomicStorageSupport.add(Long.parseLong(slotValues[slot]), delta);
+            doUpdate(null, context, key, Long.toString(value),
+                    slotExpirations[slot] != 0 ? slotExpirations[slot] : null);
+            return value;
+        } catch (final VersionMismatchException e) {
+            throw new IllegalStateException("Unversioned update reported a version mismatch", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public Long compareAndSet(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nullable final String expectedValue, @Nonnull @NotEmpty final String value,
+            @Nullable @Positive final Long expiration) throws IOException {
+        lock.lock();
+        try {
+            final int slot = find(context, key, System.currentTimeMillis());
+            if (slot == NONE) {
+                return expectedValue == null && create(context, key, value, expiration) ? Long.valueOf(1) : null;
+            } else if (!slotValues[slot].equals(expectedValue)) {
+                return null;
+            }
+            return doUpdate(null, context, key, value, expiration);
+        } catch (final VersionMismatchException e) {
+            throw new IllegalStateException("Unversioned update reported a version mismatch", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull public Iterator<String> keys(@Nonnull @NotEmpty final String context, @Nullable final String afterKey)
+            throws IOException {
+        return new ChunkedKeyIterator(afterKey, KEY_CHUNK_SIZE) {
+            @Nonnull protected List<String> fetch(@Nullable final String lastKey) {
+                return fetchKeys(context, lastKey);
+            }
+        };
+    }
+
+    /**
+     * Fetch the next chunk of unexpired keys of a context under the lock.
+     * 
+     * @param context record context
+     * @param lastKey the key to start after, or null to start at the first key
+     * @return at most {@link #KEY_CHUNK_SIZE} keys
+     */
+    @Nonnull private List<String> fetchKeys(@Nonnull final String context, @Nullable final String lastKey) {
+        final List<String> keys = new ArrayList<>(KEY_CHUNK_SIZE);
+        lock.lock();
+        try {
+            final Context ctx = contexts != null ? contexts.get(context) : null;
+            if (ctx != null) {
+                final long now = System.currentTimeMillis();
+                final Map<String, Integer> tailMap = lastKey != null ? ctx.slots.tailMap(lastKey, false) : ctx.slots;
+                for (final Map.Entry<String, Integer> mapEntry : tailMap.entrySet()) {
+                    if (keys.size() == KEY_CHUNK_SIZE) {
+                        break;
+                    } else if (!isExpired(mapEntry.getValue(), now)) {
+                        keys.add(mapEntry.getKey());
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return keys;
+    }
+
+    /** {@inheritDoc} */
+    public void writeStatistics(@Nonnull final JsonGenerator gen, @Nonnull final String name) {
+        lock.lock();
+        try {
+            gen.writeStartObject(name);
+            gen.write("records", records);
+            gen.write("bytes", bytes);
+            gen.write("maxBytes", maxBytes);
+            gen.write("contexts", contexts != null ? contexts.size() : 0);
+            gen.write("evictions", evictions);
+            gen.write("quotaEvictions", quotaEvictions);
+            gen.write("expirations", expirations);
+            gen.writeStartObject("largestContexts");
+            if (contexts != null) {
+                final List<Context> largest = new ArrayList<>(contexts.values());
+                Collections.sort(largest, new Comparator<Context>() {
+                    public int compare(final Context o1, final Context o2) {
+                        return Long.compare(contextBytes[o2.index], contextBytes[o1.index]);
+                    }
+                });
+                for (final Context ctx : largest.subList(0, Math.min(LARGEST_CONTEXTS, largest.size()))) {
+                    gen.writeStartObject(ctx.name);
+                    gen.write("records", contextRecords[ctx.index]);
+                    gen.write("bytes", contextBytes[ctx.index]);
+                    gen.write("quota", contextQuotaBytes[ctx.index]);
+                    gen.write("evictions", contextEvictions[ctx.index]);
+                    gen.writeEnd();
+                }
+            }
+            gen.writeEnd();
+            gen.writeEnd();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Update the value and expiration of a record, or only its expiration, optionally checking its version.
+     * 
+     * @param version the version to check, or null to skip the check
+     * @param context record context
+     * @param key record key
+     * @param value the new value, or null to only update the expiration
+     * @param expiration the new expiration or null if none
+     * @return the new version of the record, or null if the record does not exist
+     * @throws IOException if the new value exceeds the quota of the context
+     * @throws VersionMismatchException if the record has a different version
+     */
+    @Nullable private Long doUpdate(@Nullable final Long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nullable final String value, @Nullable final Long expiration)
+                    throws IOException, VersionMismatchException {
+        lock.lock();
+        try {
+            final int slot = find(context, key, System.currentTimeMillis());
+            if (slot == NONE) {
+                return null;
+            } else if (version != null && slotVersions[slot] != version) {
+                throw new VersionMismatchException();
+            }
+
+            touch(slot);
+            if (value != null) {
+                final int index = slotContexts[slot];
+                final int size = estimateSize(key, value);
+                if (size > contextQuotaBytes[index]) {
+                    throw new IOException("Record of " + size + " bytes exceeds the " + contextQuotaBytes[index]
+                            + " byte quota of context '" + context + "'");
+                }
+                final int growth = size - slotSizes[slot];
+                evictFromContext(index, contextBytes[index] + growth - contextQuotaBytes[index], slot);
+                evict(bytes + growth - maxBytes, slot);
+                slotValues[slot] = value;
+                slotSizes[slot] = size;
+                slotVersions[slot]++;
+                bytes += growth;
+                contextBytes[index] += growth;
+            }
+            slotExpirations[slot] = expiration != null ? expiration : 0;
+            return slotVersions[slot];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delete a record, optionally checking its version.
+     * 
+     * @param version the version to check, or null to skip the check
+     * @param context record context
+     * @param key record key
+     * @return true if the record existed and was deleted
+     * @throws VersionMismatchException if the record has a different version
+     */
+    private boolean doDelete(@Nullable final Long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key) throws VersionMismatchException {
+        lock.lock();
+        try {
+            final int slot = find(context, key, System.currentTimeMillis());
+            if (slot == NONE) {
+                return false;
+            } else if (version != null && slotVersions[slot] != version) {
+                throw new VersionMismatchException();
+            }
+            removeSlot(slot);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Estimate the size of a record.
+     * 
+     * @param key record key
+     * @param value record value
+     * @return the estimated size in bytes
+     */
+    private static int estimateSize(@Nonnull final String key, @Nonnull final String value) {
+        return RECORD_OVERHEAD + 2 * (key.length() + value.length());
+    }
+
+    /**
+     * Get the quota of a context.
+     * 
+     * @param context the context
+     * @return the quota in bytes, at most the total budget
+     */
+    private long getQuota(@Nonnull final String context) {
+        final Long quota = contextQuotas.get(context);
+        if (quota != null) {
+            return Math.min(quota, maxBytes);
+        }
+        return defaultContextQuota > 0 ? Math.min(defaultContextQuota, maxBytes) : maxBytes;
+    }
+
+    /**
+     * Find the slot of a live record, removing the record if it has expired. Must be called with the lock held.
+     * 
+     * @param context record context
+     * @param key record key
+     * @param now the current time
+     * @return the slot, or {@link #NONE} if there is no live record
+     */
+    private int find(@Nonnull final String context, @Nonnull final String key, final long now) {
+        final Context ctx = contexts.get(context);
+        if (ctx == null) {
+            return NONE;
+        }
+        final Integer slot = ctx.slots.get(key);
+        if (slot == null) {
+            return NONE;
+        } else if (isExpired(slot, now)) {
+            removeSlot(slot);
+            expirations++;
+            return NONE;
+        }
+        return slot;
+    }
+
+    /**
+     * Whether the record of a slot has expired.
+     * 
+     * @param slot the slot
+     * @param now the current time
+     * @return true if the record has expired
+     */
+    private boolean isExpired(final int slot, final long now) {
+        return slotExpirations[slot] != 0 && slotExpirations[slot] <= now;
+    }
+
+    /**
+     * Remove the expired records of a range of slots. Must be called with the lock held.
+     * 
+     * @param from the first slot
+     * @param to the slot after the last
+     * @param now the current time
+     * @return the number of records removed
+     */
+    private int removeExpired(final int from, final int to, final long now) {
+        int removed = 0;
+        for (int slot = from; slot < to; slot++) {
+            if (slotKeys[slot] != null && isExpired(slot, now)) {
+                removeSlot(slot);
+                removed++;
+            }
+        }
+        expirations += removed;
+        return removed;
+    }
+
+    /**
+     * Evict the least recently used records of any context until enough bytes are freed.
+     * 
+     * @param excess the number of bytes to free
+     * @param keep a slot which must not be evicted, or {@link #NONE}
+     */
+    private void evict(final long excess, final int keep) {
+        long freed = 0;
+        int slot = tail;
+        while (freed < excess && slot != NONE) {
+            final int victim = slot;
+            slot = previous[slot];
+            if (victim != keep) {
+                freed += slotSizes[victim];
+                contextEvictions[slotContexts[victim]]++;
+                evictions++;
+                removeSlot(victim);
+            }
+        }
+        if (freed > 0) {
+            log.debug("Storage service '{}' evicted {} bytes to stay within its {} byte budget", getId(), freed,
+                    maxBytes);
+        }
+    }
+
+    /**
+     * Evict the least recently used records of a context until enough bytes are freed.
+     * 
+     * @param index the context index
+     * @param excess the number of bytes to free
+     * @param keep a slot which must not be evicted, or {@link #NONE}
+     */
+    private void evictFromContext(final int index, final long excess, final int keep) {
+        final Context ctx = contextTable[index];
+        long freed = 0;
+        int slot = contextTails[index];
+        while (freed < excess && slot != NONE) {
+            final int victim = slot;
+            slot = contextPrevious[slot];
+            if (victim != keep) {
+                freed += slotSizes[victim];
+                contextEvictions[index]++;
+                quotaEvictions++;
+                evictions++;
+                removeSlot(victim);
+            }
+        }
+        if (freed > 0) {
+            log.debug("Storage service '{}' evicted {} bytes from context '{}' to stay within its quota", getId(),
+                    freed, ctx.name);
+        }
+    }
+
+    /**
+     * Make a slot the most recently used.
+     * 
+     * @param slot the slot
+     */
+    private void touch(final int slot) {
+        if (head != slot || contextHeads[slotContexts[slot]] != slot) {
+            unlink(slot);
+            link(slot);
+        }
+    }
+
+    /**
+     * Link a slot at the head of the list of every record and of the list of its context.
+     * 
+     * @param slot the slot
+     */
+    private void link(final int slot) {
+        previous[slot] = NONE;
+        next[slot] = head;
+        if (head != NONE) {
+            previous[head] = slot;
+        } else {
+            tail = slot;
+        }
+        head = slot;
+
+        final int index = slotContexts[slot];
+        contextPrevious[slot] = NONE;
+        contextNext[slot] = contextHeads[index];
+        if (contextHeads[index] != NONE) {
+            contextPrevious[contextHeads[index]] = slot;
+        } else {
+            contextTails[index] = slot;
+        }
+        contextHeads[index] = slot;
+    }
+
+    /**
+     * Unlink a slot from the list of every record and from the list of its context.
+     * 
+     * @param slot the slot
+     */
+    private void unlink(final int slot) {
+        if (previous[slot] != NONE) {
+            next[previous[slot]] = next[slot];
+        } else {
+            head = next[slot];
+        }
+        if (next[slot] != NONE) {
+            previous[next[slot]] = previous[slot];
+        } else {
+            tail = previous[slot];
+        }
+
+        final int index = slotContexts[slot];
+        if (contextPrevious[slot] != NONE) {
+            contextNext[contextPrevious[slot]] = contextNext[slot];
+        } else {
+            contextHeads[index] = contextNext[slot];
+        }
+        if (contextNext[slot] != NONE) {
+            contextPrevious[contextNext[slot]] = contextPrevious[slot];
+        } else {
+            contextTails[index] = contextPrevious[slot];
+        }
+    }
+
+    /**
+     * Remove the record of a slot and free the slot, and its context if it has no other records.
+     * 
+     * @param slot the slot
+     */
+    private void removeSlot(final int slot) {
+        unlink(slot);
+        final int index = slotContexts[slot];
+        final Context ctx = contextTable[index];
+        ctx.slots.remove(slotKeys[slot]);
+        bytes -= slotSizes[slot];
+        records--;
+        contextBytes[index] -= slotSizes[slot];
+        contextRecords[index]--;
+        slotKeys[slot] = null;
+        slotValues[slot] = null;
+        next[slot] = freeSlot;
+        freeSlot = slot;
+        if (contextRecords[index] == 0) {
+            contexts.remove(ctx.name);
+            contextTable[index] = null;
+            contextTails[index] = freeContext;
+            freeContext = index;
+        }
+    }
+
+    /**
+     * Allocate a free slot, growing the slot arrays if there is none.
+     * 
+     * The arrays never hold more slots than there can be records within the budget.
+     * 
+     * @return the slot
+     */
+    private int allocateSlot() {
+        if (freeSlot != NONE) {
+            final int slot = freeSlot;
+            freeSlot = next[slot];
+            return slot;
+        }
+        if (slotCount == slotKeys.length) {
+            final int capacity = slotCount * 2;
+            slotKeys = Arrays.copyOf(slotKeys, capacity);
+            slotValues = Arrays.copyOf(slotValues, capacity);
+            slotVersions = Arrays.copyOf(slotVersions, capacity);
+            slotExpirations = Arrays.copyOf(slotExpirations, capacity);
+            slotSizes = Arrays.copyOf(slotSizes, capacity);
+            slotContexts = Arrays.copyOf(slotContexts, capacity);
+            previous = Arrays.copyOf(previous, capacity);
+            next = Arrays.copyOf(next, capacity);
+            contextPrevious = Arrays.copyOf(contextPrevious, capacity);
+            contextNext = Arrays.copyOf(contextNext, capacity);
+        }
+        return slotCount++;
+    }
+
+    /**
+     * Create a context, growing the context arrays if there is no free index.
+     * 
+     * @param name the context name
+     * @param quota the context quota
+     * @return the context
+     */
+    @Nonnull private Context createContext(@Nonnull final String name, final long quota) {
+        final int index;
+        if (freeContext != NONE) {
+            index = freeContext;
+            freeContext = contextTails[index];
+        } else {
+            if (contextCount == contextTable.length) {
+                final int capacity = contextCount * 2;
+                contextTable = Arrays.copyOf(contextTable, capacity);
+                contextBytes = Arrays.copyOf(contextBytes, capacity);
+                contextQuotaBytes = Arrays.copyOf(contextQuotaBytes, capacity);
+                contextRecords = Arrays.copyOf(contextRecords, capacity);
+                contextEvictions = Arrays.copyOf(contextEvictions, capacity);
+                contextHeads = Arrays.copyOf(contextHeads, capacity);
+                contextTails = Arrays.copyOf(contextTails, capacity);
+            }
+            index = contextCount++;
+        }
+        final Context ctx = new Context(name, index);
+        contextTable[index] = ctx;
+        contextBytes[index] = 0;
+        contextQuotaBytes[index] = quota;
+        contextRecords[index] = 0;
+        contextEvictions[index] = 0;
+        contextHeads[index] = NONE;
+        contextTails[index] = NONE;
+        contexts.put(name, ctx);
+        return ctx;
+    }
+
+    /**
+     * Get a storage record for a slot.
+     * 
+     * @param slot the slot
+     * @return the storage record
+     */
+    @Nonnull private StorageRecord toRecord(final int slot) {
+        return new VersionableStorageRecord(slotValues[slot],
+                slotExpirations[slot] != 0 ? slotExpirations[slot] : null, slotVersions[slot]);
+    }
+
+    /** A context, with the slots of its records by key. */
+    private static final class Context {
+
+        /** Context name. */
+        @Nonnull private final String name;
+
+        /** Context index. */
+        private final int index;
+
+        /** Slots by key. */
+        @Nonnull private final TreeMap<String, Integer> slots;
+
+        /**
+         * Constructor.
+         * 
+         * @param contextName context name
+         * @param contextIndex context index
+         */
+        private Context(@Nonnull final String contextName, final int contextIndex) {
+            name = contextName;
+            index = contextIndex;
+            slots = new TreeMap<>();
+        }
+    }
+
+}
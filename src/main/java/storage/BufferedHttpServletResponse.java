@@ -0,0 +1,327 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response which captures status, headers and body in memory, so that a handler can run on a thread other than the
+ * container's and its response can be written later with non-blocking I/O.
+ * 
+ * Nothing written to this response reaches the wrapped response until {@link #replay(HttpServletResponse)}.
+ */
+class BufferedHttpServletResponse extends HttpServletResponseWrapper {
+
+    /** Default character encoding of the body when written through {@link #getWriter()}. */
+    @Nonnull private static final String DEFAULT_CHARACTER_ENCODING = "ISO-8859-1";
+
+    /** Format of date headers. */
+    @Nonnull private static final String DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    /** Captured headers by name. */
+    @Nonnull private final Map<String, List<String>> headers = new LinkedHashMap<>();
+
+    /** Captured body. */
+    @Nonnull private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    /** Captured status. */
+    private int status = SC_OK;
+
+    /** Captured content type. */
+    @Nullable private String contentType;
+
+    /** Captured character encoding. */
+    @Nullable private String characterEncoding;
+
+    /** Output stream over the captured body, if obtained. */
+    @Nullable private ServletOutputStream outputStream;
+
+    /** Writer over the captured body, if obtained. */
+    @Nullable private PrintWriter writer;
+
+    /**
+     * Constructor.
+     * 
+     * @param response the response the captured response will be written to
+     */
+    BufferedHttpServletResponse(@Nonnull final HttpServletResponse response) {
+        super(response);
+    }
+
+    /**
+     * Get the captured body.
+     * 
+     * @return the captured body
+     */
+    @Nonnull byte[] toByteArray() {
+        if (writer != null) {
+            writer.flush();
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Write the captured status and headers to a response. The body is left to the caller.
+     * 
+     * @param response the response to write to
+     * @return the captured body
+     */
+    @Nonnull byte[] replay(@Nonnull final HttpServletResponse response) {
+        final byte[] bytes = toByteArray();
+        response.setStatus(status);
+        for (final Map.Entry<String, List<String>> header : headers.entrySet()) {
+            for (final String value : header.getValue()) {
+                response.addHeader(header.getKey(), value);
+            }
+        }
+        if (contentType != null) {
+            response.setContentType(contentType);
+        }
+        if (characterEncoding != null) {
+            response.setCharacterEncoding(characterEncoding);
+        } else if (writer != null) {
+            response.setCharacterEncoding(DEFAULT_CHARACTER_ENCODING);
+        }
+        response.setContentLength(bytes.length);
+        return bytes;
+    }
+
+    /** {@inheritDoc} */
+    @Override public void setStatus(final int sc) {
+        status = sc;
+    }
+
+    /** {@inheritDoc} */
+    @Override public int getStatus() {
+        return status;
+    }
+
+    /** {@inheritDoc} */
+    @Override public void sendError(final int sc) throws IOException {
+        sendError(sc, null);
+    }
+
+    /** {@inheritDoc} */
+    @Override public void sendError(final int sc, @Nullable final String msg) throws IOException {
+        reset();
+        status = sc;
+        if (msg != null) {
+            contentType = "text/plain";
+            body.write(msg.getBytes(getCharacterEncoding()));
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override public void sendRedirect(@Nonnull final String location) throws IOException {
+        reset();
+        status = SC_FOUND;
+        setHeader("Location", location);
+    }
+
+    /** {@inheritDoc} */
+    @Override public void setHeader(@Nonnull final String name, @Nullable final String value) {
+        if (value == null) {
+            headers.remove(name);
+        } else {
+            final List<String> values = new ArrayList<>(1);
+            values.add(value);
+            headers.put(name, values);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override public void addHeader(@Nonnull final String name, @Nonnull final String value) {
+        List<String> values = headers.get(name);
+        if (values == null) {
+            values = new ArrayList<>(1);
+            headers.put(name, values);
+        }
+        values.add(value);
+    }
+
+    /** {@inheritDoc} */
+    @Override public void setIntHeader(@Nonnull final String name, final int value) {
+        setHeader(name, Integer.toString(value));
+    }
+
+    /** {@inheritDoc} */
+    @Override public void addIntHeader(@Nonnull final String name, final int value) {
+        addHeader(name, Integer.toString(value));
+    }
+
+    /** {@inheritDoc} */
+    @Override public void setDateHeader(@Nonnull final String name, final long date) {
+        setHeader(name, formatDate(date));
+    }
+
+    /** {@inheritDoc} */
+    @Override public void addDateHeader(@Nonnull final String name, final long date) {
+        addHeader(name, formatDate(date));
+    }
+
+    /** {@inheritDoc} */
+    @Override public boolean containsHeader(@Nonnull final String name) {
+        return headers.containsKey(name);
+    }
+
+    /** {@inheritDoc} */
+    @Override @Nullable public String getHeader(@Nonnull final String name) {
+        final List<String> values = headers.get(name);
+        return values == null ? null : values.get(0);
+    }
+
+    /** {@inheritDoc} */
+    @Override @Nonnull public Collection<String> getHeaders(@Nonnull final String name) {
+        final List<String> values = headers.get(name);
+        return values == null ? Collections.<String> emptyList() : Collections.unmodifiableList(values);
+    }
+
+    /** {@inheritDoc} */
+    @Override public void setContentType(@Nullable final String type) {
+        contentType = type;
+    }
+
+    /** {@inheritDoc} */
+    @Override @Nullable public String getContentType() {
+        return contentType;
+    }
+
+    /** {@inheritDoc} */
+    @Override public void setCharacterEncoding(@Nullable final String charset) {
+        if (writer == null) {
+            characterEncoding = charset;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override @Nonnull public String getCharacterEncoding() {
+        return characterEncoding != null ? characterEncoding : DEFAULT_CHARACTER_ENCODING;
+    }
+
+    /** {@inheritDoc} */
+    @Override public void setContentLength(final int len) {
+        // The length of the captured body is written on replay.
+    }
+
+    /** {@inheritDoc} */
+    @Override public void setBufferSize(final int size) {
+        // The whole body is buffered.
+    }
+
+    /** {@inheritDoc} */
+    @Override public int getBufferSize() {
+        return Integer.MAX_VALUE;
+    }
+
+    /** {@inheritDoc} */
+    @Override public void flushBuffer() {
+        // Nothing is committed before replay.
+    }
+
+    /** {@inheritDoc} */
+    @Override public boolean isCommitted() {
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    @Override public void reset() {
+        resetBuffer();
+        headers.clear();
+        status = SC_OK;
+        contentType = null;
+    }
+
+    /** {@inheritDoc} */
+    @Override public void resetBuffer() {
+        if (writer != null) {
+            writer.flush();
+        }
+        body.reset();
+    }
+
+    /** {@inheritDoc} */
+    @Override @Nonnull public ServletOutputStream getOutputStream() {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() has already been called");
+        }
+        if (outputStream == null) {
+            outputStream = new ServletOutputStream() {
+                public void write(final int b) {
+                    body.write(b);
+                }
+
+                public void write(final byte[] b, final int off, final int len) {
+                    body.write(b, off, len);
+                }
+
+                public boolean isReady() {
+                    return true;
+                }
+
+                public void setWriteListener(final WriteListener writeListener) {
+                    throw new IllegalStateException("Not an asynchronous response");
+                }
+            };
+        }
+        return outputStream;
+    }
+
+    /** {@inheritDoc} */
+    @Override @Nonnull public PrintWriter getWriter() throws UnsupportedEncodingException {
+        if (outputStream != null) {
+            throw new IllegalStateException("getOutputStream() has already been called");
+        }
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(body, getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    /**
+     * Format a date header value.
+     * 
+     * @param date the date in milliseconds since the epoch
+     * @return the formatted date
+     */
+    @Nonnull private static String formatDate(final long date) {
+        final SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(date));
+    }
+}
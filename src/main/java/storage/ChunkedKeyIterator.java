@@ -0,0 +1,107 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Iterator over the keys of a context, in key order, fetched a chunk at a time.
+ * 
+ * Subclasses only fetch the next chunk, so that a storage service holds its lock or connection for one chunk rather
+ * than for the whole iteration. Keys created or deleted during the iteration may or may not be returned.
+ */
+public abstract class ChunkedKeyIterator implements Iterator<String> {
+
+    /** Number of keys fetched at a time. */
+    @Positive private final int chunkSize;
+
+    /** The last key returned by {@link #fetch(String)}, or the key to start after, or null if none. */
+    @Nullable private String lastKey;
+
+    /** Keys fetched but not returned yet. */
+    @Nonnull private Iterator<String> chunk;
+
+    /** Whether every key has been fetched. */
+    private boolean exhausted;
+
+    /**
+     * Constructor.
+     * 
+     * @param afterKey the key to start after, or null to start at the first key
+     * @param size the number of keys fetched at a time
+     */
+    protected ChunkedKeyIterator(@Nullable final String afterKey, @Positive final int size) {
+        chunkSize = (int) Constraint.isGreaterThan(0, size, "Chunk size must be greater than 0");
+        lastKey = afterKey;
+        chunk = Collections.<String>emptyIterator();
+    }
+
+    /**
+     * Get the number of keys fetched at a time.
+     * 
+     * @return the chunk size
+     */
+    @Positive protected int getChunkSize() {
+        return chunkSize;
+    }
+
+    /** {@inheritDoc} */
+    public boolean hasNext() {
+        if (!chunk.hasNext() && !exhausted) {
+            final List<String> keys = fetch(lastKey);
+            if (!keys.isEmpty()) {
+                lastKey = keys.get(keys.size() - 1);
+            }
+            exhausted = keys.size() < chunkSize;
+            chunk = keys.iterator();
+        }
+        return chunk.hasNext();
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return chunk.next();
+    }
+
+    /** {@inheritDoc} */
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Fetch the next chunk of unexpired keys, in key order. Fewer than {@link #getChunkSize()} keys are only returned
+     * once there are no more.
+     * 
+     * @param afterKey the key to start after, or null to start at the first key
+     * @return at most {@link #getChunkSize()} keys
+     */
+    @Nonnull protected abstract List<String> fetch(@Nullable final String afterKey);
+
+}
@@ -0,0 +1,679 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.json.stream.JsonGenerator;
+
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.VersionMismatchException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import common.LatencyHistogram;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.collection.Pair;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Storage service decorator which queues updates and applies them to the wrapped storage service asynchronously.
+ * 
+ * Updates of record values and expirations are accepted into a pending map and a bounded queue of keys, and a
+ * background thread applies them once per flush interval. Further updates of a key which is still pending are merged
+ * into the pending write, so a record updated many times within a flush interval is written once. When the queue is
+ * full, updates of keys which are not already pending block until the flusher catches up.
+ * 
+ * Reads, versioned or not, are answered from pending writes without applying them. The version of a record with a
+ * pending write is the version it will have once written, so a near cache over this service revalidates recently
+ * written records without forcing their writes through. Creates, deletes, versioned updates and context-wide operations
+ * first apply the pending writes they depend on, then go to the wrapped storage service, so their outcome is exact.
+ * They hold the lock of the record, or of every record for context-wide operations, which updates of records without a
+ * pending write also take, so that no write is accepted between applying the pending writes and the operation itself.
+ * Operations on annotated objects go directly to the wrapped storage service.
+ * 
+ * A write which the wrapped storage service fails to apply is retried with an exponential backoff, and dropped after
+ * {@link #MAX_ATTEMPTS} attempts. Flush sizes, the number of merged, failed and lost updates and the lag between
+ * accepting and applying a write are reported as statistics.
+ */
+public class CoalescingStorageService extends AbstractDelegatingStorageService implements StatisticsReporter {
+
+    /** Number of attempts to apply a write before it is dropped. */
+    public static final int MAX_ATTEMPTS = 5;
+
+    /** Number of record locks. */
+    private static final int LOCK_STRIPES = 64;
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(CoalescingStorageService.class);
+
+    /** Locks of the records, by hash of the record key. */
+    @Nonnull private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    /** Pending writes by record. */
+    @Nonnull private final ConcurrentMap<RecordKey, PendingWrite> pending = new ConcurrentHashMap<>();
+
+    /** Lag between accepting and applying writes. */
+    @Nonnull private final LatencyHistogram lag = new LatencyHistogram();
+
+    /** Number of updates accepted. */
+    @Nonnull private final AtomicLong accepted = new AtomicLong();
+
+    /** Number of updates merged into a pending write. */
+    @Nonnull private final AtomicLong merged = new AtomicLong();
+
+    /** Number of flushes which applied at least one write. */
+    @Nonnull private final AtomicLong flushes = new AtomicLong();
+
+    /** Number of writes applied. */
+    @Nonnull private final AtomicLong applied = new AtomicLong();
+
+    /** Number of attempts to apply a write which failed. */
+    @Nonnull private final AtomicLong failures = new AtomicLong();
+
+    /** Number of writes dropped after failing, or pending when the service was destroyed. */
+    @Nonnull private final AtomicLong lost = new AtomicLong();
+
+    /** Number of writes applied by the last flush. */
+    @Nonnull private final AtomicLong lastFlushSize = new AtomicLong();
+
+    /** Largest number of writes applied by a flush. */
+    @Nonnull private final AtomicLong maxFlushSize = new AtomicLong();
+
+    /** Largest number of keys waiting in the queue. */
+    @Positive private int queueCapacity = 10000;
+
+    /** Interval between flushes in milliseconds. */
+    @Positive private long flushInterval = 100;
+
+    /** Keys of pending writes, in the order they were accepted. */
+    @Nullable private BlockingQueue<RecordKey> queue;
+
+    /** The flusher thread. */
+    @Nullable private Thread flusher;
+
+    /** Whether the flusher should stop. */
+    private volatile boolean stopping;
+
+    /** Constructor. */
+    public CoalescingStorageService() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Get the largest number of keys waiting in the queue.
+     * 
+     * @return the queue capacity
+     */
+    @Positive public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Set the largest number of keys waiting in the queue, beyond which updates of keys which are not pending block.
+     * 
+     * @param capacity the queue capacity
+     */
+    public void setQueueCapacity(@Positive final int capacity) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        queueCapacity = (int) Constraint.isGreaterThan(0, capacity, "Queue capacity must be greater than 0");
+    }
+
+    /**
+     * Get the interval between flushes.
+     * 
+     * @return the flush interval in milliseconds
+     */
+    @Positive public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * Set the interval between flushes, during which updates of the same record are merged.
+     * 
+     * @param interval the flush interval in milliseconds
+     */
+    public void setFlushInterval(@Positive final long interval) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        flushInterval = Constraint.isGreaterThan(0, interval, "Flush interval must be greater than 0");
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        flusher = new Thread(new Runnable() {
+            public void run() {
+                runFlusher();
+            }
+        }, "storage-coalescing-" + getId());
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doDestroy() {
+        // The flusher is not interrupted, which could close the channels of the wrapped storage service.
+        stopping = true;
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            flushAll();
+        } catch (final IOException e) {
+            lost.addAndGet(pending.size());
+            log.error("Storage service '{}' lost {} pending writes", getId(), pending.size(), e);
+        }
+        super.doDestroy();
+    }
+
+    /** {@inheritDoc} */
+    public boolean create(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        final RecordKey recordKey = new RecordKey(context, key);
+        final ReentrantLock lock = getLock(recordKey);
+        lock.lock();
+        try {
+            final PendingWrite write = pending.get(recordKey);
+            if (write != null && !write.isExpired(System.currentTimeMillis())) {
+                return false;
+            }
+            drain(recordKey);
+            return super.create(context, key, value, expiration);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public StorageRecord read(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        final PendingWrite write = pending.get(new RecordKey(context, key));
+        if (write == null) {
+            return super.read(context, key);
+        } else if (write.isExpired(System.currentTimeMillis())) {
+            return null;
+        } else if (write.value != null) {
+            return new VersionableStorageRecord(write.value, write.expiration, write.getResultVersion());
+        }
+        final StorageRecord record = super.read(context, key);
+        return record != null ? new VersionableStorageRecord(record.getValue(), write.expiration, record.getVersion())
+                : null;
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull public Pair<Long, StorageRecord> read(@Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Positive final long version) throws IOException {
+        if (!pending.containsKey(new RecordKey(context, key))) {
+            return super.read(context, key, version);
+        }
+        final StorageRecord record = read(context, key);
+        if (record == null) {
+            return new Pair<>();
+        } else if (record.getVersion() == version) {
+            return new Pair<>(version, null);
+        }
+        return new Pair<>(record.getVersion(), record);
+    }
+
+    /** {@inheritDoc} */
+    public boolean update(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        return accept(new RecordKey(context, key), value, expiration);
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public Long updateWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nonnull @NotEmpty final String value,
+            @Nullable @Positive final Long expiration) throws IOException, VersionMismatchException {
+        final RecordKey recordKey = new RecordKey(context, key);
+        final ReentrantLock lock = getLock(recordKey);
+        lock.lock();
+        try {
+            drain(recordKey);
+            return super.updateWithVersion(version, context, key, value, expiration);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean updateExpiration(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nullable @Positive final Long expiration) throws IOException {
+        return accept(new RecordKey(context, key), null, expiration);
+    }
+
+    /** {@inheritDoc} */
+    public boolean delete(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        final RecordKey recordKey = new RecordKey(context, key);
+        final ReentrantLock lock = getLock(recordKey);
+        lock.lock();
+        try {
+            drain(recordKey);
+            return super.delete(context, key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean deleteWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key) throws IOException, VersionMismatchException {
+        final RecordKey recordKey = new RecordKey(context, key);
+        final ReentrantLock lock = getLock(recordKey);
+        lock.lock();
+        try {
+            drain(recordKey);
+            return super.deleteWithVersion(version, context, key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void reap(@Nonnull @NotEmpty final String context) throws IOException {
+        flushContext(context);
+        super.reap(context);
+    }
+
+    /** {@inheritDoc} */
+    public void updateContextExpiration(@Nonnull @NotEmpty final String context,
+            @Nullable @Positive final Long expiration) throws IOException {
+        lockAll();
+        try {
+            flushContext(context);
+            super.updateContextExpiration(context, expiration);
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void deleteContext(@Nonnull @NotEmpty final String context) throws IOException {
+        lockAll();
+        try {
+            flushContext(context);
+            super.deleteContext(context);
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void writeStatistics(@Nonnull final JsonGenerator gen, @Nonnull final String name) {
+        gen.writeStartObject(name);
+        gen.write("pending", pending.size());
+        gen.write("queued", queue != null ? queue.size() : 0);
+        gen.write("queueCapacity", queueCapacity);
+        gen.write("accepted", accepted.get());
+        gen.write("merged", merged.get());
+        gen.write("flushes", flushes.get());
+        gen.write("applied", applied.get());
+        gen.write("failures", failures.get());
+        gen.write("lost", lost.get());
+        gen.write("lastFlushSize", lastFlushSize.get());
+        gen.write("maxFlushSize", maxFlushSize.get());
+        lag.write(gen, "lag");
+        gen.writeEnd();
+    }
+
+    /**
+     * Accept an update of a record value and expiration, or of its expiration only.
+     * 
+     * @param recordKey the record
+     * @param value the new value, or null to only update the expiration
+     * @param expiration the new expiration or null if none
+     * @return true if the record exists and the update was accepted
+     * @throws IOException if the wrapped storage service raises an error checking that the record exists
+     */
+    private boolean accept(@Nonnull final RecordKey recordKey, @Nullable final String value,
+            @Nullable final Long expiration) throws IOException {
+        for (;;) {
+            final PendingWrite current = pending.get(recordKey);
+            if (current == null) {
+                final ReentrantLock lock = getLock(recordKey);
+                lock.lock();
+                try {
+                    if (pending.containsKey(recordKey)) {
+                        continue;
+                    }
+                    final StorageRecord record = super.read(recordKey.getContext(), recordKey.getKey());
+                    if (record == null) {
+                        return false;
+                    }
+                    pending.put(recordKey,
+                            new PendingWrite(value, expiration, record.getVersion(), System.nanoTime()));
+                    accepted.incrementAndGet();
+                } finally {
+                    lock.unlock();
+                }
+                enqueue(recordKey);
+                return true;
+            } else if (current.isExpired(System.currentTimeMillis())) {
+                return false;
+            } else if (pending.replace(recordKey, current, current.merge(value, expiration))) {
+                accepted.incrementAndGet();
+                merged.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Queue the key of a new pending write, blocking while the queue is full. If interrupted, the write is applied
+     * immediately instead.
+     * 
+     * @param recordKey the record
+     * @throws IOException if the write is applied immediately and the wrapped storage service raises an error
+     */
+    private void enqueue(@Nonnull final RecordKey recordKey) throws IOException {
+        try {
+            queue.put(recordKey);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            flush(recordKey);
+        }
+    }
+
+    /** Apply queued writes once per flush interval until stopped. */
+    private void runFlusher() {
+        final List<RecordKey> batch = new ArrayList<>();
+        final List<RecordKey> retry = new ArrayList<>();
+        final Map<RecordKey, FailedWrite> failed = new HashMap<>();
+        while (!stopping) {
+            try {
+                Thread.sleep(flushInterval);
+            } catch (final InterruptedException e) {
+                break;
+            }
+
+            batch.addAll(retry);
+            retry.clear();
+            queue.drainTo(batch);
+            final long now = System.nanoTime();
+            int count = 0;
+            for (final RecordKey recordKey : batch) {
+                final FailedWrite failure = failed.get(recordKey);
+                if (failure != null && failure.retryNanos - now > 0) {
+                    retry.add(recordKey);
+                    continue;
+                }
+                final PendingWrite write = pending.get(recordKey);
+                if (write == null) {
+                    // Applied by another operation.
+                    failed.remove(recordKey);
+                    continue;
+                }
+                try {
+                    if (apply(recordKey, write)) {
+                        count++;
+                    }
+                    failed.remove(recordKey);
+                    if (!pending.remove(recordKey, write)) {
+                        // Merged with a later update while being applied, apply it again next time.
+                        retry.add(recordKey);
+                    }
+                } catch (final IOException | RuntimeException e) {
+                    failures.incrementAndGet();
+                    final int attempts = failure != null ? failure.attempts + 1 : 1;
+                    if (attempts < MAX_ATTEMPTS) {
+                        log.warn("Storage service '{}' unable to apply write of key '{}' in context '{}', attempt {}",
+                                getId(), recordKey.getKey(), recordKey.getContext(), attempts, e);
+                        failed.put(recordKey, new FailedWrite(attempts,
+                                now + TimeUnit.MILLISECONDS.toNanos(flushInterval << attempts)));
+                        retry.add(recordKey);
+                    } else {
+                        log.error("Storage service '{}' dropped write of key '{}' in context '{}' after {} attempts",
+                                getId(), recordKey.getKey(), recordKey.getContext(), attempts, e);
+                        failed.remove(recordKey);
+                        if (pending.remove(recordKey) != null) {
+                            lost.incrementAndGet();
+                        }
+                    }
+                }
+            }
+            batch.clear();
+            if (count > 0) {
+                flushes.incrementAndGet();
+                lastFlushSize.set(count);
+                long max = maxFlushSize.get();
+                while (count > max && !maxFlushSize.compareAndSet(max, count)) {
+                    max = maxFlushSize.get();
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply the pending write of a record, if any.
+     * 
+     * @param recordKey the record
+     * @return true if the record has no pending write left, false if a later update is pending
+     * @throws IOException if the wrapped storage service raises an error
+     */
+    private boolean flush(@Nonnull final RecordKey recordKey) throws IOException {
+        final PendingWrite write = pending.get(recordKey);
+        if (write == null) {
+            return true;
+        }
+        apply(recordKey, write);
+        return pending.remove(recordKey, write);
+    }
+
+    /**
+     * Apply a pending write to the wrapped storage service, unless it has already been applied.
+     * 
+     * @param recordKey the record
+     * @param write the pending write
+     * @return true if the write was applied by this call
+     * @throws IOException if the wrapped storage service raises an error
+     */
+    private boolean apply(@Nonnull final RecordKey recordKey, @Nonnull final PendingWrite write) throws IOException {
+        synchronized (write) {
+            if (write.applied) {
+                return false;
+            }
+            if (write.value != null) {
+                super.update(recordKey.getContext(), recordKey.getKey(), write.value, write.expiration);
+            } else {
+                super.updateExpiration(recordKey.getContext(), recordKey.getKey(), write.expiration);
+            }
+            write.applied = true;
+            applied.incrementAndGet();
+            lag.recordSince(write.acceptedNanos);
+            return true;
+        }
+    }
+
+    /**
+     * Apply the pending writes of a record until none is left, including updates merged while applying them.
+     * 
+     * @param recordKey the record
+     * @throws IOException if the wrapped storage service raises an error
+     */
+    private void drain(@Nonnull final RecordKey recordKey) throws IOException {
+        while (!flush(recordKey)) {
+            // A later update was merged while the write was applied, apply it too.
+        }
+    }
+
+    /**
+     * Apply the pending writes of a context.
+     * 
+     * @param context the context
+     * @throws IOException if the wrapped storage service raises an error
+     */
+    private void flushContext(@Nonnull final String context) throws IOException {
+        for (final RecordKey recordKey : pending.keySet()) {
+            if (recordKey.getContext().equals(context)) {
+                drain(recordKey);
+            }
+        }
+    }
+
+    /**
+     * Apply every pending write.
+     * 
+     * @throws IOException if the wrapped storage service raises an error
+     */
+    private void flushAll() throws IOException {
+        for (final RecordKey recordKey : pending.keySet()) {
+            drain(recordKey);
+        }
+    }
+
+    /**
+     * Get the lock of a record.
+     * 
+     * @param recordKey the record
+     * @return the lock shared by the records of the same stripe
+     */
+    @Nonnull private ReentrantLock getLock(@Nonnull final RecordKey recordKey) {
+        return locks[(recordKey.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+
+    /** Take the lock of every record, in stripe order. */
+    private void lockAll() {
+        for (final ReentrantLock lock : locks) {
+            lock.lock();
+        }
+    }
+
+    /** Release the lock of every record. */
+    private void unlockAll() {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+
+    /** A write the flusher failed to apply. */
+    private static final class FailedWrite {
+
+        /** The number of failed attempts. */
+        private final int attempts;
+
+        /** The {@link System#nanoTime()} before which the write is not retried. */
+        private final long retryNanos;
+
+        /**
+         * Constructor.
+         * 
+         * @param count the number of failed attempts
+         * @param nanos the time before which the write is not retried
+         */
+        private FailedWrite(final int count, final long nanos) {
+            attempts = count;
+            retryNanos = nanos;
+        }
+    }
+
+    /** A write waiting to be applied. Replaced rather than changed when a later update is merged. */
+    private static final class PendingWrite {
+
+        /** The new value, or null if only the expiration changes. */
+        @Nullable private final String value;
+
+        /** The new expiration, or null if none. */
+        @Nullable private final Long expiration;
+
+        /** The version of the record before the write. */
+        private final long baseVersion;
+
+        /** The {@link System#nanoTime()} at which the first merged update was accepted. */
+        private final long acceptedNanos;
+
+        /** Whether the write has been applied, guarded by the write itself. */
+        private boolean applied;
+
+        /**
+         * Constructor.
+         * 
+         * @param val the new value, or null if only the expiration changes
+         * @param exp the new expiration, or null if none
+         * @param version the version of the record before the write
+         * @param nanos the time at which the write was accepted
+         */
+        private PendingWrite(@Nullable final String val, @Nullable final Long exp, final long version,
+                final long nanos) {
+            value = val;
+            expiration = exp;
+            baseVersion = version;
+            acceptedNanos = nanos;
+        }
+
+        /**
+         * Get the version the record has once the write is applied.
+         * 
+         * @return the resulting version
+         */
+        private long getResultVersion() {
+            return value != null ? baseVersion + 1 : baseVersion;
+        }
+
+        /**
+         * Get whether the record expires before the write would be applied.
+         * 
+         * @param now the current time
+         * @return true if the record has expired
+         */
+        private boolean isExpired(final long now) {
+            return expiration != null && expiration <= now;
+        }
+
+        /**
+         * Merge a later update into this write.
+         * 
+         * @param val the new value, or null if only the expiration changes
+         * @param exp the new expiration, or null if none
+         * @return the merged write
+         */
+        @Nonnull private PendingWrite merge(@Nullable final String val, @Nullable final Long exp) {
+            synchronized (this) {
+                if (applied) {
+                    return new PendingWrite(val, exp, getResultVersion(), System.nanoTime());
+                }
+            }
+            return new PendingWrite(val != null ? val : value, exp, baseVersion, acceptedNanos);
+        }
+    }
+
+}
@@ -0,0 +1,539 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.json.stream.JsonGenerator;
+
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.VersionMismatchException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import common.DeflaterPool;
+import common.InflaterPool;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.codec.Base64Support;
+import net.shibboleth.utilities.java.support.collection.Pair;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Storage service decorator which compresses large values.
+ * 
+ * Values of at least {@link #getThreshold()} characters written through create and update are deflated, optionally
+ * with a preset dictionary, and stored as {@link #COMPRESSED_PREFIX} followed by the Base64 encoded zlib stream. Values
+ * which do not get smaller are stored as they are. Stored values are still text, so they round-trip through
+ * {@link SimpleStorageRecordSerializer} and any other storage service unchanged. Values which happen to start with
+ * {@link #MARKER} are stored behind {@link #LITERAL_PREFIX}, so they are never mistaken for compressed values. Reads
+ * restore the original values; values stored without this decorator are read as they are.
+ * 
+ * A preset dictionary helps most with values much smaller than the 32 KB deflate window, which otherwise start every
+ * stream with no history. It is either set directly or trained at initialization from sample values, and is identified
+ * in each zlib stream by its checksum, so a value compressed with another dictionary fails to read rather than read
+ * as garbage. Changing the dictionary makes values compressed with the previous one unreadable.
+ * 
+ * Deflaters and inflaters are pooled. The compression ratio is reported as statistics.
+ */
+public class CompressingStorageService extends AbstractDelegatingStorageService implements StatisticsReporter {
+
+    /** Prefix of every value marked by this decorator. */
+    @Nonnull @NotEmpty public static final String MARKER = "~z";
+
+    /** Prefix of a value stored as is. */
+    @Nonnull @NotEmpty public static final String LITERAL_PREFIX = MARKER + "0:";
+
+    /** Prefix of a compressed value. */
+    @Nonnull @NotEmpty public static final String COMPRESSED_PREFIX = MARKER + "1:";
+
+    /** Largest size of a preset dictionary, the size of the deflate window. */
+    public static final int MAX_DICTIONARY_SIZE = 32768;
+
+    /** Length of the substrings counted when training a dictionary. */
+    private static final int TRAINING_SUBSTRING_LENGTH = 16;
+
+    /** Size of the buffer values are inflated through. */
+    private static final int INFLATE_BUFFER_SIZE = 4096;
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(CompressingStorageService.class);
+
+    /** Number of values compressed. */
+    @Nonnull private final AtomicLong compressed = new AtomicLong();
+
+    /** Number of values at or above the threshold which did not get smaller. */
+    @Nonnull private final AtomicLong incompressible = new AtomicLong();
+
+    /** Number of values below the threshold. */
+    @Nonnull private final AtomicLong uncompressed = new AtomicLong();
+
+    /** Number of values decompressed. */
+    @Nonnull private final AtomicLong decompressed = new AtomicLong();
+
+    /** Characters of the values compressed, before compression. */
+    @Nonnull private final AtomicLong originalChars = new AtomicLong();
+
+    /** Characters of the values compressed, after compression and encoding. */
+    @Nonnull private final AtomicLong compressedChars = new AtomicLong();
+
+    /** Smallest number of characters of a value to compress. */
+    @Positive private int threshold;
+
+    /** Compression level. */
+    private int level;
+
+    /** Largest number of idle deflaters and inflaters kept. */
+    @Positive private int poolSize;
+
+    /** Contexts whose values are compressed, all if empty. */
+    @Nonnull private Set<String> contexts;
+
+    /** Preset dictionary, or null if none. */
+    @Nullable private byte[] dictionary;
+
+    /** Sample values to train the preset dictionary from if none is set. */
+    @Nonnull private Collection<String> dictionarySamples;
+
+    /** Size of a trained preset dictionary. */
+    @Positive private int dictionarySize;
+
+    /** Checksum of the preset dictionary, as recorded in zlib streams. */
+    private long dictionaryId;
+
+    /** Pooled deflaters. */
+    @Nullable private DeflaterPool deflaterPool;
+
+    /** Pooled inflaters. */
+    @Nullable private InflaterPool inflaterPool;
+
+    /** Constructor. */
+    public CompressingStorageService() {
+        threshold = 512;
+        level = Deflater.DEFAULT_COMPRESSION;
+        poolSize = 16;
+        contexts = Collections.emptySet();
+        dictionarySamples = Collections.emptyList();
+        dictionarySize = 16384;
+    }
+
+    /**
+     * Get the smallest number of characters of a value to compress.
+     * 
+     * @return the threshold
+     */
+    @Positive public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Set the smallest number of characters of a value to compress.
+     * 
+     * @param chars the threshold
+     */
+    public void setThreshold(@Positive final int chars) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        threshold = (int) Constraint.isGreaterThan(0, chars, "Threshold must be greater than 0");
+    }
+
+    /**
+     * Get the compression level.
+     * 
+     * @return the compression level
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Set the compression level, from 0 to 9 or {@link Deflater#DEFAULT_COMPRESSION}.
+     * 
+     * @param compressionLevel the compression level
+     */
+    public void setLevel(final int compressionLevel) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        Constraint.isTrue(compressionLevel == Deflater.DEFAULT_COMPRESSION
+                || (compressionLevel >= 0 && compressionLevel <= 9), "Compression level must be from 0 to 9 or -1");
+        level = compressionLevel;
+    }
+
+    /**
+     * Get the largest number of idle deflaters and inflaters kept.
+     * 
+     * @return the pool size
+     */
+    @Positive public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Set the largest number of idle deflaters and inflaters kept.
+     * 
+     * @param size the pool size
+     */
+    public void setPoolSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        poolSize = (int) Constraint.isGreaterThan(0, size, "Pool size must be greater than 0");
+    }
+
+    /**
+     * Get the contexts whose values are compressed.
+     * 
+     * @return the contexts, all if empty
+     */
+    @Nonnull public Set<String> getContexts() {
+        return contexts;
+    }
+
+    /**
+     * Set the contexts whose values are compressed. Values of other contexts are still decompressed when read.
+     * 
+     * @param names the contexts, all if empty
+     */
+    public void setContexts(@Nonnull final Collection<String> names) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        contexts = new HashSet<>(Constraint.isNotNull(names, "Contexts cannot be null"));
+    }
+
+    /**
+     * Set the preset dictionary.
+     * 
+     * @param text the preset dictionary, encoded as UTF-8, or null for none
+     */
+    public void setDictionary(@Nullable final String text) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        if (text == null || text.isEmpty()) {
+            dictionary = null;
+        } else {
+            dictionary = text.getBytes(StandardCharsets.UTF_8);
+            Constraint.isLessThanOrEqual(MAX_DICTIONARY_SIZE, dictionary.length,
+                    "Dictionary must be at most " + MAX_DICTIONARY_SIZE + " bytes");
+        }
+    }
+
+    /**
+     * Set sample values to train the preset dictionary from, if it is not set directly.
+     * 
+     * @param samples the sample values
+     */
+    public void setDictionarySamples(@Nonnull final Collection<String> samples) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        dictionarySamples = new ArrayList<>(Constraint.isNotNull(samples, "Dictionary samples cannot be null"));
+    }
+
+    /**
+     * Set the size of a trained preset dictionary.
+     * 
+     * @param size the dictionary size in bytes
+     */
+    public void setDictionarySize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        Constraint.isGreaterThan(0, size, "Dictionary size must be greater than 0");
+        dictionarySize = (int) Constraint.isLessThanOrEqual(MAX_DICTIONARY_SIZE, size,
+                "Dictionary size must be at most " + MAX_DICTIONARY_SIZE);
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (dictionary == null && !dictionarySamples.isEmpty()) {
+            dictionary = trainDictionary(dictionarySamples, dictionarySize);
+            log.debug("Storage service '{}' trained a {} byte dictionary from {} samples", getId(),
+                    dictionary.length, dictionarySamples.size());
+        }
+        if (dictionary != null && dictionary.length > 0) {
+            final Adler32 adler = new Adler32();
+            adler.update(dictionary);
+            dictionaryId = adler.getValue();
+        } else {
+            dictionary = null;
+        }
+        deflaterPool = new DeflaterPool(level, poolSize);
+        inflaterPool = new InflaterPool(poolSize);
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doDestroy() {
+        if (deflaterPool != null) {
+            deflaterPool.clear();
+        }
+        if (inflaterPool != null) {
+            inflaterPool.clear();
+        }
+        super.doDestroy();
+    }
+
+    /** {@inheritDoc} */
+    public boolean create(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        return super.create(context, key, encode(context, value), expiration);
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public StorageRecord read(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        return decode(super.read(context, key));
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull public Pair<Long, StorageRecord> read(@Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Positive final long version) throws IOException {
+        final Pair<Long, StorageRecord> result = super.read(context, key, version);
+        if (result.getSecond() == null) {
+            return result;
+        }
+        return new Pair<>(result.getFirst(), decode(result.getSecond()));
+    }
+
+    /** {@inheritDoc} */
+    public boolean update(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        return super.update(context, key, encode(context, value), expiration);
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public Long updateWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nonnull @NotEmpty final String value,
+            @Nullable @Positive final Long expiration) throws IOException, VersionMismatchException {
+        return super.updateWithVersion(version, context, key, encode(context, value), expiration);
+    }
+
+    /** {@inheritDoc} */
+    public void writeStatistics(@Nonnull final JsonGenerator gen, @Nonnull final String name) {
+        final long original = originalChars.get();
+        final long stored = compressedChars.get();
+        gen.writeStartObject(name);
+        gen.write("threshold", threshold);
+        gen.write("dictionarySize", dictionary != null ? dictionary.length : 0);
+        gen.write("compressed", compressed.get());
+        gen.write("incompressible", incompressible.get());
+        gen.write("uncompressed", uncompressed.get());
+        gen.write("decompressed", decompressed.get());
+        gen.write("originalChars", original);
+        gen.write("compressedChars", stored);
+        gen.write("compressionRatio", stored > 0 ? (double) original / stored : 0);
+        gen.writeEnd();
+    }
+
+    /**
+     * Train a preset dictionary from sample values.
+     * 
+     * Substrings common to several samples are counted, and the most widespread are concatenated, the most widespread
+     * last since deflate encodes nearer matches in fewer bits. Only the last bytes are kept if the result is larger
+     * than the requested size.
+     * 
+     * @param samples the sample values
+     * @param size the largest size of the dictionary in bytes
+     * @return the dictionary
+     */
+    @Nonnull public static byte[] trainDictionary(@Nonnull final Collection<String> samples, @Positive final int size) {
+        // Number of samples containing each substring, and the last sample counted, to count each sample once.
+        final Map<String, int[]> counts = new HashMap<>();
+        int sampleIndex = 0;
+        for (final String sample : samples) {
+            for (int i = 0; i + TRAINING_SUBSTRING_LENGTH <= sample.length(); i++) {
+                final String substring = sample.substring(i, i + TRAINING_SUBSTRING_LENGTH);
+                final int[] count = counts.get(substring);
+                if (count == null) {
+                    counts.put(substring, new int[] {1, sampleIndex});
+                } else if (count[1] != sampleIndex) {
+                    count[0]++;
+                    count[1] = sampleIndex;
+                }
+            }
+            sampleIndex++;
+        }
+
+        final List<Map.Entry<String, int[]>> common = new ArrayList<>();
+        for (final Map.Entry<String, int[]> entry : counts.entrySet()) {
+            if (entry.getValue()[0] > 1) {
+                common.add(entry);
+            }
+        }
+        Collections.sort(common, new Comparator<Map.Entry<String, int[]>>() {
+            public int compare(final Map.Entry<String, int[]> o1, final Map.Entry<String, int[]> o2) {
+                final int byCount = Integer.compare(o2.getValue()[0], o1.getValue()[0]);
+                return byCount != 0 ? byCount : o1.getKey().compareTo(o2.getKey());
+            }
+        });
+
+        // Substrings overlapping by all but one character are chained into runs, so that a phrase common to the
+        // samples is added once rather than once per offset.
+        final Map<String, StringBuilder> runsByStart = new HashMap<>();
+        final Map<String, StringBuilder> runsByEnd = new HashMap<>();
+        final List<StringBuilder> runs = new ArrayList<>();
+        int length = 0;
+        for (final Map.Entry<String, int[]> entry : common) {
+            if (length >= size) {
+                break;
+            }
+            final String substring = entry.getKey();
+            final String start = substring.substring(0, TRAINING_SUBSTRING_LENGTH - 1);
+            final String end = substring.substring(1);
+            StringBuilder run = runsByEnd.remove(start);
+            if (run != null) {
+                run.append(substring.charAt(TRAINING_SUBSTRING_LENGTH - 1));
+                runsByEnd.put(end, run);
+                length++;
+            } else if ((run = runsByStart.remove(end)) != null) {
+                run.insert(0, substring.charAt(0));
+                runsByStart.put(start, run);
+                length++;
+            } else {
+                run = new StringBuilder(substring);
+                runs.add(run);
+                runsByStart.put(start, run);
+                runsByEnd.put(end, run);
+                length += TRAINING_SUBSTRING_LENGTH;
+            }
+        }
+
+        final StringBuilder text = new StringBuilder(length);
+        for (int i = runs.size() - 1; i >= 0; i--) {
+            text.append(runs.get(i));
+        }
+        final byte[] encoded = text.toString().getBytes(StandardCharsets.UTF_8);
+        return encoded.length <= size ? encoded : Arrays.copyOfRange(encoded, encoded.length - size, encoded.length);
+    }
+
+    /**
+     * Encode a value to store.
+     * 
+     * @param context the record context
+     * @param value the value
+     * @return the value to store
+     */
+    @Nonnull private String encode(@Nonnull final String context, @Nonnull final String value) {
+        if (value.length() < threshold || (!contexts.isEmpty() && !contexts.contains(context))) {
+            uncompressed.incrementAndGet();
+            return value.startsWith(MARKER) ? LITERAL_PREFIX + value : value;
+        }
+
+        final byte[] input = value.getBytes(StandardCharsets.UTF_8);
+        // Base64 expands by 4/3, so anything longer than this would not be smaller once encoded.
+        final int limit = (value.length() - COMPRESSED_PREFIX.length()) * 3 / 4;
+        final byte[] output = new byte[Math.max(limit, 0)];
+        int length = 0;
+        final Deflater deflater = deflaterPool.borrow();
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(input);
+            deflater.finish();
+            while (!deflater.finished() && length < output.length) {
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            if (!deflater.finished()) {
+                incompressible.incrementAndGet();
+                return value.startsWith(MARKER) ? LITERAL_PREFIX + value : value;
+            }
+        } finally {
+            deflaterPool.release(deflater);
+        }
+
+        final byte[] deflated = new byte[length];
+        System.arraycopy(output, 0, deflated, 0, length);
+        final String encoded = COMPRESSED_PREFIX + Base64Support.encode(deflated, Base64Support.UNCHUNKED);
+        compressed.incrementAndGet();
+        originalChars.addAndGet(value.length());
+        compressedChars.addAndGet(encoded.length());
+        return encoded;
+    }
+
+    /**
+     * Decode a stored record.
+     * 
+     * @param record the stored record, may be null
+     * @return the record with its original value, or null if the stored record is null
+     * @throws IOException if a compressed value can not be decompressed
+     */
+    @Nullable private StorageRecord decode(@Nullable final StorageRecord record) throws IOException {
+        if (record == null || !record.getValue().startsWith(MARKER)) {
+            return record;
+        }
+        final String value = record.getValue();
+        final String decoded;
+        if (value.startsWith(LITERAL_PREFIX)) {
+            decoded = value.substring(LITERAL_PREFIX.length());
+        } else if (value.startsWith(COMPRESSED_PREFIX)) {
+            decoded = inflate(value.substring(COMPRESSED_PREFIX.length()));
+            decompressed.incrementAndGet();
+        } else {
+            return record;
+        }
+        return new VersionableStorageRecord(decoded, record.getExpiration(), record.getVersion());
+    }
+
+    /**
+     * Decompress a Base64 encoded zlib stream.
+     * 
+     * @param base64 the encoded stream
+     * @return the decompressed value
+     * @throws IOException if the stream is corrupt or was compressed with another dictionary
+     */
+    @Nonnull private String inflate(@Nonnull final String base64) throws IOException {
+        final byte[] input = Base64Support.decode(base64);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 4);
+        final byte[] buffer = new byte[INFLATE_BUFFER_SIZE];
+        final Inflater inflater = inflaterPool.borrow();
+        try {
+            inflater.setInput(input);
+            while (!inflater.finished()) {
+                final int length = inflater.inflate(buffer);
+                if (length > 0) {
+                    out.write(buffer, 0, length);
+                } else if (inflater.needsDictionary()) {
+                    if (dictionary == null || (inflater.getAdler() & 0xffffffffL) != dictionaryId) {
+                        throw new IOException("Value was compressed with another dictionary");
+                    }
+                    inflater.setDictionary(dictionary);
+                } else if (inflater.needsInput()) {
+                    throw new IOException("Compressed value is truncated");
+                }
+            }
+        } catch (final DataFormatException e) {
+            throw new IOException("Compressed value is corrupt", e);
+        } finally {
+            inflaterPool.release(inflater);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
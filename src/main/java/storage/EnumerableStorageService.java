@@ -0,0 +1,49 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.storage.StorageService;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+
+/**
+ * A {@link StorageService} able to enumerate the keys of a context.
+ */
+public interface EnumerableStorageService extends StorageService {
+
+    /**
+     * Iterate over the unexpired keys of a context in ascending order, starting after a given key.
+     * 
+     * Keys are produced lazily, so iterating over a large context does not require holding its keys in memory. The
+     * iterator is weakly consistent: it never fails because of concurrent changes, but may or may not reflect them.
+     * 
+     * @param context record context
+     * @param afterKey the key to start after, or null to start at the first key
+     * @return an iterator over the keys, which does not support removal
+     * @throws IOException if the keys cannot be enumerated
+     */
+    @Nonnull Iterator<String> keys(@Nonnull @NotEmpty final String context, @Nullable final String afterKey)
+            throws IOException;
+
+}
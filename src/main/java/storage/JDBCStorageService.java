@@ -0,0 +1,1031 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.json.stream.JsonGenerator;
+import javax.sql.DataSource;
+
+import org.opensaml.storage.AbstractStorageService;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.VersionMismatchException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import common.LatencyHistogram;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.collection.Pair;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * {@link org.opensaml.storage.StorageService} backed by a relational database through a {@link DataSource}.
+ * 
+ * Records are rows of a single table keyed by context and key, with an index on the expiration so that the cleanup
+ * task deletes expired records without scanning the table. The table and index are created at initialization if they
+ * do not exist.
+ * 
+ * Unversioned creates, updates and deletes are group-committed: callers queue their writes and wait while a writer
+ * thread applies whatever has queued up, up to the maximum batch size, as JDBC batches in one transaction. Under load
+ * a single round trip and commit then serve many callers. If a batch fails, its writes are retried one at a time so
+ * that one bad write does not fail the others. Reads, versioned writes and context-wide operations run directly, and
+ * since callers wait for their writes to commit, they see every write they made. Writes submitted while the service
+ * is being destroyed either commit or fail, they never wait for a writer which has stopped.
+ * 
+ * Counter increments and compare-and-set are native: a single update statement changes a live record in the
+ * database, and the record is read back in the same transaction, while the update still holds its row lock. They are
+ * neither retried on contention nor queued; only the creation of a missing record goes through the writer.
+ * 
+ * Statements are prepared for each use and closed straight after, so a pooled data source with prepared statement
+ * pooling turns preparation into a cache lookup. Round trips, transactions, batch sizes and commit latency are
+ * reported as statistics.
+ */
+public class JDBCStorageService extends AbstractStorageService
+        implements EnumerableStorageService, AtomicStorageService, StatisticsReporter {
+
+    /** Table name. */
+    @Nonnull @NotEmpty public static final String TABLE = "StorageRecords";
+
+    /** Largest length of a context or key. */
+    public static final int MAX_ID_LENGTH = 255;
+
+    /** Statement creating the table. */
+    @Nonnull @NotEmpty private static final String CREATE_TABLE = "CREATE TABLE " + TABLE
+            + " (context VARCHAR(" + MAX_ID_LENGTH + ") NOT NULL, id VARCHAR(" + MAX_ID_LENGTH + ") NOT NULL,"
+            + " expires BIGINT, value LONGVARCHAR NOT NULL, version BIGINT NOT NULL, PRIMARY KEY (context, id))";
+
+    /** Statement creating the expiration index. */
+    @Nonnull @NotEmpty private static final String CREATE_INDEX =
+            "CREATE INDEX " + TABLE + "_expires ON " + TABLE + " (expires)";
+
+    /** Condition selecting live records, the current time being its only parameter. */
+    @Nonnull @NotEmpty private static final String LIVE = "(expires IS NULL OR expires > ?)";
+
+    /** Statement reading a record. */
+    @Nonnull @NotEmpty private static final String SELECT =
+            "SELECT value, expires, version FROM " + TABLE + " WHERE context = ? AND id = ?";
+
+    /** Statement reading the version of a record. */
+    @Nonnull @NotEmpty private static final String SELECT_VERSION =
+            "SELECT version FROM " + TABLE + " WHERE context = ? AND id = ? AND " + LIVE;
+
+    /** Statement reading the value and version of a record. */
+    @Nonnull @NotEmpty private static final String SELECT_VALUE_VERSION =
+            "SELECT value, version FROM " + TABLE + " WHERE context = ? AND id = ?";
+
+    /** Statement listing the keys of a context. */
+    @Nonnull @NotEmpty private static final String SELECT_KEYS =
+            "SELECT id FROM " + TABLE + " WHERE context = ? AND id > ? AND " + LIVE + " ORDER BY id";
+
+    /** Statement deleting an expired record before a create. */
+    @Nonnull @NotEmpty private static final String DELETE_EXPIRED_RECORD =
+            "DELETE FROM " + TABLE + " WHERE context = ? AND id = ? AND expires <= ?";
+
+    /** Statement creating a record unless it exists, which is safe since a single thread creates records. */
+    @Nonnull @NotEmpty private static final String INSERT = "INSERT INTO " + TABLE
+            + " (context, id, expires, value, version) SELECT CAST(? AS VARCHAR(" + MAX_ID_LENGTH + ")),"
+            + " CAST(? AS VARCHAR(" + MAX_ID_LENGTH + ")), CAST(? AS BIGINT), CAST(? AS LONGVARCHAR), 1"
+            + " FROM (VALUES (0)) AS single_row (dummy)"
+            + " WHERE NOT EXISTS (SELECT 1 FROM " + TABLE + " WHERE context = ? AND id = ?)";
+
+    /** Statement updating the value and expiration of a live record. */
+    @Nonnull @NotEmpty private static final String UPDATE = "UPDATE " + TABLE
+            + " SET value = ?, expires = ?, version = version + 1 WHERE context = ? AND id = ? AND " + LIVE;
+
+    /** Statement updating the value and expiration of a live record at a version. */
+    @Nonnull @NotEmpty private static final String UPDATE_VERSION = "UPDATE " + TABLE
+            + " SET value = ?, expires = ?, version = version + 1 WHERE context = ? AND id = ? AND version = ? AND "
+            + LIVE;
+
+    /** Statement adding to a live counter, leaving its expiration unchanged. The sum is cast to fail on overflow. */
+    @Nonnull @NotEmpty private static final String INCREMENT = "UPDATE " + TABLE
+            + " SET value = CAST(CAST(CAST(value AS BIGINT) + ? AS BIGINT) AS LONGVARCHAR), version = version + 1"
+            + " WHERE context = ? AND id = ? AND " + LIVE;
+
+    /** Statement updating the value and expiration of a live record having the expected value. */
+    @Nonnull @NotEmpty private static final String COMPARE_AND_SET = "UPDATE " + TABLE
+            + " SET value = ?, expires = ?, version = version + 1 WHERE context = ? AND id = ? AND value = ? AND "
+            + LIVE;
+
+    /** Statement updating the expiration of a live record. */
+    @Nonnull @NotEmpty private static final String UPDATE_EXPIRATION =
+            "UPDATE " + TABLE + " SET expires = ? WHERE context = ? AND id = ? AND " + LIVE;
+
+    /** Statement updating the expiration of the live records of a context. */
+    @Nonnull @NotEmpty private static final String UPDATE_CONTEXT_EXPIRATION =
+            "UPDATE " + TABLE + " SET expires = ? WHERE context = ? AND " + LIVE;
+
+    /** Statement deleting a live record. */
+    @Nonnull @NotEmpty private static final String DELETE =
+            "DELETE FROM " + TABLE + " WHERE context = ? AND id = ? AND " + LIVE;
+
+    /** Statement deleting a live record at a version. */
+    @Nonnull @NotEmpty private static final String DELETE_VERSION =
+            "DELETE FROM " + TABLE + " WHERE context = ? AND id = ? AND version = ? AND " + LIVE;
+
+    /** Statement deleting the records of a context. */
+    @Nonnull @NotEmpty private static final String DELETE_CONTEXT = "DELETE FROM " + TABLE + " WHERE context = ?";
+
+    /** Statement deleting the expired records of a context. */
+    @Nonnull @NotEmpty private static final String REAP =
+            "DELETE FROM " + TABLE + " WHERE context = ? AND expires <= ?";
+
+    /** Statement deleting every expired record. */
+    @Nonnull @NotEmpty private static final String DELETE_EXPIRED = "DELETE FROM " + TABLE + " WHERE expires <= ?";
+
+    /** SQL state of a numeric value out of range. */
+    @Nonnull @NotEmpty private static final String SQL_STATE_OUT_OF_RANGE = "22003";
+
+    /** SQL state of a value which can not be cast. */
+    @Nonnull @NotEmpty private static final String SQL_STATE_INVALID_CAST = "22018";
+
+    /** Number of keys fetched at a time while enumerating a context. */
+    private static final int KEY_CHUNK_SIZE = 256;
+
+    /** How long the writer waits for writes before checking whether it should stop, in milliseconds. */
+    private static final long WRITER_POLL_INTERVAL = 100;
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(JDBCStorageService.class);
+
+    /** Number of statements executed, each one a round trip to the database. */
+    @Nonnull private final AtomicLong roundTrips = new AtomicLong();
+
+    /** Number of transactions committed by the writer. */
+    @Nonnull private final AtomicLong transactions = new AtomicLong();
+
+    /** Number of writes applied by the writer. */
+    @Nonnull private final AtomicLong batchedWrites = new AtomicLong();
+
+    /** Number of batches which failed and were retried one write at a time. */
+    @Nonnull private final AtomicLong failedBatches = new AtomicLong();
+
+    /** Largest number of writes committed in one transaction. */
+    @Nonnull private final AtomicLong maxTransactionSize = new AtomicLong();
+
+    /** Time from queuing a write to its commit. */
+    @Nonnull private final LatencyHistogram commitLatency = new LatencyHistogram();
+
+    /** The database. */
+    @Nullable private DataSource dataSource;
+
+    /** Largest number of writes applied in one transaction. */
+    @Positive private int maxBatchSize;
+
+    /** Largest number of queued writes, beyond which writers block. */
+    @Positive private int queueCapacity;
+
+    /** Queued writes. */
+    @Nullable private BlockingQueue<Write> queue;
+
+    /** Thread applying queued writes. */
+    @Nullable private Thread writer;
+
+    /** Whether the writer should stop once the queue is empty. */
+    private volatile boolean stopping;
+
+    /** Whether the writer has stopped, after which writes still queued are failed rather than applied. */
+    private volatile boolean stopped;
+
+    /** Constructor. */
+    public JDBCStorageService() {
+        maxBatchSize = 256;
+        queueCapacity = 10000;
+        setContextSize(MAX_ID_LENGTH);
+        setKeySize(MAX_ID_LENGTH);
+    }
+
+    /**
+     * Set the database.
+     * 
+     * @param source the data source
+     */
+    public void setDataSource(@Nonnull final DataSource source) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        dataSource = Constraint.isNotNull(source, "DataSource cannot be null");
+    }
+
+    /**
+     * Get the largest number of writes applied in one transaction.
+     * 
+     * @return the maximum batch size
+     */
+    @Positive public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Set the largest number of writes applied in one transaction.
+     * 
+     * @param size the maximum batch size
+     */
+    public void setMaxBatchSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxBatchSize = (int) Constraint.isGreaterThan(0, size, "Maximum batch size must be greater than 0");
+    }
+
+    /**
+     * Get the largest number of queued writes.
+     * 
+     * @return the queue capacity
+     */
+    @Positive public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Set the largest number of queued writes, beyond which writers block.
+     * 
+     * @param capacity the queue capacity
+     */
+    public void setQueueCapacity(@Positive final int capacity) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        queueCapacity = (int) Constraint.isGreaterThan(0, capacity, "Queue capacity must be greater than 0");
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        if (dataSource == null) {
+            throw new ComponentInitializationException("DataSource cannot be null");
+        }
+        try {
+            createTable();
+        } catch (final SQLException e) {
+            throw new ComponentInitializationException("Unable to create table " + TABLE, e);
+        }
+        super.doInitialize();
+        queue = new LinkedBlockingQueue<>(queueCapacity);
+        writer = new Thread(new Runnable() {
+            public void run() {
+                runWriter();
+            }
+        }, "storage-jdbc-" + getId());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doDestroy() {
+        // The writer applies the writes still queued before it stops.
+        stopping = true;
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        super.doDestroy();
+    }
+
+    /** {@inheritDoc} */
+    @Override @Nullable protected TimerTask getCleanupTask() {
+        return new TimerTask() {
+            @Override public void run() {
+                try (final Connection connection = dataSource.getConnection();
+                        final PreparedStatement statement = connection.prepareStatement(DELETE_EXPIRED)) {
+                    statement.setLong(1, System.currentTimeMillis());
+                    final int deleted = execute(statement);
+                    if (deleted > 0) {
+                        log.debug("Storage service '{}' deleted {} expired records", getId(), deleted);
+                    }
+                } catch (final SQLException e) {
+                    log.error("Storage service '{}' unable to delete expired records", getId(), e);
+                }
+            }
+        };
+    }
+
+    /** {@inheritDoc} */
+    public boolean create(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        return submit(new Write(Operation.CREATE, context, key, value, expiration)) > 0;
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public StorageRecord read(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        try (final Connection connection = dataSource.getConnection();
+                final PreparedStatement statement = connection.prepareStatement(SELECT)) {
+            statement.setString(1, context);
+            statement.setString(2, key);
+            roundTrips.incrementAndGet();
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                final long expiration = resultSet.getLong(2);
+                final boolean expires = !resultSet.wasNull();
+                if (expires && expiration <= System.currentTimeMillis()) {
+                    return null;
+                }
+                return new VersionableStorageRecord(resultSet.getString(1), expires ? expiration : null,
+                        resultSet.getLong(3));
+            }
+        } catch (final SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull public Pair<Long, StorageRecord> read(@Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Positive final long version) throws IOException {
+        // Reading the value too costs a column transfer, not a round trip, so the version is not checked first.
+        final StorageRecord record = read(context, key);
+        if (record == null) {
+            return new Pair<>();
+        } else if (record.getVersion() == version) {
+            return new Pair<>(version, null);
+        }
+        return new Pair<>(record.getVersion(), record);
+    }
+
+    /** {@inheritDoc} */
+    public boolean update(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        return submit(new Write(Operation.UPDATE, context, key, value, expiration)) > 0;
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public Long updateWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nonnull @NotEmpty final String value,
+            @Nullable @Positive final Long expiration) throws IOException, VersionMismatchException {
+        try (final Connection connection = dataSource.getConnection();
+                final PreparedStatement statement = connection.prepareStatement(UPDATE_VERSION)) {
+            statement.setString(1, value);
+            setExpiration(statement, 2, expiration);
+            statement.setString(3, context);
+            statement.setString(4, key);
+            statement.setLong(5, version);
+            statement.setLong(6, System.currentTimeMillis());
+            if (execute(statement) > 0) {
+                return version + 1;
+            }
+            checkVersion(connection, context, key);
+            return null;
+        } catch (final SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean updateExpiration(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nullable @Positive final Long expiration) throws IOException {
+        return submit(new Write(Operation.UPDATE_EXPIRATION, context, key, null, expiration)) > 0;
+    }
+
+    /** {@inheritDoc} */
+    public boolean delete(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        return submit(new Write(Operation.DELETE, context, key, null, null)) > 0;
+    }
+
+    /** {@inheritDoc} */
+    public boolean deleteWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key) throws IOException, VersionMismatchException {
+        try (final Connection connection = dataSource.getConnection();
+                final PreparedStatement statement = connection.prepareStatement(DELETE_VERSION)) {
+            statement.setString(1, context);
+            statement.setString(2, key);
+            statement.setLong(3, version);
+            statement.setLong(4, System.currentTimeMillis());
+            if (execute(statement) > 0) {
+                return true;
+            }
+            checkVersion(connection, context, key);
+            return false;
+        } catch (final SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public long increment(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            final long delta, @Nullable @Positive final Long expiration) throws IOException {
+        for (int attempt = 0; attempt < AtomicStorageSupport.MAX_ATTEMPTS; attempt++) {
+            final StorageRecord record;
+            try {
+                record = updateAndRead(INCREMENT, context, key, delta, context, key, System.currentTimeMillis());
+            } catch (final SQLException e) {
+                if (SQL_STATE_OUT_OF_RANGE.equals(e.getSQLState())) {
+                    throw new ArithmeticException("Counter overflow adding " + delta + " to '" + key
+                            + "' in context '" + context + "'");
+                } else if (SQL_STATE_INVALID_CAST.equals(e.getSQLState())) {
+                    throw new NumberFormatException("Value of '" + key + "' in context '" + context
+                            + "' is not a number");
+                }
+                throw new IOException(e);
+            }
+            if (record != null) {
+                return Long.parseLong(record.getValue());
+            } else if (create(context, key, Long.toString(delta), expiration)) {
+                return delta;
+            }
+            // Created by another writer since the update, add to it.
+        }
+        throw new IOException("Unable to increment '" + key + "' in context '" + context + "' after "
+                + AtomicStorageSupport.MAX_ATTEMPTS + " attempts");
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public Long compareAndSet(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nullable final String expectedValue, @Nonnull @NotEmpty final String value,
+            @Nullable @Positive final Long expiration) throws IOException {
+        if (expectedValue == null) {
+            return create(context, key, value, expiration) ? Long.valueOf(1) : null;
+        }
+        try {
+            final StorageRecord record = updateAndRead(COMPARE_AND_SET, context, key, value, expiration, context, key,
+                    expectedValue, System.currentTimeMillis());
+            return record != null ? record.getVersion() : null;
+        } catch (final SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void reap(@Nonnull @NotEmpty final String context) throws IOException {
+        try (final Connection connection = dataSource.getConnection();
+                final PreparedStatement statement = connection.prepareStatement(REAP)) {
+            statement.setString(1, context);
+            statement.setLong(2, System.currentTimeMillis());
+            execute(statement);
+        } catch (final SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void updateContextExpiration(@Nonnull @NotEmpty final String context,
+            @Nullable @Positive final Long expiration) throws IOException {
+        try (final Connection connection = dataSource.getConnection();
+                final PreparedStatement statement = connection.prepareStatement(UPDATE_CONTEXT_EXPIRATION)) {
+            setExpiration(statement, 1, expiration);
+            statement.setString(2, context);
+            statement.setLong(3, System.currentTimeMillis());
+            execute(statement);
+        } catch (final SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void deleteContext(@Nonnull @NotEmpty final String context) throws IOException {
+        try (final Connection connection = dataSource.getConnection();
+                final PreparedStatement statement = connection.prepareStatement(DELETE_CONTEXT)) {
+            statement.setString(1, context);
+            execute(statement);
+        } catch (final SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull public Iterator<String> keys(@Nonnull @NotEmpty final String context, @Nullable final String afterKey)
+            throws IOException {
+        return new ChunkedKeyIterator(afterKey, KEY_CHUNK_SIZE) {
+            @Nonnull protected List<String> fetch(@Nullable final String lastKey) {
+                return fetchKeys(context, lastKey);
+            }
+        };
+    }
+
+    /**
+     * Fetch the next chunk of unexpired keys of a context.
+     * 
+     * @param context record context
+     * @param lastKey the key to start after, or null to start at the first key
+     * @return at most {@link #KEY_CHUNK_SIZE} keys
+     */
+    @Nonnull private List<String> fetchKeys(@Nonnull final String context, @Nullable final String lastKey) {
+        final List<String> keys = new ArrayList<>(KEY_CHUNK_SIZE);
+        try (final Connection connection = dataSource.getConnection();
+                final PreparedStatement statement = connection.prepareStatement(SELECT_KEYS)) {
+            statement.setMaxRows(KEY_CHUNK_SIZE);
+            statement.setString(1, context);
+            statement.setString(2, lastKey != null ? lastKey : "");
+            statement.setLong(3, System.currentTimeMillis());
+            roundTrips.incrementAndGet();
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    keys.add(resultSet.getString(1));
+                }
+            }
+        } catch (final SQLException e) {
+            throw new IllegalStateException("Unable to list keys of context '" + context + "'", e);
+        }
+        return keys;
+    }
+
+    /** {@inheritDoc} */
+    public void writeStatistics(@Nonnull final JsonGenerator gen, @Nonnull final String name) {
+        final long committed = transactions.get();
+        gen.writeStartObject(name);
+        gen.write("queued", queue != null ? queue.size() : 0);
+        gen.write("roundTrips", roundTrips.get());
+        gen.write("transactions", committed);
+        gen.write("batchedWrites", batchedWrites.get());
+        gen.write("averageTransactionSize", committed > 0 ? (double) batchedWrites.get() / committed : 0);
+        gen.write("maxTransactionSize", maxTransactionSize.get());
+        gen.write("failedBatches", failedBatches.get());
+        commitLatency.write(gen, "commitLatency");
+        gen.writeEnd();
+    }
+
+    /**
+     * Create the table and its expiration index if the table does not exist.
+     * 
+     * @throws SQLException if the database raises an error
+     */
+    private void createTable() throws SQLException {
+        try (final Connection connection = dataSource.getConnection()) {
+            final DatabaseMetaData metaData = connection.getMetaData();
+            for (final String name : new String[] {TABLE, TABLE.toUpperCase(), TABLE.toLowerCase()}) {
+                try (final ResultSet tables = metaData.getTables(null, null, name, null)) {
+                    if (tables.next()) {
+                        return;
+                    }
+                }
+            }
+            try (final Statement statement = connection.createStatement()) {
+                statement.executeUpdate(CREATE_TABLE);
+                statement.executeUpdate(CREATE_INDEX);
+            }
+            log.info("Storage service '{}' created table {}", getId(), TABLE);
+        }
+    }
+
+    /**
+     * Queue a write and wait until it is committed.
+     * 
+     * @param write the write
+     * @return the number of rows changed
+     * @throws IOException if the write fails or the wait is interrupted
+     */
+    private int submit(@Nonnull final Write write) throws IOException {
+        if (stopping) {
+            throw new IOException("Storage service '" + getId() + "' is stopping");
+        }
+        try {
+            while (!queue.offer(write, WRITER_POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                if (stopped) {
+                    throw new IOException("Storage service '" + getId() + "' has stopped");
+                }
+            }
+            // The writer may have stopped between the check above and queueing the write, after draining the queue.
+            while (!write.done.await(WRITER_POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                if (stopped && queue.remove(write)) {
+                    throw new IOException("Storage service '" + getId() + "' has stopped");
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a write to commit");
+        }
+        if (write.failure != null) {
+            throw new IOException(write.failure);
+        }
+        return write.count;
+    }
+
+    /** Apply queued writes in batches until stopped and the queue is empty, then fail writes queued since. */
+    private void runWriter() {
+        try {
+            applyQueuedWrites();
+        } finally {
+            stopped = true;
+            final List<Write> leftovers = new ArrayList<>();
+            queue.drainTo(leftovers);
+            if (!leftovers.isEmpty()) {
+                log.warn("Storage service '{}' failing {} writes queued after its writer stopped", getId(),
+                        leftovers.size());
+                final IOException failure = new IOException("Storage service '" + getId() + "' has stopped");
+                for (final Write write : leftovers) {
+                    write.fail(failure);
+                }
+            }
+        }
+    }
+
+    /** Apply queued writes in batches until stopped and the queue is empty. */
+    private void applyQueuedWrites() {
+        final List<Write> batch = new ArrayList<>(maxBatchSize);
+        while (!stopping || !queue.isEmpty()) {
+            try {
+                final Write first = queue.poll(WRITER_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (final InterruptedException e) {
+                // Not interrupted by this class, keep going until stopped.
+                continue;
+            }
+            queue.drainTo(batch, maxBatchSize - 1);
+            try {
+                applyBatch(batch);
+            } catch (final SQLException e) {
+                log.warn("Storage service '{}' unable to apply a batch of {} writes, retrying one at a time", getId(),
+                        batch.size(), e);
+                failedBatches.incrementAndGet();
+                for (final Write write : batch) {
+                    try {
+                        applyBatch(Collections.singletonList(write));
+                    } catch (final SQLException | RuntimeException writeFailure) {
+                        write.fail(writeFailure);
+                    }
+                }
+            } catch (final RuntimeException e) {
+                log.error("Storage service '{}' unable to apply a batch of {} writes", getId(), batch.size(), e);
+                for (final Write write : batch) {
+                    write.fail(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Apply writes in one transaction, each run of writes of the same operation as one JDBC batch, and complete them
+     * once committed.
+     * 
+     * @param writes the writes, in the order they were queued
+     * @throws SQLException if the database raises an error, in which case none of the writes is applied
+     */
+    private void applyBatch(@Nonnull final List<Write> writes) throws SQLException {
+        final long now = System.currentTimeMillis();
+        final int[] counts = new int[writes.size()];
+        try (final Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                int start = 0;
+                while (start < writes.size()) {
+                    final Operation operation = writes.get(start).operation;
+                    int end = start + 1;
+                    while (end < writes.size() && writes.get(end).operation == operation) {
+                        end++;
+                    }
+                    final int[] runCounts = applyRun(connection, operation, writes.subList(start, end), now);
+                    System.arraycopy(runCounts, 0, counts, start, runCounts.length);
+                    start = end;
+                }
+                connection.commit();
+                roundTrips.incrementAndGet();
+            } catch (final SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+
+        transactions.incrementAndGet();
+        batchedWrites.addAndGet(writes.size());
+        long max = maxTransactionSize.get();
+        while (writes.size() > max && !maxTransactionSize.compareAndSet(max, writes.size())) {
+            max = maxTransactionSize.get();
+        }
+        final long committed = System.nanoTime();
+        for (int i = 0; i < writes.size(); i++) {
+            commitLatency.record(committed - writes.get(i).queued);
+            writes.get(i).complete(counts[i]);
+        }
+    }
+
+    /**
+     * Apply a run of writes of the same operation as a JDBC batch.
+     * 
+     * @param connection the connection, in a transaction
+     * @param operation the operation of the writes
+     * @param writes the writes
+     * @param now the current time
+     * @return the number of rows changed by each write
+     * @throws SQLException if the database raises an error
+     */
+    @Nonnull private int[] applyRun(@Nonnull final Connection connection, @Nonnull final Operation operation,
+            @Nonnull final List<Write> writes, final long now) throws SQLException {
+        if (operation == Operation.CREATE) {
+            // Expired records do not prevent a create, delete them first.
+            try (final PreparedStatement statement = connection.prepareStatement(DELETE_EXPIRED_RECORD)) {
+                for (final Write write : writes) {
+                    statement.setString(1, write.context);
+                    statement.setString(2, write.key);
+                    statement.setLong(3, now);
+                    statement.addBatch();
+                }
+                executeBatch(statement);
+            }
+        }
+
+        try (final PreparedStatement statement = connection.prepareStatement(operation.sql)) {
+            for (final Write write : writes) {
+                switch (operation) {
+                    case CREATE:
+                        statement.setString(1, write.context);
+                        statement.setString(2, write.key);
+                        setExpiration(statement, 3, write.expiration);
+                        statement.setString(4, write.value);
+                        statement.setString(5, write.context);
+                        statement.setString(6, write.key);
+                        break;
+                    case UPDATE:
+                        statement.setString(1, write.value);
+                        setExpiration(statement, 2, write.expiration);
+                        statement.setString(3, write.context);
+                        statement.setString(4, write.key);
+                        statement.setLong(5, now);
+                        break;
+                    case UPDATE_EXPIRATION:
+                        setExpiration(statement, 1, write.expiration);
+                        statement.setString(2, write.context);
+                        statement.setString(3, write.key);
+                        statement.setLong(4, now);
+                        break;
+                    case DELETE:
+                        statement.setString(1, write.context);
+                        statement.setString(2, write.key);
+                        statement.setLong(3, now);
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown operation " + operation);
+                }
+                statement.addBatch();
+            }
+            final int[] counts = executeBatch(statement);
+            for (int i = 0; i < counts.length; i++) {
+                // Drivers may report success without a count, which only happens for a changed row.
+                if (counts[i] == Statement.SUCCESS_NO_INFO) {
+                    counts[i] = 1;
+                }
+            }
+            return counts;
+        }
+    }
+
+    /**
+     * Distinguish a record at another version from a missing record after a versioned write changed no row.
+     * 
+     * @param connection the connection
+     * @param context record context
+     * @param key record key
+     * @throws SQLException if the database raises an error
+     * @throws VersionMismatchException if the record exists
+     */
+    private void checkVersion(@Nonnull final Connection connection, @Nonnull final String context,
+            @Nonnull final String key) throws SQLException, VersionMismatchException {
+        try (final PreparedStatement statement = connection.prepareStatement(SELECT_VERSION)) {
+            statement.setString(1, context);
+            statement.setString(2, key);
+            statement.setLong(3, System.currentTimeMillis());
+            roundTrips.incrementAndGet();
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    throw new VersionMismatchException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Update a record and read back its value and version in one transaction, so that the row lock taken by the
+     * update keeps other writers out until the record is read.
+     * 
+     * @param update the update statement
+     * @param context record context
+     * @param key record key
+     * @param parameters the parameters of the update, strings or numbers, a null number being a null expiration
+     * @return the updated record, without expiration, or null if the update changed no row
+     * @throws SQLException if the database raises an error
+     */
+    @Nullable private StorageRecord updateAndRead(@Nonnull final String update, @Nonnull final String context,
+            @Nonnull final String key, @Nonnull final Object... parameters) throws SQLException {
+        try (final Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                StorageRecord record = null;
+                try (final PreparedStatement statement = connection.prepareStatement(update)) {
+                    for (int i = 0; i < parameters.length; i++) {
+                        if (parameters[i] instanceof String) {
+                            statement.setString(i + 1, (String) parameters[i]);
+                        } else {
+                            setExpiration(statement, i + 1, (Long) parameters[i]);
+                        }
+                    }
+                    if (execute(statement) > 0) {
+                        record = readValueAndVersion(connection, context, key);
+                    }
+                }
+                connection.commit();
+                roundTrips.incrementAndGet();
+                return record;
+            } catch (final SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Read the value and version of a record.
+     * 
+     * @param connection the connection
+     * @param context record context
+     * @param key record key
+     * @return the record, without expiration, or null if it does not exist
+     * @throws SQLException if the database raises an error
+     */
+    @Nullable private StorageRecord readValueAndVersion(@Nonnull final Connection connection,
+            @Nonnull final String context, @Nonnull final String key) throws SQLException {
+        try (final PreparedStatement statement = connection.prepareStatement(SELECT_VALUE_VERSION)) {
+            statement.setString(1, context);
+            statement.setString(2, key);
+            roundTrips.incrementAndGet();
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? new VersionableStorageRecord(resultSet.getString(1), null,
+                        resultSet.getLong(2)) : null;
+            }
+        }
+    }
+
+    /**
+     * Execute an update statement, counting the round trip.
+     * 
+     * @param statement the statement
+     * @return the number of rows changed
+     * @throws SQLException if the database raises an error
+     */
+    private int execute(@Nonnull final PreparedStatement statement) throws SQLException {
+        roundTrips.incrementAndGet();
+        return statement.executeUpdate();
+    }
+
+    /**
+     * Execute a batch, counting the round trip.
+     * 
+     * @param statement the statement
+     * @return the number of rows changed by each statement of the batch
+     * @throws SQLException if the database raises an error
+     */
+    @Nonnull private int[] executeBatch(@Nonnull final PreparedStatement statement) throws SQLException {
+        roundTrips.incrementAndGet();
+        return statement.executeBatch();
+    }
+
+    /**
+     * Set an expiration parameter.
+     * 
+     * @param statement the statement
+     * @param index the parameter index
+     * @param expiration the expiration, or null if none
+     * @throws SQLException if the database raises an error
+     */
+    private static void setExpiration(@Nonnull final PreparedStatement statement, final int index,
+            @Nullable final Long expiration) throws SQLException {
+        if (expiration != null) {
+            statement.setLong(index, expiration);
+        } else {
+            statement.setNull(index, Types.BIGINT);
+        }
+    }
+
+    /** The group-committed write operations. */
+    private enum Operation {
+
+        /** Create a record. */
+        CREATE(INSERT),
+
+        /** Update the value and expiration of a record. */
+        UPDATE(JDBCStorageService.UPDATE),
+
+        /** Update the expiration of a record. */
+        UPDATE_EXPIRATION(JDBCStorageService.UPDATE_EXPIRATION),
+
+        /** Delete a record. */
+        DELETE(JDBCStorageService.DELETE);
+
+        /** Statement of the operation. */
+        @Nonnull private final String sql;
+
+        /**
+         * Constructor.
+         * 
+         * @param statement statement of the operation
+         */
+        private Operation(@Nonnull final String statement) {
+            sql = statement;
+        }
+    }
+
+    /** A queued write, completed by the writer. */
+    private static final class Write {
+
+        /** Operation. */
+        @Nonnull private final Operation operation;
+
+        /** Record context. */
+        @Nonnull private final String context;
+
+        /** Record key. */
+        @Nonnull private final String key;
+
+        /** Record value, or null if the operation has none. */
+        @Nullable private final String value;
+
+        /** Record expiration, or null if none. */
+        @Nullable private final Long expiration;
+
+        /** Time the write was queued, in nanoseconds. */
+        private final long queued;
+
+        /** Released once the write is committed or has failed. */
+        @Nonnull private final CountDownLatch done;
+
+        /** Number of rows changed, visible once done. */
+        private int count;
+
+        /** Failure, visible once done. */
+        @Nullable private Exception failure;
+
+        /**
+         * Constructor.
+         * 
+         * @param op operation
+         * @param ctx record context
+         * @param k record key
+         * @param val record value, or null if the operation has none
+         * @param exp record expiration, or null if none
+         */
+        private Write(@Nonnull final Operation op, @Nonnull final String ctx, @Nonnull final String k,
+                @Nullable final String val, @Nullable final Long exp) {
+            operation = op;
+            context = ctx;
+            key = k;
+            value = val;
+            expiration = exp;
+            queued = System.nanoTime();
+            done = new CountDownLatch(1);
+        }
+
+        /**
+         * Complete the write.
+         * 
+         * @param rows number of rows changed
+         */
+        private void complete(final int rows) {
+            count = rows;
+            done.countDown();
+        }
+
+        /**
+         * Fail the write.
+         * 
+         * @param e the failure
+         */
+        private void fail(@Nonnull final Exception e) {
+            failure = e;
+            done.countDown();
+        }
+    }
+
+}
@@ -0,0 +1,1099 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.storage.AbstractStorageService;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.VersionMismatchException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.collection.Pair;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * {@link org.opensaml.storage.StorageService} persisted in an append-only, memory-mapped log file, so that records
+ * survive a restart.
+ * 
+ * The log is a header followed by records, each being its length, a CRC-32 of its body and a body holding the
+ * operation, version, expiration, context, key and value. The file grows in fixed-size segments, each mapped into
+ * memory when first needed; a record never spans segments. The body of a record is written before its length, so a
+ * record interrupted by a crash is seen as the end of the log.
+ * 
+ * An in-memory index maps each context and key to the position of the current value in the log, so values are read
+ * from the mapped file rather than held on the heap. Keys are kept ordered, so a context can be enumerated from any
+ * key. At startup the index is rebuilt by reading the log sequentially,
+ * stopping at the first incomplete or corrupt record.
+ * 
+ * Counter increments and compare-and-set are native: they read and write the record under the write lock which
+ * already serializes every write to the log, so they never retry.
+ * 
+ * The cleanup task drops expired records from the index, flushes the mapped segments to disk and, once expired and
+ * superseded records take up more than {@link #getCompactionRatio()} of the log and at least a segment, compacts the
+ * log by writing the live records to a new file which replaces it.
+ */
+public class MappedLogStorageService extends AbstractStorageService
+        implements EnumerableStorageService, AtomicStorageService {
+
+    /** Magic number at the start of the log, "SLOG". */
+    private static final int MAGIC = 0x534c4f47;
+
+    /** Format version of the log. */
+    private static final int FORMAT_VERSION = 1;
+
+    /** Length of the log header, holding the magic number, format version and segment size. */
+    private static final int HEADER_LENGTH = 16;
+
+    /** Length of a record header, holding the body length and CRC. */
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    /** Length of the fixed part of a record body, the operation, version, expiration and three string lengths. */
+    private static final int BODY_FIXED_LENGTH = 29;
+
+    /** Record length marking the rest of a segment as unused. */
+    private static final int SKIP = -1;
+
+    /** Operation creating or replacing a record. */
+    private static final byte PUT = 1;
+
+    /** Operation deleting a record. */
+    private static final byte DELETE = 2;
+
+    /** Operation deleting a context. */
+    private static final byte DELETE_CONTEXT = 3;
+
+    /** Operation updating the expiration of a context. */
+    private static final byte CONTEXT_EXPIRATION = 4;
+
+    /** Number of keys fetched at once when enumerating a context. */
+    private static final int KEY_CHUNK_SIZE = 256;
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(MappedLogStorageService.class);
+
+    /** Guards the index and the log; reads share it, changes hold it exclusively. */
+    @Nonnull private final ReadWriteLock lock;
+
+    /** Checksum used when writing records, guarded by the write lock. */
+    @Nonnull private final CRC32 crc;
+
+    /** The log file. */
+    @Nullable private File file;
+
+    /** Size of the segments of a new log. */
+    @Positive private int segmentSize;
+
+    /** Fraction of the log that may be taken by dead records before it is compacted. */
+    private double compactionRatio;
+
+    /** The open log. */
+    @Nullable private MappedLog mappedLog;
+
+    /** Map of contexts to keys to entries. */
+    @Nullable private Map<String, NavigableMap<String, Entry>> index;
+
+    /** Number of bytes of the log taken by live records. */
+    private long liveBytes;
+
+    /** Buffer used to encode records, guarded by the write lock. */
+    @Nonnull private ByteBuffer buffer;
+
+    /** Constructor. */
+    public MappedLogStorageService() {
+        lock = new ReentrantReadWriteLock();
+        crc = new CRC32();
+        segmentSize = 16 * 1024 * 1024;
+        compactionRatio = 0.5;
+        buffer = ByteBuffer.allocate(4096);
+    }
+
+    /**
+     * Get the log file.
+     * 
+     * @return the log file
+     */
+    @Nullable public File getFile() {
+        return file;
+    }
+
+    /**
+     * Set the log file, created if it does not exist.
+     * 
+     * @param logFile the log file
+     */
+    public void setFile(@Nonnull final File logFile) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        file = Constraint.isNotNull(logFile, "Log file cannot be null");
+    }
+
+    /**
+     * Get the size of the segments of a new log.
+     * 
+     * @return the segment size in bytes
+     */
+    @Positive public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Set the size of the segments of a new log, which bounds the size of a record. An existing log keeps the segment
+     * size it was created with.
+     * 
+     * @param size the segment size in bytes, a multiple of 4096
+     */
+    public void setSegmentSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        Constraint.isTrue(size > 0 && size % 4096 == 0, "Segment size must be a positive multiple of 4096");
+        segmentSize = size;
+    }
+
+    /**
+     * Get the fraction of the log that may be taken by dead records before it is compacted.
+     * 
+     * @return the compaction ratio
+     */
+    public double getCompactionRatio() {
+        return compactionRatio;
+    }
+
+    /**
+     * Set the fraction of the log that may be taken by dead records before it is compacted.
+     * 
+     * @param ratio the compaction ratio, between 0 and 1
+     */
+    public void setCompactionRatio(final double ratio) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        Constraint.isTrue(ratio > 0 && ratio < 1, "Compaction ratio must be between 0 and 1");
+        compactionRatio = ratio;
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        if (file == null) {
+            throw new ComponentInitializationException("Log file cannot be null");
+        }
+        try {
+            open();
+        } catch (final IOException e) {
+            throw new ComponentInitializationException("Unable to open storage log " + file, e);
+        }
+        super.doInitialize();
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doDestroy() {
+        super.doDestroy();
+        lock.writeLock().lock();
+        try {
+            if (mappedLog != null) {
+                mappedLog.force();
+                mappedLog.close();
+                mappedLog = null;
+            }
+            index = null;
+        } catch (final IOException e) {
+            log.error("Storage service '{}' unable to close storage log {}", getId(), file, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override @Nullable protected TimerTask getCleanupTask() {
+        return new TimerTask() {
+            @Override public void run() {
+                try {
+                    cleanup();
+                } catch (final IOException e) {
+                    log.error("Storage service '{}' unable to clean up storage log {}", getId(), file, e);
+                }
+            }
+        };
+    }
+
+    /** {@inheritDoc} */
+    public boolean create(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (getLive(context, key) != null) {
+                return false;
+            }
+            put(context, key, value, 1, expiration != null ? expiration : 0);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public StorageRecord read(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        lock.readLock().lock();
+        try {
+            final Entry entry = getLive(context, key);
+            return entry != null ? toRecord(entry) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull public Pair<Long, StorageRecord> read(@Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Positive final long version) throws IOException {
+        lock.readLock().lock();
+        try {
+            final Entry entry = getLive(context, key);
+            if (entry == null) {
+                return new Pair<>();
+            } else if (entry.version == version) {
+                return new Pair<>(version, null);
+            }
+            return new Pair<>(entry.version, toRecord(entry));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean update(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        try {
+            return doUpdate(null, context, key, value, expiration) != null;
+        } catch (final VersionMismatchException e) {
+            throw new IllegalStateException("Unversioned update reported a version mismatch", e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public Long updateWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nonnull @NotEmpty final String value,
+            @Nullable @Positive final Long expiration) throws IOException, VersionMismatchException {
+        return doUpdate(version, context, key, value, expiration);
+    }
+
+    /** {@inheritDoc} */
+    public boolean updateExpiration(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nullable @Positive final Long expiration) throws IOException {
+        try {
+            return doUpdate(null, context, key, null, expiration) != null;
+        } catch (final VersionMismatchException e) {
+            throw new IllegalStateException("Unversioned update reported a version mismatch", e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean delete(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        try {
+            return doDelete(null, context, key);
+        } catch (final VersionMismatchException e) {
+            throw new IllegalStateException("Unversioned delete reported a version mismatch", e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean deleteWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key) throws IOException, VersionMismatchException {
+        return doDelete(version, context, key);
+    }
+
+    /** {@inheritDoc} */
+    public long increment(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            final long delta, @Nullable @Positive final Long expiration) throws IOException {
+        lock.writeLock().lock();
+        try {
+            final Entry entry = getLive(context, key);
+            if (entry == null) {
+                put(context, key, Long.toString(delta), 1, expiration != null ? expiration : 0);
+                return delta;
+            }
+            final long value = AtomicStorageSupport.add(Long.parseLong(mappedLog.readValue(entry)), delta);
+            put(context, key, Long.toString(value), entry.version + 1, entry.expiration);
+            return value;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public Long compareAndSet(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nullable final String expectedValue, @Nonnull @NotEmpty final String value,
+            @Nullable @Positive final Long expiration) throws IOException {
+        lock.writeLock().lock();
+        try {
+            final Entry entry = getLive(context, key);
+            final long exp = expiration != null ? expiration : 0;
+            if (expectedValue == null) {
+                return entry == null ? Long.valueOf(put(context, key, value, 1, exp).version) : null;
+            } else if (entry == null || !expectedValue.equals(mappedLog.readValue(entry))) {
+                return null;
+            }
+            return put(context, key, value, entry.version + 1, exp).version;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void reap(@Nonnull @NotEmpty final String context) throws IOException {
+        lock.writeLock().lock();
+        try {
+            final NavigableMap<String, Entry> keyMap = index.get(context);
+            if (keyMap != null) {
+                reap(keyMap, System.currentTimeMillis());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void updateContextExpiration(@Nonnull @NotEmpty final String context,
+            @Nullable @Positive final Long expiration) throws IOException {
+        lock.writeLock().lock();
+        try {
+            final NavigableMap<String, Entry> keyMap = index.get(context);
+            if (keyMap == null) {
+                return;
+            }
+            final long exp = expiration != null ? expiration : 0;
+            append(CONTEXT_EXPIRATION, 0, exp, context, "", "");
+            reap(keyMap, System.currentTimeMillis());
+            for (final Map.Entry<String, Entry> mapEntry : keyMap.entrySet()) {
+                mapEntry.setValue(mapEntry.getValue().withExpiration(exp));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void deleteContext(@Nonnull @NotEmpty final String context) throws IOException {
+        lock.writeLock().lock();
+        try {
+            final NavigableMap<String, Entry> keyMap = index.remove(context);
+            if (keyMap != null) {
+                append(DELETE_CONTEXT, 0, 0, context, "", "");
+                for (final Entry entry : keyMap.values()) {
+                    liveBytes -= entry.recordLength;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull public Iterator<String> keys(@Nonnull @NotEmpty final String context, @Nullable final String afterKey)
+            throws IOException {
+        return new ChunkedKeyIterator(afterKey, KEY_CHUNK_SIZE) {
+            @Nonnull protected List<String> fetch(@Nullable final String lastKey) {
+                return fetchKeys(context, lastKey);
+            }
+        };
+    }
+
+    /**
+     * Fetch the next chunk of unexpired keys of a context under the read lock.
+     * 
+     * @param context record context
+     * @param lastKey the key to start after, or null to start at the first key
+     * @return at most {@link #KEY_CHUNK_SIZE} keys
+     */
+    @Nonnull private List<String> fetchKeys(@Nonnull final String context, @Nullable final String lastKey) {
+        final List<String> keys = new ArrayList<>(KEY_CHUNK_SIZE);
+        lock.readLock().lock();
+        try {
+            final NavigableMap<String, Entry> keyMap = index != null ? index.get(context) : null;
+            if (keyMap != null) {
+                final long now = System.currentTimeMillis();
+                final Map<String, Entry> tail = lastKey != null ? keyMap.tailMap(lastKey, false) : keyMap;
+                for (final Map.Entry<String, Entry> mapEntry : tail.entrySet()) {
+                    if (keys.size() == KEY_CHUNK_SIZE) {
+                        break;
+                    } else if (!mapEntry.getValue().isExpired(now)) {
+                        keys.add(mapEntry.getKey());
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return keys;
+    }
+
+    /**
+     * Update the value and expiration of a record, or only its expiration, optionally checking its version.
+     * 
+     * @param version the version to check, or null to skip the check
+     * @param context record context
+     * @param key record key
+     * @param value the new value, or null to only update the expiration
+     * @param expiration the new expiration or null if none
+     * @return the new version of the record, or null if the record does not exist
+     * @throws IOException if the log cannot be written
+     * @throws VersionMismatchException if the record has a different version
+     */
+    @Nullable private Long doUpdate(@Nullable final Long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nullable final String value, @Nullable final Long expiration)
+                    throws IOException, VersionMismatchException {
+        lock.writeLock().lock();
+        try {
+            final Entry entry = getLive(context, key);
+            if (entry == null) {
+                return null;
+            } else if (version != null && entry.version != version) {
+                throw new VersionMismatchException();
+            }
+            final long exp = expiration != null ? expiration : 0;
+            if (value != null) {
+                return put(context, key, value, entry.version + 1, exp).version;
+            }
+            return put(context, key, mappedLog.readValue(entry), entry.version, exp).version;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Delete a record, optionally checking its version.
+     * 
+     * @param version the version to check, or null to skip the check
+     * @param context record context
+     * @param key record key
+     * @return true if the record was deleted, false if it does not exist
+     * @throws IOException if the log cannot be written
+     * @throws VersionMismatchException if the record has a different version
+     */
+    private boolean doDelete(@Nullable final Long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key) throws IOException, VersionMismatchException {
+        lock.writeLock().lock();
+        try {
+            final Entry entry = getLive(context, key);
+            if (entry == null) {
+                return false;
+            } else if (version != null && entry.version != version) {
+                throw new VersionMismatchException();
+            }
+            append(DELETE, 0, 0, context, key, "");
+            index.get(context).remove(key);
+            liveBytes -= entry.recordLength;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the unexpired entry for a record. The caller must hold the lock.
+     * 
+     * @param context record context
+     * @param key record key
+     * @return the entry, or null if it does not exist or has expired
+     */
+    @Nullable private Entry getLive(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key) {
+        final NavigableMap<String, Entry> keyMap = index.get(context);
+        if (keyMap == null) {
+            return null;
+        }
+        final Entry entry = keyMap.get(key);
+        return entry != null && !entry.isExpired(System.currentTimeMillis()) ? entry : null;
+    }
+
+    /**
+     * Get a storage record for an entry. The caller must hold the lock.
+     * 
+     * @param entry the entry
+     * @return a storage record
+     */
+    @Nonnull private StorageRecord toRecord(@Nonnull final Entry entry) {
+        return new VersionableStorageRecord(mappedLog.readValue(entry),
+                entry.expiration != 0 ? entry.expiration : null, entry.version);
+    }
+
+    /**
+     * Write a record to the log and the index. The caller must hold the write lock.
+     * 
+     * @param context record context
+     * @param key record key
+     * @param value record value
+     * @param version record version
+     * @param expiration record expiration or 0 if none
+     * @return the new entry
+     * @throws IOException if the log cannot be written
+     */
+    @Nonnull private Entry put(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull final String value, final long version, final long expiration) throws IOException {
+        final Entry entry = append(PUT, version, expiration, context, key, value);
+        NavigableMap<String, Entry> keyMap = index.get(context);
+        if (keyMap == null) {
+            keyMap = new TreeMap<>();
+            index.put(context, keyMap);
+        }
+        final Entry previous = keyMap.put(key, entry);
+        if (previous != null) {
+            liveBytes -= previous.recordLength;
+        }
+        liveBytes += entry.recordLength;
+        return entry;
+    }
+
+    /**
+     * Remove the expired entries of a context from the index. The caller must hold the write lock.
+     * 
+     * @param keyMap the entries of the context
+     * @param now the current time
+     */
+    private void reap(@Nonnull final Map<String, Entry> keyMap, final long now) {
+        final Iterator<Entry> entries = keyMap.values().iterator();
+        while (entries.hasNext()) {
+            final Entry entry = entries.next();
+            if (entry.isExpired(now)) {
+                entries.remove();
+                liveBytes -= entry.recordLength;
+            }
+        }
+    }
+
+    /**
+     * Encode a record and append it to the log. The caller must hold the write lock.
+     * 
+     * @param op the operation
+     * @param version record version
+     * @param expiration record expiration or 0 if none
+     * @param context record context
+     * @param key record key, or empty
+     * @param value record value, or empty
+     * @return an entry for the record
+     * @throws IOException if the log cannot be written
+     */
+    @Nonnull private Entry append(final byte op, final long version, final long expiration,
+            @Nonnull final String context, @Nonnull final String key, @Nonnull final String value)
+                    throws IOException {
+        return append(mappedLog, op, version, expiration, context, key, value);
+    }
+
+    /**
+     * Encode a record and append it to a log. The caller must hold the write lock.
+     * 
+     * @param target the log
+     * @param op the operation
+     * @param version record version
+     * @param expiration record expiration or 0 if none
+     * @param context record context
+     * @param key record key, or empty
+     * @param value record value, or empty
+     * @return an entry for the record
+     * @throws IOException if the log cannot be written
+     */
+    @Nonnull private Entry append(@Nonnull final MappedLog target, final byte op, final long version,
+            final long expiration, @Nonnull final String context, @Nonnull final String key,
+            @Nonnull final String value) throws IOException {
+        final byte[] contextBytes = context.getBytes(StandardCharsets.UTF_8);
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        final int length = BODY_FIXED_LENGTH + contextBytes.length + keyBytes.length + valueBytes.length;
+        if (buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+        }
+        buffer.clear();
+        buffer.put(op).putLong(version).putLong(expiration);
+        buffer.putInt(contextBytes.length).put(contextBytes);
+        buffer.putInt(keyBytes.length).put(keyBytes);
+        buffer.putInt(valueBytes.length).put(valueBytes);
+        crc.reset();
+        crc.update(buffer.array(), 0, length);
+
+        final long position = target.append(buffer.array(), length, (int) crc.getValue());
+        final long valuePosition = position + RECORD_HEADER_LENGTH + length - valueBytes.length;
+        return new Entry(valuePosition, valueBytes.length, align(RECORD_HEADER_LENGTH + length), version,
+                expiration);
+    }
+
+    /**
+     * Open the log file, creating it or rebuilding the index from it.
+     * 
+     * @throws IOException if the log cannot be opened or is not a storage log
+     */
+    private void open() throws IOException {
+        final Path path = file.toPath().toAbsolutePath();
+        Files.createDirectories(path.getParent());
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            index = new HashMap<>();
+            liveBytes = 0;
+            if (channel.size() == 0) {
+                mappedLog = MappedLog.create(channel, segmentSize);
+                log.info("Storage service '{}' created storage log {}", getId(), file);
+            } else {
+                mappedLog = MappedLog.open(channel);
+                replay();
+            }
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Rebuild the index by reading the log sequentially, dropping expired records and stopping at the first incomplete
+     * or corrupt record.
+     * 
+     * @throws IOException if the log cannot be read
+     */
+    private void replay() throws IOException {
+        final long start = System.currentTimeMillis();
+        final int size = mappedLog.segmentSize;
+        final long end = mappedLog.channel.size();
+        final CRC32 check = new CRC32();
+        long position = HEADER_LENGTH;
+        long records = 0;
+        while (position < end) {
+            final MappedByteBuffer segment = mappedLog.segment((int) (position / size));
+            final int offset = (int) (position % size);
+            final int length = segment.getInt(offset);
+            if (length == 0) {
+                break;
+            } else if (length == SKIP) {
+                position += size - offset;
+                continue;
+            } else if (length < BODY_FIXED_LENGTH || offset + RECORD_HEADER_LENGTH + length > size) {
+                log.warn("Storage service '{}' found invalid record length at {} of storage log {}", getId(),
+                        position, file);
+                mappedLog.truncate(position);
+                break;
+            }
+
+            final ByteBuffer body = segment.duplicate();
+            body.position(offset + RECORD_HEADER_LENGTH);
+            body.limit(offset + RECORD_HEADER_LENGTH + length);
+            final byte[] bytes = new byte[length];
+            body.get(bytes);
+            check.reset();
+            check.update(bytes);
+            if ((int) check.getValue() != segment.getInt(offset + 4)) {
+                log.warn("Storage service '{}' found corrupt record at {} of storage log {}", getId(), position,
+                        file);
+                mappedLog.truncate(position);
+                break;
+            }
+            apply(position, ByteBuffer.wrap(bytes), start);
+            records++;
+            position += align(RECORD_HEADER_LENGTH + length);
+        }
+        mappedLog.position = position;
+        log.info("Storage service '{}' replayed {} records of storage log {} in {} ms, {} of {} bytes live", getId(),
+                records, file, System.currentTimeMillis() - start, liveBytes, position);
+    }
+
+    /**
+     * Apply a record read from the log to the index.
+     * 
+     * @param position position of the record in the log
+     * @param body the record body
+     * @param now the current time
+     */
+    private void apply(final long position, @Nonnull final ByteBuffer body, final long now) {
+        final int length = body.remaining();
+        final byte op = body.get();
+        final long version = body.getLong();
+        final long expiration = body.getLong();
+        final String context = readString(body);
+        final String key = readString(body);
+        final int valueLength = body.getInt();
+
+        NavigableMap<String, Entry> keyMap = index.get(context);
+        if (op == PUT) {
+            if (keyMap == null) {
+                keyMap = new TreeMap<>();
+                index.put(context, keyMap);
+            }
+            final Entry entry = new Entry(position + RECORD_HEADER_LENGTH + length - valueLength, valueLength,
+                    align(RECORD_HEADER_LENGTH + length), version, expiration);
+            final Entry previous = entry.isExpired(now) ? keyMap.remove(key) : keyMap.put(key, entry);
+            if (previous != null) {
+                liveBytes -= previous.recordLength;
+            }
+            if (!entry.isExpired(now)) {
+                liveBytes += entry.recordLength;
+            }
+        } else if (keyMap == null) {
+            return;
+        } else if (op == DELETE) {
+            final Entry previous = keyMap.remove(key);
+            if (previous != null) {
+                liveBytes -= previous.recordLength;
+            }
+        } else if (op == DELETE_CONTEXT) {
+            index.remove(context);
+            for (final Entry entry : keyMap.values()) {
+                liveBytes -= entry.recordLength;
+            }
+        } else if (op == CONTEXT_EXPIRATION) {
+            for (final Map.Entry<String, Entry> mapEntry : keyMap.entrySet()) {
+                mapEntry.setValue(mapEntry.getValue().withExpiration(expiration));
+            }
+            reap(keyMap, now);
+        }
+    }
+
+    /**
+     * Drop expired records from the index, compact the log if needed and flush it to disk.
+     * 
+     * @throws IOException if the log cannot be compacted or flushed
+     */
+    private void cleanup() throws IOException {
+        final List<MappedByteBuffer> segments;
+        lock.writeLock().lock();
+        try {
+            if (mappedLog == null) {
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            for (final NavigableMap<String, Entry> keyMap : index.values()) {
+                reap(keyMap, now);
+            }
+            final long dead = mappedLog.position - HEADER_LENGTH - liveBytes;
+            if (dead >= mappedLog.segmentSize && dead > compactionRatio * (mappedLog.position - HEADER_LENGTH)) {
+                compact();
+            }
+            segments = new ArrayList<>(mappedLog.segments);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (final MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Write the live records to a new log which then replaces the current one. The caller must hold the write lock.
+     * 
+     * @throws IOException if the new log cannot be written
+     */
+    private void compact() throws IOException {
+        final long start = System.currentTimeMillis();
+        final long before = mappedLog.position;
+        final Path path = file.toPath();
+        final Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        final MappedLog target = MappedLog.create(FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE),
+                mappedLog.segmentSize);
+        final Map<String, NavigableMap<String, Entry>> compactedIndex = new HashMap<>();
+        long compactedLiveBytes = 0;
+        try {
+            for (final Map.Entry<String, NavigableMap<String, Entry>> context : index.entrySet()) {
+                final NavigableMap<String, Entry> keyMap = new TreeMap<>();
+                for (final Map.Entry<String, Entry> mapEntry : context.getValue().entrySet()) {
+                    final Entry entry = mapEntry.getValue();
+                    final Entry copy = append(target, PUT, entry.version, entry.expiration, context.getKey(),
+                            mapEntry.getKey(), mappedLog.readValue(entry));
+                    keyMap.put(mapEntry.getKey(), copy);
+                    compactedLiveBytes += copy.recordLength;
+                }
+                if (!keyMap.isEmpty()) {
+                    compactedIndex.put(context.getKey(), keyMap);
+                }
+            }
+            target.force();
+            Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException | RuntimeException e) {
+            target.close();
+            Files.deleteIfExists(compacted);
+            throw e;
+        }
+
+        mappedLog.close();
+        mappedLog = target;
+        index = compactedIndex;
+        liveBytes = compactedLiveBytes;
+        log.info("Storage service '{}' compacted storage log {} from {} to {} bytes in {} ms", getId(), file, before,
+                target.position, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Read a length-prefixed UTF-8 string.
+     * 
+     * @param body the buffer to read from
+     * @return the string
+     */
+    @Nonnull private static String readString(@Nonnull final ByteBuffer body) {
+        final int length = body.getInt();
+        final String string = new String(body.array(), body.position(), length, StandardCharsets.UTF_8);
+        body.position(body.position() + length);
+        return string;
+    }
+
+    /**
+     * Round a record length up to a multiple of 4, so a record length always fits at the end of a segment.
+     * 
+     * @param length the record length
+     * @return the aligned record length
+     */
+    private static int align(final int length) {
+        return (length + 3) & ~3;
+    }
+
+    /** The position of a record value in the log, with its version and expiration. */
+    private static final class Entry {
+
+        /** Position of the value in the log. */
+        private final long valuePosition;
+
+        /** Length of the encoded value. */
+        private final int valueLength;
+
+        /** Space taken by the record in the log. */
+        private final int recordLength;
+
+        /** Record version. */
+        private final long version;
+
+        /** Record expiration, or 0 if none. */
+        private final long expiration;
+
+        /**
+         * Constructor.
+         * 
+         * @param position position of the value in the log
+         * @param length length of the encoded value
+         * @param size space taken by the record in the log
+         * @param ver record version
+         * @param exp record expiration or 0 if none
+         */
+        private Entry(final long position, final int length, final int size, final long ver, final long exp) {
+            valuePosition = position;
+            valueLength = length;
+            recordLength = size;
+            version = ver;
+            expiration = exp;
+        }
+
+        /**
+         * Get whether the entry has expired.
+         * 
+         * @param now the current time
+         * @return true if the entry has expired
+         */
+        private boolean isExpired(final long now) {
+            return expiration != 0 && expiration <= now;
+        }
+
+        /**
+         * Get a copy of the entry with a different expiration.
+         * 
+         * @param exp the new expiration or 0 if none
+         * @return the new entry
+         */
+        @Nonnull private Entry withExpiration(final long exp) {
+            return new Entry(valuePosition, valueLength, recordLength, version, exp);
+        }
+    }
+
+    /** A log file mapped into memory segment by segment. */
+    private static final class MappedLog {
+
+        /** The file channel. */
+        @Nonnull private final FileChannel channel;
+
+        /** Size of each segment. */
+        private final int segmentSize;
+
+        /** The segments mapped so far. */
+        @Nonnull private final List<MappedByteBuffer> segments;
+
+        /** Position at which the next record is written. */
+        private long position;
+
+        /**
+         * Constructor.
+         * 
+         * @param fileChannel the file channel
+         * @param size size of each segment
+         */
+        private MappedLog(@Nonnull final FileChannel fileChannel, final int size) {
+            channel = fileChannel;
+            segmentSize = size;
+            segments = new ArrayList<>();
+            position = HEADER_LENGTH;
+        }
+
+        /**
+         * Write the header of a new log.
+         * 
+         * @param fileChannel the channel of an empty file
+         * @param size size of each segment
+         * @return the new log
+         * @throws IOException if the header cannot be written
+         */
+        @Nonnull private static MappedLog create(@Nonnull final FileChannel fileChannel, final int size)
+                throws IOException {
+            final MappedLog mappedLog = new MappedLog(fileChannel, size);
+            final MappedByteBuffer header = mappedLog.segment(0);
+            header.putInt(0, MAGIC);
+            header.putInt(4, FORMAT_VERSION);
+            header.putInt(8, size);
+            return mappedLog;
+        }
+
+        /**
+         * Check the header of an existing log.
+         * 
+         * @param fileChannel the channel of the file
+         * @return the log
+         * @throws IOException if the file is not a storage log
+         */
+        @Nonnull private static MappedLog open(@Nonnull final FileChannel fileChannel) throws IOException {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            while (header.hasRemaining() && fileChannel.read(header, header.position()) >= 0) {
+                continue;
+            }
+            if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION) {
+                throw new IOException("Not a storage log, or an unsupported version");
+            }
+            final int size = header.getInt(8);
+            if (size <= 0 || size % 4096 != 0) {
+                throw new IOException("Invalid segment size " + size);
+            }
+            return new MappedLog(fileChannel, size);
+        }
+
+        /**
+         * Get a segment, mapping it and any segment before it if needed, which grows the file.
+         * 
+         * @param index the index of the segment
+         * @return the segment
+         * @throws IOException if the segment cannot be mapped
+         */
+        @Nonnull private MappedByteBuffer segment(final int index) throws IOException {
+            while (segments.size() <= index) {
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) segments.size() * segmentSize,
+                        segmentSize));
+            }
+            return segments.get(index);
+        }
+
+        /**
+         * Append a record, writing its length last so an interrupted write is seen as the end of the log.
+         * 
+         * @param body the record body
+         * @param length the length of the body
+         * @param checksum the CRC of the body
+         * @return the position of the record
+         * @throws IOException if the record is too large or cannot be written
+         */
+        private long append(@Nonnull final byte[] body, final int length, final int checksum) throws IOException {
+            final int size = align(RECORD_HEADER_LENGTH + length);
+            if (size > segmentSize - HEADER_LENGTH) {
+                throw new IOException("Record of " + size + " bytes is larger than a segment");
+            }
+            int offset = (int) (position % segmentSize);
+            if (offset + size > segmentSize) {
+                segment((int) (position / segmentSize)).putInt(offset, SKIP);
+                position += segmentSize - offset;
+                offset = 0;
+            }
+            final MappedByteBuffer segment = segment((int) (position / segmentSize));
+            final ByteBuffer target = segment.duplicate();
+            target.position(offset + 4);
+            target.putInt(checksum);
+            target.put(body, 0, length);
+            segment.putInt(offset, length);
+            final long recordPosition = position;
+            position += size;
+            return recordPosition;
+        }
+
+        /**
+         * Read the value of an entry.
+         * 
+         * @param entry the entry
+         * @return the value
+         */
+        @Nonnull private String readValue(@Nonnull final Entry entry) {
+            final ByteBuffer source = segments.get((int) (entry.valuePosition / segmentSize)).duplicate();
+            source.position((int) (entry.valuePosition % segmentSize));
+            final byte[] bytes = new byte[entry.valueLength];
+            source.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Discard the log from a position onwards, zeroing the rest of its segment and truncating the file after it.
+         * 
+         * @param from the position of the first invalid record
+         * @throws IOException if the file cannot be truncated
+         */
+        private void truncate(final long from) throws IOException {
+            final int index = (int) (from / segmentSize);
+            final MappedByteBuffer segment = segment(index);
+            for (int offset = (int) (from % segmentSize); offset < segmentSize; offset++) {
+                segment.put(offset, (byte) 0);
+            }
+            channel.truncate((long) (index + 1) * segmentSize);
+        }
+
+        /** Flush the mapped segments to disk. */
+        private void force() {
+            for (final MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+        }
+
+        /**
+         * Close the file channel. Segments stay mapped until they are garbage collected.
+         * 
+         * @throws IOException if the channel cannot be closed
+         */
+        private void close() throws IOException {
+            channel.close();
+        }
+    }
+
+}
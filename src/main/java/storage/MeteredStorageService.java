@@ -0,0 +1,242 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.VersionMismatchException;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.collection.Pair;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+import storage.StorageServiceMetrics.Operation;
+
+/**
+ * Storage service decorator recording the latency and errors of every string-based operation.
+ * 
+ * The operations of {@link AtomicStorageService} are performed through {@link AtomicStorageSupport}, natively if the
+ * wrapped storage service supports them, and record their retries as well.
+ */
+public class MeteredStorageService extends AbstractDelegatingStorageService implements AtomicStorageService {
+
+    /** The metrics. */
+    @Nonnull private final StorageServiceMetrics metrics;
+
+    /**
+     * Constructor.
+     *
+     * @param storageMetrics the metrics to record to
+     */
+    public MeteredStorageService(@Nonnull final StorageServiceMetrics storageMetrics) {
+        metrics = Constraint.isNotNull(storageMetrics, "StorageServiceMetrics cannot be null");
+    }
+
+    /**
+     * Get the metrics.
+     * 
+     * @return the metrics
+     */
+    @Nonnull public StorageServiceMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** {@inheritDoc} */
+    public boolean create(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration)
+            throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return super.create(context, key, value, expiration);
+        } catch (final IOException e) {
+            metrics.recordError(Operation.CREATE);
+            throw e;
+        } finally {
+            metrics.record(Operation.CREATE, start);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public StorageRecord read(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return super.read(context, key);
+        } catch (final IOException e) {
+            metrics.recordError(Operation.READ);
+            throw e;
+        } finally {
+            metrics.record(Operation.READ, start);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull public Pair<Long, StorageRecord> read(@Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Positive final long version)
+            throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return super.read(context, key, version);
+        } catch (final IOException e) {
+            metrics.recordError(Operation.READ);
+            throw e;
+        } finally {
+            metrics.record(Operation.READ, start);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean update(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration)
+            throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return super.update(context, key, value, expiration);
+        } catch (final IOException e) {
+            metrics.recordError(Operation.UPDATE);
+            throw e;
+        } finally {
+            metrics.record(Operation.UPDATE, start);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public Long updateWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nonnull @NotEmpty final String value,
+            @Nullable @Positive final Long expiration)
+            throws IOException, VersionMismatchException {
+        final long start = System.nanoTime();
+        try {
+            return super.updateWithVersion(version, context, key, value, expiration);
+        } catch (final IOException e) {
+            metrics.recordError(Operation.UPDATE);
+            throw e;
+        } finally {
+            metrics.record(Operation.UPDATE, start);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean updateExpiration(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nullable @Positive final Long expiration)
+            throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return super.updateExpiration(context, key, expiration);
+        } catch (final IOException e) {
+            metrics.recordError(Operation.UPDATE);
+            throw e;
+        } finally {
+            metrics.record(Operation.UPDATE, start);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean delete(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return super.delete(context, key);
+        } catch (final IOException e) {
+            metrics.recordError(Operation.DELETE);
+            throw e;
+        } finally {
+            metrics.record(Operation.DELETE, start);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean deleteWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key)
+            throws IOException, VersionMismatchException {
+        final long start = System.nanoTime();
+        try {
+            return super.deleteWithVersion(version, context, key);
+        } catch (final IOException e) {
+            metrics.recordError(Operation.DELETE);
+            throw e;
+        } finally {
+            metrics.record(Operation.DELETE, start);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void updateContextExpiration(@Nonnull @NotEmpty final String context,
+            @Nullable @Positive final Long expiration)
+            throws IOException {
+        final long start = System.nanoTime();
+        try {
+            super.updateContextExpiration(context, expiration);
+        } catch (final IOException e) {
+            metrics.recordError(Operation.UPDATE);
+            throw e;
+        } finally {
+            metrics.record(Operation.UPDATE, start);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void deleteContext(@Nonnull @NotEmpty final String context)
+            throws IOException {
+        final long start = System.nanoTime();
+        try {
+            super.deleteContext(context);
+        } catch (final IOException e) {
+            metrics.recordError(Operation.DELETE);
+            throw e;
+        } finally {
+            metrics.record(Operation.DELETE, start);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public long increment(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            final long delta, @Nullable @Positive final Long expiration) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return AtomicStorageSupport.increment(getStorageService(), context, key, delta, expiration, metrics);
+        } catch (final IOException e) {
+            metrics.recordError(Operation.INCREMENT);
+            throw e;
+        } finally {
+            metrics.record(Operation.INCREMENT, start);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public Long compareAndSet(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nullable final String expectedValue, @Nonnull @NotEmpty final String value,
+            @Nullable @Positive final Long expiration) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return AtomicStorageSupport.compareAndSet(getStorageService(), context, key, expectedValue, value,
+                    expiration, metrics);
+        } catch (final IOException e) {
+            metrics.recordError(Operation.COMPARE_AND_SET);
+            throw e;
+        } finally {
+            metrics.record(Operation.COMPARE_AND_SET, start);
+        }
+    }
+
+}
@@ -0,0 +1,469 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.json.stream.JsonGenerator;
+
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.VersionMismatchException;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.collection.Pair;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Storage service decorator which keeps a bounded local cache of records in front of a slower storage service.
+ * 
+ * A cached record is served for up to the time to live, and never past its own expiration. Once it is stale, it is
+ * revalidated with a versioned read, which only transfers the record if its version has moved past the cached one.
+ * Records which do not exist are cached for the negative time to live, 0 to disable negative caching. The least
+ * recently used records are evicted once the cache holds the maximum number of entries.
+ * 
+ * Writes go to the wrapped storage service and update or invalidate the cached record. Reads racing with a write do
+ * not populate the cache, so a read never caches a value older than a write it overlapped. Writes by other nodes, and
+ * changes of expiration alone, which do not change the version, are seen once the cached record is stale. Operations on
+ * annotated objects go directly to the wrapped storage service.
+ * 
+ * Hits, misses and revalidations are reported as statistics.
+ */
+public class NearCacheStorageService extends AbstractDelegatingStorageService implements StatisticsReporter {
+
+    /** Number of reads served by a cached record. */
+    @Nonnull private final AtomicLong hits = new AtomicLong();
+
+    /** Number of reads served by a cached miss. */
+    @Nonnull private final AtomicLong negativeHits = new AtomicLong();
+
+    /** Number of reads of records which were not cached. */
+    @Nonnull private final AtomicLong misses = new AtomicLong();
+
+    /** Number of stale records found unchanged. */
+    @Nonnull private final AtomicLong revalidations = new AtomicLong();
+
+    /** Number of stale records found changed or deleted. */
+    @Nonnull private final AtomicLong refreshes = new AtomicLong();
+
+    /** Number of records evicted. */
+    @Nonnull private final AtomicLong evictions = new AtomicLong();
+
+    /** Largest number of cached records. */
+    @Positive private int maxEntries;
+
+    /** Time in milliseconds a record is served from the cache. */
+    @Positive private long timeToLive;
+
+    /** Time in milliseconds a miss is served from the cache. */
+    @NonNegative private long negativeTimeToLive;
+
+    /** Cached records in access order. */
+    @Nullable private Map<RecordKey, CachedRecord> cache;
+
+    /** Number of writes, so that reads overlapping a write do not populate the cache. */
+    @GuardedBy("cache") private long generation;
+
+    /** Constructor. */
+    public NearCacheStorageService() {
+        maxEntries = 10000;
+        timeToLive = 5000;
+        negativeTimeToLive = 1000;
+    }
+
+    /**
+     * Get the largest number of cached records.
+     * 
+     * @return the largest number of cached records
+     */
+    @Positive public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Set the largest number of cached records.
+     * 
+     * @param entries the largest number of cached records
+     */
+    public void setMaxEntries(@Positive final int entries) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxEntries = (int) Constraint.isGreaterThan(0, entries, "Maximum entries must be greater than 0");
+    }
+
+    /**
+     * Get the time a record is served from the cache.
+     * 
+     * @return the time to live in milliseconds
+     */
+    @Positive public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Set the time a record is served from the cache before it is revalidated.
+     * 
+     * @param ttl the time to live in milliseconds
+     */
+    public void setTimeToLive(@Positive final long ttl) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        timeToLive = Constraint.isGreaterThan(0, ttl, "Time to live must be greater than 0");
+    }
+
+    /**
+     * Get the time a miss is served from the cache.
+     * 
+     * @return the negative time to live in milliseconds
+     */
+    @NonNegative public long getNegativeTimeToLive() {
+        return negativeTimeToLive;
+    }
+
+    /**
+     * Set the time a miss is served from the cache.
+     * 
+     * @param ttl the negative time to live in milliseconds, 0 to disable negative caching
+     */
+    public void setNegativeTimeToLive(@NonNegative final long ttl) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        negativeTimeToLive = Constraint.isGreaterThanOrEqual(0, ttl,
+                "Negative time to live must be greater than or equal to 0");
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        cache = new LinkedHashMap<RecordKey, CachedRecord>(16, 0.75f, true) {
+
+            /** Serial version UID. */
+            private static final long serialVersionUID = 1L;
+
+            /** {@inheritDoc} */
+            @Override protected boolean removeEldestEntry(final Map.Entry<RecordKey, CachedRecord> eldest) {
+                if (size() > maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /** {@inheritDoc} */
+    public boolean create(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        final RecordKey recordKey = new RecordKey(context, key);
+        final boolean created;
+        try {
+            created = super.create(context, key, value, expiration);
+        } catch (final IOException | RuntimeException e) {
+            invalidate(recordKey);
+            throw e;
+        }
+        if (created) {
+            // New records always start at version 1.
+            replace(recordKey, new CachedRecord(value, expiration, 1, cacheUntil(expiration)));
+        } else {
+            invalidate(recordKey);
+        }
+        return created;
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public StorageRecord read(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        final CachedRecord cached = get(new RecordKey(context, key));
+        return cached.value != null ? cached.toRecord() : null;
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull public Pair<Long, StorageRecord> read(@Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Positive final long version) throws IOException {
+        final CachedRecord cached = get(new RecordKey(context, key));
+        if (cached.value == null) {
+            return new Pair<>();
+        } else if (cached.version == version) {
+            return new Pair<>(version, null);
+        }
+        return new Pair<>(cached.version, cached.toRecord());
+    }
+
+    /** {@inheritDoc} */
+    public boolean update(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        try {
+            return super.update(context, key, value, expiration);
+        } finally {
+            invalidate(new RecordKey(context, key));
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public Long updateWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nonnull @NotEmpty final String value,
+            @Nullable @Positive final Long expiration) throws IOException, VersionMismatchException {
+        final RecordKey recordKey = new RecordKey(context, key);
+        final Long newVersion;
+        try {
+            newVersion = super.updateWithVersion(version, context, key, value, expiration);
+        } catch (final IOException | VersionMismatchException | RuntimeException e) {
+            invalidate(recordKey);
+            throw e;
+        }
+        if (newVersion != null) {
+            replace(recordKey, new CachedRecord(value, expiration, newVersion, cacheUntil(expiration)));
+        } else {
+            invalidate(recordKey);
+        }
+        return newVersion;
+    }
+
+    /** {@inheritDoc} */
+    public boolean updateExpiration(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nullable @Positive final Long expiration) throws IOException {
+        try {
+            return super.updateExpiration(context, key, expiration);
+        } finally {
+            invalidate(new RecordKey(context, key));
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean delete(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        try {
+            return super.delete(context, key);
+        } finally {
+            invalidate(new RecordKey(context, key));
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean deleteWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key) throws IOException, VersionMismatchException {
+        try {
+            return super.deleteWithVersion(version, context, key);
+        } finally {
+            invalidate(new RecordKey(context, key));
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void updateContextExpiration(@Nonnull @NotEmpty final String context,
+            @Nullable @Positive final Long expiration) throws IOException {
+        try {
+            super.updateContextExpiration(context, expiration);
+        } finally {
+            invalidateContext(context);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void deleteContext(@Nonnull @NotEmpty final String context) throws IOException {
+        try {
+            super.deleteContext(context);
+        } finally {
+            invalidateContext(context);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void writeStatistics(@Nonnull final JsonGenerator gen, @Nonnull final String name) {
+        final int size;
+        synchronized (cache) {
+            size = cache.size();
+        }
+        final long served = hits.get() + negativeHits.get();
+        final long reads = served + misses.get() + revalidations.get() + refreshes.get();
+        gen.writeStartObject(name);
+        gen.write("size", size);
+        gen.write("maxEntries", maxEntries);
+        gen.write("timeToLive", timeToLive);
+        gen.write("negativeTimeToLive", negativeTimeToLive);
+        gen.write("hits", hits.get());
+        gen.write("negativeHits", negativeHits.get());
+        gen.write("misses", misses.get());
+        gen.write("revalidations", revalidations.get());
+        gen.write("refreshes", refreshes.get());
+        gen.write("evictions", evictions.get());
+        gen.write("hitRatio", reads > 0 ? (double) served / reads : 0);
+        gen.writeEnd();
+    }
+
+    /**
+     * Get a fresh cached record, reading or revalidating it if needed.
+     * 
+     * @param recordKey the record
+     * @return the cached record, with a null value if the record does not exist
+     * @throws IOException if the wrapped storage service raises an error
+     */
+    @Nonnull private CachedRecord get(@Nonnull final RecordKey recordKey) throws IOException {
+        final long now = System.currentTimeMillis();
+        final CachedRecord cached;
+        final long readGeneration;
+        synchronized (cache) {
+            cached = cache.get(recordKey);
+            readGeneration = generation;
+        }
+
+        if (cached != null && now < cached.cachedUntil) {
+            (cached.value != null ? hits : negativeHits).incrementAndGet();
+            return cached;
+        }
+
+        final CachedRecord fresh;
+        if (cached != null && cached.value != null) {
+            final Pair<Long, StorageRecord> result =
+                    super.read(recordKey.getContext(), recordKey.getKey(), cached.version);
+            if (result.getFirst() != null && result.getSecond() == null) {
+                revalidations.incrementAndGet();
+                fresh = new CachedRecord(cached.value, cached.expiration, cached.version,
+                        cacheUntil(cached.expiration));
+            } else {
+                refreshes.incrementAndGet();
+                fresh = toCachedRecord(result.getSecond());
+            }
+        } else {
+            misses.incrementAndGet();
+            fresh = toCachedRecord(super.read(recordKey.getContext(), recordKey.getKey()));
+        }
+
+        synchronized (cache) {
+            if (generation == readGeneration && fresh.cachedUntil > System.currentTimeMillis()) {
+                cache.put(recordKey, fresh);
+            }
+        }
+        return fresh;
+    }
+
+    /**
+     * Get the time until which a record is served from the cache.
+     * 
+     * @param expiration the record expiration, or null if none
+     * @return the time in milliseconds since the epoch
+     */
+    private long cacheUntil(@Nullable final Long expiration) {
+        final long until = System.currentTimeMillis() + timeToLive;
+        return expiration != null ? Math.min(until, expiration) : until;
+    }
+
+    /**
+     * Convert a record read from the wrapped storage service to a cached record.
+     * 
+     * @param record the record, or null if it does not exist
+     * @return the cached record
+     */
+    @Nonnull private CachedRecord toCachedRecord(@Nullable final StorageRecord record) {
+        if (record == null) {
+            return new CachedRecord(null, null, 0, System.currentTimeMillis() + negativeTimeToLive);
+        }
+        return new CachedRecord(record.getValue(), record.getExpiration(), record.getVersion(),
+                cacheUntil(record.getExpiration()));
+    }
+
+    /**
+     * Replace the cached record after a write whose outcome is known.
+     * 
+     * @param recordKey the record
+     * @param cached the new cached record
+     */
+    private void replace(@Nonnull final RecordKey recordKey, @Nonnull final CachedRecord cached) {
+        synchronized (cache) {
+            generation++;
+            cache.put(recordKey, cached);
+        }
+    }
+
+    /**
+     * Invalidate the cached record after a write.
+     * 
+     * @param recordKey the record
+     */
+    private void invalidate(@Nonnull final RecordKey recordKey) {
+        synchronized (cache) {
+            generation++;
+            cache.remove(recordKey);
+        }
+    }
+
+    /**
+     * Invalidate the cached records of a context.
+     * 
+     * @param context the context
+     */
+    private void invalidateContext(@Nonnull final String context) {
+        synchronized (cache) {
+            generation++;
+            final Iterator<RecordKey> recordKeys = cache.keySet().iterator();
+            while (recordKeys.hasNext()) {
+                if (recordKeys.next().getContext().equals(context)) {
+                    recordKeys.remove();
+                }
+            }
+        }
+    }
+
+    /** A cached record, or a cached miss. */
+    private static final class CachedRecord {
+
+        /** Record value, or null for a miss. */
+        @Nullable private final String value;
+
+        /** Record expiration, or null if none. */
+        @Nullable private final Long expiration;
+
+        /** Record version. */
+        private final long version;
+
+        /** Time until which the cached record is served. */
+        private final long cachedUntil;
+
+        /**
+         * Constructor.
+         * 
+         * @param val record value, or null for a miss
+         * @param exp record expiration, or null if none
+         * @param ver record version
+         * @param until time until which the cached record is served
+         */
+        private CachedRecord(@Nullable final String val, @Nullable final Long exp, final long ver, final long until) {
+            value = val;
+            expiration = exp;
+            version = ver;
+            cachedUntil = until;
+        }
+
+        /**
+         * Get a storage record for the cached record, which must not be a miss.
+         * 
+         * @return the storage record
+         */
+        @Nonnull private StorageRecord toRecord() {
+            return new VersionableStorageRecord(value, expiration, version);
+        }
+    }
+}
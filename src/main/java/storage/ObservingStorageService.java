@@ -0,0 +1,626 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.json.stream.JsonGenerator;
+
+import org.opensaml.storage.VersionMismatchException;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Storage service decorator publishing the changes made through it, so that they can be watched rather than polled.
+ * 
+ * Each watched context has a feed, a ring buffer of its latest events which writers append to without locking or
+ * waiting. Subscribers read the feed at their own pace from a cursor; a subscriber which falls more than the ring
+ * size behind skips ahead to the oldest event still held and is told how many events it missed. Contexts nobody
+ * watches have no feed and cost writers a single map lookup.
+ * 
+ * Creates, updates and deletes are published once the wrapped storage service has applied them; changes of
+ * expiration are published as updates, and deleting a context as a delete without a key. While a context is watched,
+ * the expirations set through this decorator are tracked with a {@link TimingWheel}, and an expire event is published
+ * once one passes without the record having been written since. Writes made directly to the wrapped storage service
+ * and operations on annotated objects are not seen.
+ * 
+ * Published, delivered and dropped events are reported as statistics.
+ */
+public class ObservingStorageService extends AbstractDelegatingStorageService implements StatisticsReporter {
+
+    /** Number of events published. */
+    @Nonnull private final AtomicLong published = new AtomicLong();
+
+    /** Number of events delivered to subscribers. */
+    @Nonnull private final AtomicLong delivered = new AtomicLong();
+
+    /** Number of events subscribers missed because they fell behind. */
+    @Nonnull private final AtomicLong dropped = new AtomicLong();
+
+    /** Feeds of the watched contexts. */
+    @Nonnull private final ConcurrentMap<String, Feed> feeds = new ConcurrentHashMap<>();
+
+    /** Number of events each feed holds, a power of two. */
+    @Positive private int ringSize;
+
+    /** Interval in milliseconds at which passed expirations are published, 0 to not publish them. */
+    @NonNegative private long expirationInterval;
+
+    /** Expirations of the records of watched contexts. */
+    @Nullable private TimingWheel<Expiration> timingWheel;
+
+    /** Timer advancing the timing wheel. */
+    @Nullable private Timer timer;
+
+    /** Constructor. */
+    public ObservingStorageService() {
+        ringSize = 1024;
+        expirationInterval = 1000;
+    }
+
+    /**
+     * Get the number of events each feed holds.
+     * 
+     * @return the ring size
+     */
+    @Positive public int getRingSize() {
+        return ringSize;
+    }
+
+    /**
+     * Set the number of events each feed holds, rounded up to a power of two. A subscriber falling further behind
+     * misses events.
+     * 
+     * @param size the ring size
+     */
+    public void setRingSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        Constraint.isGreaterThan(0, size, "Ring size must be greater than 0");
+        Constraint.isLessThanOrEqual(size, 1 << 30, "Ring size must be at most 2^30");
+        ringSize = Integer.highestOneBit(size) == size ? size : Integer.highestOneBit(size) << 1;
+    }
+
+    /**
+     * Get the interval at which passed expirations are published.
+     * 
+     * @return the interval in milliseconds, 0 if expirations are not published
+     */
+    @NonNegative public long getExpirationInterval() {
+        return expirationInterval;
+    }
+
+    /**
+     * Set the interval at which passed expirations are published, which is also how late they may be published.
+     * 
+     * @param interval the interval in milliseconds, 0 to not publish expirations
+     */
+    public void setExpirationInterval(@NonNegative final long interval) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        expirationInterval = Constraint.isGreaterThanOrEqual(0, interval,
+                "Expiration interval must be greater than or equal to 0");
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (expirationInterval > 0) {
+            final TimingWheel<Expiration> wheel =
+                    new TimingWheel<>(expirationInterval, System.currentTimeMillis());
+            timingWheel = wheel;
+            timer = new Timer("storage-observer-" + getId(), true);
+            timer.schedule(new TimerTask() {
+                @Override public void run() {
+                    for (final Expiration expiration : wheel.advance(System.currentTimeMillis())) {
+                        expiration.fire();
+                    }
+                }
+            }, expirationInterval, expirationInterval);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doDestroy() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+        timingWheel = null;
+        super.doDestroy();
+    }
+
+    /**
+     * Subscribe to the events of a context published from now on.
+     * 
+     * @param context the context
+     * @return the subscription, to be closed once no longer read
+     */
+    @Nonnull public Subscription subscribe(@Nonnull @NotEmpty final String context) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        synchronized (feeds) {
+            Feed feed = feeds.get(context);
+            if (feed == null) {
+                feed = new Feed(context, ringSize);
+                feeds.put(context, feed);
+            }
+            feed.subscribers++;
+            return new Subscription(feed);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean create(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        final boolean created = super.create(context, key, value, expiration);
+        if (created) {
+            publish(StorageEvent.Type.CREATE, context, key, 1L, expiration);
+        }
+        return created;
+    }
+
+    /** {@inheritDoc} */
+    public boolean update(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        final boolean updated = super.update(context, key, value, expiration);
+        if (updated) {
+            publish(StorageEvent.Type.UPDATE, context, key, null, expiration);
+        }
+        return updated;
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public Long updateWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nonnull @NotEmpty final String value,
+            @Nullable @Positive final Long expiration) throws IOException, VersionMismatchException {
+        final Long updated = super.updateWithVersion(version, context, key, value, expiration);
+        if (updated != null) {
+            publish(StorageEvent.Type.UPDATE, context, key, updated, expiration);
+        }
+        return updated;
+    }
+
+    /** {@inheritDoc} */
+    public boolean updateExpiration(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nullable @Positive final Long expiration) throws IOException {
+        final boolean updated = super.updateExpiration(context, key, expiration);
+        if (updated) {
+            publish(StorageEvent.Type.UPDATE, context, key, null, expiration);
+        }
+        return updated;
+    }
+
+    /** {@inheritDoc} */
+    public boolean delete(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        final boolean deleted = super.delete(context, key);
+        if (deleted) {
+            publish(StorageEvent.Type.DELETE, context, key, null, null);
+        }
+        return deleted;
+    }
+
+    /** {@inheritDoc} */
+    public boolean deleteWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key) throws IOException, VersionMismatchException {
+        final boolean deleted = super.deleteWithVersion(version, context, key);
+        if (deleted) {
+            publish(StorageEvent.Type.DELETE, context, key, version, null);
+        }
+        return deleted;
+    }
+
+    /** {@inheritDoc} */
+    public void updateContextExpiration(@Nonnull @NotEmpty final String context,
+            @Nullable @Positive final Long expiration) throws IOException {
+        super.updateContextExpiration(context, expiration);
+        final Feed feed = feeds.get(context);
+        if (feed != null) {
+            // Only the records whose expiration is tracked can be rescheduled, the others are not known.
+            for (final String key : feed.expirations.keySet()) {
+                track(feed, key, expiration);
+            }
+            feed.publish(StorageEvent.Type.UPDATE, null, null, expiration);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void deleteContext(@Nonnull @NotEmpty final String context) throws IOException {
+        super.deleteContext(context);
+        final Feed feed = feeds.get(context);
+        if (feed != null) {
+            feed.expirations.clear();
+            feed.publish(StorageEvent.Type.DELETE, null, null, null);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void writeStatistics(@Nonnull final JsonGenerator gen, @Nonnull final String name) {
+        int contexts;
+        int subscriptions = 0;
+        synchronized (feeds) {
+            contexts = feeds.size();
+            for (final Feed feed : feeds.values()) {
+                subscriptions += feed.subscribers;
+            }
+        }
+        gen.writeStartObject(name);
+        gen.write("ringSize", ringSize);
+        gen.write("contexts", contexts);
+        gen.write("subscriptions", subscriptions);
+        gen.write("published", published.get());
+        gen.write("delivered", delivered.get());
+        gen.write("dropped", dropped.get());
+        gen.writeEnd();
+    }
+
+    /**
+     * Publish an event if its context is watched, and track the expiration the event sets.
+     * 
+     * @param type the event type
+     * @param context record context
+     * @param key record key
+     * @param version record version, or null if not known
+     * @param expiration record expiration, or null if none
+     */
+    private void publish(@Nonnull final StorageEvent.Type type, @Nonnull final String context,
+            @Nonnull final String key, @Nullable final Long version, @Nullable final Long expiration) {
+        final Feed feed = feeds.get(context);
+        if (feed != null) {
+            track(feed, key, type == StorageEvent.Type.DELETE ? null : expiration);
+            feed.publish(type, key, version, expiration);
+        }
+    }
+
+    /**
+     * Track the expiration of a record of a watched context, replacing the expiration tracked so far.
+     * 
+     * @param feed the feed of the context
+     * @param key record key
+     * @param expiration record expiration, or null if it does not expire
+     */
+    private void track(@Nonnull final Feed feed, @Nonnull final String key, @Nullable final Long expiration) {
+        final TimingWheel<Expiration> wheel = timingWheel;
+        if (wheel == null) {
+            return;
+        }
+        if (expiration == null || expiration == 0) {
+            feed.expirations.remove(key);
+        } else {
+            feed.expirations.put(key, expiration);
+            wheel.schedule(new Expiration(feed, key, expiration), expiration);
+        }
+    }
+
+    /**
+     * Release a subscription of a feed, dropping the feed with its last subscription.
+     * 
+     * @param feed the feed
+     */
+    private void unsubscribe(@Nonnull final Feed feed) {
+        synchronized (feeds) {
+            if (--feed.subscribers == 0) {
+                feeds.remove(feed.context, feed);
+            }
+        }
+    }
+
+    /** A change published by the storage service. */
+    @Immutable
+    public static final class StorageEvent {
+
+        /** Event types. */
+        public enum Type {
+
+            /** A record was created. */
+            CREATE,
+
+            /** The value or expiration of a record, or the expiration of a context, changed. */
+            UPDATE,
+
+            /** A record or a context was deleted. */
+            DELETE,
+
+            /** A record expired. */
+            EXPIRE,
+        }
+
+        /** Position of the event in its feed. */
+        private final long sequence;
+
+        /** Event type. */
+        @Nonnull private final Type type;
+
+        /** Record context. */
+        @Nonnull private final String context;
+
+        /** Record key, or null for an event of the whole context. */
+        @Nullable private final String key;
+
+        /** Record version, or null if not known. */
+        @Nullable private final Long version;
+
+        /** Record expiration, or null if none or not applicable. */
+        @Nullable private final Long expiration;
+
+        /** Time the event was published. */
+        private final long timestamp;
+
+        /**
+         * Constructor.
+         * 
+         * @param seq position of the event in its feed
+         * @param t event type
+         * @param ctx record context
+         * @param k record key, or null for an event of the whole context
+         * @param ver record version, or null if not known
+         * @param exp record expiration, or null if none
+         */
+        private StorageEvent(final long seq, @Nonnull final Type t, @Nonnull final String ctx,
+                @Nullable final String k, @Nullable final Long ver, @Nullable final Long exp) {
+            sequence = seq;
+            type = t;
+            context = ctx;
+            key = k;
+            version = ver;
+            expiration = exp;
+            timestamp = System.currentTimeMillis();
+        }
+
+        /**
+         * Get the position of the event in its feed, increasing by one from event to event.
+         * 
+         * @return the sequence number
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Get the event type.
+         * 
+         * @return the event type
+         */
+        @Nonnull public Type getType() {
+            return type;
+        }
+
+        /**
+         * Get the record context.
+         * 
+         * @return the record context
+         */
+        @Nonnull public String getContext() {
+            return context;
+        }
+
+        /**
+         * Get the record key.
+         * 
+         * @return the record key, or null for an event of the whole context
+         */
+        @Nullable public String getKey() {
+            return key;
+        }
+
+        /**
+         * Get the record version after the change.
+         * 
+         * @return the record version, or null if not known
+         */
+        @Nullable public Long getVersion() {
+            return version;
+        }
+
+        /**
+         * Get the record expiration after the change.
+         * 
+         * @return the record expiration, or null if none or not applicable
+         */
+        @Nullable public Long getExpiration() {
+            return expiration;
+        }
+
+        /**
+         * Get the time the event was published.
+         * 
+         * @return the time in milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    /** A reader of the events of a context, used by one thread at a time. */
+    public final class Subscription {
+
+        /** The feed read. */
+        @Nonnull private final Feed feed;
+
+        /** Sequence number of the next event to read. */
+        private long cursor;
+
+        /** Whether the subscription is closed. */
+        private boolean closed;
+
+        /**
+         * Constructor.
+         * 
+         * @param f the feed read
+         */
+        private Subscription(@Nonnull final Feed f) {
+            feed = f;
+            cursor = f.next.get();
+        }
+
+        /**
+         * Get the watched context.
+         * 
+         * @return the context
+         */
+        @Nonnull public String getContext() {
+            return feed.context;
+        }
+
+        /**
+         * Move the events published since the last poll to a collection.
+         * 
+         * @param events the collection to add the events to, in order
+         * @param maxEvents the largest number of events to add
+         * @return the number of events missed since the last poll because the subscriber fell behind
+         */
+        public long poll(@Nonnull final Collection<? super StorageEvent> events, @Positive final int maxEvents) {
+            final AtomicReferenceArray<StorageEvent> ring = feed.ring;
+            final int mask = ring.length() - 1;
+            long missed = 0;
+            int added = 0;
+            while (added < maxEvents && cursor < feed.next.get()) {
+                final StorageEvent event = ring.get((int) (cursor & mask));
+                if (event == null || event.sequence < cursor) {
+                    // Claimed by a writer which has not stored it yet.
+                    break;
+                } else if (event.sequence > cursor) {
+                    // Overwritten, skip to the oldest event which may still be held.
+                    final long oldest = Math.max(cursor + 1, feed.next.get() - ring.length());
+                    missed += oldest - cursor;
+                    cursor = oldest;
+                } else {
+                    events.add(event);
+                    added++;
+                    cursor++;
+                }
+            }
+            delivered.addAndGet(added);
+            dropped.addAndGet(missed);
+            return missed;
+        }
+
+        /** Close the subscription. */
+        public void close() {
+            if (!closed) {
+                closed = true;
+                unsubscribe(feed);
+            }
+        }
+    }
+
+    /** The ring buffer of the events of a context. */
+    private final class Feed {
+
+        /** The context. */
+        @Nonnull private final String context;
+
+        /** The latest events, the event of sequence number <i>n</i> at index <i>n</i> modulo the ring size. */
+        @Nonnull private final AtomicReferenceArray<StorageEvent> ring;
+
+        /** Sequence number of the next event. */
+        @Nonnull private final AtomicLong next;
+
+        /** Tracked expiration of each record. */
+        @Nonnull private final ConcurrentMap<String, Long> expirations;
+
+        /** Number of open subscriptions. */
+        @GuardedBy("feeds") private int subscribers;
+
+        /**
+         * Constructor.
+         * 
+         * @param ctx the context
+         * @param size the ring size, a power of two
+         */
+        private Feed(@Nonnull final String ctx, @Positive final int size) {
+            context = ctx;
+            ring = new AtomicReferenceArray<>(size);
+            next = new AtomicLong();
+            expirations = new ConcurrentHashMap<>();
+        }
+
+        /**
+         * Append an event without blocking.
+         * 
+         * @param type the event type
+         * @param key record key, or null for an event of the whole context
+         * @param version record version, or null if not known
+         * @param expiration record expiration, or null if none
+         */
+        private void publish(@Nonnull final StorageEvent.Type type, @Nullable final String key,
+                @Nullable final Long version, @Nullable final Long expiration) {
+            final StorageEvent event =
+                    new StorageEvent(next.getAndIncrement(), type, context, key, version, expiration);
+            final int index = (int) (event.sequence & (ring.length() - 1));
+            for (;;) {
+                // A writer delayed past a full lap must not overwrite the newer event stored in its slot.
+                final StorageEvent current = ring.get(index);
+                if (current != null && current.sequence > event.sequence) {
+                    break;
+                } else if (ring.compareAndSet(index, current, event)) {
+                    break;
+                }
+            }
+            published.incrementAndGet();
+        }
+    }
+
+    /** An expiration set on a record of a watched context. */
+    private final class Expiration {
+
+        /** Feed of the context. */
+        @Nonnull private final Feed feed;
+
+        /** Record key. */
+        @Nonnull private final String key;
+
+        /** The expiration. */
+        private final long expiration;
+
+        /**
+         * Constructor.
+         * 
+         * @param f feed of the context
+         * @param k record key
+         * @param exp the expiration
+         */
+        private Expiration(@Nonnull final Feed f, @Nonnull final String k, final long exp) {
+            feed = f;
+            key = k;
+            expiration = exp;
+        }
+
+        /** Publish the expiration, unless the record has been written since it was set. */
+        private void fire() {
+            if (feed.expirations.remove(key, expiration)) {
+                feed.publish(StorageEvent.Type.EXPIRE, key, null, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+/** The context and key of a record, for use as a map key. */
+@Immutable
+final class RecordKey {
+
+    /** Record context. */
+    @Nonnull private final String context;
+
+    /** Record key. */
+    @Nonnull private final String key;
+
+    /**
+     * Constructor.
+     * 
+     * @param ctx record context
+     * @param k record key
+     */
+    RecordKey(@Nonnull final String ctx, @Nonnull final String k) {
+        context = ctx;
+        key = k;
+    }
+
+    /**
+     * Get the record context.
+     * 
+     * @return the record context
+     */
+    @Nonnull String getContext() {
+        return context;
+    }
+
+    /**
+     * Get the record key.
+     * 
+     * @return the record key
+     */
+    @Nonnull String getKey() {
+        return key;
+    }
+
+    /** {@inheritDoc} */
+    @Override public int hashCode() {
+        return 31 * context.hashCode() + key.hashCode();
+    }
+
+    /** {@inheritDoc} */
+    @Override public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        } else if (!(obj instanceof RecordKey)) {
+            return false;
+        }
+        final RecordKey other = (RecordKey) obj;
+        return context.equals(other.context) && key.equals(other.key);
+    }
+}
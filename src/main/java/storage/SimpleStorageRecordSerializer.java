@@ -18,8 +18,11 @@
 package storage;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -34,19 +37,21 @@ import javax.json.JsonStructure;
 import javax.json.stream.JsonGenerator;
 import javax.json.stream.JsonGeneratorFactory;
 
-import org.opensaml.storage.MutableStorageRecord;
 import org.opensaml.storage.StorageRecord;
-import org.opensaml.storage.StorageSerializer;
 
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
-import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
 import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
 
 /**
  * A simple {@link StorageRecord} serializer.
+ * 
+ * Records are serialized as JSON objects, pretty-printed unless constructed otherwise.
  */
 public class SimpleStorageRecordSerializer extends AbstractInitializableComponent
-        implements StorageSerializer<StorageRecord> {
+        implements StreamingStorageRecordSerializer {
+
+    /** Media type of the serialized form. */
+    @Nonnull @NotEmpty public static final String CONTENT_TYPE = "application/json";
 
     /** JSON generator factory. */
     @Nonnull private final JsonGeneratorFactory generatorFactory;
@@ -54,19 +59,57 @@ public class SimpleStorageRecordSerializer extends AbstractInitializableComponen
     /** JSON reader factory. */
     @Nonnull private JsonReaderFactory readerFactory;
 
+    /** Constructor. Records are pretty-printed. */
     public SimpleStorageRecordSerializer() {
+        this(true);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param prettyPrint whether to pretty-print records
+     */
+    public SimpleStorageRecordSerializer(final boolean prettyPrint) {
         final Map<String, String> generatorConfig = new HashMap<>();
-        generatorConfig.put(JsonGenerator.PRETTY_PRINTING, "true");
+        if (prettyPrint) {
+            generatorConfig.put(JsonGenerator.PRETTY_PRINTING, "true");
+        }
         generatorFactory = Json.createGeneratorFactory(generatorConfig);
         readerFactory = Json.createReaderFactory(null);
     }
 
+    /** {@inheritDoc} */
+    @Nonnull @NotEmpty public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
     /** {@inheritDoc} */
     public String serialize(@Nonnull final StorageRecord instance) throws IOException {
 
         final StringWriter sink = new StringWriter();
         final JsonGenerator gen = generatorFactory.createGenerator(sink);
+        write(instance, gen);
+        gen.close();
+
+        return sink.toString();
+    }
+
+    /** {@inheritDoc} */
+    public void serialize(@Nonnull final StorageRecord instance, @Nonnull final OutputStream out)
+            throws IOException {
+        final JsonGenerator gen = generatorFactory.createGenerator(out, StandardCharsets.UTF_8);
+        write(instance, gen);
+        // Closing the generator would close the stream.
+        gen.flush();
+    }
 
+    /**
+     * Write a record as a JSON object.
+     * 
+     * @param instance the record
+     * @param gen the JSON generator
+     */
+    private void write(@Nonnull final StorageRecord instance, @Nonnull final JsonGenerator gen) {
         gen.writeStartObject();
         gen.write("value", instance.getValue());
         gen.write("version", instance.getVersion());
@@ -74,18 +117,14 @@ public class SimpleStorageRecordSerializer extends AbstractInitializableComponen
         if (expiration != null) {
             gen.write("expiration", expiration);
         }
-        gen.writeEnd().close();
-
-        return sink.toString();
+        gen.writeEnd();
     }
 
     /** {@inheritDoc} */
     @Nonnull public StorageRecord deserialize(final long version, @Nonnull @NotEmpty final String context,
             @Nonnull @NotEmpty final String key, @Nonnull @NotEmpty final String value, @Nullable Long expiration)
                     throws IOException {
-        final VersionableStorageRecord record = new VersionableStorageRecord(value, expiration);
-        record.setVersion(version);
-        return record;
+        return new VersionableStorageRecord(value, expiration, version);
     }
 
     /**
@@ -99,7 +138,26 @@ public class SimpleStorageRecordSerializer extends AbstractInitializableComponen
      */
     @Nonnull public StorageRecord deserialize(@Nonnull @NotEmpty final String context,
             @Nonnull @NotEmpty final String key, @Nonnull final String serialized) throws IOException {
-        final JsonReader reader = readerFactory.createReader(new StringReader(serialized));
+        return deserialize(context, key, readerFactory.createReader(new StringReader(serialized)));
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull public StorageRecord deserialize(@Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nonnull final InputStream in) throws IOException {
+        return deserialize(context, key, readerFactory.createReader(in));
+    }
+
+    /**
+     * Returns an object recovered from the context, key, and JSON object read by a reader.
+     * 
+     * @param context storage record context
+     * @param key storage record key
+     * @param reader the JSON reader
+     * @return a deserialized object
+     * @throws IOException if an error occurs
+     */
+    @Nonnull private StorageRecord deserialize(@Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nonnull final JsonReader reader) throws IOException {
         final JsonStructure st = reader.read();
         if (!(st instanceof JsonObject)) {
             throw new IOException("Found invalid data structure");
@@ -116,29 +174,4 @@ public class SimpleStorageRecordSerializer extends AbstractInitializableComponen
         return deserialize(version, context, key, value, expiration);
     }
 
-    /**
-     * Exposes mutation of {@link StorageRecord} properties including version.
-     */
-    private class VersionableStorageRecord extends MutableStorageRecord {
-
-        /**
-         * Constructor.
-         *
-         * @param val value
-         * @param exp expiration or null if none
-         */
-        public VersionableStorageRecord(@Nonnull @NotEmpty final String val, @Nullable final Long exp) {
-            super(val, exp);
-        }
-
-        /**
-         * Set the record version.
-         * 
-         * @param version record version; must be positive.
-         */
-        @Override protected void setVersion(@Positive final long version) {
-            super.setVersion(version);
-        }
-    }
-
 }
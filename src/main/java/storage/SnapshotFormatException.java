@@ -0,0 +1,51 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storage;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Thrown when a {@link StorageSnapshot} is truncated, corrupt or not a snapshot, as opposed to the storage service
+ * failing while it is loaded.
+ */
+public class SnapshotFormatException extends IOException {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 4822067214958346331L;
+
+    /**
+     * Constructor.
+     * 
+     * @param message the exception message
+     */
+    public SnapshotFormatException(@Nonnull final String message) {
+        super(message);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param message the exception message
+     * @param cause the cause
+     */
+    public SnapshotFormatException(@Nonnull final String message, @Nonnull final Exception cause) {
+        super(message, cause);
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import javax.annotation.Nonnull;
+import javax.json.stream.JsonGenerator;
+
+/**
+ * A component able to report statistics of its own, listed with the storage services of
+ * {@link StorageServiceRegistry}.
+ */
+public interface StatisticsReporter {
+
+    /**
+     * Write statistics as a named JSON object.
+     * 
+     * @param gen the JSON generator, positioned inside an object
+     * @param name the name of the statistics object
+     */
+    void writeStatistics(@Nonnull final JsonGenerator gen, @Nonnull final String name);
+
+}
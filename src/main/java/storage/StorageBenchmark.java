@@ -0,0 +1,396 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.json.stream.JsonGenerator;
+
+import org.opensaml.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+import storage.StorageServiceMetrics.Operation;
+
+/**
+ * Runs a mix of storage operations against a {@link StorageService} from several threads for a fixed duration, and
+ * reports throughput and latency percentiles per operation.
+ * 
+ * Records are created in a context of their own, filled with every key before the clock starts and deleted
+ * afterwards. Each thread picks operations and keys at random and records latencies in its own histograms, merged at
+ * the end, so threads do not contend on shared counters while measuring.
+ */
+public class StorageBenchmark {
+
+    /** Prefix of the context of the records of each run. */
+    @Nonnull public static final String CONTEXT_PREFIX = "testbed.StorageBenchmark.";
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(StorageBenchmark.class);
+
+    /** Number of threads. */
+    @Positive private int threads = 4;
+
+    /** Number of distinct keys. */
+    @Positive private int keys = 1000;
+
+    /** Length of record values. */
+    @Positive private int valueSize = 100;
+
+    /** Duration of the run in milliseconds. */
+    @Positive private long duration = 10000;
+
+    /** Relative weights of each operation, in the order of {@link Operation}. */
+    @Nonnull private final int[] weights = {10, 70, 15, 5};
+
+    /**
+     * Get the number of threads.
+     * 
+     * @return the number of threads
+     */
+    @Positive public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Set the number of threads.
+     * 
+     * @param count the number of threads
+     */
+    public void setThreads(@Positive final int count) {
+        threads = (int) Constraint.isGreaterThan(0, count, "Thread count must be greater than 0");
+    }
+
+    /**
+     * Get the number of distinct keys.
+     * 
+     * @return the number of distinct keys
+     */
+    @Positive public int getKeys() {
+        return keys;
+    }
+
+    /**
+     * Set the number of distinct keys.
+     * 
+     * @param count the number of distinct keys
+     */
+    public void setKeys(@Positive final int count) {
+        keys = (int) Constraint.isGreaterThan(0, count, "Key count must be greater than 0");
+    }
+
+    /**
+     * Get the length of record values.
+     * 
+     * @return the length of record values
+     */
+    @Positive public int getValueSize() {
+        return valueSize;
+    }
+
+    /**
+     * Set the length of record values.
+     * 
+     * @param size the length of record values
+     */
+    public void setValueSize(@Positive final int size) {
+        valueSize = (int) Constraint.isGreaterThan(0, size, "Value size must be greater than 0");
+    }
+
+    /**
+     * Get the duration of the run.
+     * 
+     * @return the duration in milliseconds
+     */
+    @Positive public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Set the duration of the run.
+     * 
+     * @param millis the duration in milliseconds
+     */
+    public void setDuration(@Positive final long millis) {
+        duration = Constraint.isGreaterThan(0, millis, "Duration must be greater than 0");
+    }
+
+    /**
+     * Set the relative weight of an operation in the mix.
+     * 
+     * @param operation the operation
+     * @param weight the weight, 0 to leave the operation out
+     */
+    public void setWeight(@Nonnull final Operation operation, @NonNegative final int weight) {
+        weights[operation.ordinal()] =
+                (int) Constraint.isGreaterThanOrEqual(0, weight, "Operation weight cannot be negative");
+    }
+
+    /**
+     * Get the relative weight of an operation in the mix.
+     * 
+     * @param operation the operation
+     * @return the weight
+     */
+    @NonNegative public int getWeight(@Nonnull final Operation operation) {
+        return weights[operation.ordinal()];
+    }
+
+    /**
+     * Run the benchmark.
+     * 
+     * @param storageService the storage service to run against
+     * @return the result
+     * @throws IOException if the records cannot be set up
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    @Nonnull public Result run(@Nonnull final StorageService storageService) throws IOException, InterruptedException {
+        final int[] cumulative = new int[weights.length];
+        int total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            total += weights[i];
+            cumulative[i] = total;
+        }
+        Constraint.isTrue(total > 0, "At least one operation must have a weight");
+
+        final String context = CONTEXT_PREFIX + System.currentTimeMillis();
+        final char[] chars = new char[valueSize];
+        Arrays.fill(chars, 'v');
+        final String value = new String(chars);
+        for (int i = 0; i < keys; i++) {
+            storageService.create(context, "key" + i, value, null);
+        }
+
+        final CountDownLatch startGate = new CountDownLatch(1);
+        final List<Worker> workers = new ArrayList<>(threads);
+        final List<Thread> workerThreads = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            final Worker worker = new Worker(storageService, context, keys, value, cumulative, startGate);
+            final Thread thread = new Thread(worker, "storage-benchmark-" + i);
+            thread.setDaemon(true);
+            workers.add(worker);
+            workerThreads.add(thread);
+            thread.start();
+        }
+
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(duration);
+        for (final Worker worker : workers) {
+            worker.deadline = deadline;
+        }
+        startGate.countDown();
+        for (final Thread thread : workerThreads) {
+            thread.join();
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        try {
+            storageService.deleteContext(context);
+        } catch (final IOException e) {
+            log.warn("Unable to delete benchmark context '{}'", context, e);
+        }
+
+        final StorageServiceMetrics metrics = new StorageServiceMetrics();
+        for (final Worker worker : workers) {
+            metrics.add(worker.metrics);
+        }
+        return new Result(this, elapsed, metrics);
+    }
+
+    /** The outcome of a run. */
+    public static class Result {
+
+        /** Number of threads. */
+        private final int threads;
+
+        /** Number of distinct keys. */
+        private final int keys;
+
+        /** Length of record values. */
+        private final int valueSize;
+
+        /** Elapsed time in nanoseconds. */
+        private final long elapsed;
+
+        /** Latencies and errors per operation. */
+        @Nonnull private final StorageServiceMetrics metrics;
+
+        /**
+         * Constructor.
+         * 
+         * @param benchmark the benchmark which was run
+         * @param elapsedNanos elapsed time in nanoseconds
+         * @param operationMetrics latencies and errors per operation
+         */
+        private Result(@Nonnull final StorageBenchmark benchmark, final long elapsedNanos,
+                @Nonnull final StorageServiceMetrics operationMetrics) {
+            threads = benchmark.threads;
+            keys = benchmark.keys;
+            valueSize = benchmark.valueSize;
+            elapsed = elapsedNanos;
+            metrics = operationMetrics;
+        }
+
+        /**
+         * Get the latencies and errors per operation.
+         * 
+         * @return the metrics
+         */
+        @Nonnull public StorageServiceMetrics getMetrics() {
+            return metrics;
+        }
+
+        /**
+         * Get the total number of operations performed.
+         * 
+         * @return the number of operations
+         */
+        public long getOperations() {
+            long operations = 0;
+            for (final Operation operation : Operation.values()) {
+                operations += metrics.getLatency(operation).getCount() + metrics.getErrors(operation);
+            }
+            return operations;
+        }
+
+        /**
+         * Get the number of operations per second.
+         * 
+         * @return the throughput
+         */
+        public double getThroughput() {
+            return elapsed == 0 ? 0 : getOperations() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        }
+
+        /**
+         * Write the result as JSON fields.
+         * 
+         * @param gen the JSON generator, positioned inside an object
+         */
+        public void write(@Nonnull final JsonGenerator gen) {
+            gen.write("threads", threads);
+            gen.write("keys", keys);
+            gen.write("valueSize", valueSize);
+            gen.write("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(elapsed));
+            gen.write("totalOperations", getOperations());
+            gen.write("operationsPerSecond", Math.round(getThroughput()));
+            metrics.write(gen, "operations");
+        }
+    }
+
+    /** Performs random operations until the deadline. */
+    private static class Worker implements Runnable {
+
+        /** The storage service. */
+        @Nonnull private final StorageService storageService;
+
+        /** Context of the records. */
+        @Nonnull private final String context;
+
+        /** Number of distinct keys. */
+        private final int keyCount;
+
+        /** Value of the records. */
+        @Nonnull private final String value;
+
+        /** Cumulative operation weights. */
+        @Nonnull private final int[] cumulative;
+
+        /** Released when every thread may start. */
+        @Nonnull private final CountDownLatch startGate;
+
+        /** Latencies and errors of this worker. */
+        @Nonnull private final StorageServiceMetrics metrics;
+
+        /** The {@link System#nanoTime()} at which to stop. */
+        private volatile long deadline;
+
+        /**
+         * Constructor.
+         * 
+         * @param service the storage service
+         * @param ctx context of the records
+         * @param count number of distinct keys
+         * @param val value of the records
+         * @param weights cumulative operation weights
+         * @param gate released when every thread may start
+         */
+        private Worker(@Nonnull final StorageService service, @Nonnull final String ctx, final int count,
+                @Nonnull final String val, @Nonnull final int[] weights, @Nonnull final CountDownLatch gate) {
+            storageService = service;
+            context = ctx;
+            keyCount = count;
+            value = val;
+            cumulative = weights;
+            startGate = gate;
+            metrics = new StorageServiceMetrics();
+        }
+
+        /** {@inheritDoc} */
+        public void run() {
+            try {
+                startGate.await();
+            } catch (final InterruptedException e) {
+                return;
+            }
+            final Random random = new Random();
+            final Operation[] operations = Operation.values();
+            final int total = cumulative[cumulative.length - 1];
+            while (System.nanoTime() - deadline < 0) {
+                final int pick = random.nextInt(total);
+                int op = 0;
+                while (pick >= cumulative[op]) {
+                    op++;
+                }
+                final String key = "key" + random.nextInt(keyCount);
+                final long start = System.nanoTime();
+                try {
+                    switch (operations[op]) {
+                        case CREATE:
+                            storageService.create(context, key, value, null);
+                            break;
+                        case READ:
+                            storageService.read(context, key);
+                            break;
+                        case UPDATE:
+                            storageService.update(context, key, value, null);
+                            break;
+                        default:
+                            storageService.delete(context, key);
+                            break;
+                    }
+                    metrics.record(operations[op], start);
+                } catch (final IOException | RuntimeException e) {
+                    metrics.recordError(operations[op]);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,577 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Binary protocol of {@link StorageSocketServer} and {@link StorageSocketClient}.
+ * 
+ * Every message is a frame: a 4 byte length of the rest of the frame, a 4 byte request id chosen by the client and
+ * echoed in the response, a 1 byte operation or status, then the fields of the operation or the payload of the
+ * status. Numbers are big-endian; strings are a 4 byte length followed by that many bytes of UTF-8, a length of -1
+ * standing for null; an expiration of 0 means none and a version of 0 means any.
+ * 
+ * The first frame of a connection must be a {@link #HELLO} carrying the shared secret of the server as its only
+ * field. The server answers it with {@link #OK}, or with {@link #UNAUTHORIZED} and closes the connection.
+ * 
+ * Requests may be pipelined: a client may send many requests before reading the responses, which come back in the
+ * order of the requests. Request fields, all starting with the storage service id, context and key:
+ * <ul>
+ * <li>{@link #CREATE}: storage service id, context, key, value, expiration</li>
+ * <li>{@link #READ}: storage service id, context, key, version to read only if changed</li>
+ * <li>{@link #UPDATE}: storage service id, context, key, value, expiration, version to update only at</li>
+ * <li>{@link #UPDATE_EXPIRATION}: storage service id, context, key, expiration</li>
+ * <li>{@link #DELETE}: storage service id, context, key, version to delete only at</li>
+ * <li>{@link #INCREMENT}: storage service id, context, key, delta, expiration of a new counter</li>
+ * <li>{@link #COMPARE_AND_SET}: storage service id, context, key, expected value or null, value, expiration</li>
+ * <li>{@link #UPDATE_CONTEXT_EXPIRATION}: storage service id, context, expiration</li>
+ * <li>{@link #DELETE_CONTEXT}: storage service id, context</li>
+ * </ul>
+ * 
+ * A response with status {@link #OK} carries a number, the record version, or the counter value of an increment, or
+ * 0 if not known; the response to a read also carries the expiration and the value of the record. Responses with
+ * status {@link #BAD_REQUEST}, {@link #UNAUTHORIZED} or {@link #ERROR} carry a message, other statuses carry
+ * nothing.
+ * 
+ * An instance holds the buffer strings are decoded through and is used by one connection at a time.
+ */
+@NotThreadSafe
+public class StorageProtocol {
+
+    /** Size of the frame length. */
+    public static final int LENGTH_SIZE = 4;
+
+    /** Size of the frame length, request id and operation or status. */
+    public static final int HEADER_SIZE = 9;
+
+    /** Default largest frame size, beyond which a connection is closed. */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    /** Operation creating a record. */
+    public static final byte CREATE = 1;
+
+    /** Operation reading a record. */
+    public static final byte READ = 2;
+
+    /** Operation updating the value and expiration of a record. */
+    public static final byte UPDATE = 3;
+
+    /** Operation updating the expiration of a record. */
+    public static final byte UPDATE_EXPIRATION = 4;
+
+    /** Operation deleting a record. */
+    public static final byte DELETE = 5;
+
+    /** Operation adding to a counter. */
+    public static final byte INCREMENT = 6;
+
+    /** Operation replacing a value if it is the expected one. */
+    public static final byte COMPARE_AND_SET = 7;
+
+    /** Operation updating the expiration of every record of a context. */
+    public static final byte UPDATE_CONTEXT_EXPIRATION = 8;
+
+    /** Operation deleting every record of a context. */
+    public static final byte DELETE_CONTEXT = 9;
+
+    /** Operation authenticating a connection with the shared secret, the first frame of every connection. */
+    public static final byte HELLO = 10;
+
+    /** Status of a successful operation. */
+    public static final byte OK = 0;
+
+    /** Status of an operation on a record which does not exist. */
+    public static final byte NOT_FOUND = 1;
+
+    /** Status of a read of a record still at the given version. */
+    public static final byte NOT_MODIFIED = 2;
+
+    /** Status of a create of a record which exists, or of an increment of a record which is not a counter. */
+    public static final byte CONFLICT = 3;
+
+    /** Status of a versioned write of a record at another version, or of a compare-and-set of another value. */
+    public static final byte PRECONDITION_FAILED = 4;
+
+    /** Status of a malformed request or of a request to an unknown storage service. */
+    public static final byte BAD_REQUEST = 5;
+
+    /** Status of an operation which failed. */
+    public static final byte ERROR = 6;
+
+    /** Status of a first frame other than a {@link #HELLO} with the shared secret, the connection is then closed. */
+    public static final byte UNAUTHORIZED = 7;
+
+    /** Bytes of the string being decoded, reused from string to string. */
+    @Nonnull private byte[] scratch = new byte[256];
+
+    /**
+     * Encode a string.
+     * 
+     * @param string the string, or null
+     * @return the UTF-8 bytes of the string, or null
+     */
+    @Nullable public static byte[] toBytes(@Nullable final String string) {
+        return string != null ? string.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Get the size of an encoded string field.
+     * 
+     * @param bytes the encoded string, or null
+     * @return the size of the field
+     */
+    public static int sizeOf(@Nullable final byte[] bytes) {
+        return 4 + (bytes != null ? bytes.length : 0);
+    }
+
+    /**
+     * Write an encoded string field.
+     * 
+     * @param buffer the buffer to write to
+     * @param bytes the encoded string, or null
+     */
+    public static void putString(@Nonnull final ByteBuffer buffer, @Nullable final byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    /**
+     * Read a string field.
+     * 
+     * @param buffer the buffer to read from, limited to the frame
+     * @return the string, or null
+     * @throws BufferUnderflowException if the field is longer than the rest of the frame
+     */
+    @Nullable public String getString(@Nonnull final ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length == -1) {
+            return null;
+        } else if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        if (length > scratch.length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        buffer.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read a string field which must not be null or empty.
+     * 
+     * @param buffer the buffer to read from, limited to the frame
+     * @param name the name of the field
+     * @return the string
+     * @throws BufferUnderflowException if the field is longer than the rest of the frame
+     * @throws net.shibboleth.utilities.java.support.logic.ConstraintViolationException if the string is null or
+     *             empty
+     */
+    @Nonnull @NotEmpty public String getRequiredString(@Nonnull final ByteBuffer buffer,
+            @Nonnull final String name) {
+        return Constraint.isNotEmpty(getString(buffer), name + " cannot be null or empty");
+    }
+
+    /** A request, encoded by {@link StorageSocketClient}. */
+    @Immutable
+    public static final class Request {
+
+        /** Operation. */
+        private final byte operation;
+
+        /** Encoded storage service id. */
+        @Nonnull private final byte[] storageServiceId;
+
+        /** Encoded context. */
+        @Nonnull private final byte[] context;
+
+        /** Encoded key, or null for a context operation. */
+        @Nullable private final byte[] key;
+
+        /** Encoded expected value, or null. */
+        @Nullable private final byte[] expectedValue;
+
+        /** Encoded value or secret of a {@link #HELLO}, or null. */
+        @Nullable private final byte[] value;
+
+        /** Expiration, version or delta, depending on the operation. */
+        private final long first;
+
+        /** Version or expiration, depending on the operation. */
+        private final long second;
+
+        /**
+         * Constructor.
+         * 
+         * @param op operation
+         * @param id storage service id
+         * @param ctx context
+         * @param k key, or null for a context operation
+         * @param expected expected value, or null
+         * @param val value, or null
+         * @param n first number
+         * @param m second number
+         */
+        private Request(final byte op, @Nonnull final String id, @Nonnull final String ctx, @Nullable final String k,
+                @Nullable final String expected, @Nullable final String val, final long n, final long m) {
+            operation = op;
+            storageServiceId = toBytes(Constraint.isNotEmpty(id, "Storage service id cannot be null or empty"));
+            context = toBytes(Constraint.isNotEmpty(ctx, "Context cannot be null or empty"));
+            key = toBytes(k);
+            expectedValue = toBytes(expected);
+            value = toBytes(val);
+            first = n;
+            second = m;
+        }
+
+        /**
+         * Constructor of a {@link #HELLO}.
+         * 
+         * @param secret the shared secret
+         */
+        private Request(@Nonnull final String secret) {
+            operation = HELLO;
+            storageServiceId = new byte[0];
+            context = new byte[0];
+            key = null;
+            expectedValue = null;
+            value = toBytes(Constraint.isNotEmpty(secret, "Secret cannot be null or empty"));
+            first = 0;
+            second = 0;
+        }
+
+        /**
+         * Authenticate a connection.
+         * 
+         * @param secret the shared secret of the server
+         * @return the request
+         */
+        @Nonnull public static Request hello(@Nonnull final String secret) {
+            return new Request(secret);
+        }
+
+        /**
+         * Create a record.
+         * 
+         * @param storageServiceId storage service id
+         * @param context record context
+         * @param key record key
+         * @param value record value
+         * @param expiration record expiration, or 0 if none
+         * @return the request
+         */
+        @Nonnull public static Request create(@Nonnull final String storageServiceId, @Nonnull final String context,
+                @Nonnull final String key, @Nonnull final String value, final long expiration) {
+            return new Request(CREATE, storageServiceId, context, key, null, value, expiration, 0);
+        }
+
+        /**
+         * Read a record, only if it changed since a version.
+         * 
+         * @param storageServiceId storage service id
+         * @param context record context
+         * @param key record key
+         * @param version the version known to the client, or 0 to read in any case
+         * @return the request
+         */
+        @Nonnull public static Request read(@Nonnull final String storageServiceId, @Nonnull final String context,
+                @Nonnull final String key, final long version) {
+            return new Request(READ, storageServiceId, context, key, null, null, version, 0);
+        }
+
+        /**
+         * Update the value and expiration of a record, only if it is at a version.
+         * 
+         * @param storageServiceId storage service id
+         * @param context record context
+         * @param key record key
+         * @param value record value
+         * @param expiration record expiration, or 0 if none
+         * @param version the expected version, or 0 to update at any version
+         * @return the request
+         */
+        @Nonnull public static Request update(@Nonnull final String storageServiceId, @Nonnull final String context,
+                @Nonnull final String key, @Nonnull final String value, final long expiration, final long version) {
+            return new Request(UPDATE, storageServiceId, context, key, null, value, expiration, version);
+        }
+
+        /**
+         * Update the expiration of a record.
+         * 
+         * @param storageServiceId storage service id
+         * @param context record context
+         * @param key record key
+         * @param expiration record expiration, or 0 if none
+         * @return the request
+         */
+        @Nonnull public static Request updateExpiration(@Nonnull final String storageServiceId,
+                @Nonnull final String context, @Nonnull final String key, final long expiration) {
+            return new Request(UPDATE_EXPIRATION, storageServiceId, context, key, null, null, expiration, 0);
+        }
+
+        /**
+         * Delete a record, only if it is at a version.
+         * 
+         * @param storageServiceId storage service id
+         * @param context record context
+         * @param key record key
+         * @param version the expected version, or 0 to delete at any version
+         * @return the request
+         */
+        @Nonnull public static Request delete(@Nonnull final String storageServiceId, @Nonnull final String context,
+                @Nonnull final String key, final long version) {
+            return new Request(DELETE, storageServiceId, context, key, null, null, version, 0);
+        }
+
+        /**
+         * Add to a counter.
+         * 
+         * @param storageServiceId storage service id
+         * @param context record context
+         * @param key record key
+         * @param delta the number to add
+         * @param expiration expiration of a new counter, or 0 if none
+         * @return the request
+         */
+        @Nonnull public static Request increment(@Nonnull final String storageServiceId,
+                @Nonnull final String context, @Nonnull final String key, final long delta, final long expiration) {
+            return new Request(INCREMENT, storageServiceId, context, key, null, null, delta, expiration);
+        }
+
+        /**
+         * Replace the value and expiration of a record if its value is the expected one.
+         * 
+         * @param storageServiceId storage service id
+         * @param context record context
+         * @param key record key
+         * @param expectedValue the expected value, or null if the record is expected not to exist
+         * @param value record value
+         * @param expiration record expiration, or 0 if none
+         * @return the request
+         */
+        @Nonnull public static Request compareAndSet(@Nonnull final String storageServiceId,
+                @Nonnull final String context, @Nonnull final String key, @Nullable final String expectedValue,
+                @Nonnull final String value, final long expiration) {
+            return new Request(COMPARE_AND_SET, storageServiceId, context, key, expectedValue, value, expiration, 0);
+        }
+
+        /**
+         * Update the expiration of every record of a context.
+         * 
+         * @param storageServiceId storage service id
+         * @param context the context
+         * @param expiration record expiration, or 0 if none
+         * @return the request
+         */
+        @Nonnull public static Request updateContextExpiration(@Nonnull final String storageServiceId,
+                @Nonnull final String context, final long expiration) {
+            return new Request(UPDATE_CONTEXT_EXPIRATION, storageServiceId, context, null, null, null, expiration, 0);
+        }
+
+        /**
+         * Delete every record of a context.
+         * 
+         * @param storageServiceId storage service id
+         * @param context the context
+         * @return the request
+         */
+        @Nonnull public static Request deleteContext(@Nonnull final String storageServiceId,
+                @Nonnull final String context) {
+            return new Request(DELETE_CONTEXT, storageServiceId, context, null, null, null, 0, 0);
+        }
+
+        /**
+         * Get the size of the frame of the request.
+         * 
+         * @return the frame size
+         */
+        public int getFrameSize() {
+            if (operation == HELLO) {
+                return HEADER_SIZE + sizeOf(value);
+            }
+            int size = HEADER_SIZE + sizeOf(storageServiceId) + sizeOf(context);
+            switch (operation) {
+                case CREATE:
+                    return size + sizeOf(key) + sizeOf(value) + 8;
+                case READ:
+                case UPDATE_EXPIRATION:
+                case DELETE:
+                    return size + sizeOf(key) + 8;
+                case UPDATE:
+                case INCREMENT:
+                    return size + sizeOf(key) + (operation == UPDATE ? sizeOf(value) : 0) + 16;
+                case COMPARE_AND_SET:
+                    return size + sizeOf(key) + sizeOf(expectedValue) + sizeOf(value) + 8;
+                case UPDATE_CONTEXT_EXPIRATION:
+                    return size + 8;
+                default:
+                    return size;
+            }
+        }
+
+        /**
+         * Write the frame of the request.
+         * 
+         * @param buffer the buffer to write to, with at least the frame size remaining
+         * @param id the request id
+         */
+        public void encode(@Nonnull final ByteBuffer buffer, final int id) {
+            buffer.putInt(getFrameSize() - LENGTH_SIZE);
+            buffer.putInt(id);
+            buffer.put(operation);
+            if (operation == HELLO) {
+                putString(buffer, value);
+                return;
+            }
+            putString(buffer, storageServiceId);
+            putString(buffer, context);
+            switch (operation) {
+                case CREATE:
+                    putString(buffer, key);
+                    putString(buffer, value);
+                    buffer.putLong(first);
+                    break;
+                case READ:
+                case UPDATE_EXPIRATION:
+                case DELETE:
+                    putString(buffer, key);
+                    buffer.putLong(first);
+                    break;
+                case UPDATE:
+                    putString(buffer, key);
+                    putString(buffer, value);
+                    buffer.putLong(first);
+                    buffer.putLong(second);
+                    break;
+                case INCREMENT:
+                    putString(buffer, key);
+                    buffer.putLong(first);
+                    buffer.putLong(second);
+                    break;
+                case COMPARE_AND_SET:
+                    putString(buffer, key);
+                    putString(buffer, expectedValue);
+                    putString(buffer, value);
+                    buffer.putLong(first);
+                    break;
+                case UPDATE_CONTEXT_EXPIRATION:
+                    buffer.putLong(first);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /** A response, decoded by {@link StorageSocketClient}. */
+    @Immutable
+    public static final class Response {
+
+        /** Status. */
+        private final byte status;
+
+        /** Record version or counter value, 0 if not known. */
+        private final long number;
+
+        /** Record expiration of a read, 0 if none. */
+        private final long expiration;
+
+        /** Record value of a read, or message of a failure. */
+        @Nullable private final String value;
+
+        /**
+         * Constructor.
+         * 
+         * @param s status
+         * @param n record version or counter value
+         * @param exp record expiration
+         * @param val record value or message
+         */
+        public Response(final byte s, final long n, final long exp, @Nullable final String val) {
+            status = s;
+            number = n;
+            expiration = exp;
+            value = val;
+        }
+
+        /**
+         * Get the status.
+         * 
+         * @return the status
+         */
+        public byte getStatus() {
+            return status;
+        }
+
+        /**
+         * Get whether the operation succeeded.
+         * 
+         * @return true if the status is {@link StorageProtocol#OK}
+         */
+        public boolean isOk() {
+            return status == OK;
+        }
+
+        /**
+         * Get the record version, or the counter value of an increment.
+         * 
+         * @return the number, 0 if not known
+         */
+        public long getNumber() {
+            return number;
+        }
+
+        /**
+         * Get the record expiration of a read.
+         * 
+         * @return the expiration, 0 if none
+         */
+        public long getExpiration() {
+            return expiration;
+        }
+
+        /**
+         * Get the record value of a read, or the message of a failure.
+         * 
+         * @return the value or message, or null
+         */
+        @Nullable public String getValue() {
+            return value;
+        }
+
+        /** {@inheritDoc} */
+        @Override public String toString() {
+            return "Response[status=" + status + ", number=" + number + ", expiration=" + expiration + ", value="
+                    + value + "]";
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.json.stream.JsonGenerator;
+
+import common.LatencyHistogram;
+
+/**
+ * Operation counters and latency histograms of a storage service.
+ */
+@ThreadSafe
+public class StorageServiceMetrics {
+
+    /** Storage operation categories. */
+    public enum Operation {
+        /** Record creation. */
+        CREATE,
+        /** Record reads, versioned or not. */
+        READ,
+        /** Updates of record values or expirations, including context expirations. */
+        UPDATE,
+        /** Record and context deletion. */
+        DELETE,
+        /** Counter increments. */
+        INCREMENT,
+        /** Compare-and-set of record values. */
+        COMPARE_AND_SET,
+    }
+
+    /** Latency histograms per operation. */
+    @Nonnull private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+
+    /** Error counters per operation. */
+    @Nonnull private final Map<Operation, AtomicLong> errors = new EnumMap<>(Operation.class);
+
+    /** Retry counters per operation. */
+    @Nonnull private final Map<Operation, AtomicLong> retries = new EnumMap<>(Operation.class);
+
+    /** Constructor. */
+    public StorageServiceMetrics() {
+        for (final Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+            errors.put(operation, new AtomicLong());
+            retries.put(operation, new AtomicLong());
+        }
+    }
+
+    /**
+     * Record a completed operation.
+     * 
+     * @param operation the operation
+     * @param startNanos the start time of the operation as returned by {@link System#nanoTime()}
+     */
+    public void record(@Nonnull final Operation operation, final long startNanos) {
+        latencies.get(operation).recordSince(startNanos);
+    }
+
+    /**
+     * Record an operation which raised an error.
+     * 
+     * @param operation the operation
+     */
+    public void recordError(@Nonnull final Operation operation) {
+        errors.get(operation).incrementAndGet();
+    }
+
+    /**
+     * Record the retries of an operation which had to be attempted again because of concurrent writes.
+     * 
+     * @param operation the operation
+     * @param count the number of retries
+     */
+    public void recordRetries(@Nonnull final Operation operation, final long count) {
+        retries.get(operation).addAndGet(count);
+    }
+
+    /**
+     * Add the operations recorded by other metrics.
+     * 
+     * @param other the metrics to add
+     */
+    public void add(@Nonnull final StorageServiceMetrics other) {
+        for (final Operation operation : Operation.values()) {
+            latencies.get(operation).add(other.getLatency(operation));
+            errors.get(operation).addAndGet(other.getErrors(operation));
+            retries.get(operation).addAndGet(other.getRetries(operation));
+        }
+    }
+
+    /**
+     * Get the latency histogram of an operation.
+     * 
+     * @param operation the operation
+     * @return the latency histogram
+     */
+    @Nonnull public LatencyHistogram getLatency(@Nonnull final Operation operation) {
+        return latencies.get(operation);
+    }
+
+    /**
+     * Get the number of errors of an operation.
+     * 
+     * @param operation the operation
+     * @return the number of errors
+     */
+    public long getErrors(@Nonnull final Operation operation) {
+        return errors.get(operation).get();
+    }
+
+    /**
+     * Get the number of retries of an operation.
+     * 
+     * @param operation the operation
+     * @return the number of retries
+     */
+    public long getRetries(@Nonnull final Operation operation) {
+        return retries.get(operation).get();
+    }
+
+    /**
+     * Write the metrics of every operation as a named JSON object.
+     * 
+     * @param gen the JSON generator, positioned inside an object
+     * @param name the name of the metrics object
+     */
+    public void write(@Nonnull final JsonGenerator gen, @Nonnull final String name) {
+        gen.writeStartObject(name);
+        for (final Operation operation : Operation.values()) {
+            final String operationName = operation.name().toLowerCase(Locale.ROOT);
+            gen.writeStartObject(operationName);
+            gen.write("errors", getErrors(operation));
+            gen.write("retries", getRetries(operation));
+            latencies.get(operation).write(gen, "latency");
+            gen.writeEnd();
+        }
+        gen.writeEnd();
+    }
+
+}
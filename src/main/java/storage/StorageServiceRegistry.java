@@ -0,0 +1,301 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.json.stream.JsonGenerator;
+
+import org.opensaml.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.stereotype.Component;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+/**
+ * Resolves every {@link StorageService} bean of the application context and its ancestors once, and again whenever
+ * the application context is refreshed.
+ * 
+ * Each storage service is wrapped in a {@link MeteredStorageService}, so operations performed through the registry
+ * are counted and timed per storage service. Metrics of a storage service are kept across refreshes as long as the
+ * storage service instance is the same.
+ */
+@Component
+@ThreadSafe
+public class StorageServiceRegistry implements ApplicationContextAware, ApplicationListener<ContextRefreshedEvent> {
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(StorageServiceRegistry.class);
+
+    /** The application context. */
+    @Nullable private ApplicationContext applicationContext;
+
+    /** Registered storage services by bean name and alias. */
+    @Nullable private volatile Map<String, RegisteredStorageService> storageServicesByName;
+
+    /** Registered storage services, once each. */
+    @Nonnull private volatile List<RegisteredStorageService> storageServices = Collections.emptyList();
+
+    /** Metrics by storage service instance. */
+    @GuardedBy("this") @Nonnull private final Map<StorageService, StorageServiceMetrics> metrics =
+            new IdentityHashMap<>();
+
+    /** {@inheritDoc} */
+    public void setApplicationContext(@Nonnull final ApplicationContext context) {
+        applicationContext = context;
+    }
+
+    /** {@inheritDoc} */
+    public void onApplicationEvent(@Nonnull final ContextRefreshedEvent event) {
+        ApplicationContext context = applicationContext;
+        while (context != null) {
+            if (context == event.getApplicationContext()) {
+                refresh();
+                return;
+            }
+            context = context.getParent();
+        }
+    }
+
+    /**
+     * Resolve the storage services again.
+     * 
+     * Beans of a context take precedence over beans of the same name in its ancestors.
+     */
+    public synchronized void refresh() {
+        final Map<String, RegisteredStorageService> byName = new LinkedHashMap<>();
+        final List<RegisteredStorageService> registered = new ArrayList<>();
+        final Map<StorageService, StorageServiceMetrics> retainedMetrics = new IdentityHashMap<>();
+
+        ApplicationContext context = applicationContext;
+        while (context != null) {
+            for (final Map.Entry<String, StorageService> entry : context.getBeansOfType(StorageService.class)
+                    .entrySet()) {
+                if (byName.containsKey(entry.getKey())) {
+                    continue;
+                }
+
+                final StorageService storageService = entry.getValue();
+                StorageServiceMetrics serviceMetrics = metrics.get(storageService);
+                if (serviceMetrics == null) {
+                    serviceMetrics = new StorageServiceMetrics();
+                }
+                retainedMetrics.put(storageService, serviceMetrics);
+
+                final RegisteredStorageService registration = new RegisteredStorageService(entry.getKey(),
+                        Arrays.asList(context.getAliases(entry.getKey())), wrap(entry.getKey(), storageService,
+                                serviceMetrics));
+                registered.add(registration);
+                byName.put(entry.getKey(), registration);
+                for (final String alias : registration.getAliases()) {
+                    if (!byName.containsKey(alias)) {
+                        byName.put(alias, registration);
+                    }
+                }
+                log.debug("Registered storage service '{}' : '{}'", entry.getKey(), storageService);
+            }
+            context = context.getParent();
+        }
+
+        metrics.clear();
+        metrics.putAll(retainedMetrics);
+        storageServices = Collections.unmodifiableList(registered);
+        storageServicesByName = byName;
+        log.debug("Registered {} storage services", registered.size());
+    }
+
+    /**
+     * Get a storage service by bean name or alias.
+     * 
+     * @param storageServiceId the bean name or alias
+     * @return the metered storage service or <code>null</code> if there is no such storage service
+     */
+    @Nullable public StorageService getStorageService(@Nonnull @NotEmpty final String storageServiceId) {
+        Map<String, RegisteredStorageService> byName = storageServicesByName;
+        if (byName == null) {
+            // A request arrived before the refresh event.
+            refresh();
+            byName = storageServicesByName;
+        }
+        final RegisteredStorageService registration = byName.get(storageServiceId);
+        return registration != null ? registration.getStorageService() : null;
+    }
+
+    /**
+     * Get the registered storage services.
+     * 
+     * @return the registered storage services, once each
+     */
+    @Nonnull @NonnullElements @Unmodifiable public Collection<RegisteredStorageService> getStorageServices() {
+        if (storageServicesByName == null) {
+            refresh();
+        }
+        return storageServices;
+    }
+
+    /**
+     * Write the registered storage services and their metrics as a JSON array.
+     * 
+     * @param gen the JSON generator, positioned inside an object
+     * @param name the name of the array
+     */
+    public void write(@Nonnull final JsonGenerator gen, @Nonnull final String name) {
+        gen.writeStartArray(name);
+        for (final RegisteredStorageService registration : getStorageServices()) {
+            final MeteredStorageService storageService = registration.getStorageService();
+            gen.writeStartObject();
+            gen.write("id", registration.getId());
+            gen.writeStartArray("aliases");
+            for (final String alias : registration.getAliases()) {
+                gen.write(alias);
+            }
+            gen.writeEnd();
+            gen.write("class", storageService.getStorageService().getClass().getName());
+            storageService.getMetrics().write(gen, "operations");
+            writeStatistics(gen, storageService.getStorageService());
+            gen.writeEnd();
+        }
+        gen.writeEnd();
+    }
+
+    /**
+     * Write the statistics of a storage service and of the storage services it decorates, if any of them reports
+     * statistics, as a JSON object keyed by storage service id.
+     * 
+     * @param gen the JSON generator, positioned inside an object
+     * @param storageService the storage service
+     */
+    private void writeStatistics(@Nonnull final JsonGenerator gen, @Nonnull final StorageService storageService) {
+        boolean started = false;
+        StorageService current = storageService;
+        while (current != null) {
+            if (current instanceof StatisticsReporter) {
+                if (!started) {
+                    gen.writeStartObject("statistics");
+                    started = true;
+                }
+                final String id = current.getId() != null ? current.getId() : current.getClass().getName();
+                ((StatisticsReporter) current).writeStatistics(gen, id);
+            }
+            current = current instanceof AbstractDelegatingStorageService
+                    ? ((AbstractDelegatingStorageService) current).getStorageService() : null;
+        }
+        if (started) {
+            gen.writeEnd();
+        }
+    }
+
+    /**
+     * Wrap a storage service to record its metrics.
+     * 
+     * @param storageServiceId the bean name
+     * @param storageService the storage service
+     * @param serviceMetrics the metrics to record to
+     * @return the metered storage service
+     */
+    @Nonnull private MeteredStorageService wrap(@Nonnull final String storageServiceId,
+            @Nonnull final StorageService storageService, @Nonnull final StorageServiceMetrics serviceMetrics) {
+        final MeteredStorageService metered = new MeteredStorageService(serviceMetrics);
+        metered.setId(storageServiceId);
+        metered.setStorageService(storageService);
+        try {
+            metered.initialize();
+        } catch (final ComponentInitializationException e) {
+            // Not possible, the wrapped storage service is set.
+            throw new IllegalStateException(e);
+        }
+        return metered;
+    }
+
+    /**
+     * A storage service registered under a bean name and its aliases.
+     */
+    public static class RegisteredStorageService {
+
+        /** The bean name. */
+        @Nonnull @NotEmpty private final String id;
+
+        /** The aliases of the bean name. */
+        @Nonnull @NonnullElements private final List<String> aliases;
+
+        /** The metered storage service. */
+        @Nonnull private final MeteredStorageService storageService;
+
+        /**
+         * Constructor.
+         *
+         * @param beanName the bean name
+         * @param beanAliases the aliases of the bean name
+         * @param service the metered storage service
+         */
+        public RegisteredStorageService(@Nonnull @NotEmpty final String beanName,
+                @Nonnull @NonnullElements final List<String> beanAliases,
+                @Nonnull final MeteredStorageService service) {
+            id = beanName;
+            aliases = beanAliases;
+            storageService = service;
+        }
+
+        /**
+         * Get the bean name.
+         * 
+         * @return the bean name
+         */
+        @Nonnull @NotEmpty public String getId() {
+            return id;
+        }
+
+        /**
+         * Get the aliases of the bean name.
+         * 
+         * @return the aliases
+         */
+        @Nonnull @NonnullElements public List<String> getAliases() {
+            return aliases;
+        }
+
+        /**
+         * Get the metered storage service.
+         * 
+         * @return the metered storage service
+         */
+        @Nonnull public MeteredStorageService getStorageService() {
+            return storageService;
+        }
+    }
+
+}
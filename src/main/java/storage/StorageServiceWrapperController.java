@@ -17,21 +17,47 @@
 
 package storage;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FilterWriter;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonReaderFactory;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.opensaml.storage.StorageRecord;
-import org.opensaml.storage.StorageSerializer;
 import org.opensaml.storage.StorageService;
+import org.opensaml.storage.VersionMismatchException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.ApplicationContext;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -39,14 +65,26 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
-import org.springframework.web.bind.annotation.ResponseBody;
+
+import net.shibboleth.utilities.java.support.codec.Base64Support;
+import net.shibboleth.utilities.java.support.collection.Pair;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.logic.ConstraintViolationException;
 
 /**
  * Interact with storage services via HTTP.
  * 
- * Only the 'read' and 'create' storage operations are supported.
+ * The 'create', 'read', 'update', 'updateExpiration' and 'delete' storage operations are supported for one record per
+ * request, and 'create' and 'read' in batches of newline-delimited JSON records.
+ * 
+ * Record versions are exposed as entity tags. Reads return an 'ETag' header and answer 'If-None-Match' with
+ * '304 Not Modified' while the version is unchanged. Updates and deletes honor an 'If-Match' header and fail with
+ * '412 Precondition Failed' if the record has another version. Successful conditional updates return the 'ETag' of
+ * the new version. Creates, unconditional updates and deletes return no 'ETag', the storage API not reporting the
+ * version they write.
  * 
  * Examples follow.
  * 
@@ -68,7 +106,95 @@ import org.springframework.web.bind.annotation.ResponseBody;
  * curl 'http://localhost:8080/idp/storage/read?storageServiceId=shibboleth.StorageService&context=context&key=key'
  * <p>
  * 
- * To list storage services :
+ * To create or read in batches, one JSON object per line in and one JSON status object per line out :
+ * <p>
+ * curl -X POST --data-binary @records.ndjson 'http://localhost:8080/idp/storage/batch/create/shibboleth.StorageService'
+ * <p>
+ * where each line looks like {"context":"context","key":"key","value":"value","expiration":1500000000000}
+ * <p>
+ * curl -X POST --data-binary @keys.ndjson 'http://localhost:8080/idp/storage/batch/read?storageServiceId=shibboleth.StorageService'
+ * <p>
+ * where each line looks like {"context":"context","key":"key"}
+ * <p>
+ * 
+ * To update, optionally only if the record is still at version 1 :
+ * <p>
+ * curl -X PUT -H 'If-Match: "1"' 'http://localhost:8080/idp/storage/update/shibboleth.StorageService/context/key?value=value2'
+ * <p>
+ * 
+ * To change the expiration of a record (in milliseconds since the epoch, omit to never expire) :
+ * <p>
+ * curl -X PATCH 'http://localhost:8080/idp/storage/update/shibboleth.StorageService/context/key?expiration=1500000000000'
+ * <p>
+ * 
+ * Records are read as pretty-printed JSON, as compact JSON with the 'pretty=false' parameter, or in the binary form of
+ * {@link BinaryStorageRecordSerializer} if the 'Accept' header prefers 'application/octet-stream' :
+ * <p>
+ * curl -H 'Accept: application/octet-stream' 'http://localhost:8080/idp/storage/read/shibboleth.StorageService/context/key'
+ * <p>
+ * 
+ * To read only if the record has changed since version 2 :
+ * <p>
+ * curl -H 'If-None-Match: "2"' 'http://localhost:8080/idp/storage/read/shibboleth.StorageService/context/key'
+ * <p>
+ * 
+ * To add to a counter in a single request, creating it with the given expiration if it does not exist, or to replace a
+ * value only if it is the expected one (omit 'expected' to only create the record) :
+ * <p>
+ * curl -X POST 'http://localhost:8080/idp/storage/increment/shibboleth.StorageService/context/key?delta=1&expiration=1500000000000'
+ * <p>
+ * curl -X POST 'http://localhost:8080/idp/storage/cas/shibboleth.StorageService/context/key?expected=value&value=value2'
+ * <p>
+ * 
+ * To delete, optionally only if the record is still at version 2 :
+ * <p>
+ * curl -X DELETE -H 'If-Match: "2"' 'http://localhost:8080/idp/storage/delete/shibboleth.StorageService/context/key'
+ * <p>
+ * 
+ * To list the keys of a context a page at a time, passing the 'cursor' of each page to get the next one, and
+ * optionally with the records ('values=true') :
+ * <p>
+ * curl 'http://localhost:8080/idp/storage/scan/testbed.StripedMemoryStorageService/context?limit=100'
+ * <p>
+ * curl 'http://localhost:8080/idp/storage/scan/testbed.StripedMemoryStorageService/context?limit=100&values=true&cursor=a2V5OTk'
+ * <p>
+ * 
+ * To delete every record of a context, or change the expiration of every record of a context :
+ * <p>
+ * curl -X DELETE 'http://localhost:8080/idp/storage/context/shibboleth.StorageService/context'
+ * <p>
+ * curl -X PATCH 'http://localhost:8080/idp/storage/context/shibboleth.StorageService/context?expiration=1500000000000'
+ * <p>
+ * 
+ * To save contexts to a snapshot file and load them into a storage service, for instance a fresh testbed, with
+ * contexts loaded in parallel (see {@link StorageSnapshot} and {@link StorageSnapshotTool}) :
+ * <p>
+ * curl -o seed.snapshot 'http://localhost:8080/idp/storage/snapshot/testbed.StripedMemoryStorageService?context=a&context=b'
+ * <p>
+ * curl -X POST --data-binary @seed.snapshot 'http://localhost:8080/idp/storage/snapshot/testbed.StripedMemoryStorageService?threads=4'
+ * <p>
+ * 
+ * To run a 30 second workload of 8 threads against a storage service from within the JVM, and report throughput
+ * and latency percentiles of each operation (weights of the 'create', 'read', 'update' and 'delete' operations
+ * default to 10, 70, 15 and 5) :
+ * <p>
+ * curl -X POST 'http://localhost:8080/idp/storage/bench/shibboleth.StorageService?threads=8&keys=10000&valueSize=200&duration=30000&read=90&update=10&create=0&delete=0'
+ * <p>
+ * 
+ * The single record operations are also available without holding a container thread, see
+ * {@link AsyncStorageServiceWrapperController} :
+ * <p>
+ * curl 'http://localhost:8080/idp/storage/async/read/shibboleth.StorageService/context/key'
+ * <p>
+ * 
+ * To stream the changes made to a context as Server-Sent Events rather than polling it, see
+ * {@link StorageWatchController} :
+ * <p>
+ * curl -N 'http://localhost:8080/idp/storage/watch/testbed.ObservingStorageService/context'
+ * <p>
+ * 
+ * To list storage services, with the number of errors and latency percentiles of each operation performed through
+ * this controller :
  * <p>
  * curl 'http://localhost:8080/idp/storage/'
  * <p>
@@ -79,14 +205,95 @@ public class StorageServiceWrapperController {
     /** Class logger. */
     @Nonnull private final Logger log = LoggerFactory.getLogger(StorageServiceWrapperController.class);
 
-    /** Storage record serializer. */
-    @Nonnull private final StorageSerializer<StorageRecord> serializer;
+    /** Content type of batch requests and responses. */
+    @Nonnull public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+
+    /** Batch status of a created record. */
+    @Nonnull public static final String BATCH_STATUS_CREATED = "created";
+
+    /** Batch status of a record which could not be created because it already exists. */
+    @Nonnull public static final String BATCH_STATUS_CONFLICT = "conflict";
+
+    /** Batch status of a record which was read. */
+    @Nonnull public static final String BATCH_STATUS_FOUND = "found";
+
+    /** Batch status of a record which does not exist. */
+    @Nonnull public static final String BATCH_STATUS_NOT_FOUND = "not found";
+
+    /** Batch status of a record which could not be processed. */
+    @Nonnull public static final String BATCH_STATUS_ERROR = "error";
+
+    /** Pretty-printing JSON storage record serializer. */
+    @Nonnull private final StreamingStorageRecordSerializer prettyJsonSerializer;
+
+    /** Compact JSON storage record serializer. */
+    @Nonnull private final StreamingStorageRecordSerializer jsonSerializer;
+
+    /** Binary storage record serializer. */
+    @Nonnull private final StreamingStorageRecordSerializer binarySerializer;
+
+    /** JSON reader factory for batch request lines. */
+    @Nonnull private final JsonReaderFactory readerFactory;
+
+    /** JSON generator factory for batch response lines. */
+    @Nonnull private final JsonGeneratorFactory generatorFactory;
+
+    /** Batch operation creating each record. */
+    @Nonnull private final BatchOperation batchCreate = new BatchCreateOperation();
+
+    /** Batch operation reading each record. */
+    @Nonnull private final BatchOperation batchRead = new BatchReadOperation();
+
+    /** Default number of keys per scanned page. */
+    public static final int DEFAULT_SCAN_LIMIT = 100;
+
+    /** Largest number of keys per scanned page. */
+    public static final int MAX_SCAN_LIMIT = 10000;
 
-    /** The (IdP) application context. */
-    @Autowired private ApplicationContext appContext;
+    /** Characters of a scan cursor, the unpadded URL-safe Base64 encoding of the last key of a page. */
+    @Nonnull private static final Pattern CURSOR_PATTERN = Pattern.compile("[A-Za-z0-9_-]*");
+
+    /** Largest number of benchmark threads. */
+    public static final int MAX_BENCHMARK_THREADS = 256;
+
+    /** Longest benchmark duration in milliseconds. */
+    public static final long MAX_BENCHMARK_DURATION = 300000;
+
+    /** Largest number of distinct benchmark keys. */
+    public static final int MAX_BENCHMARK_KEYS = 1000000;
+
+    /** Largest length of benchmark record values. */
+    public static final int MAX_BENCHMARK_VALUE_SIZE = 65536;
+
+    /** Largest total length of the values preloaded by a benchmark, the number of keys times the value size. */
+    public static final long MAX_BENCHMARK_DATA_SIZE = 64L * 1024 * 1024;
+
+    /** Largest number of contexts of a snapshot loaded at once. */
+    public static final int MAX_SNAPSHOT_THREADS = 64;
+
+    /** Largest snapshot accepted for import, in bytes. */
+    public static final long MAX_SNAPSHOT_SIZE = 1024L * 1024 * 1024;
+
+    /** Whether a benchmark is running, only one may run at a time. */
+    @Nonnull private final AtomicBoolean benchmarkRunning = new AtomicBoolean();
+
+    /** JSON generator factory for the storage service listing. */
+    @Nonnull private final JsonGeneratorFactory prettyGeneratorFactory;
+
+    /** The storage services of the (IdP) application context. */
+    @Autowired private StorageServiceRegistry storageServiceRegistry;
+
+    /** Components reporting statistics by bean name, those which are not storage services are listed as controllers. */
+    @Autowired(required = false) private Map<String, StatisticsReporter> statisticsReporters;
 
     public StorageServiceWrapperController() {
-        serializer = new SimpleStorageRecordSerializer();
+        prettyJsonSerializer = new SimpleStorageRecordSerializer(true);
+        jsonSerializer = new SimpleStorageRecordSerializer(false);
+        binarySerializer = new BinaryStorageRecordSerializer();
+        readerFactory = Json.createReaderFactory(null);
+        generatorFactory = Json.createGeneratorFactory(null);
+        prettyGeneratorFactory =
+                Json.createGeneratorFactory(Collections.singletonMap(JsonGenerator.PRETTY_PRINTING, "true"));
     }
 
     static protected ResponseEntity<String> seleniumFriendlyResponse(
@@ -94,38 +301,135 @@ public class StorageServiceWrapperController {
         return new ResponseEntity<>(status.getReasonPhrase(), status);
     }
 
-    @Nullable
-    protected StorageService getStorageService(
-            @Nonnull final String storageServiceId) {
-        try {
-            log.debug("Get storage service with id '{}'", storageServiceId);
-            final StorageService storageService = appContext.getBean(storageServiceId, StorageService.class);
-            log.debug("Get storage service with id '{}' returned '{}'", storageServiceId, storageService);
-            return storageService;
-        } catch (BeansException e) {
-            log.debug("Unable to get storage service", e);
+    static protected ResponseEntity<String> seleniumFriendlyResponse(
+            @Nonnull final HttpStatus status, final long version) {
+        final HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.setETag(toEntityTag(version));
+        return new ResponseEntity<>(status.getReasonPhrase(), httpHeaders, status);
+    }
+
+    /**
+     * Format a record version as a strong entity tag.
+     * 
+     * @param version the record version
+     * @return the entity tag
+     */
+    @Nonnull static protected String toEntityTag(final long version) {
+        return "\"" + version + "\"";
+    }
+
+    /**
+     * Parse the record version from an 'If-Match' or 'If-None-Match' header.
+     * 
+     * Strong and weak entity tags are accepted, as well as a bare version number.
+     * 
+     * @param header the header value, may be null
+     * @return the version or <code>null</code> if the header is absent or '*'
+     * @throws NumberFormatException if the header is not a single version
+     */
+    @Nullable static protected Long parseEntityTag(@Nullable final String header) {
+        if (header == null) {
+            return null;
+        }
+        String tag = header.trim();
+        if (tag.isEmpty() || "*".equals(tag)) {
+            return null;
+        }
+        if (tag.startsWith("W/")) {
+            tag = tag.substring(2);
+        }
+        if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+            tag = tag.substring(1, tag.length() - 1);
+        }
+        final long version = Long.parseLong(tag);
+        if (version <= 0) {
+            throw new NumberFormatException("Version must be positive");
+        }
+        return version;
+    }
+
+    /**
+     * Encode the last key of a scanned page as an opaque cursor.
+     * 
+     * @param key the last key of the page
+     * @return the cursor
+     */
+    @Nonnull static protected String encodeCursor(@Nonnull final String key) {
+        final String base64 = Base64Support.encode(key.getBytes(StandardCharsets.UTF_8), Base64Support.UNCHUNKED);
+        return base64.replace('+', '-').replace('/', '_').replace("=", "");
+    }
+
+    /**
+     * Decode the key a scan continues after from a cursor.
+     * 
+     * @param cursor the cursor, may be null
+     * @return the key or <code>null</code> if the cursor is absent or empty
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    @Nullable static protected String decodeCursor(@Nullable final String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        if (!CURSOR_PATTERN.matcher(cursor).matches() || cursor.length() % 4 == 1) {
+            throw new IllegalArgumentException("Malformed cursor");
+        }
+        final StringBuilder base64 = new StringBuilder(cursor.replace('-', '+').replace('_', '/'));
+        while (base64.length() % 4 != 0) {
+            base64.append('=');
         }
+        return new String(Base64Support.decode(base64.toString()), StandardCharsets.UTF_8);
+    }
 
+    /**
+     * Find the storage service able to enumerate keys, looking through decorators.
+     * 
+     * @param storageService the storage service
+     * @return the first storage service in the chain able to enumerate keys, or <code>null</code> if none
+     */
+    @Nullable static protected EnumerableStorageService findEnumerableStorageService(
+            @Nonnull final StorageService storageService) {
+        StorageService current = storageService;
+        while (current != null) {
+            if (current instanceof EnumerableStorageService) {
+                return (EnumerableStorageService) current;
+            }
+            current = current instanceof AbstractDelegatingStorageService
+                    ? ((AbstractDelegatingStorageService) current).getStorageService() : null;
+        }
         return null;
     }
 
-    @ResponseBody
+    @Nullable
+    protected StorageService getStorageService(
+            @Nonnull final String storageServiceId) {
+        log.debug("Get storage service with id '{}'", storageServiceId);
+        final StorageService storageService = storageServiceRegistry.getStorageService(storageServiceId);
+        log.debug("Get storage service with id '{}' returned '{}'", storageServiceId, storageService);
+        return storageService;
+    }
+
     @RequestMapping(
             value = "/",
-            method = RequestMethod.GET)
-    public String listStorageServices() {
-
-        final Map<String, StorageService> storageServices = new HashMap<>();
-        storageServices.putAll(appContext.getBeansOfType(StorageService.class));
-        storageServices.putAll(appContext.getParent().getBeansOfType(StorageService.class));
+            method = RequestMethod.GET,
+            produces = {"application/json"})
+    public void listStorageServices(@Nonnull final HttpServletResponse servletResponse) throws IOException {
+        servletResponse.setStatus(HttpStatus.OK.value());
+        servletResponse.setContentType(SimpleStorageRecordSerializer.CONTENT_TYPE);
 
-        if (log.isDebugEnabled()) {
-            for (final Map.Entry<String, StorageService> entry : storageServices.entrySet()) {
-                log.debug("Storage service '{}' : '{}'", entry.getKey(), entry.getValue());
+        final JsonGenerator gen =
+                prettyGeneratorFactory.createGenerator(servletResponse.getOutputStream(), StandardCharsets.UTF_8);
+        gen.writeStartObject();
+        storageServiceRegistry.write(gen, "storageServices");
+        gen.writeStartObject("controllers");
+        if (statisticsReporters != null) {
+            for (final Map.Entry<String, StatisticsReporter> entry : statisticsReporters.entrySet()) {
+                if (!(entry.getValue() instanceof StorageService)) {
+                    entry.getValue().writeStatistics(gen, entry.getKey());
+                }
             }
         }
-
-        return storageServices.toString();
+        gen.writeEnd();
+        gen.writeEnd().close();
     }
 
     protected ResponseEntity<String> create(
@@ -178,10 +482,162 @@ public class StorageServiceWrapperController {
         return create(storageServiceId, context, key, value);
     }
 
-    protected ResponseEntity<String> read(
+    /**
+     * Select the serializer for a read response from the 'Accept' header.
+     * 
+     * JSON is preferred unless the binary form is explicitly accepted with a higher quality.
+     * 
+     * @param accept the 'Accept' header, may be null
+     * @param pretty whether JSON should be pretty-printed
+     * @return the serializer or <code>null</code> if no supported media type is acceptable
+     */
+    @Nullable protected StreamingStorageRecordSerializer selectSerializer(@Nullable final String accept,
+            final boolean pretty) {
+        final StreamingStorageRecordSerializer json = pretty ? prettyJsonSerializer : jsonSerializer;
+        if (accept == null || accept.trim().isEmpty()) {
+            return json;
+        }
+
+        final List<MediaType> mediaTypes = MediaType.parseMediaTypes(accept);
+        MediaType.sortBySpecificityAndQuality(mediaTypes);
+        for (final MediaType mediaType : mediaTypes) {
+            if (mediaType.getQualityValue() <= 0) {
+                continue;
+            } else if (mediaType.isWildcardType() || mediaType.includes(MediaType.APPLICATION_JSON)) {
+                return json;
+            } else if (mediaType.includes(MediaType.APPLICATION_OCTET_STREAM)) {
+                return binarySerializer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write a response without a serialized record.
+     * 
+     * @param servletResponse the servlet response
+     * @param status the response status
+     * @throws IOException if the response can not be written
+     */
+    static protected void writeSeleniumFriendlyResponse(@Nonnull final HttpServletResponse servletResponse,
+            @Nonnull final HttpStatus status) throws IOException {
+        servletResponse.setStatus(status.value());
+        servletResponse.setContentType(MediaType.TEXT_PLAIN_VALUE);
+        servletResponse.getWriter().write(status.getReasonPhrase());
+    }
+
+    /**
+     * Read a record and write it directly to the response, in the form selected by the 'Accept' header.
+     * 
+     * @param storageServiceId the storage service id
+     * @param context the record context
+     * @param key the record key
+     * @param ifNoneMatch the 'If-None-Match' header, may be null
+     * @param accept the 'Accept' header, may be null
+     * @param pretty whether JSON should be pretty-printed
+     * @param servletResponse the servlet response
+     * @throws IOException if the response can not be written
+     */
+    protected void read(
             @Nonnull final String storageServiceId,
             @Nonnull final String context,
-            @Nonnull final String key) {
+            @Nonnull final String key,
+            @Nullable final String ifNoneMatch,
+            @Nullable final String accept,
+            final boolean pretty,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        final StreamingStorageRecordSerializer recordSerializer = selectSerializer(accept, pretty);
+        if (recordSerializer == null) {
+            log.debug("No acceptable media type in '{}'", accept);
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.NOT_ACCEPTABLE);
+            return;
+        }
+
+        final StorageRecord record;
+        try {
+            final StorageService storageService = getStorageService(storageServiceId);
+            if (storageService == null) {
+                log.debug("Unable to find storage service with id '{}'", storageServiceId);
+                writeSeleniumFriendlyResponse(servletResponse, HttpStatus.BAD_REQUEST);
+                return;
+            }
+
+            final Long knownVersion = parseEntityTag(ifNoneMatch);
+
+            if (knownVersion == null) {
+                log.debug("Reading from '{}' with context '{}' and key '{}'", storageServiceId, context, key);
+                record = storageService.read(context, key);
+                log.debug("Read '{}' from '{}' with context '{}' and key '{}'", record, storageServiceId, context, key);
+            } else {
+                log.debug("Reading from '{}' with context '{}' and key '{}' if newer than version '{}'",
+                        storageServiceId, context, key, knownVersion);
+                final Pair<Long, StorageRecord> result = storageService.read(context, key, knownVersion);
+                log.debug("Read version '{}' record '{}' from '{}' with context '{}' and key '{}'", result.getFirst(),
+                        result.getSecond(), storageServiceId, context, key);
+                if (result.getFirst() != null && result.getSecond() == null) {
+                    servletResponse.setStatus(HttpStatus.NOT_MODIFIED.value());
+                    servletResponse.setHeader(HttpHeaders.ETAG, toEntityTag(result.getFirst()));
+                    return;
+                }
+                record = result.getSecond();
+            }
+        } catch (NumberFormatException e) {
+            log.debug("Invalid If-None-Match header '{}'", ifNoneMatch);
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.BAD_REQUEST);
+            return;
+        } catch (IOException e) {
+            log.debug("An error occurred", e);
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.INTERNAL_SERVER_ERROR);
+            return;
+        }
+
+        if (record == null) {
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.NOT_FOUND);
+        } else {
+            servletResponse.setStatus(HttpStatus.OK.value());
+            servletResponse.setContentType(recordSerializer.getContentType());
+            servletResponse.setHeader(HttpHeaders.ETAG, toEntityTag(record.getVersion()));
+            recordSerializer.serialize(record, servletResponse.getOutputStream());
+        }
+    }
+
+    @RequestMapping(
+            value = "/read/{storageServiceId}/{context}/{key}",
+            method = RequestMethod.GET,
+            produces = {"application/json", "application/octet-stream"})
+    public void readFromPathVariables(
+            @PathVariable @Nonnull final String storageServiceId,
+            @PathVariable @Nonnull final String context,
+            @PathVariable @Nonnull final String key,
+            @RequestParam(required = false, defaultValue = "true") final boolean pretty,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) @Nullable final String ifNoneMatch,
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) @Nullable final String accept,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        read(storageServiceId, context, key, ifNoneMatch, accept, pretty, servletResponse);
+    }
+
+    @RequestMapping(
+            value = "/read",
+            method = RequestMethod.GET,
+            produces = {"application/json", "application/octet-stream"})
+    public void readFromRequestParams(
+            @RequestParam @Nonnull final String storageServiceId,
+            @RequestParam @Nonnull final String context,
+            @RequestParam @Nonnull final String key,
+            @RequestParam(required = false, defaultValue = "true") final boolean pretty,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) @Nullable final String ifNoneMatch,
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) @Nullable final String accept,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        read(storageServiceId, context, key, ifNoneMatch, accept, pretty, servletResponse);
+    }
+
+    protected ResponseEntity<String> update(
+            @Nonnull final String storageServiceId,
+            @Nonnull final String context,
+            @Nonnull final String key,
+            @Nonnull final String value,
+            @Nullable final Long expiration,
+            @Nullable final String ifMatch) {
         try {
             final StorageService storageService = getStorageService(storageServiceId);
             if (storageService == null) {
@@ -189,18 +645,323 @@ public class StorageServiceWrapperController {
                 return seleniumFriendlyResponse(HttpStatus.BAD_REQUEST);
             }
 
-            log.debug("Reading from '{}' with context '{}' and key '{}'", storageServiceId, context, key);
-            final StorageRecord record = storageService.read(context, key);
-            log.debug("Read '{}' from '{}' with context '{}' and key '{}'", record, storageServiceId, context, key);
+            final Long expectedVersion = parseEntityTag(ifMatch);
+            if (expectedVersion == null) {
+                log.debug("Updating in '{}' with context '{}' and key '{}'", storageServiceId, context, key);
+                final boolean success = storageService.update(context, key, value, expiration);
+                log.debug("Update '{}' in '{}' with context '{}' and key '{}'", success, storageServiceId, context,
+                        key);
+                return seleniumFriendlyResponse(success ? HttpStatus.OK : HttpStatus.NOT_FOUND);
+            }
+
+            log.debug("Updating in '{}' with context '{}' and key '{}' at version '{}'", storageServiceId, context,
+                    key, expectedVersion);
+            final Long newVersion =
+                    storageService.updateWithVersion(expectedVersion, context, key, value, expiration);
+            log.debug("Update to version '{}' in '{}' with context '{}' and key '{}'", newVersion, storageServiceId,
+                    context, key);
+            if (newVersion == null) {
+                return seleniumFriendlyResponse(HttpStatus.NOT_FOUND);
+            }
+            return seleniumFriendlyResponse(HttpStatus.OK, newVersion);
+
+        } catch (NumberFormatException e) {
+            log.debug("Invalid If-Match header '{}'", ifMatch);
+            return seleniumFriendlyResponse(HttpStatus.BAD_REQUEST);
+        } catch (VersionMismatchException e) {
+            log.debug("Version mismatch updating '{}' with context '{}' and key '{}'", storageServiceId, context,
+                    key);
+            return seleniumFriendlyResponse(HttpStatus.PRECONDITION_FAILED);
+        } catch (IOException e) {
+            log.debug("An error occurred", e);
+            return seleniumFriendlyResponse(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    @RequestMapping(
+            value = "/update/{storageServiceId}/{context}/{key}",
+            method = {RequestMethod.PUT, RequestMethod.POST})
+    public ResponseEntity<String> updateFromPathVariables(
+            @PathVariable @Nonnull final String storageServiceId,
+            @PathVariable @Nonnull final String context,
+            @PathVariable @Nonnull final String key,
+            @RequestParam @Nonnull final String value,
+            @RequestParam(required = false) @Nullable final Long expiration,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) @Nullable final String ifMatch)
+                    throws Exception {
+        return update(storageServiceId, context, key, value, expiration, ifMatch);
+    }
+
+    @RequestMapping(
+            value = "/update",
+            method = {RequestMethod.PUT, RequestMethod.POST})
+    public ResponseEntity<String> updateFromRequestParams(
+            @RequestParam @Nonnull final String storageServiceId,
+            @RequestParam @Nonnull final String context,
+            @RequestParam @Nonnull final String key,
+            @RequestParam @Nonnull final String value,
+            @RequestParam(required = false) @Nullable final Long expiration,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) @Nullable final String ifMatch)
+                    throws Exception {
+        return update(storageServiceId, context, key, value, expiration, ifMatch);
+    }
+
+    /**
+     * Update the expiration of a record.
+     * 
+     * The storage API has no versioned form of this operation, so a versioned request re-writes the current value
+     * with the new expiration through {@link StorageService#updateWithVersion(long, String, String, String, Long)}.
+     * 
+     * @param storageServiceId the storage service id
+     * @param context the record context
+     * @param key the record key
+     * @param expiration the new expiration or <code>null</code> if the record should never expire
+     * @param ifMatch the 'If-Match' header, may be null
+     * @return the response
+     */
+    protected ResponseEntity<String> updateExpiration(
+            @Nonnull final String storageServiceId,
+            @Nonnull final String context,
+            @Nonnull final String key,
+            @Nullable final Long expiration,
+            @Nullable final String ifMatch) {
+        try {
+            final StorageService storageService = getStorageService(storageServiceId);
+            if (storageService == null) {
+                log.debug("Unable to find storage service with id '{}'", storageServiceId);
+                return seleniumFriendlyResponse(HttpStatus.BAD_REQUEST);
+            }
 
+            final Long expectedVersion = parseEntityTag(ifMatch);
+            if (expectedVersion == null) {
+                log.debug("Updating expiration in '{}' with context '{}' and key '{}'", storageServiceId, context,
+                        key);
+                final boolean success = storageService.updateExpiration(context, key, expiration);
+                log.debug("Update expiration '{}' in '{}' with context '{}' and key '{}'", success, storageServiceId,
+                        context, key);
+                return seleniumFriendlyResponse(success ? HttpStatus.OK : HttpStatus.NOT_FOUND);
+            }
+
+            final StorageRecord record = storageService.read(context, key);
             if (record == null) {
                 return seleniumFriendlyResponse(HttpStatus.NOT_FOUND);
+            }
+            final Long newVersion =
+                    storageService.updateWithVersion(expectedVersion, context, key, record.getValue(), expiration);
+            log.debug("Update expiration to version '{}' in '{}' with context '{}' and key '{}'", newVersion,
+                    storageServiceId, context, key);
+            if (newVersion == null) {
+                return seleniumFriendlyResponse(HttpStatus.NOT_FOUND);
+            }
+            return seleniumFriendlyResponse(HttpStatus.OK, newVersion);
+
+        } catch (NumberFormatException e) {
+            log.debug("Invalid If-Match header '{}'", ifMatch);
+            return seleniumFriendlyResponse(HttpStatus.BAD_REQUEST);
+        } catch (VersionMismatchException e) {
+            log.debug("Version mismatch updating expiration of '{}' with context '{}' and key '{}'",
+                    storageServiceId, context, key);
+            return seleniumFriendlyResponse(HttpStatus.PRECONDITION_FAILED);
+        } catch (IOException e) {
+            log.debug("An error occurred", e);
+            return seleniumFriendlyResponse(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    @RequestMapping(
+            value = "/update/{storageServiceId}/{context}/{key}",
+            method = RequestMethod.PATCH)
+    public ResponseEntity<String> updateExpirationFromPathVariables(
+            @PathVariable @Nonnull final String storageServiceId,
+            @PathVariable @Nonnull final String context,
+            @PathVariable @Nonnull final String key,
+            @RequestParam(required = false) @Nullable final Long expiration,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) @Nullable final String ifMatch)
+                    throws Exception {
+        return updateExpiration(storageServiceId, context, key, expiration, ifMatch);
+    }
+
+    @RequestMapping(
+            value = "/update",
+            method = RequestMethod.PATCH)
+    public ResponseEntity<String> updateExpirationFromRequestParams(
+            @RequestParam @Nonnull final String storageServiceId,
+            @RequestParam @Nonnull final String context,
+            @RequestParam @Nonnull final String key,
+            @RequestParam(required = false) @Nullable final Long expiration,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) @Nullable final String ifMatch)
+                    throws Exception {
+        return updateExpiration(storageServiceId, context, key, expiration, ifMatch);
+    }
+
+    /**
+     * Add to a counter, creating it with the delta as value and the given expiration if it does not exist.
+     * 
+     * @param storageServiceId the storage service id
+     * @param context the record context
+     * @param key the record key
+     * @param delta the number to add
+     * @param expiration the expiration of a new counter or <code>null</code> if it should never expire
+     * @return the response, whose body is the value of the counter after the increment
+     */
+    protected ResponseEntity<String> increment(
+            @Nonnull final String storageServiceId,
+            @Nonnull final String context,
+            @Nonnull final String key,
+            final long delta,
+            @Nullable final Long expiration) {
+        try {
+            final StorageService storageService = getStorageService(storageServiceId);
+            if (storageService == null) {
+                log.debug("Unable to find storage service with id '{}'", storageServiceId);
+                return seleniumFriendlyResponse(HttpStatus.BAD_REQUEST);
+            }
+
+            log.debug("Incrementing in '{}' with context '{}' and key '{}' by {}", storageServiceId, context, key,
+                    delta);
+            final long value =
+                    AtomicStorageSupport.increment(storageService, context, key, delta, expiration, null);
+            log.debug("Increment to '{}' in '{}' with context '{}' and key '{}'", value, storageServiceId, context,
+                    key);
+            return new ResponseEntity<>(Long.toString(value), HttpStatus.OK);
+
+        } catch (NumberFormatException e) {
+            log.debug("Value of '{}' with context '{}' and key '{}' is not a counter", storageServiceId, context,
+                    key);
+            return seleniumFriendlyResponse(HttpStatus.CONFLICT);
+        } catch (ArithmeticException e) {
+            log.debug("Counter of '{}' with context '{}' and key '{}' would overflow", storageServiceId, context,
+                    key);
+            return seleniumFriendlyResponse(HttpStatus.CONFLICT);
+        } catch (IOException e) {
+            log.debug("An error occurred", e);
+            return seleniumFriendlyResponse(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    @RequestMapping(
+            value = "/increment/{storageServiceId}/{context}/{key}",
+            method = RequestMethod.POST)
+    public ResponseEntity<String> incrementFromPathVariables(
+            @PathVariable @Nonnull final String storageServiceId,
+            @PathVariable @Nonnull final String context,
+            @PathVariable @Nonnull final String key,
+            @RequestParam(required = false, defaultValue = "1") final long delta,
+            @RequestParam(required = false) @Nullable final Long expiration) throws Exception {
+        return increment(storageServiceId, context, key, delta, expiration);
+    }
+
+    @RequestMapping(
+            value = "/increment",
+            method = RequestMethod.POST)
+    public ResponseEntity<String> incrementFromRequestParams(
+            @RequestParam @Nonnull final String storageServiceId,
+            @RequestParam @Nonnull final String context,
+            @RequestParam @Nonnull final String key,
+            @RequestParam(required = false, defaultValue = "1") final long delta,
+            @RequestParam(required = false) @Nullable final Long expiration) throws Exception {
+        return increment(storageServiceId, context, key, delta, expiration);
+    }
+
+    /**
+     * Replace the value and expiration of a record if its value is the expected one, or create it if no value is
+     * expected.
+     * 
+     * @param storageServiceId the storage service id
+     * @param context the record context
+     * @param key the record key
+     * @param expected the expected value or <code>null</code> if the record is expected not to exist
+     * @param value the new value
+     * @param expiration the new expiration or <code>null</code> if the record should never expire
+     * @return the response, with the new version as entity tag
+     */
+    protected ResponseEntity<String> compareAndSet(
+            @Nonnull final String storageServiceId,
+            @Nonnull final String context,
+            @Nonnull final String key,
+            @Nullable final String expected,
+            @Nonnull final String value,
+            @Nullable final Long expiration) {
+        try {
+            final StorageService storageService = getStorageService(storageServiceId);
+            if (storageService == null) {
+                log.debug("Unable to find storage service with id '{}'", storageServiceId);
+                return seleniumFriendlyResponse(HttpStatus.BAD_REQUEST);
+            }
+
+            log.debug("Compare and set in '{}' with context '{}' and key '{}'", storageServiceId, context, key);
+            final Long version = AtomicStorageSupport.compareAndSet(storageService, context, key, expected, value,
+                    expiration, null);
+            log.debug("Compare and set to version '{}' in '{}' with context '{}' and key '{}'", version,
+                    storageServiceId, context, key);
+            if (version == null) {
+                return seleniumFriendlyResponse(HttpStatus.PRECONDITION_FAILED);
+            }
+            return seleniumFriendlyResponse(expected == null ? HttpStatus.CREATED : HttpStatus.OK, version);
+
+        } catch (IOException e) {
+            log.debug("An error occurred", e);
+            return seleniumFriendlyResponse(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    @RequestMapping(
+            value = "/cas/{storageServiceId}/{context}/{key}",
+            method = RequestMethod.POST)
+    public ResponseEntity<String> compareAndSetFromPathVariables(
+            @PathVariable @Nonnull final String storageServiceId,
+            @PathVariable @Nonnull final String context,
+            @PathVariable @Nonnull final String key,
+            @RequestParam(required = false) @Nullable final String expected,
+            @RequestParam @Nonnull final String value,
+            @RequestParam(required = false) @Nullable final Long expiration) throws Exception {
+        return compareAndSet(storageServiceId, context, key, expected, value, expiration);
+    }
+
+    @RequestMapping(
+            value = "/cas",
+            method = RequestMethod.POST)
+    public ResponseEntity<String> compareAndSetFromRequestParams(
+            @RequestParam @Nonnull final String storageServiceId,
+            @RequestParam @Nonnull final String context,
+            @RequestParam @Nonnull final String key,
+            @RequestParam(required = false) @Nullable final String expected,
+            @RequestParam @Nonnull final String value,
+            @RequestParam(required = false) @Nullable final Long expiration) throws Exception {
+        return compareAndSet(storageServiceId, context, key, expected, value, expiration);
+    }
+
+    protected ResponseEntity<String> delete(
+            @Nonnull final String storageServiceId,
+            @Nonnull final String context,
+            @Nonnull final String key,
+            @Nullable final String ifMatch) {
+        try {
+            final StorageService storageService = getStorageService(storageServiceId);
+            if (storageService == null) {
+                log.debug("Unable to find storage service with id '{}'", storageServiceId);
+                return seleniumFriendlyResponse(HttpStatus.BAD_REQUEST);
+            }
+
+            final Long expectedVersion = parseEntityTag(ifMatch);
+            log.debug("Deleting from '{}' with context '{}' and key '{}' at version '{}'", storageServiceId, context,
+                    key, expectedVersion);
+            final boolean success;
+            if (expectedVersion == null) {
+                success = storageService.delete(context, key);
             } else {
-                final String serializedStorageRecord = serializer.serialize(record);
-                final HttpHeaders httpHeaders = new HttpHeaders();
-                httpHeaders.setContentType(MediaType.APPLICATION_JSON);
-                return new ResponseEntity<>(serializedStorageRecord, httpHeaders, HttpStatus.OK);
+                success = storageService.deleteWithVersion(expectedVersion, context, key);
             }
+            log.debug("Delete '{}' from '{}' with context '{}' and key '{}'", success, storageServiceId, context, key);
+
+            return seleniumFriendlyResponse(success ? HttpStatus.OK : HttpStatus.NOT_FOUND);
+
+        } catch (NumberFormatException e) {
+            log.debug("Invalid If-Match header '{}'", ifMatch);
+            return seleniumFriendlyResponse(HttpStatus.BAD_REQUEST);
+        } catch (VersionMismatchException e) {
+            log.debug("Version mismatch deleting '{}' with context '{}' and key '{}'", storageServiceId, context, key);
+            return seleniumFriendlyResponse(HttpStatus.PRECONDITION_FAILED);
         } catch (IOException e) {
             log.debug("An error occurred", e);
             return seleniumFriendlyResponse(HttpStatus.INTERNAL_SERVER_ERROR);
@@ -208,25 +969,780 @@ public class StorageServiceWrapperController {
     }
 
     @RequestMapping(
-            value = "/read/{storageServiceId}/{context}/{key}",
+            value = "/delete/{storageServiceId}/{context}/{key}",
+            method = RequestMethod.DELETE)
+    public ResponseEntity<String> deleteFromPathVariables(
+            @PathVariable @Nonnull final String storageServiceId,
+            @PathVariable @Nonnull final String context,
+            @PathVariable @Nonnull final String key,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) @Nullable final String ifMatch)
+                    throws Exception {
+        return delete(storageServiceId, context, key, ifMatch);
+    }
+
+    @RequestMapping(
+            value = "/delete",
+            method = RequestMethod.DELETE)
+    public ResponseEntity<String> deleteFromRequestParams(
+            @RequestParam @Nonnull final String storageServiceId,
+            @RequestParam @Nonnull final String context,
+            @RequestParam @Nonnull final String key,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) @Nullable final String ifMatch)
+                    throws Exception {
+        return delete(storageServiceId, context, key, ifMatch);
+    }
+
+    /**
+     * Apply an operation to every newline-delimited JSON record of the request body, writing one newline-delimited
+     * JSON status object per record to the response as soon as the record has been processed.
+     * 
+     * Neither the request nor the response is buffered as a whole, so the size of a batch is unbounded.
+     * 
+     * @param storageServiceId the storage service id
+     * @param servletRequest the servlet request
+     * @param servletResponse the servlet response
+     * @param operation the operation to apply to each record
+     * @throws IOException if the request can not be read or the response can not be written
+     */
+    protected void batch(
+            @Nonnull final String storageServiceId,
+            @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse,
+            @Nonnull final BatchOperation operation) throws IOException {
+        final StorageService storageService = getStorageService(storageServiceId);
+        if (storageService == null) {
+            log.debug("Unable to find storage service with id '{}'", storageServiceId);
+            servletResponse.setStatus(HttpStatus.BAD_REQUEST.value());
+            servletResponse.getWriter().write(HttpStatus.BAD_REQUEST.getReasonPhrase());
+            return;
+        }
+
+        servletResponse.setStatus(HttpStatus.OK.value());
+        servletResponse.setContentType(NDJSON_CONTENT_TYPE);
+        servletResponse.setCharacterEncoding(StandardCharsets.UTF_8.name());
+
+        final BufferedReader reader =
+                new BufferedReader(new InputStreamReader(servletRequest.getInputStream(), StandardCharsets.UTF_8));
+        final Writer writer =
+                new BufferedWriter(new OutputStreamWriter(servletResponse.getOutputStream(), StandardCharsets.UTF_8));
+        final Writer lineWriter = new NonClosingWriter(writer);
+
+        long lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+
+            final JsonGenerator gen = generatorFactory.createGenerator(lineWriter);
+            gen.writeStartObject();
+            gen.write("line", lineNumber);
+            try (final JsonReader jsonReader = readerFactory.createReader(new StringReader(line))) {
+                final JsonObject record = jsonReader.readObject();
+                final String context = getBatchString(record, "context");
+                final String key = getBatchString(record, "key");
+                if (context == null || key == null) {
+                    writeBatchError(gen, "Record must have a string context and key");
+                } else {
+                    gen.write("context", context);
+                    gen.write("key", key);
+                    operation.apply(storageService, context, key, record, gen);
+                }
+            } catch (final JsonException e) {
+                log.debug("Unable to parse line {} of batch for '{}'", lineNumber, storageServiceId, e);
+                writeBatchError(gen, "Malformed record");
+            } catch (final IOException | RuntimeException e) {
+                // Storage services reject invalid contexts, keys and values with runtime exceptions.
+                log.debug("An error occurred on line {} of batch for '{}'", lineNumber, storageServiceId, e);
+                writeBatchError(gen, e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+            }
+            gen.writeEnd().close();
+            writer.write('\n');
+        }
+
+        writer.flush();
+        log.debug("Processed {} batch lines for '{}'", lineNumber, storageServiceId);
+    }
+
+    @RequestMapping(
+            value = "/batch/create/{storageServiceId}",
+            method = RequestMethod.POST)
+    public void batchCreateFromPathVariables(
+            @PathVariable @Nonnull final String storageServiceId,
+            @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        batch(storageServiceId, servletRequest, servletResponse, batchCreate);
+    }
+
+    @RequestMapping(
+            value = "/batch/create",
+            method = RequestMethod.POST)
+    public void batchCreateFromRequestParams(
+            @RequestParam @Nonnull final String storageServiceId,
+            @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        batch(storageServiceId, servletRequest, servletResponse, batchCreate);
+    }
+
+    @RequestMapping(
+            value = "/batch/read/{storageServiceId}",
+            method = RequestMethod.POST)
+    public void batchReadFromPathVariables(
+            @PathVariable @Nonnull final String storageServiceId,
+            @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        batch(storageServiceId, servletRequest, servletResponse, batchRead);
+    }
+
+    @RequestMapping(
+            value = "/batch/read",
+            method = RequestMethod.POST)
+    public void batchReadFromRequestParams(
+            @RequestParam @Nonnull final String storageServiceId,
+            @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        batch(storageServiceId, servletRequest, servletResponse, batchRead);
+    }
+
+    /**
+     * Write a page of the keys of a context, or of its records, as JSON.
+     * 
+     * Keys come from the first storage service able to enumerate them, looking through decorators, and records are
+     * read through the storage service itself. Keys are streamed to the response as they are enumerated, so only the
+     * page being written is ever in memory. The page holds a 'cursor' to pass to get the next page, unless it is the
+     * last one. Records deleted while scanning are left out, so a page may hold fewer records than the limit.
+     * 
+     * @param storageServiceId the storage service id
+     * @param context the context to scan
+     * @param cursor the cursor returned with the previous page, or null for the first page
+     * @param limit the largest number of keys in the page
+     * @param values whether to write records rather than keys
+     * @param servletResponse the servlet response
+     * @throws IOException if a record can not be read or the response can not be written
+     */
+    protected void scan(
+            @Nonnull final String storageServiceId,
+            @Nonnull final String context,
+            @Nullable final String cursor,
+            final int limit,
+            final boolean values,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        final StorageService storageService = getStorageService(storageServiceId);
+        if (storageService == null) {
+            log.debug("Unable to find storage service with id '{}'", storageServiceId);
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.BAD_REQUEST);
+            return;
+        }
+        final EnumerableStorageService enumerableStorageService = findEnumerableStorageService(storageService);
+        if (enumerableStorageService == null) {
+            log.debug("Storage service '{}' can not enumerate keys", storageServiceId);
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.NOT_IMPLEMENTED);
+            return;
+        }
+        if (limit < 1 || limit > MAX_SCAN_LIMIT) {
+            log.debug("Invalid scan limit '{}'", limit);
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.BAD_REQUEST);
+            return;
+        }
+
+        final Iterator<String> keys;
+        try {
+            keys = enumerableStorageService.keys(context, decodeCursor(cursor));
+        } catch (final IllegalArgumentException e) {
+            log.debug("Invalid scan cursor '{}'", cursor);
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.BAD_REQUEST);
+            return;
+        } catch (final IOException e) {
+            log.debug("An error occurred", e);
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.INTERNAL_SERVER_ERROR);
+            return;
+        }
+
+        servletResponse.setStatus(HttpStatus.OK.value());
+        servletResponse.setContentType(SimpleStorageRecordSerializer.CONTENT_TYPE);
+        final JsonGenerator gen =
+                generatorFactory.createGenerator(servletResponse.getOutputStream(), StandardCharsets.UTF_8);
+        gen.writeStartObject();
+        gen.write("context", context);
+        gen.writeStartArray(values ? "records" : "keys");
+        String lastKey = null;
+        int count = 0;
+        while (count < limit && keys.hasNext()) {
+            lastKey = keys.next();
+            count++;
+            if (!values) {
+                gen.write(lastKey);
+                continue;
+            }
+            final StorageRecord record = storageService.read(context, lastKey);
+            if (record != null) {
+                gen.writeStartObject();
+                gen.write("key", lastKey);
+                gen.write("value", record.getValue());
+                gen.write("version", record.getVersion());
+                if (record.getExpiration() != null) {
+                    gen.write("expiration", record.getExpiration());
+                }
+                gen.writeEnd();
+            }
+        }
+        gen.writeEnd();
+        if (lastKey != null && keys.hasNext()) {
+            gen.write("cursor", encodeCursor(lastKey));
+        }
+        gen.writeEnd().close();
+        log.debug("Scanned {} keys of context '{}' in '{}'", count, context, storageServiceId);
+    }
+
+    @RequestMapping(
+            value = "/scan/{storageServiceId}/{context}",
             method = RequestMethod.GET,
             produces = {"application/json"})
-    public ResponseEntity<String> readFromPathVariables(
+    public void scanFromPathVariables(
             @PathVariable @Nonnull final String storageServiceId,
             @PathVariable @Nonnull final String context,
-            @PathVariable @Nonnull final String key) throws IOException {
-        return read(storageServiceId, context, key);
+            @RequestParam(required = false) @Nullable final String cursor,
+            @RequestParam(required = false, defaultValue = "" + DEFAULT_SCAN_LIMIT) final int limit,
+            @RequestParam(required = false, defaultValue = "false") final boolean values,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        scan(storageServiceId, context, cursor, limit, values, servletResponse);
     }
 
     @RequestMapping(
-            value = "/read",
+            value = "/scan",
             method = RequestMethod.GET,
             produces = {"application/json"})
-    public ResponseEntity<String> readFromRequestParams(
+    public void scanFromRequestParams(
+            @RequestParam @Nonnull final String storageServiceId,
+            @RequestParam @Nonnull final String context,
+            @RequestParam(required = false) @Nullable final String cursor,
+            @RequestParam(required = false, defaultValue = "" + DEFAULT_SCAN_LIMIT) final int limit,
+            @RequestParam(required = false, defaultValue = "false") final boolean values,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        scan(storageServiceId, context, cursor, limit, values, servletResponse);
+    }
+
+    protected ResponseEntity<String> deleteContext(
+            @Nonnull final String storageServiceId,
+            @Nonnull final String context) {
+        try {
+            final StorageService storageService = getStorageService(storageServiceId);
+            if (storageService == null) {
+                log.debug("Unable to find storage service with id '{}'", storageServiceId);
+                return seleniumFriendlyResponse(HttpStatus.BAD_REQUEST);
+            }
+
+            log.debug("Deleting context '{}' in '{}'", context, storageServiceId);
+            storageService.deleteContext(context);
+            log.debug("Deleted context '{}' in '{}'", context, storageServiceId);
+            return seleniumFriendlyResponse(HttpStatus.OK);
+
+        } catch (IOException e) {
+            log.debug("An error occurred", e);
+            return seleniumFriendlyResponse(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    @RequestMapping(
+            value = "/context/{storageServiceId}/{context}",
+            method = RequestMethod.DELETE)
+    public ResponseEntity<String> deleteContextFromPathVariables(
+            @PathVariable @Nonnull final String storageServiceId,
+            @PathVariable @Nonnull final String context) {
+        return deleteContext(storageServiceId, context);
+    }
+
+    @RequestMapping(
+            value = "/context",
+            method = RequestMethod.DELETE)
+    public ResponseEntity<String> deleteContextFromRequestParams(
+            @RequestParam @Nonnull final String storageServiceId,
+            @RequestParam @Nonnull final String context) {
+        return deleteContext(storageServiceId, context);
+    }
+
+    protected ResponseEntity<String> updateContextExpiration(
+            @Nonnull final String storageServiceId,
+            @Nonnull final String context,
+            @Nullable final Long expiration) {
+        try {
+            final StorageService storageService = getStorageService(storageServiceId);
+            if (storageService == null) {
+                log.debug("Unable to find storage service with id '{}'", storageServiceId);
+                return seleniumFriendlyResponse(HttpStatus.BAD_REQUEST);
+            }
+
+            log.debug("Updating expiration of context '{}' in '{}' to '{}'", context, storageServiceId, expiration);
+            storageService.updateContextExpiration(context, expiration);
+            log.debug("Updated expiration of context '{}' in '{}'", context, storageServiceId);
+            return seleniumFriendlyResponse(HttpStatus.OK);
+
+        } catch (IOException e) {
+            log.debug("An error occurred", e);
+            return seleniumFriendlyResponse(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    @RequestMapping(
+            value = "/context/{storageServiceId}/{context}",
+            method = RequestMethod.PATCH)
+    public ResponseEntity<String> updateContextExpirationFromPathVariables(
+            @PathVariable @Nonnull final String storageServiceId,
+            @PathVariable @Nonnull final String context,
+            @RequestParam(required = false) @Nullable final Long expiration) {
+        return updateContextExpiration(storageServiceId, context, expiration);
+    }
+
+    @RequestMapping(
+            value = "/context",
+            method = RequestMethod.PATCH)
+    public ResponseEntity<String> updateContextExpirationFromRequestParams(
             @RequestParam @Nonnull final String storageServiceId,
             @RequestParam @Nonnull final String context,
-            @RequestParam @Nonnull final String key) throws IOException {
-        return read(storageServiceId, context, key);
+            @RequestParam(required = false) @Nullable final Long expiration) {
+        return updateContextExpiration(storageServiceId, context, expiration);
+    }
+
+    /**
+     * Write the unexpired records of contexts of a storage service as a {@link StorageSnapshot}.
+     * 
+     * The snapshot is streamed to the response as records are read, so a failure past the first bytes can only be
+     * seen as a snapshot without its index.
+     * 
+     * @param storageServiceId the storage service id
+     * @param contexts the contexts to write
+     * @param servletResponse the servlet response
+     * @throws IOException if a record can not be read or the response can not be written
+     */
+    protected void exportSnapshot(
+            @Nonnull final String storageServiceId,
+            @Nonnull final List<String> contexts,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        final StorageService storageService = getStorageService(storageServiceId);
+        if (storageService == null) {
+            log.debug("Unable to find storage service with id '{}'", storageServiceId);
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.BAD_REQUEST);
+            return;
+        }
+        if (findEnumerableStorageService(storageService) == null) {
+            log.debug("Storage service '{}' can not enumerate keys", storageServiceId);
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.NOT_IMPLEMENTED);
+            return;
+        }
+
+        servletResponse.setStatus(HttpStatus.OK.value());
+        servletResponse.setContentType(StorageSnapshot.CONTENT_TYPE);
+        final List<StorageSnapshot.Section> sections =
+                StorageSnapshot.write(storageService, contexts, servletResponse.getOutputStream());
+        log.debug("Exported {} contexts of '{}'", sections.size(), storageServiceId);
+    }
+
+    @RequestMapping(
+            value = "/snapshot/{storageServiceId}",
+            method = RequestMethod.GET)
+    public void exportSnapshotFromPathVariables(
+            @PathVariable @Nonnull final String storageServiceId,
+            @RequestParam("context") @Nonnull final List<String> contexts,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        exportSnapshot(storageServiceId, contexts, servletResponse);
+    }
+
+    @RequestMapping(
+            value = "/snapshot",
+            method = RequestMethod.GET)
+    public void exportSnapshotFromRequestParams(
+            @RequestParam @Nonnull final String storageServiceId,
+            @RequestParam("context") @Nonnull final List<String> contexts,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        exportSnapshot(storageServiceId, contexts, servletResponse);
+    }
+
+    /**
+     * Load a {@link StorageSnapshot} posted as the request body into a storage service, and write the outcome of each
+     * context as JSON.
+     * 
+     * The body is spooled to a temporary file first, so the snapshot can be mapped and its contexts loaded in
+     * parallel. A body larger than {@link #MAX_SNAPSHOT_SIZE} is answered with '413 Payload Too Large', a body which
+     * is not a snapshot with '400 Bad Request', and a failure of the storage service or of the temporary file with
+     * '500 Internal Server Error'.
+     * 
+     * @param storageServiceId the storage service id
+     * @param contexts the contexts to load, or null to load all of them
+     * @param threads the largest number of contexts loaded at once
+     * @param servletRequest the servlet request
+     * @param servletResponse the servlet response
+     * @throws IOException if the response can not be written
+     */
+    protected void importSnapshot(
+            @Nonnull final String storageServiceId,
+            @Nullable final List<String> contexts,
+            final int threads,
+            @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        final StorageService storageService = getStorageService(storageServiceId);
+        if (storageService == null) {
+            log.debug("Unable to find storage service with id '{}'", storageServiceId);
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.BAD_REQUEST);
+            return;
+        }
+        if (threads < 1 || threads > MAX_SNAPSHOT_THREADS) {
+            log.debug("Invalid number of snapshot threads '{}'", threads);
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.BAD_REQUEST);
+            return;
+        }
+
+        if (servletRequest.getContentLengthLong() > MAX_SNAPSHOT_SIZE) {
+            log.debug("Snapshot of {} bytes exceeds the {} byte limit", servletRequest.getContentLengthLong(),
+                    MAX_SNAPSHOT_SIZE);
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.PAYLOAD_TOO_LARGE);
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+        final List<StorageSnapshot.LoadResult> results;
+        final Path file = Files.createTempFile("testbed-snapshot-", ".bin");
+        try {
+            if (!spool(servletRequest.getInputStream(), file, MAX_SNAPSHOT_SIZE)) {
+                log.debug("Snapshot exceeds the {} byte limit", MAX_SNAPSHOT_SIZE);
+                writeSeleniumFriendlyResponse(servletResponse, HttpStatus.PAYLOAD_TOO_LARGE);
+                return;
+            }
+            results = StorageSnapshot.load(storageService, file, contexts, threads);
+        } catch (final SnapshotFormatException e) {
+            log.debug("Unable to read snapshot for '{}'", storageServiceId, e);
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.BAD_REQUEST);
+            return;
+        } catch (final IOException e) {
+            log.warn("Unable to load snapshot into '{}'", storageServiceId, e);
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.INTERNAL_SERVER_ERROR);
+            return;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        servletResponse.setStatus(HttpStatus.OK.value());
+        servletResponse.setContentType(SimpleStorageRecordSerializer.CONTENT_TYPE);
+        final JsonGenerator gen =
+                prettyGeneratorFactory.createGenerator(servletResponse.getOutputStream(), StandardCharsets.UTF_8);
+        gen.writeStartObject();
+        gen.write("storageService", storageServiceId);
+        gen.write("elapsed", System.currentTimeMillis() - start);
+        gen.writeStartArray("contexts");
+        for (final StorageSnapshot.LoadResult result : results) {
+            result.write(gen);
+        }
+        gen.writeEnd();
+        gen.writeEnd().close();
+    }
+
+    /**
+     * Copy a stream to a file, up to a number of bytes.
+     * 
+     * @param in the stream
+     * @param file the file
+     * @param maxSize the largest number of bytes copied
+     * @return false if the stream holds more bytes than that, in which case the file holds the first of them
+     * @throws IOException if the stream can not be read or the file written
+     */
+    private static boolean spool(@Nonnull final InputStream in, @Nonnull final Path file, final long maxSize)
+            throws IOException {
+        try (final OutputStream out = Files.newOutputStream(file)) {
+            final byte[] buffer = new byte[64 * 1024];
+            long size = 0;
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                size += n;
+                if (size > maxSize) {
+                    return false;
+                }
+                out.write(buffer, 0, n);
+            }
+        }
+        return true;
+    }
+
+    @RequestMapping(
+            value = "/snapshot/{storageServiceId}",
+            method = RequestMethod.POST,
+            produces = {"application/json"})
+    public void importSnapshotFromPathVariables(
+            @PathVariable @Nonnull final String storageServiceId,
+            @RequestParam(value = "context", required = false) @Nullable final List<String> contexts,
+            @RequestParam(required = false, defaultValue = "4") final int threads,
+            @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        importSnapshot(storageServiceId, contexts, threads, servletRequest, servletResponse);
+    }
+
+    @RequestMapping(
+            value = "/snapshot",
+            method = RequestMethod.POST,
+            produces = {"application/json"})
+    public void importSnapshotFromRequestParams(
+            @RequestParam @Nonnull final String storageServiceId,
+            @RequestParam(value = "context", required = false) @Nullable final List<String> contexts,
+            @RequestParam(required = false, defaultValue = "4") final int threads,
+            @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        importSnapshot(storageServiceId, contexts, threads, servletRequest, servletResponse);
+    }
+
+    /**
+     * Run a {@link StorageBenchmark} against a storage service and write its result as JSON.
+     * 
+     * The benchmark runs against the storage service itself rather than through the metered wrapper of the registry,
+     * so it neither pays for nor pollutes the metrics of the storage service listing. Only one benchmark runs at a
+     * time, others are answered with '409 Conflict'.
+     * 
+     * @param storageServiceId the storage service id
+     * @param threads the number of threads
+     * @param keys the number of distinct keys
+     * @param valueSize the length of record values
+     * @param duration the duration in milliseconds
+     * @param create the weight of create operations
+     * @param read the weight of read operations
+     * @param update the weight of update operations
+     * @param delete the weight of delete operations
+     * @param servletResponse the servlet response
+     * @throws IOException if the response can not be written
+     */
+    protected void bench(
+            @Nonnull final String storageServiceId,
+            final int threads,
+            final int keys,
+            final int valueSize,
+            final long duration,
+            final int create,
+            final int read,
+            final int update,
+            final int delete,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        StorageService storageService = getStorageService(storageServiceId);
+        if (storageService == null) {
+            log.debug("Unable to find storage service with id '{}'", storageServiceId);
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.BAD_REQUEST);
+            return;
+        }
+        if (storageService instanceof MeteredStorageService) {
+            storageService = ((MeteredStorageService) storageService).getStorageService();
+        }
+
+        final StorageBenchmark benchmark = new StorageBenchmark();
+        try {
+            Constraint.isTrue(threads <= MAX_BENCHMARK_THREADS, "Too many threads");
+            Constraint.isTrue(duration <= MAX_BENCHMARK_DURATION, "Duration too long");
+            Constraint.isTrue(keys <= MAX_BENCHMARK_KEYS, "Too many keys");
+            Constraint.isTrue(valueSize <= MAX_BENCHMARK_VALUE_SIZE, "Value size too large");
+            Constraint.isTrue((long) keys * valueSize <= MAX_BENCHMARK_DATA_SIZE, "Too much data");
+            benchmark.setThreads(threads);
+            benchmark.setKeys(keys);
+            benchmark.setValueSize(valueSize);
+            benchmark.setDuration(duration);
+            benchmark.setWeight(StorageServiceMetrics.Operation.CREATE, create);
+            benchmark.setWeight(StorageServiceMetrics.Operation.READ, read);
+            benchmark.setWeight(StorageServiceMetrics.Operation.UPDATE, update);
+            benchmark.setWeight(StorageServiceMetrics.Operation.DELETE, delete);
+            Constraint.isTrue(create + read + update + delete > 0, "At least one operation must have a weight");
+        } catch (final ConstraintViolationException e) {
+            log.debug("Invalid benchmark parameters: {}", e.getMessage());
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.BAD_REQUEST);
+            return;
+        }
+
+        if (!benchmarkRunning.compareAndSet(false, true)) {
+            log.debug("A benchmark is already running");
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.CONFLICT);
+            return;
+        }
+        final StorageBenchmark.Result result;
+        try {
+            log.debug("Running benchmark against '{}' with {} threads for {} ms", storageServiceId, threads,
+                    duration);
+            result = benchmark.run(storageService);
+            log.debug("Benchmark against '{}' performed {} operations", storageServiceId, result.getOperations());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.SERVICE_UNAVAILABLE);
+            return;
+        } catch (final IOException e) {
+            log.debug("An error occurred", e);
+            writeSeleniumFriendlyResponse(servletResponse, HttpStatus.INTERNAL_SERVER_ERROR);
+            return;
+        } finally {
+            benchmarkRunning.set(false);
+        }
+
+        servletResponse.setStatus(HttpStatus.OK.value());
+        servletResponse.setContentType(SimpleStorageRecordSerializer.CONTENT_TYPE);
+        final JsonGenerator gen =
+                prettyGeneratorFactory.createGenerator(servletResponse.getOutputStream(), StandardCharsets.UTF_8);
+        gen.writeStartObject();
+        gen.write("storageService", storageServiceId);
+        result.write(gen);
+        gen.writeEnd().close();
+    }
+
+    @RequestMapping(
+            value = "/bench/{storageServiceId}",
+            method = RequestMethod.POST,
+            produces = {"application/json"})
+    public void benchFromPathVariables(
+            @PathVariable @Nonnull final String storageServiceId,
+            @RequestParam(required = false, defaultValue = "4") final int threads,
+            @RequestParam(required = false, defaultValue = "1000") final int keys,
+            @RequestParam(required = false, defaultValue = "100") final int valueSize,
+            @RequestParam(required = false, defaultValue = "10000") final long duration,
+            @RequestParam(required = false, defaultValue = "10") final int create,
+            @RequestParam(required = false, defaultValue = "70") final int read,
+            @RequestParam(required = false, defaultValue = "15") final int update,
+            @RequestParam(required = false, defaultValue = "5") final int delete,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        bench(storageServiceId, threads, keys, valueSize, duration, create, read, update, delete, servletResponse);
+    }
+
+    @RequestMapping(
+            value = "/bench",
+            method = RequestMethod.POST,
+            produces = {"application/json"})
+    public void benchFromRequestParams(
+            @RequestParam @Nonnull final String storageServiceId,
+            @RequestParam(required = false, defaultValue = "4") final int threads,
+            @RequestParam(required = false, defaultValue = "1000") final int keys,
+            @RequestParam(required = false, defaultValue = "100") final int valueSize,
+            @RequestParam(required = false, defaultValue = "10000") final long duration,
+            @RequestParam(required = false, defaultValue = "10") final int create,
+            @RequestParam(required = false, defaultValue = "70") final int read,
+            @RequestParam(required = false, defaultValue = "15") final int update,
+            @RequestParam(required = false, defaultValue = "5") final int delete,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        bench(storageServiceId, threads, keys, valueSize, duration, create, read, update, delete, servletResponse);
+    }
+
+    /**
+     * Get a string member of a batch line.
+     * 
+     * @param record the parsed batch line
+     * @param name the member name
+     * @return the string, or <code>null</code> if the member is missing or not a string
+     */
+    @Nullable private static String getBatchString(@Nonnull final JsonObject record, @Nonnull final String name) {
+        final JsonValue value = record.get(name);
+        return value instanceof JsonString ? ((JsonString) value).getString() : null;
+    }
+
+    /**
+     * Write the error status of a batch line.
+     * 
+     * @param gen generator positioned inside the status object of the record
+     * @param message the error message
+     */
+    private static void writeBatchError(@Nonnull final JsonGenerator gen, @Nonnull final String message) {
+        gen.write("status", BATCH_STATUS_ERROR);
+        gen.write("message", message);
+    }
+
+    /**
+     * An operation applied to a single record of a batch.
+     */
+    protected interface BatchOperation {
+
+        /**
+         * Apply the operation and write its outcome to the status object of the record.
+         * 
+         * @param storageService the storage service
+         * @param context the record context
+         * @param key the record key
+         * @param record the parsed batch line
+         * @param gen generator positioned inside the status object of the record
+         * @throws IOException if the storage service raises an error
+         */
+        void apply(@Nonnull final StorageService storageService, @Nonnull final String context,
+                @Nonnull final String key, @Nonnull final JsonObject record, @Nonnull final JsonGenerator gen)
+                        throws IOException;
+    }
+
+    /**
+     * Batch operation creating each record.
+     */
+    private static class BatchCreateOperation implements BatchOperation {
+
+        /** {@inheritDoc} */
+        public void apply(@Nonnull final StorageService storageService, @Nonnull final String context,
+                @Nonnull final String key, @Nonnull final JsonObject record, @Nonnull final JsonGenerator gen)
+                        throws IOException {
+            final String value = getBatchString(record, "value");
+            if (value == null) {
+                writeBatchError(gen, "Record must have a string value");
+                return;
+            }
+
+            Long expiration = null;
+            final JsonValue jsonExpiration = record.get("expiration");
+            if (jsonExpiration != null && jsonExpiration != JsonValue.NULL) {
+                if (!(jsonExpiration instanceof JsonNumber) || !((JsonNumber) jsonExpiration).isIntegral()) {
+                    writeBatchError(gen, "Expiration must be an integral number of milliseconds");
+                    return;
+                }
+                try {
+                    expiration = ((JsonNumber) jsonExpiration).longValueExact();
+                } catch (final ArithmeticException e) {
+                    writeBatchError(gen, "Expiration is out of range");
+                    return;
+                }
+            }
+
+            if (storageService.create(context, key, value, expiration)) {
+                gen.write("status", BATCH_STATUS_CREATED);
+            } else {
+                gen.write("status", BATCH_STATUS_CONFLICT);
+            }
+        }
+    }
+
+    /**
+     * Batch operation reading each record.
+     */
+    private static class BatchReadOperation implements BatchOperation {
+
+        /** {@inheritDoc} */
+        public void apply(@Nonnull final StorageService storageService, @Nonnull final String context,
+                @Nonnull final String key, @Nonnull final JsonObject record, @Nonnull final JsonGenerator gen)
+                        throws IOException {
+            final StorageRecord storageRecord = storageService.read(context, key);
+            if (storageRecord == null) {
+                gen.write("status", BATCH_STATUS_NOT_FOUND);
+            } else {
+                gen.write("status", BATCH_STATUS_FOUND);
+                gen.write("value", storageRecord.getValue());
+                gen.write("version", storageRecord.getVersion());
+                final Long expiration = storageRecord.getExpiration();
+                if (expiration != null) {
+                    gen.write("expiration", expiration);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writer which ignores {@link #close()}, so a JSON generator per batch line can be closed without closing the
+     * response.
+     */
+    private static class NonClosingWriter extends FilterWriter {
+
+        /**
+         * Constructor.
+         *
+         * @param out the underlying writer
+         */
+        public NonClosingWriter(@Nonnull final Writer out) {
+            super(out);
+        }
+
+        /** {@inheritDoc} */
+        @Override public void close() throws IOException {
+            // Leave the response open, it is flushed once its buffer is full.
+        }
     }
 
 }
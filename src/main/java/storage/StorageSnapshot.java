@@ -0,0 +1,681 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storage;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.json.stream.JsonGenerator;
+
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Writes and loads snapshots of storage contexts, to seed a storage service with a known set of records.
+ * 
+ * A snapshot holds the unexpired records of one or more contexts. Each record is its key followed by the binary form
+ * of {@link BinaryStorageRecordSerializer}, and the records of a context are stored together as a section. An index of
+ * the sections at the end of the file lets each context be mapped and loaded on its own:
+ * <pre>
+ * header   "TBSNAP" version reserved
+ * section  (varlong key length, key, varlong version, varlong expiration + 1, varlong value length, value)*
+ * index    varlong section count, (varlong name length, name, varlong offset, varlong length, varlong records)*
+ * trailer  8 byte index offset, "TBSNAP" version reserved
+ * </pre>
+ * Strings are UTF-8 and varlongs are those of {@link BinaryStorageRecordSerializer#writeVarLong(long, byte[], int)}.
+ * Since the index follows the sections, a snapshot is written in a single pass and may be streamed.
+ * 
+ * Loading maps each section read-only and ingests the contexts in parallel, one task per context. Records are
+ * created, so they start again at version 1. Records already present are left alone, and records which have expired
+ * since the snapshot was written are skipped.
+ */
+public final class StorageSnapshot {
+
+    /** Media type of a snapshot. */
+    @Nonnull @NotEmpty public static final String CONTENT_TYPE = "application/x-testbed-storage-snapshot";
+
+    /** The format version. */
+    public static final byte VERSION = 1;
+
+    /** Bytes of the header, and of the trailer following the index offset. */
+    @Nonnull private static final byte[] MAGIC = {'T', 'B', 'S', 'N', 'A', 'P', VERSION, 0};
+
+    /** Bytes of the trailer. */
+    private static final int TRAILER_LENGTH = 8 + MAGIC.length;
+
+    /** Class logger. */
+    @Nonnull private static final Logger LOG = LoggerFactory.getLogger(StorageSnapshot.class);
+
+    /** Constructor. */
+    private StorageSnapshot() {
+    }
+
+    /**
+     * Write the unexpired records of contexts of a storage service as a snapshot.
+     * 
+     * Keys come from the first storage service able to enumerate them, looking through decorators, and records are
+     * read through the storage service itself. Records deleted while writing are left out.
+     * 
+     * @param storageService the storage service
+     * @param contexts the contexts to write
+     * @param out the stream to write to, which is not closed
+     * @return the sections written
+     * @throws IOException if the storage service can not enumerate keys, or a record can not be read or written
+     */
+    @Nonnull @NonnullElements public static List<Section> write(@Nonnull final StorageService storageService,
+            @Nonnull @NonnullElements final Collection<String> contexts, @Nonnull final OutputStream out)
+                    throws IOException {
+        final EnumerableStorageService enumerableStorageService =
+                StorageServiceWrapperController.findEnumerableStorageService(storageService);
+        if (enumerableStorageService == null) {
+            throw new IOException("Storage service '" + storageService.getId() + "' can not enumerate keys");
+        }
+
+        final Writer writer = new Writer(out);
+        for (final String context : new LinkedHashSet<>(contexts)) {
+            writer.startSection(context);
+            final Iterator<String> keys = enumerableStorageService.keys(context, null);
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                final StorageRecord record = storageService.read(context, key);
+                if (record != null) {
+                    writer.write(key, record);
+                }
+            }
+        }
+        writer.close();
+        return writer.getSections();
+    }
+
+    /**
+     * Read the index of a snapshot.
+     * 
+     * @param channel the snapshot file
+     * @return the sections of the snapshot
+     * @throws SnapshotFormatException if the file is not a snapshot or is truncated
+     * @throws IOException if the file can not be read
+     */
+    @Nonnull @NonnullElements public static List<Section> readIndex(@Nonnull final FileChannel channel)
+            throws IOException {
+        final long size = channel.size();
+        if (size < MAGIC.length + TRAILER_LENGTH) {
+            throw new SnapshotFormatException("Snapshot is truncated");
+        }
+        final ByteBuffer header = ByteBuffer.allocate(MAGIC.length);
+        readFully(channel, header, 0);
+        final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+        readFully(channel, trailer, size - TRAILER_LENGTH);
+        final long indexOffset = trailer.getLong();
+        final byte[] magic = new byte[MAGIC.length];
+        trailer.get(magic);
+        if (!Arrays.equals(header.array(), MAGIC) || !Arrays.equals(magic, MAGIC)) {
+            throw new SnapshotFormatException("Not a snapshot, or not of version " + VERSION);
+        }
+        if (indexOffset < MAGIC.length || indexOffset > size - TRAILER_LENGTH) {
+            throw new SnapshotFormatException("Snapshot index offset is out of bounds");
+        }
+
+        final MappedByteBuffer index =
+                channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, size - TRAILER_LENGTH - indexOffset);
+        final long count = readVarLong(index);
+        final List<Section> sections = new ArrayList<>();
+        for (long i = 0; i < count; i++) {
+            final String context = readString(index, new byte[0]);
+            final long offset = readVarLong(index);
+            final long length = readVarLong(index);
+            final long records = readVarLong(index);
+            if (offset < MAGIC.length || length > Integer.MAX_VALUE || offset + length > indexOffset) {
+                throw new SnapshotFormatException("Snapshot section of context '" + context + "' is out of bounds");
+            }
+            sections.add(new Section(context, offset, length, records));
+        }
+        return sections;
+    }
+
+    /**
+     * Load the records of a snapshot into a storage service, the sections in parallel.
+     * 
+     * @param storageService the storage service
+     * @param file the snapshot file
+     * @param contexts the contexts to load, or null to load all of them
+     * @param threads the largest number of contexts loaded at once
+     * @return the outcome of each section loaded
+     * @throws SnapshotFormatException if the file is not a snapshot, or is truncated or corrupt
+     * @throws IOException if the file can not be read or the storage service raises an error
+     */
+    @Nonnull @NonnullElements public static List<LoadResult> load(@Nonnull final StorageService storageService,
+            @Nonnull final Path file, @Nullable final Collection<String> contexts, final int threads)
+                    throws IOException {
+        Constraint.isGreaterThan(0, threads, "Number of threads must be greater than 0");
+
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final List<Section> sections = new ArrayList<>();
+            for (final Section section : readIndex(channel)) {
+                if (contexts == null || contexts.contains(section.getContext())) {
+                    sections.add(section);
+                }
+            }
+            if (sections.isEmpty()) {
+                return Collections.emptyList();
+            }
+
+            final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, sections.size()));
+            try {
+                final List<Future<LoadResult>> futures = new ArrayList<>(sections.size());
+                for (final Section section : sections) {
+                    final MappedByteBuffer buffer =
+                            channel.map(FileChannel.MapMode.READ_ONLY, section.getOffset(), section.getLength());
+                    futures.add(executor.submit(new Callable<LoadResult>() {
+                        public LoadResult call() throws IOException {
+                            return load(storageService, section, buffer);
+                        }
+                    }));
+                }
+
+                final List<LoadResult> results = new ArrayList<>(futures.size());
+                for (final Future<LoadResult> future : futures) {
+                    results.add(future.get());
+                }
+                return results;
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading snapshot", e);
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Unable to load snapshot", e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Load the records of a section.
+     * 
+     * @param storageService the storage service
+     * @param section the section
+     * @param buffer the mapped section
+     * @return the outcome
+     * @throws SnapshotFormatException if the section is corrupt
+     * @throws IOException if the storage service raises an error
+     */
+    @Nonnull private static LoadResult load(@Nonnull final StorageService storageService,
+            @Nonnull final Section section, @Nonnull final ByteBuffer buffer) throws IOException {
+        final long start = System.nanoTime();
+        final long now = System.currentTimeMillis();
+        final String context = section.getContext();
+        byte[] scratch = new byte[256];
+        long created = 0;
+        long existing = 0;
+        long expired = 0;
+        while (buffer.hasRemaining()) {
+            final int keyLength = readLength(buffer);
+            if (keyLength > scratch.length) {
+                scratch = new byte[Math.max(keyLength, 2 * scratch.length)];
+            }
+            buffer.get(scratch, 0, keyLength);
+            final String key = new String(scratch, 0, keyLength, StandardCharsets.UTF_8);
+            readVarLong(buffer);
+            final long encodedExpiration = readVarLong(buffer);
+            final int valueLength = readLength(buffer);
+            if (encodedExpiration != 0 && encodedExpiration - 1 <= now) {
+                buffer.position(buffer.position() + valueLength);
+                expired++;
+                continue;
+            }
+            if (valueLength > scratch.length) {
+                scratch = new byte[Math.max(valueLength, 2 * scratch.length)];
+            }
+            buffer.get(scratch, 0, valueLength);
+            final String value = new String(scratch, 0, valueLength, StandardCharsets.UTF_8);
+            if (storageService.create(context, key, value, encodedExpiration == 0 ? null : encodedExpiration - 1)) {
+                created++;
+            } else {
+                existing++;
+            }
+        }
+        if (created + existing + expired != section.getRecords()) {
+            throw new SnapshotFormatException("Snapshot section of context '" + context + "' holds "
+                    + (created + existing + expired) + " records rather than " + section.getRecords());
+        }
+        final long elapsed = (System.nanoTime() - start) / 1000000;
+        LOG.debug("Loaded context '{}' in {} ms, {} created, {} existing, {} expired", context, elapsed, created,
+                existing, expired);
+        return new LoadResult(section, created, existing, expired, elapsed);
+    }
+
+    /**
+     * Read a varlong.
+     * 
+     * @param buffer the buffer
+     * @return the value
+     * @throws SnapshotFormatException if the varlong is truncated or too long
+     */
+    private static long readVarLong(@Nonnull final ByteBuffer buffer) throws SnapshotFormatException {
+        try {
+            return BinaryStorageRecordSerializer.readVarLong(buffer);
+        } catch (final IOException e) {
+            throw new SnapshotFormatException("Snapshot is corrupt", e);
+        }
+    }
+
+    /**
+     * Read a varlong length which must fit in what remains of a buffer.
+     * 
+     * @param buffer the buffer
+     * @return the length
+     * @throws SnapshotFormatException if the length is out of bounds
+     */
+    private static int readLength(@Nonnull final ByteBuffer buffer) throws SnapshotFormatException {
+        final long length = readVarLong(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new SnapshotFormatException("Snapshot is truncated");
+        }
+        return (int) length;
+    }
+
+    /**
+     * Read a length-prefixed UTF-8 string.
+     * 
+     * @param buffer the buffer
+     * @param scratch a scratch array, used if large enough
+     * @return the string
+     * @throws SnapshotFormatException if the length is out of bounds
+     */
+    @Nonnull private static String readString(@Nonnull final ByteBuffer buffer, @Nonnull final byte[] scratch)
+            throws SnapshotFormatException {
+        final int length = readLength(buffer);
+        final byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read from a file until a buffer is full.
+     * 
+     * @param channel the file
+     * @param buffer the buffer, flipped once full
+     * @param position the file position to read from
+     * @throws SnapshotFormatException if the file ends first
+     * @throws IOException if the file can not be read
+     */
+    private static void readFully(@Nonnull final FileChannel channel, @Nonnull final ByteBuffer buffer,
+            final long position) throws IOException {
+        long pos = position;
+        while (buffer.hasRemaining()) {
+            final int n = channel.read(buffer, pos);
+            if (n < 0) {
+                throw new SnapshotFormatException("Snapshot is truncated");
+            }
+            pos += n;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Writes a snapshot one section at a time.
+     * 
+     * Closing the writer ends the last section and writes the index, but does not close the underlying stream.
+     */
+    public static class Writer implements Closeable {
+
+        /** The destination. */
+        @Nonnull private final OutputStream out;
+
+        /** Scratch array for varlongs. */
+        @Nonnull private final byte[] scratch = new byte[3 * BinaryStorageRecordSerializer.MAX_VARLONG_LENGTH];
+
+        /** Writes the version, expiration and value of records. */
+        @Nonnull private final BinaryStorageRecordSerializer serializer = new BinaryStorageRecordSerializer();
+
+        /** Counts the bytes records are serialized to, leaving flushes to {@link #close()}. */
+        @Nonnull private final OutputStream recordStream = new OutputStream() {
+            public void write(final int b) throws IOException {
+                out.write(b);
+                position++;
+            }
+
+            @Override public void write(final byte[] b, final int off, final int len) throws IOException {
+                out.write(b, off, len);
+                position += len;
+            }
+        };
+
+        /** The sections written. */
+        @Nonnull @NonnullElements private final List<Section> sections = new ArrayList<>();
+
+        /** Contexts of the sections written. */
+        @Nonnull @NonnullElements private final Set<String> contexts = new LinkedHashSet<>();
+
+        /** Number of bytes written. */
+        private long position;
+
+        /** Context of the current section, or null before the first one. */
+        @Nullable private String context;
+
+        /** Offset of the current section. */
+        private long sectionOffset;
+
+        /** Number of records of the current section. */
+        private long sectionRecords;
+
+        /** Whether the index has been written. */
+        private boolean closed;
+
+        /**
+         * Constructor.
+         * 
+         * @param stream the stream to write to, which is buffered here
+         * @throws IOException if the header can not be written
+         */
+        public Writer(@Nonnull final OutputStream stream) throws IOException {
+            out = new BufferedOutputStream(Constraint.isNotNull(stream, "Stream cannot be null"), 64 * 1024);
+            write(MAGIC, MAGIC.length);
+        }
+
+        /**
+         * End the current section, if any, and start the section of a context.
+         * 
+         * @param sectionContext the context
+         */
+        public void startSection(@Nonnull @NotEmpty final String sectionContext) {
+            Constraint.isFalse(closed, "Snapshot has been closed");
+            Constraint.isTrue(contexts.add(sectionContext), "Context is already in the snapshot");
+            endSection();
+            context = sectionContext;
+            sectionOffset = position;
+            sectionRecords = 0;
+        }
+
+        /**
+         * Write a record to the current section.
+         * 
+         * @param key the record key
+         * @param record the record
+         * @throws IOException if the record can not be written
+         */
+        public void write(@Nonnull @NotEmpty final String key, @Nonnull final StorageRecord record)
+                throws IOException {
+            Constraint.isTrue(context != null && !closed, "No section has been started");
+            final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            write(scratch, BinaryStorageRecordSerializer.writeVarLong(keyBytes.length, scratch, 0));
+            write(keyBytes, keyBytes.length);
+            serializer.serialize(record, recordStream);
+            sectionRecords++;
+        }
+
+        /**
+         * Get the sections written so far, the current one excepted.
+         * 
+         * @return the sections
+         */
+        @Nonnull @NonnullElements public List<Section> getSections() {
+            return Collections.unmodifiableList(sections);
+        }
+
+        /** {@inheritDoc} */
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            endSection();
+            closed = true;
+
+            final long indexOffset = position;
+            write(scratch, BinaryStorageRecordSerializer.writeVarLong(sections.size(), scratch, 0));
+            for (final Section section : sections) {
+                final byte[] name = section.getContext().getBytes(StandardCharsets.UTF_8);
+                write(scratch, BinaryStorageRecordSerializer.writeVarLong(name.length, scratch, 0));
+                write(name, name.length);
+                int pos = BinaryStorageRecordSerializer.writeVarLong(section.getOffset(), scratch, 0);
+                pos = BinaryStorageRecordSerializer.writeVarLong(section.getLength(), scratch, pos);
+                pos = BinaryStorageRecordSerializer.writeVarLong(section.getRecords(), scratch, pos);
+                write(scratch, pos);
+            }
+            final byte[] trailer = ByteBuffer.allocate(TRAILER_LENGTH).putLong(indexOffset).put(MAGIC).array();
+            write(trailer, trailer.length);
+            out.flush();
+        }
+
+        /** End the current section, if any. */
+        private void endSection() {
+            if (context != null) {
+                Constraint.isTrue(position - sectionOffset <= Integer.MAX_VALUE,
+                        "Context '" + context + "' is too large for a snapshot section");
+                sections.add(new Section(context, sectionOffset, position - sectionOffset, sectionRecords));
+                context = null;
+            }
+        }
+
+        /**
+         * Write bytes and count them.
+         * 
+         * @param bytes the bytes
+         * @param length the number of bytes to write
+         * @throws IOException if the bytes can not be written
+         */
+        private void write(@Nonnull final byte[] bytes, final int length) throws IOException {
+            out.write(bytes, 0, length);
+            position += length;
+        }
+    }
+
+    /**
+     * The records of a context in a snapshot.
+     */
+    public static class Section {
+
+        /** The context. */
+        @Nonnull @NotEmpty private final String context;
+
+        /** Offset of the first record in the snapshot. */
+        private final long offset;
+
+        /** Number of bytes of the records. */
+        private final long length;
+
+        /** Number of records. */
+        private final long records;
+
+        /**
+         * Constructor.
+         * 
+         * @param sectionContext the context
+         * @param sectionOffset offset of the first record in the snapshot
+         * @param sectionLength number of bytes of the records
+         * @param sectionRecords number of records
+         */
+        public Section(@Nonnull @NotEmpty final String sectionContext, final long sectionOffset,
+                final long sectionLength, final long sectionRecords) {
+            context = sectionContext;
+            offset = sectionOffset;
+            length = sectionLength;
+            records = sectionRecords;
+        }
+
+        /**
+         * Get the context.
+         * 
+         * @return the context
+         */
+        @Nonnull @NotEmpty public String getContext() {
+            return context;
+        }
+
+        /**
+         * Get the offset of the first record in the snapshot.
+         * 
+         * @return the offset
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Get the number of bytes of the records.
+         * 
+         * @return the number of bytes
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Get the number of records.
+         * 
+         * @return the number of records
+         */
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * Write the section as a JSON object.
+         * 
+         * @param gen the JSON generator, positioned inside an array
+         */
+        public void write(@Nonnull final JsonGenerator gen) {
+            gen.writeStartObject();
+            gen.write("context", context);
+            gen.write("records", records);
+            gen.write("bytes", length);
+            gen.writeEnd();
+        }
+    }
+
+    /**
+     * The outcome of loading a section.
+     */
+    public static class LoadResult {
+
+        /** The section. */
+        @Nonnull private final Section section;
+
+        /** Number of records created. */
+        private final long created;
+
+        /** Number of records left alone because they already existed. */
+        private final long existing;
+
+        /** Number of records skipped because they have expired. */
+        private final long expired;
+
+        /** Milliseconds spent loading the section. */
+        private final long elapsed;
+
+        /**
+         * Constructor.
+         * 
+         * @param loaded the section
+         * @param createdRecords number of records created
+         * @param existingRecords number of records left alone because they already existed
+         * @param expiredRecords number of records skipped because they have expired
+         * @param elapsedMillis milliseconds spent loading the section
+         */
+        public LoadResult(@Nonnull final Section loaded, final long createdRecords, final long existingRecords,
+                final long expiredRecords, final long elapsedMillis) {
+            section = loaded;
+            created = createdRecords;
+            existing = existingRecords;
+            expired = expiredRecords;
+            elapsed = elapsedMillis;
+        }
+
+        /**
+         * Get the section.
+         * 
+         * @return the section
+         */
+        @Nonnull public Section getSection() {
+            return section;
+        }
+
+        /**
+         * Get the number of records created.
+         * 
+         * @return the number of records created
+         */
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * Get the number of records left alone because they already existed.
+         * 
+         * @return the number of existing records
+         */
+        public long getExisting() {
+            return existing;
+        }
+
+        /**
+         * Get the number of records skipped because they have expired.
+         * 
+         * @return the number of expired records
+         */
+        public long getExpired() {
+            return expired;
+        }
+
+        /**
+         * Write the outcome as a JSON object.
+         * 
+         * @param gen the JSON generator, positioned inside an array
+         */
+        public void write(@Nonnull final JsonGenerator gen) {
+            gen.writeStartObject();
+            gen.write("context", section.getContext());
+            gen.write("created", created);
+            gen.write("existing", existing);
+            gen.write("expired", expired);
+            gen.write("elapsed", elapsed);
+            gen.writeEnd();
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Saves contexts of a running testbed to a {@link StorageSnapshot} file, loads a snapshot file into a running
+ * testbed, or lists the contexts of a snapshot file, using the snapshot endpoints of
+ * {@link StorageServiceWrapperController}:
+ * <p>
+ * java -cp ... storage.StorageSnapshotTool export [storage URL] [storage service id] [file] [context]...
+ * <p>
+ * java -cp ... storage.StorageSnapshotTool import [storage URL] [storage service id] [file] [threads]
+ * <p>
+ * java -cp ... storage.StorageSnapshotTool list [file]
+ * <p>
+ * where the storage URL is typically http://localhost:8080/idp/storage.
+ */
+public final class StorageSnapshotTool {
+
+    /** Constructor. */
+    private StorageSnapshotTool() {
+    }
+
+    /**
+     * Run a command.
+     * 
+     * @param args the command and its arguments
+     * @throws IOException if the command fails
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length >= 5 && "export".equals(args[0])) {
+            final StringBuilder url = new StringBuilder(args[1]).append("/snapshot/").append(encode(args[2]));
+            for (int i = 4; i < args.length; i++) {
+                url.append(i == 4 ? '?' : '&').append("context=").append(encode(args[i]));
+            }
+            final Path file = Paths.get(args[3]);
+            final long start = System.nanoTime();
+            final HttpURLConnection connection = (HttpURLConnection) new URL(url.toString()).openConnection();
+            check(connection);
+            try (final InputStream in = connection.getInputStream()) {
+                Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            list(file);
+            report("exported", Files.size(file), start);
+        } else if ((args.length == 4 || args.length == 5) && "import".equals(args[0])) {
+            final Path file = Paths.get(args[3]);
+            final String threads = args.length == 5 ? args[4] : "4";
+            final long start = System.nanoTime();
+            final HttpURLConnection connection = (HttpURLConnection) new URL(args[1] + "/snapshot/" + encode(args[2])
+                    + "?threads=" + encode(threads)).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(Files.size(file));
+            connection.setRequestProperty("Content-Type", StorageSnapshot.CONTENT_TYPE);
+            try (final OutputStream out = connection.getOutputStream()) {
+                Files.copy(file, out);
+            }
+            check(connection);
+            try (final InputStream in = connection.getInputStream()) {
+                final byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    System.out.write(buffer, 0, n);
+                }
+            }
+            System.out.println();
+            report("imported", Files.size(file), start);
+        } else if (args.length == 2 && "list".equals(args[0])) {
+            list(Paths.get(args[1]));
+        } else {
+            System.err.println("Usage: StorageSnapshotTool export <storage URL> <storage service id> <file> "
+                    + "<context>...");
+            System.err.println("       StorageSnapshotTool import <storage URL> <storage service id> <file> "
+                    + "[threads]");
+            System.err.println("       StorageSnapshotTool list <file>");
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Print the contexts of a snapshot file.
+     * 
+     * @param file the snapshot file
+     * @throws IOException if the file can not be read or is not a snapshot
+     */
+    private static void list(@Nonnull final Path file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (final StorageSnapshot.Section section : StorageSnapshot.readIndex(channel)) {
+                System.out.println(String.format(Locale.ROOT, "%-40s %10d records %12d bytes", section.getContext(),
+                        section.getRecords(), section.getLength()));
+            }
+        }
+    }
+
+    /**
+     * Check that an HTTP request succeeded.
+     * 
+     * @param connection the connection
+     * @throws IOException if the request failed
+     */
+    private static void check(@Nonnull final HttpURLConnection connection) throws IOException {
+        final int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException(connection.getRequestMethod() + " " + connection.getURL() + " returned " + status);
+        }
+    }
+
+    /**
+     * URL-encode a path segment or parameter value.
+     * 
+     * @param segment the segment
+     * @return the encoded segment
+     * @throws IOException never
+     */
+    @Nonnull private static String encode(@Nonnull final String segment) throws IOException {
+        return URLEncoder.encode(segment, StandardCharsets.UTF_8.name());
+    }
+
+    /**
+     * Print the size and duration of a transfer.
+     * 
+     * @param what what was done
+     * @param bytes the size of the snapshot
+     * @param start the start time as returned by {@link System#nanoTime()}
+     */
+    private static void report(@Nonnull final String what, final long bytes, final long start) {
+        System.out.println(String.format(Locale.ROOT, "%s %d bytes in %.3f s", what, bytes,
+                (System.nanoTime() - start) / 1e9));
+    }
+}
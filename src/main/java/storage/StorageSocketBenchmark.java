@@ -0,0 +1,201 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+
+import storage.StorageProtocol.Request;
+import storage.StorageProtocol.Response;
+
+/**
+ * Compares the throughput of the storage socket server with that of the HTTP storage wrapper, from a single client
+ * thread creating then reading records.
+ * 
+ * Each path creates and reads its own records in a context of its own: HTTP with keep-alive connections, the socket
+ * one request at a time, and the socket with requests pipelined in batches. Run against a running testbed:
+ * <p>
+ * java -cp ... storage.StorageSocketBenchmark [host] [port] [storage URL] [storage service id] [requests]
+ * [secret file]
+ * <p>
+ * which defaults to 127.0.0.1 9099 http://localhost:8080/idp/storage testbed.StripedMemoryStorageService 10000
+ * target/testbed-storage-socket.secret. The testbed must be started with the 'testbed.storage.socket.port' system
+ * property set to the port, the socket server being disabled otherwise.
+ */
+public final class StorageSocketBenchmark {
+
+    /** Number of requests per pipelined batch. */
+    public static final int PIPELINE_BATCH = 1000;
+
+    /** Value of the records, 200 characters. */
+    @Nonnull private static final String VALUE = String.format(Locale.ROOT, "%200s", "").replace(' ', 'v');
+
+    /** Constructor. */
+    private StorageSocketBenchmark() {
+    }
+
+    /**
+     * Run the comparison.
+     * 
+     * @param args host, port, storage URL, storage service id, number of requests and secret file, all optional
+     * @throws IOException if a request fails
+     */
+    public static void main(final String[] args) throws IOException {
+        final String host = args.length > 0 ? args[0] : "127.0.0.1";
+        final int port = args.length > 1 ? Integer.parseInt(args[1]) : 9099;
+        final String baseUrl = args.length > 2 ? args[2] : "http://localhost:8080/idp/storage";
+        final String storageServiceId = args.length > 3 ? args[3] : "testbed.StripedMemoryStorageService";
+        final int requests = args.length > 4 ? Integer.parseInt(args[4]) : 10000;
+        final String secret = StorageSocketServer.readSecret(
+                Paths.get(args.length > 5 ? args[5] : "target/testbed-storage-socket.secret"));
+        final String run = Long.toString(System.currentTimeMillis());
+
+        final String httpContext = "bench-http-" + run;
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            http(baseUrl + "/create/" + encode(storageServiceId) + "/" + httpContext + "/key" + i + "?value=" + VALUE,
+                    "POST", 201);
+        }
+        report("http create", requests, start);
+        start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            http(baseUrl + "/read/" + encode(storageServiceId) + "/" + httpContext + "/key" + i, "GET", 200);
+        }
+        report("http read", requests, start);
+
+        try (final StorageSocketClient client = new StorageSocketClient(host, port, secret)) {
+            final String socketContext = "bench-socket-" + run;
+            start = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                check(client.execute(Request.create(storageServiceId, socketContext, "key" + i, VALUE, 0)));
+            }
+            report("socket create", requests, start);
+            start = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                check(client.execute(Request.read(storageServiceId, socketContext, "key" + i, 0)));
+            }
+            report("socket read", requests, start);
+
+            final String pipelinedContext = "bench-pipelined-" + run;
+            final List<Request> batch = new ArrayList<>(PIPELINE_BATCH);
+            start = System.nanoTime();
+            for (int i = 0; i < requests; i += PIPELINE_BATCH) {
+                batch.clear();
+                for (int j = i; j < Math.min(requests, i + PIPELINE_BATCH); j++) {
+                    batch.add(Request.create(storageServiceId, pipelinedContext, "key" + j, VALUE, 0));
+                }
+                for (final Response response : client.executeAll(batch)) {
+                    check(response);
+                }
+            }
+            report("pipelined create", requests, start);
+            start = System.nanoTime();
+            for (int i = 0; i < requests; i += PIPELINE_BATCH) {
+                batch.clear();
+                for (int j = i; j < Math.min(requests, i + PIPELINE_BATCH); j++) {
+                    batch.add(Request.read(storageServiceId, pipelinedContext, "key" + j, 0));
+                }
+                for (final Response response : client.executeAll(batch)) {
+                    check(response);
+                }
+            }
+            report("pipelined read", requests, start);
+
+            for (final String context : new String[] {socketContext, pipelinedContext, httpContext}) {
+                client.execute(Request.deleteContext(storageServiceId, context));
+            }
+        }
+    }
+
+    /**
+     * Perform an HTTP request and read its response, keeping the connection alive.
+     * 
+     * @param url the URL
+     * @param method the method
+     * @param expectedStatus the expected status
+     * @throws IOException if the request fails or does not have the expected status
+     */
+    private static void http(@Nonnull final String url, @Nonnull final String method, final int expectedStatus)
+            throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        if ("POST".equals(method)) {
+            connection.setDoOutput(true);
+            try (final OutputStream out = connection.getOutputStream()) {
+                // The parameters are in the query string.
+            }
+        }
+        final int status = connection.getResponseCode();
+        try (final InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            final byte[] buffer = new byte[8192];
+            while (in != null && in.read(buffer) >= 0) {
+                // Drain the body so the connection is reused.
+            }
+        }
+        if (status != expectedStatus) {
+            throw new IOException(method + " " + url + " returned " + status);
+        }
+    }
+
+    /**
+     * Check that a socket request succeeded.
+     * 
+     * @param response the response
+     * @throws IOException if the request failed
+     */
+    private static void check(@Nonnull final Response response) throws IOException {
+        if (!response.isOk()) {
+            throw new IOException("Request failed: " + response);
+        }
+    }
+
+    /**
+     * URL-encode a path segment.
+     * 
+     * @param segment the segment
+     * @return the encoded segment
+     * @throws IOException never
+     */
+    @Nonnull private static String encode(@Nonnull final String segment) throws IOException {
+        return URLEncoder.encode(segment, StandardCharsets.UTF_8.name());
+    }
+
+    /**
+     * Print the throughput of a phase.
+     * 
+     * @param phase the phase
+     * @param requests the number of requests
+     * @param start the start time as returned by {@link System#nanoTime()}
+     */
+    private static void report(@Nonnull final String phase, final int requests, final long start) {
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.ROOT, "%-18s %8d requests %8.3f s %10.0f requests/s", phase,
+                requests, seconds, requests / seconds));
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import storage.StorageProtocol.Request;
+import storage.StorageProtocol.Response;
+
+/**
+ * Client of {@link StorageSocketServer}.
+ * 
+ * Connections are authenticated with the shared secret of the server when they are opened.
+ * 
+ * Requests are performed one at a time with {@link #execute(Request)}, or pipelined with {@link #executeAll(List)},
+ * which sends as many requests as fit in the write buffer before reading their responses. The buffers are direct and
+ * reused from call to call.
+ */
+@NotThreadSafe
+public class StorageSocketClient implements Closeable {
+
+    /** Default buffer size. */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /** The channel. */
+    @Nonnull private final SocketChannel channel;
+
+    /** Decodes the strings of responses. */
+    @Nonnull private final StorageProtocol protocol;
+
+    /** Requests not sent yet. */
+    @Nonnull private ByteBuffer writeBuffer;
+
+    /** Bytes received and not decoded yet, kept in read mode between calls. */
+    @Nonnull private ByteBuffer readBuffer;
+
+    /** Id of the next request. */
+    private int nextId;
+
+    /**
+     * Constructor.
+     * 
+     * @param host the host of the server
+     * @param port the port of the server
+     * @param secret the shared secret of the server
+     * @throws IOException if the server can not be connected to or refuses the secret
+     */
+    public StorageSocketClient(@Nonnull final String host, final int port, @Nonnull final String secret)
+            throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        protocol = new StorageProtocol();
+        writeBuffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+        readBuffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+        readBuffer.flip();
+        try {
+            final Response response = execute(Request.hello(secret));
+            if (!response.isOk()) {
+                throw new ProtocolException("Server refused the connection: " + response.getValue());
+            }
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Perform a request.
+     * 
+     * @param request the request
+     * @return the response
+     * @throws IOException if the request can not be sent or its response received
+     */
+    @Nonnull public Response execute(@Nonnull final Request request) throws IOException {
+        return executeAll(Collections.singletonList(request)).get(0);
+    }
+
+    /**
+     * Perform requests, pipelining them.
+     * 
+     * @param requests the requests
+     * @return the responses, in the order of the requests
+     * @throws IOException if the requests can not be sent or their responses received
+     */
+    @Nonnull public List<Response> executeAll(@Nonnull final List<Request> requests) throws IOException {
+        final List<Response> responses = new ArrayList<>(requests.size());
+        int sent = 0;
+        while (sent < requests.size()) {
+            // Send what fits in the write buffer, then read the responses before sending more, so that neither side
+            // blocks writing while the other is not reading.
+            final int firstId = nextId;
+            int batch = 0;
+            writeBuffer.clear();
+            while (sent + batch < requests.size()) {
+                final Request request = requests.get(sent + batch);
+                final int size = request.getFrameSize();
+                if (size > writeBuffer.remaining()) {
+                    if (batch > 0) {
+                        break;
+                    }
+                    writeBuffer = ByteBuffer.allocateDirect(size);
+                }
+                request.encode(writeBuffer, nextId++);
+                batch++;
+            }
+            writeBuffer.flip();
+            while (writeBuffer.hasRemaining()) {
+                channel.write(writeBuffer);
+            }
+            for (int i = 0; i < batch; i++) {
+                responses.add(receive(firstId + i));
+            }
+            sent += batch;
+        }
+        return responses;
+    }
+
+    /** {@inheritDoc} */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Receive a response.
+     * 
+     * @param id the expected request id
+     * @return the response
+     * @throws IOException if the response can not be received or is not the expected one
+     */
+    @Nonnull private Response receive(final int id) throws IOException {
+        fill(StorageProtocol.LENGTH_SIZE);
+        final int length = readBuffer.getInt();
+        if (length < StorageProtocol.HEADER_SIZE - StorageProtocol.LENGTH_SIZE) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+        fill(length);
+        final int end = readBuffer.position() + length;
+        final int responseId = readBuffer.getInt();
+        if (responseId != id) {
+            throw new ProtocolException("Expected the response to request " + id + ", got " + responseId);
+        }
+
+        final byte status = readBuffer.get();
+        final Response response;
+        if (readBuffer.position() == end) {
+            response = new Response(status, 0, 0, null);
+        } else if (status == StorageProtocol.OK) {
+            final long number = readBuffer.getLong();
+            if (readBuffer.position() == end) {
+                response = new Response(status, number, 0, null);
+            } else {
+                final long expiration = readBuffer.getLong();
+                response = new Response(status, number, expiration, getString(end));
+            }
+        } else {
+            response = new Response(status, 0, 0, getString(end));
+        }
+        readBuffer.position(end);
+        return response;
+    }
+
+    /**
+     * Read a string field which must end at the end of the frame.
+     * 
+     * @param end the end of the frame
+     * @return the string, or null
+     */
+    @Nullable private String getString(final int end) {
+        final int limit = readBuffer.limit();
+        readBuffer.limit(end);
+        try {
+            return protocol.getString(readBuffer);
+        } finally {
+            readBuffer.limit(limit);
+        }
+    }
+
+    /**
+     * Receive until the read buffer holds a number of bytes.
+     * 
+     * @param size the number of bytes
+     * @throws IOException if the bytes can not be received
+     */
+    private void fill(final int size) throws IOException {
+        if (readBuffer.remaining() >= size) {
+            return;
+        }
+        readBuffer.compact();
+        if (readBuffer.capacity() < size) {
+            readBuffer.flip();
+            readBuffer = ByteBuffer.allocateDirect(size).put(readBuffer);
+        }
+        while (readBuffer.position() < size) {
+            if (channel.read(readBuffer) < 0) {
+                throw new EOFException("Connection closed by the server");
+            }
+        }
+        readBuffer.flip();
+    }
+}
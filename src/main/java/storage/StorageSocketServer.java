@@ -0,0 +1,730 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
+import org.opensaml.storage.VersionMismatchException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.collection.Pair;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.logic.ConstraintViolationException;
+
+/**
+ * Serves the record and context operations of {@link StorageServiceWrapperController} over a socket with the binary
+ * protocol of {@link StorageProtocol}, for co-located clients which should not pay for HTTP on every call.
+ * 
+ * The server listens on the loopback interface by default and is disabled if the port is 0, the default. Clients
+ * authenticate each connection with a shared secret, read from the secret file or generated into it, readable by the
+ * owner only, if it does not exist. A connection whose first frame is not a {@link StorageProtocol#HELLO} with the
+ * secret is answered with {@link StorageProtocol#UNAUTHORIZED} and closed.
+ * 
+ * Each connection is served by a thread of its own with a blocking channel, which reads whatever the client has sent
+ * into a direct buffer, performs every complete request in order, and writes all their responses at once from a second
+ * direct buffer, so pipelined requests share system calls. Threads are bounded by the maximum number of connections,
+ * rather than multiplexed by a selector, which keeps the request path sequential for the handful of co-located clients
+ * the server is meant for. Both buffers belong to the connection and are reused for its lifetime, growing only for
+ * frames larger than them. Storage services are looked up in the {@link StorageServiceRegistry}, so operations are
+ * metered as they are through HTTP.
+ */
+public class StorageSocketServer extends AbstractInitializableComponent {
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(StorageSocketServer.class);
+
+    /** Open connections. */
+    @Nonnull private final Set<Connection> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+
+    /** Storage services. */
+    @Nullable private StorageServiceRegistry storageServiceRegistry;
+
+    /** Address to listen on. */
+    @Nonnull @NotEmpty private String bindAddress;
+
+    /** Port to listen on, 0 to disable the server. */
+    @NonNegative private int port;
+
+    /** Largest number of open connections, beyond which new connections are closed. */
+    @Positive private int maxConnections;
+
+    /** Initial size of the buffers of a connection. */
+    @Positive private int bufferSize;
+
+    /** Largest frame size, beyond which a connection is closed. */
+    @Positive private int maxFrameSize;
+
+    /** File holding the shared secret of clients. */
+    @Nullable private Path secretFile;
+
+    /** The shared secret of clients, encoded. */
+    @Nullable private byte[] secret;
+
+    /** The listening channel. */
+    @Nullable private ServerSocketChannel serverChannel;
+
+    /** Thread accepting connections. */
+    @Nullable private Thread acceptor;
+
+    /** Threads serving connections. */
+    @Nullable private ExecutorService executor;
+
+    /** Constructor. */
+    public StorageSocketServer() {
+        bindAddress = "127.0.0.1";
+        maxConnections = 64;
+        bufferSize = 64 * 1024;
+        maxFrameSize = StorageProtocol.DEFAULT_MAX_FRAME_SIZE;
+    }
+
+    /**
+     * Set the storage services served.
+     * 
+     * @param registry the storage service registry
+     */
+    public void setStorageServiceRegistry(@Nonnull final StorageServiceRegistry registry) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        storageServiceRegistry = Constraint.isNotNull(registry, "StorageServiceRegistry cannot be null");
+    }
+
+    /**
+     * Set the address to listen on.
+     * 
+     * @param address the address, the loopback address by default
+     */
+    public void setBindAddress(@Nonnull @NotEmpty final String address) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        bindAddress = Constraint.isNotEmpty(address, "Bind address cannot be null or empty");
+    }
+
+    /**
+     * Get the port listened on.
+     * 
+     * @return the port, 0 if the server is disabled
+     */
+    @NonNegative public int getPort() {
+        return port;
+    }
+
+    /**
+     * Set the port to listen on.
+     * 
+     * @param p the port, 0 to disable the server
+     */
+    public void setPort(@NonNegative final int p) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        port = (int) Constraint.isGreaterThanOrEqual(0, p, "Port must be greater than or equal to 0");
+    }
+
+    /**
+     * Set the largest number of open connections.
+     * 
+     * @param max the maximum number of connections
+     */
+    public void setMaxConnections(@Positive final int max) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxConnections = (int) Constraint.isGreaterThan(0, max, "Maximum connections must be greater than 0");
+    }
+
+    /**
+     * Set the initial size of the buffers of a connection.
+     * 
+     * @param size the buffer size in bytes
+     */
+    public void setBufferSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        bufferSize = (int) Constraint.isGreaterThan(0, size, "Buffer size must be greater than 0");
+    }
+
+    /**
+     * Set the largest frame size, beyond which a connection is closed.
+     * 
+     * @param size the maximum frame size in bytes
+     */
+    public void setMaxFrameSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxFrameSize = (int) Constraint.isGreaterThanOrEqual(StorageProtocol.HEADER_SIZE, size,
+                "Maximum frame size must be at least the header size");
+    }
+
+    /**
+     * Set the file holding the shared secret of clients, generated if it does not exist.
+     * 
+     * @param file the path of the secret file
+     */
+    public void setSecretFile(@Nonnull @NotEmpty final String file) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        secretFile = Paths.get(Constraint.isNotEmpty(file, "Secret file cannot be null or empty"));
+    }
+
+    /**
+     * Read the shared secret of clients from a file.
+     * 
+     * @param file the secret file
+     * @return the secret
+     * @throws IOException if the file can not be read or is empty
+     */
+    @Nonnull @NotEmpty public static String readSecret(@Nonnull final Path file) throws IOException {
+        final String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+        if (text.isEmpty()) {
+            throw new IOException("Secret file " + file + " is empty");
+        }
+        return text;
+    }
+
+    /**
+     * Read the shared secret from the secret file, generating it into a file readable by the owner only if it does not
+     * exist.
+     * 
+     * @return the secret
+     * @throws IOException if the secret file can not be read or created
+     */
+    @Nonnull @NotEmpty private String loadSecret() throws IOException {
+        if (Files.exists(secretFile)) {
+            log.debug("Reading the storage socket secret from {}", secretFile);
+            return readSecret(secretFile);
+        }
+
+        final byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        final StringBuilder text = new StringBuilder(2 * random.length);
+        for (final byte b : random) {
+            text.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+
+        if (secretFile.getParent() != null) {
+            Files.createDirectories(secretFile.getParent());
+        }
+        try {
+            Files.createFile(secretFile, PosixFilePermissions.asFileAttribute(
+                    EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+        } catch (final FileAlreadyExistsException e) {
+            // Generated meanwhile by another server.
+            return readSecret(secretFile);
+        } catch (final UnsupportedOperationException e) {
+            log.warn("Unable to restrict the permissions of {} to its owner on this file system", secretFile);
+            Files.createFile(secretFile);
+        }
+        Files.write(secretFile, text.toString().getBytes(StandardCharsets.UTF_8));
+        log.info("Generated the storage socket secret into {}", secretFile);
+        return text.toString();
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (storageServiceRegistry == null) {
+            throw new ComponentInitializationException("StorageServiceRegistry cannot be null");
+        }
+        if (port == 0) {
+            log.debug("Storage socket server is disabled");
+            return;
+        }
+        if (secretFile == null) {
+            throw new ComponentInitializationException("Secret file cannot be null");
+        }
+        try {
+            secret = loadSecret().getBytes(StandardCharsets.UTF_8);
+        } catch (final IOException e) {
+            throw new ComponentInitializationException("Unable to load the secret from " + secretFile, e);
+        }
+
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(bindAddress, port));
+        } catch (final IOException e) {
+            throw new ComponentInitializationException("Unable to listen on " + bindAddress + ":" + port, e);
+        }
+
+        final AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "storage-socket-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "storage-socket-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("Storage socket server listening on {}:{}", bindAddress, port);
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doDestroy() {
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (final IOException e) {
+                log.debug("Unable to close the listening channel", e);
+            }
+            for (final Connection connection : connections) {
+                connection.close();
+            }
+            executor.shutdown();
+        }
+        super.doDestroy();
+    }
+
+    /** Accept connections until the listening channel is closed. */
+    private void accept() {
+        for (;;) {
+            final SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (final ClosedChannelException e) {
+                return;
+            } catch (final IOException e) {
+                log.warn("Unable to accept a connection", e);
+                continue;
+            }
+
+            final Connection connection = new Connection(channel);
+            if (connections.size() >= maxConnections) {
+                log.warn("Refusing a connection, {} connections are open", maxConnections);
+                connection.close();
+                continue;
+            }
+            connections.add(connection);
+            executor.execute(connection);
+        }
+    }
+
+    /** A client connection, served by a thread of its own. */
+    private final class Connection implements Runnable {
+
+        /** The channel. */
+        @Nonnull private final SocketChannel channel;
+
+        /** Decodes the strings of requests. */
+        @Nonnull private final StorageProtocol protocol;
+
+        /** Bytes read and not processed yet. */
+        @Nonnull private ByteBuffer readBuffer;
+
+        /** Responses not written yet. */
+        @Nonnull private ByteBuffer writeBuffer;
+
+        /** Whether the client sent the shared secret. */
+        private boolean authenticated;
+
+        /**
+         * Constructor.
+         * 
+         * @param socketChannel the channel
+         */
+        private Connection(@Nonnull final SocketChannel socketChannel) {
+            channel = socketChannel;
+            protocol = new StorageProtocol();
+            readBuffer = ByteBuffer.allocateDirect(bufferSize);
+            writeBuffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        /** {@inheritDoc} */
+        public void run() {
+            try {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                while (channel.read(readBuffer) >= 0) {
+                    readBuffer.flip();
+                    int needed = 0;
+                    while (readBuffer.remaining() >= StorageProtocol.LENGTH_SIZE) {
+                        final int length = readBuffer.getInt(readBuffer.position());
+                        if (length < StorageProtocol.HEADER_SIZE - StorageProtocol.LENGTH_SIZE
+                                || length > maxFrameSize - StorageProtocol.LENGTH_SIZE) {
+                            log.debug("Closing a connection which sent a frame of {} bytes", length);
+                            return;
+                        } else if (readBuffer.remaining() < StorageProtocol.LENGTH_SIZE + length) {
+                            needed = StorageProtocol.LENGTH_SIZE + length;
+                            break;
+                        }
+                        if (!process(length)) {
+                            flush();
+                            log.debug("Closing a connection which did not authenticate");
+                            return;
+                        }
+                    }
+                    readBuffer.compact();
+                    if (needed > readBuffer.capacity()) {
+                        readBuffer.flip();
+                        readBuffer = ByteBuffer.allocateDirect(needed).put(readBuffer);
+                    }
+                    flush();
+                }
+            } catch (final IOException e) {
+                log.debug("Closing a connection after an error", e);
+            } finally {
+                close();
+            }
+        }
+
+        /** Close the connection. */
+        private void close() {
+            connections.remove(this);
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                log.debug("Unable to close a connection", e);
+            }
+        }
+
+        /**
+         * Perform the request of the frame at the position of the read buffer and move past it.
+         * 
+         * @param length the length of the frame after its length field
+         * @return false if the connection must be closed since the client did not authenticate
+         * @throws IOException if the response can not be written
+         */
+        private boolean process(final int length) throws IOException {
+            final int limit = readBuffer.limit();
+            final int end = readBuffer.position() + StorageProtocol.LENGTH_SIZE + length;
+            readBuffer.position(readBuffer.position() + StorageProtocol.LENGTH_SIZE);
+            readBuffer.limit(end);
+            final int id = readBuffer.getInt();
+            final byte operation = readBuffer.get();
+            if (!authenticated) {
+                authenticated = authenticate(id, operation);
+                readBuffer.limit(limit);
+                readBuffer.position(end);
+                return authenticated;
+            }
+            try {
+                perform(id, operation);
+            } catch (final BufferUnderflowException | ConstraintViolationException e) {
+                fail(id, StorageProtocol.BAD_REQUEST, "Malformed request");
+            } catch (final VersionMismatchException e) {
+                respond(id, StorageProtocol.PRECONDITION_FAILED);
+            } catch (final IOException | RuntimeException e) {
+                log.debug("An error occurred", e);
+                fail(id, StorageProtocol.ERROR, String.valueOf(e.getMessage()));
+            }
+            readBuffer.limit(limit);
+            readBuffer.position(end);
+            return true;
+        }
+
+        /**
+         * Check that the first frame of the connection is a {@link StorageProtocol#HELLO} with the shared secret, and
+         * respond to it.
+         * 
+         * @param id the request id
+         * @param operation the operation
+         * @return whether the client authenticated
+         * @throws IOException if the response can not be written
+         */
+        private boolean authenticate(final int id, final byte operation) throws IOException {
+            String presented = null;
+            if (operation == StorageProtocol.HELLO) {
+                try {
+                    presented = protocol.getString(readBuffer);
+                } catch (final BufferUnderflowException e) {
+                    // Treated as a wrong secret.
+                }
+            }
+            if (presented != null && MessageDigest.isEqual(presented.getBytes(StandardCharsets.UTF_8), secret)) {
+                respond(id, StorageProtocol.OK);
+                return true;
+            }
+            fail(id, StorageProtocol.UNAUTHORIZED, "Authentication failed");
+            return false;
+        }
+
+        /**
+         * Perform a request.
+         * 
+         * @param id the request id
+         * @param operation the operation
+         * @throws IOException if the storage service raises an error
+         * @throws VersionMismatchException if a versioned write found another version
+         */
+        private void perform(final int id, final byte operation) throws IOException, VersionMismatchException {
+            final String storageServiceId = protocol.getRequiredString(readBuffer, "Storage service id");
+            final String context = protocol.getRequiredString(readBuffer, "Context");
+            final StorageService storageService = storageServiceRegistry.getStorageService(storageServiceId);
+            if (storageService == null) {
+                fail(id, StorageProtocol.BAD_REQUEST, "Unable to find storage service '" + storageServiceId + "'");
+                return;
+            }
+
+            switch (operation) {
+                case StorageProtocol.CREATE: {
+                    final String key = protocol.getRequiredString(readBuffer, "Key");
+                    final String value = protocol.getRequiredString(readBuffer, "Value");
+                    final Long expiration = toExpiration(readBuffer.getLong());
+                    if (storageService.create(context, key, value, expiration)) {
+                        // New records always start at version 1.
+                        respond(id, StorageProtocol.OK, 1);
+                    } else {
+                        respond(id, StorageProtocol.CONFLICT);
+                    }
+                    break;
+                }
+
+                case StorageProtocol.READ: {
+                    final String key = protocol.getRequiredString(readBuffer, "Key");
+                    final long version = readBuffer.getLong();
+                    if (version == 0) {
+                        respond(id, storageService.read(context, key));
+                        break;
+                    }
+                    final Pair<Long, StorageRecord> read = storageService.read(context, key, version);
+                    if (read.getFirst() == null) {
+                        respond(id, StorageProtocol.NOT_FOUND);
+                    } else if (read.getSecond() == null) {
+                        respond(id, StorageProtocol.NOT_MODIFIED);
+                    } else {
+                        respond(id, read.getSecond());
+                    }
+                    break;
+                }
+
+                case StorageProtocol.UPDATE: {
+                    final String key = protocol.getRequiredString(readBuffer, "Key");
+                    final String value = protocol.getRequiredString(readBuffer, "Value");
+                    final Long expiration = toExpiration(readBuffer.getLong());
+                    final long version = readBuffer.getLong();
+                    if (version == 0) {
+                        respond(id, storageService.update(context, key, value, expiration));
+                        break;
+                    }
+                    final Long newVersion = storageService.updateWithVersion(version, context, key, value, expiration);
+                    if (newVersion == null) {
+                        respond(id, StorageProtocol.NOT_FOUND);
+                    } else {
+                        respond(id, StorageProtocol.OK, newVersion);
+                    }
+                    break;
+                }
+
+                case StorageProtocol.UPDATE_EXPIRATION: {
+                    final String key = protocol.getRequiredString(readBuffer, "Key");
+                    respond(id, storageService.updateExpiration(context, key, toExpiration(readBuffer.getLong())));
+                    break;
+                }
+
+                case StorageProtocol.DELETE: {
+                    final String key = protocol.getRequiredString(readBuffer, "Key");
+                    final long version = readBuffer.getLong();
+                    respond(id, version == 0 ? storageService.delete(context, key)
+                            : storageService.deleteWithVersion(version, context, key));
+                    break;
+                }
+
+                case StorageProtocol.INCREMENT: {
+                    final String key = protocol.getRequiredString(readBuffer, "Key");
+                    final long delta = readBuffer.getLong();
+                    final Long expiration = toExpiration(readBuffer.getLong());
+                    try {
+                        respond(id, StorageProtocol.OK,
+                                AtomicStorageSupport.increment(storageService, context, key, delta, expiration, null));
+                    } catch (final NumberFormatException | ArithmeticException e) {
+                        // Not a counter, or the increment would overflow it.
+                        respond(id, StorageProtocol.CONFLICT);
+                    }
+                    break;
+                }
+
+                case StorageProtocol.COMPARE_AND_SET: {
+                    final String key = protocol.getRequiredString(readBuffer, "Key");
+                    final String expectedValue = protocol.getString(readBuffer);
+                    final String value = protocol.getRequiredString(readBuffer, "Value");
+                    final Long expiration = toExpiration(readBuffer.getLong());
+                    final Long version = AtomicStorageSupport.compareAndSet(storageService, context, key,
+                            expectedValue, value, expiration, null);
+                    if (version == null) {
+                        respond(id, StorageProtocol.PRECONDITION_FAILED);
+                    } else {
+                        respond(id, StorageProtocol.OK, version);
+                    }
+                    break;
+                }
+
+                case StorageProtocol.UPDATE_CONTEXT_EXPIRATION:
+                    storageService.updateContextExpiration(context, toExpiration(readBuffer.getLong()));
+                    respond(id, StorageProtocol.OK);
+                    break;
+
+                case StorageProtocol.DELETE_CONTEXT:
+                    storageService.deleteContext(context);
+                    respond(id, StorageProtocol.OK);
+                    break;
+
+                default:
+                    fail(id, StorageProtocol.BAD_REQUEST, "Unknown operation " + operation);
+                    break;
+            }
+        }
+
+        /**
+         * Convert an expiration field.
+         * 
+         * @param expiration the expiration field
+         * @return the expiration, or null if the field is 0
+         */
+        @Nullable private Long toExpiration(final long expiration) {
+            return expiration != 0 ? expiration : null;
+        }
+
+        /**
+         * Respond with the outcome of a write which does not return the new version.
+         * 
+         * @param id the request id
+         * @param success whether the record existed
+         * @throws IOException if the response can not be written
+         */
+        private void respond(final int id, final boolean success) throws IOException {
+            respond(id, success ? StorageProtocol.OK : StorageProtocol.NOT_FOUND);
+        }
+
+        /**
+         * Respond with a status and no payload, or a number of 0 if the status is {@link StorageProtocol#OK}.
+         * 
+         * @param id the request id
+         * @param status the status
+         * @throws IOException if the response can not be written
+         */
+        private void respond(final int id, final byte status) throws IOException {
+            if (status == StorageProtocol.OK) {
+                respond(id, status, 0);
+                return;
+            }
+            reserve(StorageProtocol.HEADER_SIZE);
+            writeBuffer.putInt(StorageProtocol.HEADER_SIZE - StorageProtocol.LENGTH_SIZE).putInt(id).put(status);
+        }
+
+        /**
+         * Respond with a status and a number.
+         * 
+         * @param id the request id
+         * @param status the status
+         * @param number the record version or counter value
+         * @throws IOException if the response can not be written
+         */
+        private void respond(final int id, final byte status, final long number) throws IOException {
+            reserve(StorageProtocol.HEADER_SIZE + 8);
+            writeBuffer.putInt(StorageProtocol.HEADER_SIZE + 8 - StorageProtocol.LENGTH_SIZE).putInt(id).put(status)
+                    .putLong(number);
+        }
+
+        /**
+         * Respond with a record which was read.
+         * 
+         * @param id the request id
+         * @param record the record, or null if it does not exist
+         * @throws IOException if the response can not be written
+         */
+        private void respond(final int id, @Nullable final StorageRecord record) throws IOException {
+            if (record == null) {
+                respond(id, StorageProtocol.NOT_FOUND);
+                return;
+            }
+            final byte[] value = StorageProtocol.toBytes(record.getValue());
+            final int size = StorageProtocol.HEADER_SIZE + 16 + StorageProtocol.sizeOf(value);
+            reserve(size);
+            writeBuffer.putInt(size - StorageProtocol.LENGTH_SIZE).putInt(id).put(StorageProtocol.OK)
+                    .putLong(record.getVersion())
+                    .putLong(record.getExpiration() != null ? record.getExpiration() : 0);
+            StorageProtocol.putString(writeBuffer, value);
+        }
+
+        /**
+         * Respond with a failure and its message.
+         * 
+         * @param id the request id
+         * @param status the status
+         * @param message the message
+         * @throws IOException if the response can not be written
+         */
+        private void fail(final int id, final byte status, @Nonnull final String message) throws IOException {
+            final byte[] bytes = StorageProtocol.toBytes(message);
+            final int size = StorageProtocol.HEADER_SIZE + StorageProtocol.sizeOf(bytes);
+            reserve(size);
+            writeBuffer.putInt(size - StorageProtocol.LENGTH_SIZE).putInt(id).put(status);
+            StorageProtocol.putString(writeBuffer, bytes);
+        }
+
+        /**
+         * Make room for a response in the write buffer, writing out the responses it holds if needed.
+         * 
+         * @param size the size of the response
+         * @throws IOException if the responses can not be written
+         */
+        private void reserve(final int size) throws IOException {
+            if (writeBuffer.remaining() < size) {
+                flush();
+                if (writeBuffer.capacity() < size) {
+                    writeBuffer = ByteBuffer.allocateDirect(size);
+                }
+            }
+        }
+
+        /**
+         * Write out the responses held by the write buffer.
+         * 
+         * @throws IOException if the responses can not be written
+         */
+        private void flush() throws IOException {
+            writeBuffer.flip();
+            while (writeBuffer.hasRemaining()) {
+                channel.write(writeBuffer);
+            }
+            writeBuffer.clear();
+        }
+    }
+}
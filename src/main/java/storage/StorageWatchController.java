@@ -0,0 +1,405 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opensaml.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+ * Stream the changes made to a context of a storage service as Server-Sent Events.
+ * 
+ * The storage service, or one of the storage services it decorates, must be an {@link ObservingStorageService}.
+ * Each event is named after its type, 'create', 'update', 'delete' or 'expire', carries its sequence number as its id
+ * and a JSON object describing the change as its data. A 'dropped' event with the number of events missed is sent
+ * when the client fell too far behind.
+ * 
+ * Requests are put into asynchronous mode, and every open stream is read on the 'testbed.StorageWatchScheduler' at the
+ * poll interval, 250 milliseconds by default or the 'testbed.storage.watch.interval' system property. Events are only
+ * written while the response accepts them without blocking, so a slow client misses events rather than slowing down
+ * writers or other clients. Idle streams are sent a comment every 15 seconds to detect closed connections, and all
+ * streams are closed after 5 minutes or the 'testbed.storage.watch.timeout' system property in milliseconds, for the
+ * client to reconnect.
+ * 
+ * The storage servlet and the IdP filters in front of it are declared asynchronous in 'web-override.xml'. Requests
+ * which can still not be put into asynchronous mode are long-polled on the container thread instead: the response
+ * ends with the first events or after the keep-alive interval, telling the client to reconnect straight away, so the
+ * thread is held for at most 15 seconds. Changes made while the client reconnects are missed. Such requests are logged
+ * once as a warning, and counted as 'fallbacks' with the open streams in the statistics of the storage service
+ * listing.
+ * 
+ * Example follows.
+ * 
+ * <p>
+ * curl -N 'http://localhost:8080/idp/storage/watch/testbed.ObservingStorageService/context'
+ * <p>
+ */
+@Controller
+public class StorageWatchController implements StatisticsReporter {
+
+    /** Content type of event streams. */
+    @Nonnull public static final String EVENT_STREAM_CONTENT_TYPE = "text/event-stream";
+
+    /** Largest number of events written per poll. */
+    public static final int MAX_EVENTS_PER_POLL = 256;
+
+    /** Time in milliseconds after which an idle stream is sent a comment. */
+    public static final long KEEP_ALIVE_INTERVAL = 15000;
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(StorageWatchController.class);
+
+    /** JSON generator factory for event data. */
+    @Nonnull private final JsonGeneratorFactory generatorFactory = Json.createGeneratorFactory(null);
+
+    /** Looks up storage services. */
+    @Autowired private StorageServiceWrapperController storageServiceWrapperController;
+
+    /** Reads the open streams. */
+    @Autowired @Qualifier("testbed.StorageWatchScheduler") private ScheduledExecutorService scheduler;
+
+    /** Interval in milliseconds at which open streams are read. */
+    @Value("#{systemProperties['testbed.storage.watch.interval'] ?: 250}") private long pollInterval;
+
+    /** Time in milliseconds after which a stream is closed. */
+    @Value("#{systemProperties['testbed.storage.watch.timeout'] ?: 300000}") private long timeout;
+
+    /** Number of open asynchronous streams. */
+    @Nonnull private final AtomicLong openStreams = new AtomicLong();
+
+    /** Number of requests long-polled on the container thread because they do not support asynchronous mode. */
+    @Nonnull private final AtomicLong fallbacks = new AtomicLong();
+
+    /**
+     * Find the storage service publishing changes, looking through decorators.
+     * 
+     * @param storageService the storage service
+     * @return the first storage service in the chain publishing changes, or <code>null</code> if none
+     */
+    @Nullable static protected ObservingStorageService findObservingStorageService(
+            @Nonnull final StorageService storageService) {
+        StorageService current = storageService;
+        while (current != null) {
+            if (current instanceof ObservingStorageService) {
+                return (ObservingStorageService) current;
+            }
+            current = current instanceof AbstractDelegatingStorageService
+                    ? ((AbstractDelegatingStorageService) current).getStorageService() : null;
+        }
+        return null;
+    }
+
+    @RequestMapping(
+            value = "/watch/{storageServiceId}/{context}",
+            method = RequestMethod.GET,
+            produces = EVENT_STREAM_CONTENT_TYPE)
+    public void watch(
+            @PathVariable @Nonnull final String storageServiceId,
+            @PathVariable @Nonnull final String context,
+            @Nonnull final HttpServletRequest servletRequest,
+            @Nonnull final HttpServletResponse servletResponse) throws IOException {
+        final StorageService storageService = storageServiceWrapperController.getStorageService(storageServiceId);
+        if (storageService == null) {
+            log.debug("Unable to find storage service with id '{}'", storageServiceId);
+            StorageServiceWrapperController.writeSeleniumFriendlyResponse(servletResponse, HttpStatus.NOT_FOUND);
+            return;
+        }
+
+        final ObservingStorageService observingStorageService = findObservingStorageService(storageService);
+        if (observingStorageService == null) {
+            log.debug("Storage service '{}' does not publish changes", storageServiceId);
+            StorageServiceWrapperController.writeSeleniumFriendlyResponse(servletResponse,
+                    HttpStatus.NOT_IMPLEMENTED);
+            return;
+        }
+
+        log.debug("Watching context '{}' of '{}'", context, storageServiceId);
+        servletResponse.setStatus(HttpStatus.OK.value());
+        servletResponse.setContentType(EVENT_STREAM_CONTENT_TYPE);
+        servletResponse.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        servletResponse.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+
+        if (!servletRequest.isAsyncSupported()) {
+            // Streaming on a container thread would hold it for as long as the client listens, so long-poll instead.
+            if (fallbacks.getAndIncrement() == 0) {
+                log.warn("Request does not support asynchronous mode, a filter in front of the storage servlet is not "
+                        + "declared async-supported, long-polling changes on the container thread");
+            } else {
+                log.debug("Request does not support asynchronous mode, long-polling changes on the container thread");
+            }
+            longPoll(observingStorageService.subscribe(context), servletResponse.getOutputStream());
+            return;
+        }
+
+        final AsyncContext asyncContext = servletRequest.startAsync();
+        asyncContext.setTimeout(timeout);
+        final Stream stream =
+                new Stream(asyncContext, observingStorageService.subscribe(context), servletResponse.getOutputStream());
+        asyncContext.addListener(new AsyncListener() {
+            public void onTimeout(final AsyncEvent event) {
+                stream.close();
+            }
+
+            public void onError(final AsyncEvent event) {
+                log.debug("An error occurred", event.getThrowable());
+                stream.close();
+            }
+
+            public void onComplete(final AsyncEvent event) {
+                stream.close();
+            }
+
+            public void onStartAsync(final AsyncEvent event) {
+            }
+        });
+        stream.open();
+    }
+
+    /** {@inheritDoc} */
+    public void writeStatistics(@Nonnull final JsonGenerator gen, @Nonnull final String name) {
+        gen.writeStartObject(name);
+        gen.write("openStreams", openStreams.get());
+        gen.write("fallbacks", fallbacks.get());
+        gen.writeEnd();
+    }
+
+    /**
+     * Write the events of a subscription with blocking writes, once some are available or after the keep-alive
+     * interval, then end the response and tell the client to reconnect after the poll interval.
+     * 
+     * @param subscription the subscription to the watched context, closed once done
+     * @param outputStream the response output stream
+     * @throws IOException if the response can not be written
+     */
+    private void longPoll(@Nonnull final ObservingStorageService.Subscription subscription,
+            @Nonnull final ServletOutputStream outputStream) throws IOException {
+        try {
+            outputStream.write((": watching " + subscription.getContext() + "\n\n").getBytes(StandardCharsets.UTF_8));
+            outputStream.flush();
+            final List<ObservingStorageService.StorageEvent> events = new ArrayList<>();
+            final long deadline = System.currentTimeMillis() + KEEP_ALIVE_INTERVAL;
+            long dropped = subscription.poll(events, MAX_EVENTS_PER_POLL);
+            while (dropped == 0 && events.isEmpty() && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(pollInterval);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                dropped = subscription.poll(events, MAX_EVENTS_PER_POLL);
+            }
+            outputStream.write(("retry: " + pollInterval + "\n\n" + format(dropped, events))
+                    .getBytes(StandardCharsets.UTF_8));
+        } finally {
+            subscription.close();
+        }
+    }
+
+    /**
+     * Format the outcome of a poll of a subscription.
+     * 
+     * @param dropped the number of events dropped
+     * @param events the events
+     * @return a 'dropped' event if any were, followed by the events, in the event stream format
+     */
+    @Nonnull private String format(final long dropped,
+            @Nonnull final List<ObservingStorageService.StorageEvent> events) {
+        final StringBuilder text = new StringBuilder();
+        if (dropped > 0) {
+            text.append("event: dropped\ndata: {\"count\":").append(dropped).append("}\n\n");
+        }
+        for (final ObservingStorageService.StorageEvent event : events) {
+            text.append(format(event));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Format an event.
+     * 
+     * @param event the event
+     * @return the event in the event stream format
+     */
+    @Nonnull private String format(@Nonnull final ObservingStorageService.StorageEvent event) {
+        final StringWriter data = new StringWriter();
+        try (final JsonGenerator gen = generatorFactory.createGenerator(data)) {
+            gen.writeStartObject();
+            gen.write("context", event.getContext());
+            if (event.getKey() != null) {
+                gen.write("key", event.getKey());
+            }
+            if (event.getVersion() != null) {
+                gen.write("version", event.getVersion());
+            }
+            if (event.getExpiration() != null) {
+                gen.write("expiration", event.getExpiration());
+            }
+            gen.write("timestamp", event.getTimestamp());
+            gen.writeEnd();
+        }
+        return "id: " + event.getSequence() + "\nevent: " + event.getType().name().toLowerCase() + "\ndata: "
+                + data + "\n\n";
+    }
+
+    /** An open event stream, read by the scheduler. */
+    private final class Stream implements Runnable {
+
+        /** The asynchronous context of the request. */
+        @Nonnull private final AsyncContext asyncContext;
+
+        /** The subscription to the watched context. */
+        @Nonnull private final ObservingStorageService.Subscription subscription;
+
+        /** The response output stream, in non-blocking mode once open. */
+        @Nonnull private final ServletOutputStream outputStream;
+
+        /** Whether the stream is closed. */
+        @Nonnull private final AtomicBoolean closed = new AtomicBoolean();
+
+        /** Events read by the last poll, reused from poll to poll. */
+        @Nonnull private final List<ObservingStorageService.StorageEvent> events = new ArrayList<>();
+
+        /** The task reading the stream. */
+        @Nullable private volatile ScheduledFuture<?> task;
+
+        /** Time of the last write. */
+        private long lastWrite;
+
+        /**
+         * Constructor.
+         * 
+         * @param context the asynchronous context of the request
+         * @param sub the subscription to the watched context
+         * @param out the response output stream
+         */
+        private Stream(@Nonnull final AsyncContext context, @Nonnull final ObservingStorageService.Subscription sub,
+                @Nonnull final ServletOutputStream out) {
+            asyncContext = context;
+            subscription = sub;
+            outputStream = out;
+            openStreams.incrementAndGet();
+        }
+
+        /** Switch the output stream to non-blocking mode and start reading the subscription. */
+        private void open() {
+            outputStream.setWriteListener(new WriteListener() {
+                public void onWritePossible() {
+                    // Writes are retried at the next poll.
+                }
+
+                public void onError(final Throwable t) {
+                    log.debug("Unable to write event stream", t);
+                    close();
+                }
+            });
+            write(": watching " + subscription.getContext() + "\n\n");
+            task = scheduler.scheduleWithFixedDelay(this, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+            if (closed.get()) {
+                task.cancel(false);
+            }
+        }
+
+        /** {@inheritDoc} */
+        public void run() {
+            if (closed.get() || !outputStream.isReady()) {
+                // The client is not keeping up, the events it misses meanwhile are reported once it does.
+                return;
+            }
+
+            events.clear();
+            final long dropped = subscription.poll(events, MAX_EVENTS_PER_POLL);
+            if (dropped == 0 && events.isEmpty()) {
+                if (System.currentTimeMillis() - lastWrite >= KEEP_ALIVE_INTERVAL) {
+                    write(": keep-alive\n\n");
+                }
+                return;
+            }
+
+            write(format(dropped, events));
+        }
+
+        /**
+         * Write text and flush it if the output stream is still ready, closing the stream on failure.
+         * 
+         * @param text the text
+         */
+        private void write(@Nonnull final String text) {
+            try {
+                outputStream.write(text.getBytes(StandardCharsets.UTF_8));
+                if (outputStream.isReady()) {
+                    outputStream.flush();
+                }
+                lastWrite = System.currentTimeMillis();
+            } catch (final IOException | RuntimeException e) {
+                log.debug("Unable to write event stream", e);
+                close();
+            }
+        }
+
+        /** Stop reading the subscription and complete the request. */
+        private void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            openStreams.decrementAndGet();
+            final ScheduledFuture<?> scheduled = task;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            subscription.close();
+            try {
+                asyncContext.complete();
+            } catch (final IllegalStateException e) {
+                // Already completed by the container.
+            }
+        }
+    }
+}
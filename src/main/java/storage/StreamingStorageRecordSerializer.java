@@ -0,0 +1,67 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnull;
+
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageSerializer;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+
+/**
+ * A {@link StorageRecord} serializer which can also write to and read from streams, so records can be sent to a
+ * client without an intermediate {@link String}.
+ */
+public interface StreamingStorageRecordSerializer extends StorageSerializer<StorageRecord> {
+
+    /**
+     * Get the media type of the serialized form.
+     * 
+     * @return the media type
+     */
+    @Nonnull @NotEmpty String getContentType();
+
+    /**
+     * Write a record to a stream.
+     * 
+     * The stream is flushed but not closed.
+     * 
+     * @param instance the record
+     * @param out the stream
+     * @throws IOException if an error occurs
+     */
+    void serialize(@Nonnull final StorageRecord instance, @Nonnull final OutputStream out) throws IOException;
+
+    /**
+     * Read a record written by {@link #serialize(StorageRecord, OutputStream)} from a stream.
+     * 
+     * @param context storage record context
+     * @param key storage record key
+     * @param in the stream
+     * @return a deserialized object
+     * @throws IOException if an error occurs
+     */
+    @Nonnull StorageRecord deserialize(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull final InputStream in) throws IOException;
+
+}
@@ -0,0 +1,617 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.storage.AbstractStorageService;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.VersionMismatchException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.collection.Pair;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * In-memory {@link org.opensaml.storage.StorageService} for heavily concurrent traffic.
+ * 
+ * Records are held in a two-level map of context to key to an immutable entry, using a lock-striped map of contexts
+ * and a lock-free skip list of keys per context, which keeps keys ordered so they can be enumerated from any key.
+ * Writers never take a lock of their own, every change being a compare-and-set of the entry, and readers never block.
+ * Counter increments and compare-and-set of values are therefore native. Versions and expirations are held as
+ * primitives. Every write, counter increments included, checks the record against the context, key and value sizes
+ * of the storage service, and an increment which would overflow a counter fails.
+ * 
+ * Expired records are invisible to readers as soon as they expire. They are removed by a {@link TimingWheel} advanced
+ * by the cleanup task, which only visits records that are due, so there is no periodic scan of every record. The
+ * cleanup interval is the length of a wheel tick; if it is 0, expired records are only removed when they are next
+ * accessed or the context is reaped.
+ */
+public class StripedMemoryStorageService extends AbstractStorageService
+        implements EnumerableStorageService, AtomicStorageService {
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(StripedMemoryStorageService.class);
+
+    /** Estimated number of concurrently writing threads, used to size the lock stripes of the context map. */
+    @Positive private int concurrencyLevel;
+
+    /** Map of contexts to keys to entries. */
+    @Nullable private ConcurrentMap<String, ConcurrentNavigableMap<String, Entry>> contextMap;
+
+    /** Expiration timers. */
+    @Nullable private TimingWheel<Expiration> timingWheel;
+
+    /** Constructor. */
+    public StripedMemoryStorageService() {
+        concurrencyLevel = 64;
+    }
+
+    /**
+     * Get the estimated number of concurrently writing threads.
+     * 
+     * @return the concurrency level
+     */
+    @Positive public int getConcurrencyLevel() {
+        return concurrencyLevel;
+    }
+
+    /**
+     * Set the estimated number of concurrently writing threads, used to size the lock stripes of the context map.
+     * 
+     * @param level the concurrency level
+     */
+    public void setConcurrencyLevel(@Positive final int level) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        concurrencyLevel = (int) Constraint.isGreaterThan(0, level, "Concurrency level must be greater than 0");
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        contextMap = new ConcurrentHashMap<>(16, 0.75f, concurrencyLevel);
+        if (getCleanupInterval() > 0) {
+            timingWheel = new TimingWheel<>(getCleanupInterval(), System.currentTimeMillis());
+        }
+        super.doInitialize();
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doDestroy() {
+        super.doDestroy();
+        contextMap = null;
+        timingWheel = null;
+    }
+
+    /** {@inheritDoc} */
+    @Override @Nullable protected TimerTask getCleanupTask() {
+        return new TimerTask() {
+            @Override public void run() {
+                final TimingWheel<Expiration> wheel = timingWheel;
+                if (wheel != null) {
+                    expire(wheel.advance(System.currentTimeMillis()));
+                }
+            }
+        };
+    }
+
+    /** {@inheritDoc} */
+    public boolean create(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        checkRecord(context, key, value);
+        final ConcurrentNavigableMap<String, Entry> keyMap = getOrCreateContext(context);
+        final Entry created = new Entry(value, 1, expiration);
+        final long now = System.currentTimeMillis();
+        for (;;) {
+            final Entry entry = keyMap.get(key);
+            if (entry == null) {
+                if (keyMap.putIfAbsent(key, created) == null) {
+                    break;
+                }
+            } else if (entry.isExpired(now)) {
+                if (keyMap.replace(key, entry, created)) {
+                    break;
+                }
+            } else {
+                return false;
+            }
+        }
+        schedule(context, key, created, null);
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public StorageRecord read(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        final Entry entry = getLive(context, key);
+        return entry != null ? entry.toRecord() : null;
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull public Pair<Long, StorageRecord> read(@Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Positive final long version) throws IOException {
+        final Entry entry = getLive(context, key);
+        if (entry == null) {
+            return new Pair<>();
+        } else if (entry.version == version) {
+            return new Pair<>(version, null);
+        }
+        return new Pair<>(entry.version, entry.toRecord());
+    }
+
+    /** {@inheritDoc} */
+    public boolean update(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        checkRecord(context, key, value);
+        try {
+            return doUpdate(null, context, key, value, expiration) != null;
+        } catch (final VersionMismatchException e) {
+            throw new IllegalStateException("Unversioned update reported a version mismatch", e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public Long updateWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nonnull @NotEmpty final String value,
+            @Nullable @Positive final Long expiration) throws IOException, VersionMismatchException {
+        checkRecord(context, key, value);
+        return doUpdate(version, context, key, value, expiration);
+    }
+
+    /** {@inheritDoc} */
+    public boolean updateExpiration(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nullable @Positive final Long expiration) throws IOException {
+        try {
+            return doUpdate(null, context, key, null, expiration) != null;
+        } catch (final VersionMismatchException e) {
+            throw new IllegalStateException("Unversioned update reported a version mismatch", e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean delete(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        try {
+            return doDelete(null, context, key);
+        } catch (final VersionMismatchException e) {
+            throw new IllegalStateException("Unversioned delete reported a version mismatch", e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean deleteWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key) throws IOException, VersionMismatchException {
+        return doDelete(version, context, key);
+    }
+
+    /** {@inheritDoc} */
+    public void reap(@Nonnull @NotEmpty final String context) throws IOException {
+        final ConcurrentNavigableMap<String, Entry> keyMap = contextMap.get(context);
+        if (keyMap == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        for (final Map.Entry<String, Entry> mapEntry : keyMap.entrySet()) {
+            if (mapEntry.getValue().isExpired(now)) {
+                keyMap.remove(mapEntry.getKey(), mapEntry.getValue());
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void updateContextExpiration(@Nonnull @NotEmpty final String context,
+            @Nullable @Positive final Long expiration) throws IOException {
+        final ConcurrentNavigableMap<String, Entry> keyMap = contextMap.get(context);
+        if (keyMap == null) {
+            return;
+        }
+        for (final String key : keyMap.keySet()) {
+            updateExpiration(context, key, expiration);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void deleteContext(@Nonnull @NotEmpty final String context) throws IOException {
+        // The context map is cleared rather than removed, so that concurrent writers holding it are not lost.
+        final ConcurrentNavigableMap<String, Entry> keyMap = contextMap.get(context);
+        if (keyMap != null) {
+            keyMap.clear();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public long increment(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            final long delta, @Nullable @Positive final Long expiration) throws IOException {
+        final String initial = Long.toString(delta);
+        checkRecord(context, key, initial);
+        final ConcurrentNavigableMap<String, Entry> keyMap = getOrCreateContext(context);
+        final long now = System.currentTimeMillis();
+        for (;;) {
+            final Entry entry = keyMap.get(key);
+            if (entry == null || entry.isExpired(now)) {
+                final Entry created = new Entry(initial, 1, expiration);
+                if (entry == null ? keyMap.putIfAbsent(key, created) == null : keyMap.replace(key, entry, created)) {
+                    schedule(context, key, created, null);
+                    return delta;
+                }
+                continue;
+            }
+
+            final long value = AtomicStorageSupport.add(Long.parseLong(entry.value), delta);
+            final String text = Long.toString(value);
+            checkRecord(context, key, text);
+            final Entry updated = new Entry(text, entry.version + 1, entry.expiration != 0 ? entry.expiration : null);
+            if (keyMap.replace(key, entry, updated)) {
+                return value;
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public Long compareAndSet(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nullable final String expectedValue, @Nonnull @NotEmpty final String value,
+            @Nullable @Positive final Long expiration) throws IOException {
+        if (expectedValue == null) {
+            return create(context, key, value, expiration) ? Long.valueOf(1) : null;
+        }
+
+        checkRecord(context, key, value);
+        final ConcurrentNavigableMap<String, Entry> keyMap = contextMap.get(context);
+        if (keyMap == null) {
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        for (;;) {
+            final Entry entry = keyMap.get(key);
+            if (entry == null || entry.isExpired(now) || !expectedValue.equals(entry.value)) {
+                return null;
+            }
+            final Entry updated = new Entry(value, entry.version + 1, expiration);
+            if (keyMap.replace(key, entry, updated)) {
+                schedule(context, key, updated, entry);
+                return updated.version;
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull public Iterator<String> keys(@Nonnull @NotEmpty final String context, @Nullable final String afterKey)
+            throws IOException {
+        final ConcurrentNavigableMap<String, Entry> keyMap = contextMap.get(context);
+        if (keyMap == null) {
+            return Collections.<String>emptyIterator();
+        }
+        return new KeyIterator(afterKey != null ? keyMap.tailMap(afterKey, false) : keyMap);
+    }
+
+    /**
+     * Update the value and expiration of a record, or only its expiration, optionally checking its version.
+     * 
+     * @param version the version to check, or null to skip the check
+     * @param context record context
+     * @param key record key
+     * @param value the new value, or null to only update the expiration
+     * @param expiration the new expiration or null if none
+     * @return the new version of the record, or null if the record does not exist
+     * @throws VersionMismatchException if the record has a different version
+     */
+    @Nullable private Long doUpdate(@Nullable final Long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nullable final String value, @Nullable final Long expiration)
+                    throws VersionMismatchException {
+        final ConcurrentNavigableMap<String, Entry> keyMap = contextMap.get(context);
+        if (keyMap == null) {
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        for (;;) {
+            final Entry entry = keyMap.get(key);
+            if (entry == null) {
+                return null;
+            } else if (entry.isExpired(now)) {
+                keyMap.remove(key, entry);
+                return null;
+            } else if (version != null && entry.version != version) {
+                throw new VersionMismatchException();
+            }
+
+            final Entry updated = value != null ? new Entry(value, entry.version + 1, expiration)
+                    : new Entry(entry.value, entry.version, expiration);
+            if (keyMap.replace(key, entry, updated)) {
+                schedule(context, key, updated, entry);
+                return updated.version;
+            }
+        }
+    }
+
+    /**
+     * Delete a record, optionally checking its version.
+     * 
+     * @param version the version to check, or null to skip the check
+     * @param context record context
+     * @param key record key
+     * @return true if the record was deleted, false if it does not exist
+     * @throws VersionMismatchException if the record has a different version
+     */
+    private boolean doDelete(@Nullable final Long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key) throws VersionMismatchException {
+        final ConcurrentNavigableMap<String, Entry> keyMap = contextMap.get(context);
+        if (keyMap == null) {
+            return false;
+        }
+        final long now = System.currentTimeMillis();
+        for (;;) {
+            final Entry entry = keyMap.get(key);
+            if (entry == null) {
+                return false;
+            } else if (entry.isExpired(now)) {
+                keyMap.remove(key, entry);
+                return false;
+            } else if (version != null && entry.version != version) {
+                throw new VersionMismatchException();
+            } else if (keyMap.remove(key, entry)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Check that a record fits the context, key and value sizes of this storage service.
+     * 
+     * @param context record context
+     * @param key record key
+     * @param value record value
+     * @throws IOException if the context, key or value is empty or too long
+     */
+    private void checkRecord(@Nonnull final String context, @Nonnull final String key, @Nonnull final String value)
+            throws IOException {
+        if (context.isEmpty() || context.length() > getContextSize()) {
+            throw new IOException("Context must be between 1 and " + getContextSize() + " characters long");
+        } else if (key.isEmpty() || key.length() > getKeySize()) {
+            throw new IOException("Key must be between 1 and " + getKeySize() + " characters long");
+        } else if (value.isEmpty() || value.length() > getValueSize()) {
+            throw new IOException("Value must be between 1 and " + getValueSize() + " characters long");
+        }
+    }
+
+    /**
+     * Get the unexpired entry for a record, removing it if it has expired.
+     * 
+     * @param context record context
+     * @param key record key
+     * @return the entry, or null if it does not exist or has expired
+     */
+    @Nullable private Entry getLive(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key) {
+        final ConcurrentNavigableMap<String, Entry> keyMap = contextMap.get(context);
+        if (keyMap == null) {
+            return null;
+        }
+        final Entry entry = keyMap.get(key);
+        if (entry == null) {
+            return null;
+        } else if (entry.isExpired(System.currentTimeMillis())) {
+            keyMap.remove(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Get the map of keys to entries for a context, creating it if needed.
+     * 
+     * @param context record context
+     * @return the map of keys to entries
+     */
+    @Nonnull private ConcurrentNavigableMap<String, Entry> getOrCreateContext(
+            @Nonnull @NotEmpty final String context) {
+        ConcurrentNavigableMap<String, Entry> keyMap = contextMap.get(context);
+        if (keyMap == null) {
+            keyMap = new ConcurrentSkipListMap<>();
+            final ConcurrentNavigableMap<String, Entry> existing = contextMap.putIfAbsent(context, keyMap);
+            if (existing != null) {
+                keyMap = existing;
+            }
+        }
+        return keyMap;
+    }
+
+    /**
+     * Schedule the removal of an entry when it expires, unless a timer is already set for its expiration.
+     * 
+     * @param context record context
+     * @param key record key
+     * @param entry the new entry
+     * @param previous the entry it replaced, if any
+     */
+    private void schedule(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull final Entry entry, @Nullable final Entry previous) {
+        final TimingWheel<Expiration> wheel = timingWheel;
+        if (wheel != null && entry.expiration != 0
+                && (previous == null || previous.expiration != entry.expiration)) {
+            wheel.schedule(new Expiration(context, key, entry.expiration), entry.expiration);
+        }
+    }
+
+    /**
+     * Remove the records whose expiration timers have fired, if they still have the same expiration.
+     * 
+     * @param expirations the timers that have fired
+     */
+    private void expire(@Nonnull final Iterable<Expiration> expirations) {
+        final long now = System.currentTimeMillis();
+        int removed = 0;
+        for (final Expiration expiration : expirations) {
+            final ConcurrentNavigableMap<String, Entry> keyMap = contextMap.get(expiration.context);
+            if (keyMap == null) {
+                continue;
+            }
+            for (;;) {
+                final Entry entry = keyMap.get(expiration.key);
+                if (entry == null || entry.expiration != expiration.expiration || !entry.isExpired(now)) {
+                    break;
+                } else if (keyMap.remove(expiration.key, entry)) {
+                    removed++;
+                    break;
+                }
+            }
+        }
+        if (removed > 0) {
+            log.debug("Storage service '{}' removed {} expired records", getId(), removed);
+        }
+    }
+
+    /** Iterates over the keys of unexpired entries. */
+    private static final class KeyIterator implements Iterator<String> {
+
+        /** The underlying entry iterator. */
+        @Nonnull private final Iterator<Map.Entry<String, Entry>> entries;
+
+        /** The next key, or null if none. */
+        @Nullable private String next;
+
+        /**
+         * Constructor.
+         * 
+         * @param keyMap the entries to iterate over
+         */
+        private KeyIterator(@Nonnull final Map<String, Entry> keyMap) {
+            entries = keyMap.entrySet().iterator();
+            advance();
+        }
+
+        /** {@inheritDoc} */
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        /** {@inheritDoc} */
+        @Nonnull public String next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            final String key = next;
+            advance();
+            return key;
+        }
+
+        /** {@inheritDoc} */
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /** Find the next unexpired key. */
+        private void advance() {
+            final long now = System.currentTimeMillis();
+            while (entries.hasNext()) {
+                final Map.Entry<String, Entry> mapEntry = entries.next();
+                if (!mapEntry.getValue().isExpired(now)) {
+                    next = mapEntry.getKey();
+                    return;
+                }
+            }
+            next = null;
+        }
+    }
+
+    /** An immutable record value, version and expiration. */
+    private static final class Entry {
+
+        /** Record value. */
+        @Nonnull private final String value;
+
+        /** Record version. */
+        private final long version;
+
+        /** Record expiration, or 0 if none. */
+        private final long expiration;
+
+        /**
+         * Constructor.
+         * 
+         * @param val record value
+         * @param ver record version
+         * @param exp record expiration or null if none
+         */
+        private Entry(@Nonnull final String val, final long ver, @Nullable final Long exp) {
+            value = val;
+            version = ver;
+            expiration = exp != null ? exp : 0;
+        }
+
+        /**
+         * Get whether the entry has expired.
+         * 
+         * @param now the current time
+         * @return true if the entry has expired
+         */
+        private boolean isExpired(final long now) {
+            return expiration != 0 && expiration <= now;
+        }
+
+        /**
+         * Get a storage record for the entry.
+         * 
+         * @return a storage record
+         */
+        @Nonnull private StorageRecord toRecord() {
+            return new VersionableStorageRecord(value, expiration != 0 ? expiration : null, version);
+        }
+    }
+
+    /** An expiration timer for a record. */
+    private static final class Expiration {
+
+        /** Record context. */
+        @Nonnull private final String context;
+
+        /** Record key. */
+        @Nonnull private final String key;
+
+        /** The expiration the timer was set for. */
+        private final long expiration;
+
+        /**
+         * Constructor.
+         * 
+         * @param ctx record context
+         * @param k record key
+         * @param exp the expiration
+         */
+        private Expiration(@Nonnull final String ctx, @Nonnull final String k, final long exp) {
+            context = ctx;
+            key = k;
+            expiration = exp;
+        }
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Hierarchical timing wheel, used to find items whose deadline has passed without scanning every item.
+ * 
+ * The wheel has {@link #LEVELS} levels of {@link #SLOTS} slots each, where a slot of level <i>n</i> spans
+ * {@link #SLOTS}<sup><i>n</i></sup> ticks. Items are placed on the finest level able to hold their deadline and
+ * cascade towards level 0 as time passes, so advancing the wheel costs time proportional to the number of ticks and
+ * of items that are due, rather than to the number of items scheduled. Deadlines beyond the range of the wheel are
+ * parked in the coarsest level and rescheduled when they come around.
+ * 
+ * Items may be scheduled from any thread. They are queued and moved into the wheel by {@link #advance(long)}, which
+ * must only be called by one thread at a time, typically a timer task.
+ * 
+ * @param <T> type of item scheduled
+ */
+public class TimingWheel<T> {
+
+    /** Number of levels in the wheel. */
+    public static final int LEVELS = 4;
+
+    /** Number of bits used to index slots within a level. */
+    private static final int SLOT_BITS = 6;
+
+    /** Number of slots per level. */
+    public static final int SLOTS = 1 << SLOT_BITS;
+
+    /** Mask for slot indexes. */
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    /** Length of a tick in milliseconds. */
+    private final long tickLength;
+
+    /** Items scheduled since the last advance. */
+    @Nonnull private final Queue<Timeout<T>> incoming;
+
+    /** Slots, indexed by level then slot; only accessed by the advancing thread. */
+    @Nonnull private final List<List<Queue<Timeout<T>>>> wheel;
+
+    /** Last tick processed. */
+    private long currentTick;
+
+    /**
+     * Constructor.
+     * 
+     * @param tick length of a tick in milliseconds
+     * @param start time in milliseconds at which the wheel starts
+     */
+    public TimingWheel(@Positive final long tick, final long start) {
+        tickLength = Constraint.isGreaterThan(0, tick, "Tick length must be greater than 0");
+        currentTick = start / tickLength;
+        incoming = new ConcurrentLinkedQueue<>();
+        wheel = new ArrayList<>(LEVELS);
+        for (int level = 0; level < LEVELS; level++) {
+            final List<Queue<Timeout<T>>> slots = new ArrayList<>(SLOTS);
+            for (int slot = 0; slot < SLOTS; slot++) {
+                slots.add(new ArrayDeque<Timeout<T>>());
+            }
+            wheel.add(slots);
+        }
+    }
+
+    /**
+     * Get the length of a tick in milliseconds.
+     * 
+     * @return the length of a tick
+     */
+    public long getTickLength() {
+        return tickLength;
+    }
+
+    /**
+     * Schedule an item. The item is returned by the first call to {@link #advance(long)} with a time at or past the
+     * end of the tick containing the deadline.
+     * 
+     * @param item the item to schedule
+     * @param deadline the deadline in milliseconds
+     */
+    public void schedule(@Nonnull final T item, final long deadline) {
+        incoming.add(new Timeout<>(item, (deadline + tickLength - 1) / tickLength));
+    }
+
+    /**
+     * Advance the wheel to the given time, returning the items that are due.
+     * 
+     * @param now the current time in milliseconds
+     * @return the items whose deadline has passed
+     */
+    @Nonnull public List<T> advance(final long now) {
+        final List<T> due = new ArrayList<>();
+        Timeout<T> timeout;
+        while ((timeout = incoming.poll()) != null) {
+            place(timeout, due);
+        }
+
+        final long nowTick = now / tickLength;
+        while (currentTick < nowTick) {
+            currentTick++;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    final Queue<Timeout<T>> slot = slotFor(level, currentTick);
+                    while ((timeout = slot.poll()) != null) {
+                        place(timeout, due);
+                    }
+                }
+            }
+            final Queue<Timeout<T>> slot = slotFor(0, currentTick);
+            while ((timeout = slot.poll()) != null) {
+                due.add(timeout.item);
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Put a timeout in the slot matching its deadline, or in the list of due items if it has passed.
+     * 
+     * @param timeout the timeout to place
+     * @param due the list of due items
+     */
+    private void place(@Nonnull final Timeout<T> timeout, @Nonnull final List<T> due) {
+        final long delta = timeout.deadlineTick - currentTick;
+        if (delta <= 0) {
+            due.add(timeout.item);
+            return;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < 1L << (SLOT_BITS * (level + 1))) {
+                slotFor(level, timeout.deadlineTick).add(timeout);
+                return;
+            }
+        }
+        // Beyond the range of the wheel, park it in the slot of the coarsest level that comes around last.
+        slotFor(LEVELS - 1, currentTick - 1).add(timeout);
+    }
+
+    /**
+     * Get the slot of a level that holds a tick.
+     * 
+     * @param level the level
+     * @param tick the tick
+     * @return the slot
+     */
+    @Nonnull private Queue<Timeout<T>> slotFor(final int level, final long tick) {
+        return wheel.get(level).get((int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK));
+    }
+
+    /**
+     * An item and its deadline.
+     * 
+     * @param <T> type of item
+     */
+    private static final class Timeout<T> {
+
+        /** The item. */
+        @Nonnull private final T item;
+
+        /** The tick at the end of which the item is due. */
+        private final long deadlineTick;
+
+        /**
+         * Constructor.
+         * 
+         * @param i the item
+         * @param tick the deadline tick
+         */
+        private Timeout(@Nonnull final T i, final long tick) {
+            item = i;
+            deadlineTick = tick;
+        }
+    }
+
+}
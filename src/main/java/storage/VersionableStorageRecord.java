@@ -0,0 +1,66 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.storage.MutableStorageRecord;
+import org.opensaml.storage.StorageRecord;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+
+/**
+ * Exposes mutation of {@link StorageRecord} properties including version.
+ */
+class VersionableStorageRecord extends MutableStorageRecord {
+
+    /**
+     * Constructor.
+     *
+     * @param val value
+     * @param exp expiration or null if none
+     */
+    public VersionableStorageRecord(@Nonnull @NotEmpty final String val, @Nullable final Long exp) {
+        super(val, exp);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param val value
+     * @param exp expiration or null if none
+     * @param version record version; must be positive.
+     */
+    public VersionableStorageRecord(@Nonnull @NotEmpty final String val, @Nullable final Long exp,
+            @Positive final long version) {
+        super(val, exp);
+        setVersion(version);
+    }
+
+    /**
+     * Set the record version.
+     * 
+     * @param version record version; must be positive.
+     */
+    @Override protected void setVersion(@Positive final long version) {
+        super.setVersion(version);
+    }
+
+}